@@ -0,0 +1,54 @@
+package pro.dbro.airshare.session;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * The kinds of {@link SessionMessage} benchmarked, spanning those exchanged on connection to
+ * those carrying application data
+ */
+public enum MessageKind {
+
+    /** Exchanged by every peer on connection */
+    IDENTITY,
+
+    /** A DataTransferMessage with a 100 byte body, e.g: a chat message */
+    SMALL_DATA,
+
+    /**
+     * A DataTransferMessage with a 1 MB body, e.g: a photo. Smaller than
+     * {@link SessionMessageDeserializer#BODY_SIZE_CUTOFF_BYTES}, so received in memory
+     */
+    LARGE_DATA;
+
+    private static final long SEED = 42;
+
+    public SessionMessage create() {
+        Random random = new Random(SEED);
+
+        switch (this) {
+            case IDENTITY:
+                byte[] publicKey = new byte[32];
+                random.nextBytes(publicKey);
+                return new IdentityMessage(new Peer(publicKey, "benchmark", new Date(), -1, 3,
+                                                    SessionMessage.SUPPORTED_HEADER_VERSION));
+
+            case SMALL_DATA:
+                return createDataTransfer(random, 100);
+
+            case LARGE_DATA:
+                return createDataTransfer(random, 1000 * 1000);
+        }
+        throw new IllegalStateException("Unknown message kind " + this);
+    }
+
+    private static SessionMessage createDataTransfer(Random random, int bodyLengthBytes) {
+        byte[] body = new byte[bodyLengthBytes];
+        random.nextBytes(body);
+
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put("filename", "benchmark.bin");
+        return DataTransferMessage.createOutgoing(extras, body);
+    }
+}
@@ -0,0 +1,76 @@
+package pro.dbro.airshare.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks receiving a whole {@link SessionMessage} delivered in chunks of mtu bytes via
+ * {@link SessionMessageDeserializer#dataReceived(byte[])}. A single deserializer receives
+ * every message, as it would over a connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionMessageDeserializerBenchmark {
+
+    @Param({"IDENTITY", "SMALL_DATA", "LARGE_DATA"})
+    public MessageKind kind;
+
+    @Param({"20", "185", "512", "1024", "4096"})
+    public int mtu;
+
+    @Param({"1", "2"})
+    public int headerVersion;
+
+    private List<byte[]> mChunks;
+    private SessionMessageDeserializer mDeserializer;
+    private SessionMessage mReceived;
+
+    @Setup
+    public void setUp() {
+        SessionMessageSerializer serializer = new SessionMessageSerializer(kind.create());
+        serializer.setHeaderVersion(headerVersion);
+
+        mChunks = new ArrayList<>();
+        byte[] chunk;
+        while ((chunk = serializer.getNextChunk(mtu)) != null) {
+            // The serializer reuses its chunk buffers once acknowledged
+            mChunks.add(chunk.clone());
+            serializer.ackChunkDelivery();
+        }
+
+        // Bodies of benchmarked messages are received in memory, so no BodyStorage is required
+        mDeserializer = new SessionMessageDeserializer(null, new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+            @Override
+            public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                if (e != null) throw new IllegalStateException("Failed to deserialize message", e);
+                mReceived = message;
+            }
+        });
+    }
+
+    @Benchmark
+    public SessionMessage dataReceived() {
+        mReceived = null;
+        for (int i = 0; i < mChunks.size(); i++) mDeserializer.dataReceived(mChunks.get(i));
+
+        if (mReceived == null) throw new IllegalStateException("Message was not received");
+        return mReceived;
+    }
+}
@@ -0,0 +1,67 @@
+package pro.dbro.airshare.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks serializing a whole {@link SessionMessage} in chunks of mtu bytes via
+ * {@link SessionMessage#serialize(int, int, int)}, which allocates each chunk, and via
+ * {@link SessionMessage#serializeInto(ByteBuffer, int, int)}, which should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionMessageSerializeBenchmark {
+
+    @Param({"IDENTITY", "SMALL_DATA", "LARGE_DATA"})
+    public MessageKind kind;
+
+    @Param({"20", "185", "512", "1024", "4096"})
+    public int mtu;
+
+    @Param({"1", "2"})
+    public int headerVersion;
+
+    private SessionMessage mMessage;
+    private ByteBuffer mChunkBuffer;
+
+    @Setup
+    public void setUp() {
+        mMessage = kind.create();
+        mChunkBuffer = ByteBuffer.allocate(mtu);
+    }
+
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        int offset = 0;
+        byte[] chunk;
+        while ((chunk = mMessage.serialize(offset, mtu, headerVersion)) != null) {
+            blackhole.consume(chunk);
+            offset += chunk.length;
+        }
+    }
+
+    @Benchmark
+    public int serializeInto(Blackhole blackhole) {
+        int offset = 0;
+        int bytesWritten;
+        do {
+            mChunkBuffer.clear();
+            bytesWritten = mMessage.serializeInto(mChunkBuffer, offset, headerVersion);
+            blackhole.consume(mChunkBuffer);
+            offset += bytesWritten;
+        } while (bytesWritten == mtu);
+
+        return offset;
+    }
+}
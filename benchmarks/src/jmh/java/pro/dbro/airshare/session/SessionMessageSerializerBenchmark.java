@@ -0,0 +1,57 @@
+package pro.dbro.airshare.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks sending a whole {@link SessionMessage} through a {@link SessionMessageSerializer},
+ * requesting chunks of mtu bytes via {@link SessionMessageSerializer#getNextChunk(int)} and
+ * acknowledging each via {@link SessionMessageSerializer#ackChunkDelivery()} as a transport would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionMessageSerializerBenchmark {
+
+    /** Chunks awaiting acknowledgement, as SessionManager's default send window */
+    private static final int WINDOW_CHUNKS = 8;
+
+    @Param({"IDENTITY", "SMALL_DATA", "LARGE_DATA"})
+    public MessageKind kind;
+
+    @Param({"20", "185", "512", "1024", "4096"})
+    public int mtu;
+
+    @Param({"1", "2"})
+    public int headerVersion;
+
+    private SessionMessage mMessage;
+
+    @Setup
+    public void setUp() {
+        mMessage = kind.create();
+    }
+
+    @Benchmark
+    public void getNextChunkAndAck(Blackhole blackhole) {
+        SessionMessageSerializer serializer = new SessionMessageSerializer(mMessage);
+        serializer.setHeaderVersion(headerVersion);
+        serializer.setWindowSize(WINDOW_CHUNKS);
+
+        byte[] chunk;
+        do {
+            // Fill the window, then acknowledge it in full
+            while ((chunk = serializer.getNextChunk(mtu)) != null) blackhole.consume(chunk);
+            while (serializer.isAwaitingAck()) blackhole.consume(serializer.ackChunkDelivery());
+        } while (serializer.getCurrentMessage() != null);
+    }
+}
@@ -0,0 +1,136 @@
+package pro.dbro.airshare;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.io.BaseEncoding;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import pro.dbro.airshare.session.SessionLog;
+
+/**
+ * Utilities for converting between Java and Database friendly types, and for persisting
+ * the files of the session's stores
+ *
+ * Created by davidbrodsky on 10/13/14.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class DataUtil {
+
+    public static SimpleDateFormat storedDateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+
+    final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
+
+    /** Suffix of a file being written by {@link #writeFile(File, ContentWriter)} */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes the contents of a file. See {@link #writeFile(File, ContentWriter)}
+     */
+    public interface ContentWriter {
+        void write(FileOutputStream out) throws IOException;
+    }
+
+    /** Base64 in lines of 76 characters, as android.util.Base64.DEFAULT */
+    private static final BaseEncoding BASE64_DEFAULT = BaseEncoding.base64().withSeparator("\n", 76);
+
+    /**
+     * When we query rows by a BLOB column we must
+     * convert the BLOB to its String hex form
+     * see:
+     * http://www.sqlite.org/lang_expr.html#litvalue
+     */
+    public static String  bytesToHex(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for ( int j = 0; j < bytes.length; j++ ) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+//        String blobLiteral = "X'" + rawHex + "'";
+//        return blobLiteral;
+    }
+
+    public static byte[] hexToBytes(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
+
+    /**
+     * Encode bytes as Base64 identically to android.util.Base64.DEFAULT, terminating each line
+     * with a newline, so that encoded headers match those of peers using the platform encoder
+     */
+    public static String bytesToBase64(byte[] bytes) {
+        if (bytes.length == 0) return "";
+        return BASE64_DEFAULT.encode(bytes) + "\n";
+    }
+
+    /**
+     * Decode Base64, ignoring whitespace as android.util.Base64 does
+     *
+     * @throws IllegalArgumentException if base64 is not valid Base64
+     */
+    public static byte[] base64ToBytes(String base64) {
+        return BaseEncoding.base64().decode(CharMatcher.whitespace().removeFrom(base64));
+    }
+
+    public static void writeFile(File file, final byte[] contents) throws IOException {
+        writeFile(file, new ContentWriter() {
+            @Override
+            public void write(FileOutputStream out) throws IOException {
+                out.write(contents);
+            }
+        });
+    }
+
+    /**
+     * Write file via writer, replacing any existing file atomically so that a crash mid-write
+     * cannot leave a partial file. An interrupted write leaves a file with {@link #TEMP_SUFFIX}
+     */
+    public static void writeFile(File file, ContentWriter writer) throws IOException {
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            writer.write(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) throw new IOException("Failed to replace " + file.getName());
+    }
+
+    public static byte[] readFile(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                int count = in.read(contents, read, contents.length - read);
+                if (count == -1) throw new IOException("Unexpected end of " + file.getName());
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    /**
+     * Delete file if it exists, logging a failure to do so
+     */
+    public static void deleteFile(File file) {
+        if (file.exists() && !file.delete())
+            SessionLog.w("Failed to delete %s", file.getAbsolutePath());
+    }
+}
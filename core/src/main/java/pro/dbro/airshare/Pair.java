@@ -0,0 +1,40 @@
+package pro.dbro.airshare;
+
+import com.google.common.base.Objects;
+
+/**
+ * A pair of values. Stands in for android.util.Pair, which is unavailable off Android.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Pair<F, S> {
+
+    public final F first;
+    public final S second;
+
+    public Pair(F first, S second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public static <A, B> Pair<A, B> create(A first, B second) {
+        return new Pair<>(first, second);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Pair)) return false;
+
+        Pair<?, ?> other = (Pair<?, ?>) obj;
+        return Objects.equal(first, other.first) && Objects.equal(second, other.second);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(first, second);
+    }
+
+    @Override
+    public String toString() {
+        return "Pair{" + first + " " + second + "}";
+    }
+}
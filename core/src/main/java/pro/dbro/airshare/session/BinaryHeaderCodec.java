@@ -0,0 +1,315 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pro.dbro.airshare.DataUtil;
+
+/**
+ * Compact binary encoding of {@link pro.dbro.airshare.session.SessionMessage} headers,
+ * used when both peers support {@link SessionMessage#HEADER_VERSION_BINARY}.
+ *
+ * The general format of an encoded header:
+ *
+ * field       | description
+ * ------------|------------
+ * type        | uint8 type code. 0 indicates a varint length-prefixed UTF-8 type string follows
+ * id          | varint length-prefixed UTF-8 string
+ * body-length | varint
+ * count       | varint number of remaining entries
+ * entries     | key, tagged value pairs. Keys are a varint key code. 0 indicates a
+ *             | varint length-prefixed UTF-8 key string follows
+ *
+ * The Base64 {@link IdentityMessage#HEADER_PUBKEY} value is carried as raw bytes.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BinaryHeaderCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Interned type codes. Index is the code */
+    private static final String[] TYPES = {
+            null,
+            IdentityMessage.HEADER_TYPE,
+            TransportUpgradeMessage.HEADER_TYPE,
+            DataTransferMessage.HEADER_TYPE
+    };
+
+    /** Interned key codes. Index is the code */
+    private static final String[] KEYS = {
+            null,
+            IdentityMessage.HEADER_TRANSPORTS,
+            IdentityMessage.HEADER_PUBKEY,
+            IdentityMessage.HEADER_ALIAS,
+            IdentityMessage.HEADER_MAX_VERSION,
+            TransportUpgradeMessage.HEADER_TRANSPORT_CODE,
+            DataTransferMessage.HEADER_EXTRA
+    };
+
+    /** Value tags */
+    private static final int TAG_NULL   = 0;
+    private static final int TAG_FALSE  = 1;
+    private static final int TAG_TRUE   = 2;
+    private static final int TAG_INT    = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_BASE64 = 6;
+    private static final int TAG_MAP    = 7;
+    private static final int TAG_LIST   = 8;
+
+    public static byte[] encode(@NonNull Map<String, Object> headers) {
+        ByteBuffer out = ByteBuffer.allocate(64);
+
+        String type = (String) headers.get(SessionMessage.HEADER_TYPE);
+        int typeCode = indexOf(TYPES, type);
+        out = ensureCapacity(out, 1);
+        out.put((byte) typeCode);
+        if (typeCode == 0) out = putString(out, type);
+
+        out = putString(out, (String) headers.get(SessionMessage.HEADER_ID));
+        out = putVarint(out, ((Number) headers.get(SessionMessage.HEADER_BODY_LENGTH)).longValue());
+
+        int count = 0;
+        for (String key : headers.keySet()) {
+            if (!isFixedKey(key)) count++;
+        }
+        out = putVarint(out, count);
+
+        for (Map.Entry<String, Object> entry : headers.entrySet()) {
+            if (isFixedKey(entry.getKey())) continue;
+
+            out = putKey(out, entry.getKey());
+
+            if (entry.getKey().equals(IdentityMessage.HEADER_PUBKEY) && entry.getValue() instanceof String) {
+                byte[] raw = DataUtil.base64ToBytes((String) entry.getValue());
+                out = ensureCapacity(out, 1);
+                out.put((byte) TAG_BASE64);
+                out = putBytes(out, raw);
+            } else {
+                out = putValue(out, entry.getValue());
+            }
+        }
+
+        byte[] result = new byte[out.position()];
+        System.arraycopy(out.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * @throws IllegalArgumentException if data does not contain a valid encoded header
+     */
+    public static HashMap<String, Object> decode(@NonNull byte[] data, int offset, int length) {
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        HashMap<String, Object> headers = new HashMap<>();
+
+        try {
+            int typeCode = in.get() & 0xFF;
+            if (typeCode >= TYPES.length)
+                throw new IllegalArgumentException("Unknown header type code " + typeCode);
+
+            headers.put(SessionMessage.HEADER_TYPE, typeCode == 0 ? getString(in) : TYPES[typeCode]);
+            headers.put(SessionMessage.HEADER_ID, getString(in));
+            headers.put(SessionMessage.HEADER_BODY_LENGTH, toNumber(getVarint(in)));
+
+            long count = getVarint(in);
+            for (long i = 0; i < count; i++) {
+                String key = getKey(in);
+                headers.put(key, getValue(in));
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary header", e);
+        }
+
+        return headers;
+    }
+
+    // <editor-fold desc="Encoding">
+
+    private static boolean isFixedKey(String key) {
+        return key.equals(SessionMessage.HEADER_TYPE) ||
+               key.equals(SessionMessage.HEADER_ID) ||
+               key.equals(SessionMessage.HEADER_BODY_LENGTH);
+    }
+
+    private static ByteBuffer putKey(ByteBuffer out, String key) {
+        int keyCode = indexOf(KEYS, key);
+        out = putVarint(out, keyCode);
+        if (keyCode == 0) out = putString(out, key);
+        return out;
+    }
+
+    private static ByteBuffer putValue(ByteBuffer out, Object value) {
+        out = ensureCapacity(out, 1);
+
+        if (value == null) {
+            out.put((byte) TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.put((byte) ((Boolean) value ? TAG_TRUE : TAG_FALSE));
+        } else if (value instanceof Integer || value instanceof Long ||
+                   value instanceof Short || value instanceof Byte) {
+            out.put((byte) TAG_INT);
+            long v = ((Number) value).longValue();
+            out = putVarint(out, (v << 1) ^ (v >> 63)); // ZigZag
+        } else if (value instanceof Number) {
+            out.put((byte) TAG_DOUBLE);
+            out = ensureCapacity(out, 8);
+            out.putDouble(((Number) value).doubleValue());
+        } else if (value instanceof Map) {
+            out.put((byte) TAG_MAP);
+            Map<?, ?> map = (Map<?, ?>) value;
+            out = putVarint(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                out = putKey(out, String.valueOf(entry.getKey()));
+                out = putValue(out, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            out.put((byte) TAG_LIST);
+            List<?> list = (List<?>) value;
+            out = putVarint(out, list.size());
+            for (Object item : list) {
+                out = putValue(out, item);
+            }
+        } else {
+            out.put((byte) TAG_STRING);
+            out = putString(out, value.toString());
+        }
+
+        return out;
+    }
+
+    private static ByteBuffer putString(ByteBuffer out, String value) {
+        return putBytes(out, value.getBytes(UTF_8));
+    }
+
+    private static ByteBuffer putBytes(ByteBuffer out, byte[] value) {
+        out = putVarint(out, value.length);
+        out = ensureCapacity(out, value.length);
+        out.put(value);
+        return out;
+    }
+
+    /** Write an unsigned LEB128 varint */
+    private static ByteBuffer putVarint(ByteBuffer out, long value) {
+        out = ensureCapacity(out, 10);
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+        return out;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer out, int bytes) {
+        if (out.remaining() >= bytes) return out;
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        larger.put(out);
+        return larger;
+    }
+
+    // </editor-fold desc="Encoding">
+
+    // <editor-fold desc="Decoding">
+
+    private static String getKey(ByteBuffer in) {
+        long keyCode = getVarint(in);
+        if (keyCode >= KEYS.length)
+            throw new IllegalArgumentException("Unknown header key code " + keyCode);
+
+        return keyCode == 0 ? getString(in) : KEYS[(int) keyCode];
+    }
+
+    private static Object getValue(ByteBuffer in) {
+        int tag = in.get();
+
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+
+            case TAG_FALSE:
+                return false;
+
+            case TAG_TRUE:
+                return true;
+
+            case TAG_INT:
+                long zigZag = getVarint(in);
+                return toNumber((zigZag >>> 1) ^ -(zigZag & 1));
+
+            case TAG_DOUBLE:
+                return in.getDouble();
+
+            case TAG_STRING:
+                return getString(in);
+
+            case TAG_BASE64:
+                return DataUtil.bytesToBase64(getBytes(in));
+
+            case TAG_MAP:
+                long mapSize = getVarint(in);
+                HashMap<String, Object> map = new HashMap<>();
+                for (long i = 0; i < mapSize; i++) {
+                    String key = getKey(in);
+                    map.put(key, getValue(in));
+                }
+                return map;
+
+            case TAG_LIST:
+                long listSize = getVarint(in);
+                List<Object> list = new ArrayList<>();
+                for (long i = 0; i < listSize; i++) {
+                    list.add(getValue(in));
+                }
+                return list;
+
+            default:
+                throw new IllegalArgumentException("Unknown header value tag " + tag);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        return new String(getBytes(in), UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer in) {
+        long length = getVarint(in);
+        if (length > in.remaining())
+            throw new IllegalArgumentException("Truncated binary header");
+
+        byte[] result = new byte[(int) length];
+        in.get(result);
+        return result;
+    }
+
+    /** Read an unsigned LEB128 varint */
+    private static long getVarint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /** Match the Integer representation used by JSON-decoded headers where possible */
+    private static Object toNumber(long value) {
+        return value == (int) value ? (Object) (int) value : (Object) value;
+    }
+
+    // </editor-fold desc="Decoding">
+
+    private static int indexOf(String[] table, String value) {
+        for (int i = 1; i < table.length; i++) {
+            if (table[i].equals(value)) return i;
+        }
+        return 0;
+    }
+}
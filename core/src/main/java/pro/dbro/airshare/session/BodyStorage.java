@@ -0,0 +1,19 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * Provides the directory in which message bodies too large to hold in memory are written
+ * as they are received. On Android, the app's external files directory.
+ */
+public interface BodyStorage {
+
+    /**
+     * @return the directory in which to create body Files. Consulted as each body is created,
+     * so may change over the life of the receiver. If null, Files are created relative to the
+     * working directory
+     */
+    @Nullable File getBodyDirectory();
+}
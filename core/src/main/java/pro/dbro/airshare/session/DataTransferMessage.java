@@ -0,0 +1,474 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A SessionMessage carrying an application payload.
+ *
+ * The body may be held in memory, or for large payloads be backed by a {@link FileChannel}
+ * or {@link InputStream} on send and a memory-mapped {@link File} on receive. Disk-backed bodies
+ * are read in chunk-sized pieces as serialization progresses so they never reside in memory in full.
+ *
+ * An interrupted transfer may be resumed via {@link #resumeAt(int)}, which omits the body
+ * bytes the recipient already holds. A large body may be sent over several transports at once
+ * as stripes created via {@link #stripe(int, int)}, which the recipient reassembles by offset.
+ *
+ * Created by davidbrodsky on 2/22/15.
+ */
+@SuppressWarnings("WeakerAccess")
+public class DataTransferMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "datatransfer";
+
+    public static final String HEADER_EXTRA = "extra";
+
+    /** Bodies up to this size are {@link Priority#INTERACTIVE} unless specified otherwise */
+    public static final int INTERACTIVE_MAX_BODY_BYTES = 64 * 1024;
+
+    private ByteBuffer mData;
+    private Map<String, Object> mExtraHeaders;
+    private Priority mPriority;
+
+    /** Disk-backed body. Read with positional reads so that any offset may be served */
+    private File mBodyFile;
+    private FileChannel mBodyChannel;
+
+    /** Read-only view of a received disk-backed body */
+    private ByteBuffer mBodyMapping;
+
+    /** Stream-backed body. May only be read sequentially */
+    private ReadableByteChannel mBodySource;
+    private int mBodySourcePosition;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    DataTransferMessage(@NonNull Map<String, Object> headers,
+                        @Nullable byte[] body) {
+
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        this.mHeaders = headers;
+        // A resumed or striped message is complete once received, so its range no longer applies
+        mHeaders.remove(HEADER_BODY_OFFSET);
+        mHeaders.remove(HEADER_STRIPE_LENGTH);
+        mBodyLengthBytes = (int) headers.get(HEADER_BODY_LENGTH);
+        mStatus = body == null ? Status.HEADER_ONLY : Status.COMPLETE;
+
+        if (body != null) setBody(body);
+
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @Nullable byte[] data) {
+
+        return new DataTransferMessage(data, extraHeaders);
+    }
+
+    /**
+     * Create an outgoing DataTransferMessage whose body is read from body as it is sent.
+     * Reads are positional, so body may be shared with other readers.
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull FileChannel body) throws IOException {
+
+        if (body.size() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Body exceeds maximum length " + Integer.MAX_VALUE);
+
+        return new DataTransferMessage(extraHeaders, body, null, (int) body.size());
+    }
+
+    /**
+     * Create an outgoing DataTransferMessage whose body is read from body as it is sent.
+     * Because an InputStream cannot be rewound, {@link #getBodyAtOffset(int, int)} offsets
+     * must not decrease. Prefer {@link #createOutgoing(Map, FileChannel)} where possible.
+     *
+     * @param bodyLengthBytes the number of bytes to be read from body
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull InputStream body,
+                                                     int bodyLengthBytes) {
+
+        return new DataTransferMessage(extraHeaders, null, Channels.newChannel(body), bodyLengthBytes);
+    }
+
+    // To avoid confusion between the incoming constructor which takes a
+    // Map of the completely deserialized headers and byte payload, we hide
+    // this contstructor behind the static creator 'createOutgoing'
+    private DataTransferMessage(@Nullable byte[] data,
+                                @Nullable Map<String, Object> extraHeaders) {
+        super();
+
+        mExtraHeaders = extraHeaders;
+        init();
+
+        if (data != null) {
+            setBody(data);
+            mBodyLengthBytes = data.length;
+        }
+
+        serializeAndCacheHeaders();
+    }
+
+    private DataTransferMessage(@Nullable Map<String, Object> extraHeaders,
+                                @Nullable FileChannel bodyChannel,
+                                @Nullable ReadableByteChannel bodySource,
+                                int bodyLengthBytes) {
+        super();
+
+        mExtraHeaders = extraHeaders;
+        init();
+
+        mBodyChannel = bodyChannel;
+        mBodySource = bodySource;
+        mBodyLengthBytes = bodyLengthBytes;
+
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * @return a copy of this message that serializes its body beginning at bodyOffset, for
+     * a recipient holding the preceding bytes of an interrupted transfer. The copy equals this
+     * message and shares its body, which must not be read via this message afterwards.
+     *
+     * @throws IllegalStateException if the body is stream-backed and has been read beyond bodyOffset
+     */
+    public DataTransferMessage resumeAt(int bodyOffset) {
+        if (bodyOffset < 0 || bodyOffset > mBodyLengthBytes)
+            throw new IllegalArgumentException(String.format("Resume offset %d outside body of %d bytes",
+                                                             bodyOffset, mBodyLengthBytes));
+
+        if (mBodySource != null && bodyOffset < mBodySourcePosition)
+            throw new IllegalStateException(String.format("Cannot resume stream-backed body at %d after reading %d bytes",
+                                                          bodyOffset, mBodySourcePosition));
+
+        return new DataTransferMessage(this, bodyOffset, mStripeLengthBytes > 0 ? mBodyOffset + mStripeLengthBytes - bodyOffset : 0);
+    }
+
+    /**
+     * @return a copy of this message that serializes only length body bytes beginning at
+     * bodyOffset. The copy equals this message and shares its body.
+     *
+     * @throws IllegalStateException if the body is stream-backed, see {@link #isStripeable()}
+     */
+    public DataTransferMessage stripe(int bodyOffset, int length) {
+        if (bodyOffset < 0 || length < 1 || bodyOffset + length > mBodyLengthBytes)
+            throw new IllegalArgumentException(String.format("Stripe %d-%d outside body of %d bytes",
+                                                             bodyOffset, bodyOffset + length, mBodyLengthBytes));
+
+        if (!isStripeable())
+            throw new IllegalStateException("Cannot stripe a stream-backed body");
+
+        return new DataTransferMessage(this, bodyOffset, length);
+    }
+
+    /**
+     * @return whether ranges of this message's body may be read concurrently, as required by
+     * {@link #stripe(int, int)}
+     */
+    public boolean isStripeable() {
+        return mBodySource == null;
+    }
+
+    private DataTransferMessage(@NonNull DataTransferMessage original, int bodyOffset, int stripeLength) {
+        super(original.mId);
+
+        mExtraHeaders = original.mExtraHeaders;
+        mPriority = original.mPriority;
+        init();
+
+        mData = original.mData;
+        mBodyFile = original.mBodyFile;
+        mBodyChannel = original.mBodyChannel;
+        mBodyMapping = original.mBodyMapping;
+        mBodySource = original.mBodySource;
+        mBodySourcePosition = original.mBodySourcePosition;
+        mBodyLengthBytes = original.mBodyLengthBytes;
+        mBodyOffset = bodyOffset;
+        mStripeLengthBytes = stripeLength;
+
+        mHeaders = populateHeaders();
+        if (bodyOffset > 0 || stripeLength > 0) mHeaders.put(HEADER_BODY_OFFSET, bodyOffset);
+        if (stripeLength > 0) mHeaders.put(HEADER_STRIPE_LENGTH, stripeLength);
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    private void init() {
+        mType = HEADER_TYPE;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+        if (mExtraHeaders != null)
+            headerMap.put(HEADER_EXTRA, mExtraHeaders);
+
+        // The following three lines should be deleted
+//        headerMap.put(HEADER_TYPE,        type);
+//        headerMap.put(HEADER_BODY_LENGTH, bodyLengthBytes);
+//        headerMap.put(HEADER_ID,          id);
+
+        return headerMap;
+    }
+
+    /**
+     * Override the scheduling class determined by body length. Takes effect when queued for sending
+     */
+    public void setPriority(@NonNull Priority priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public @NonNull Priority getPriority() {
+        if (mPriority != null) return mPriority;
+
+        return mBodyLengthBytes <= INTERACTIVE_MAX_BODY_BYTES ? Priority.INTERACTIVE : Priority.BULK;
+    }
+
+    public void setBody(@NonNull byte[] body) {
+        if (hasBody()) {
+            throw new IllegalStateException("Attempted to set existing message body");
+        }
+
+        mData = ByteBuffer.wrap(body);
+        mStatus = Status.COMPLETE;
+    }
+
+    /**
+     * Set the body of an incoming message to the completely received contents of body
+     *
+     * @param mapping a mapping of the entirety of body
+     */
+    void setBody(@NonNull File body, @NonNull MappedByteBuffer mapping) {
+        if (hasBody()) {
+            throw new IllegalStateException("Attempted to set existing message body");
+        }
+
+        mBodyFile = body;
+        mBodyMapping = mapping.asReadOnlyBuffer();
+        mBodyMapping.clear();
+        mStatus = Status.COMPLETE;
+    }
+
+    /**
+     * @return a read-only view of the entire body, or null if the body is not in memory or mapped.
+     * For a received disk-backed body this is a mapping of {@link #getBodyFile()}
+     */
+    public @Nullable ByteBuffer getBodyBuffer() {
+        if (mBodyMapping != null) return mBodyMapping.duplicate();
+
+        if (mData != null) return mData.asReadOnlyBuffer();
+
+        return null;
+    }
+
+    /**
+     * @return the File containing this message's body, or null if the body is not stored in a File
+     */
+    public @Nullable File getBodyFile() {
+        return mBodyFile;
+    }
+
+    /**
+     * @return whether this message's body resides on disk or is streamed,
+     * and so should not be materialized via {@link #getBodyAtOffset(int, int)} in full
+     */
+    public boolean isDiskBacked() {
+        return mBodyFile != null || mBodyChannel != null || mBodySource != null;
+    }
+
+    /**
+     * @return a new InputStream over the entire body, or null if no body is available.
+     * A stream-backed outgoing body can not be re-read and so also returns null.
+     */
+    public @Nullable InputStream getBodyStream() {
+        if (mData != null)
+            return new ByteArrayInputStream(mData.array(), mData.arrayOffset(), mBodyLengthBytes);
+
+        if (mBodyMapping != null)
+            return new BufferInputStream(mBodyMapping.duplicate());
+
+        if (mBodyChannel != null)
+            return Channels.newInputStream(new PositionalReadChannel(mBodyChannel));
+
+        return null;
+    }
+
+    @Override
+    public byte[] getBodyAtOffset(int offset, int length) {
+
+        if (offset > mBodyLengthBytes - 1) return null;
+
+        int bytesToRead = Math.min(length, mBodyLengthBytes - offset);
+        byte[] result = new byte[bytesToRead];
+
+        int bytesRead = writeBodyAtOffset(ByteBuffer.wrap(result), offset);
+        if (bytesRead != bytesToRead)
+            throw new IllegalStateException(String.format("Read %d of %d body bytes", bytesRead, bytesToRead));
+
+        return result;
+    }
+
+    @Override
+    protected int writeBodyAtOffset(@NonNull ByteBuffer dst, int offset) {
+
+        if (!hasBody() || offset > mBodyLengthBytes - 1) return 0;
+
+        int bytesToWrite = Math.min(dst.remaining(), mBodyLengthBytes - offset);
+
+        if (mData != null) {
+            dst.put(mData.array(), mData.arrayOffset() + offset, bytesToWrite);
+            return bytesToWrite;
+        }
+
+        if (mBodyMapping != null) {
+            ByteBuffer src = mBodyMapping.duplicate();
+            src.position(offset);
+            src.limit(offset + bytesToWrite);
+            dst.put(src);
+            return bytesToWrite;
+        }
+
+        int limit = dst.limit();
+        dst.limit(dst.position() + bytesToWrite);
+        try {
+            if (mBodySource != null)
+                readSequential(dst, offset);
+            else
+                readPositional(dst, offset);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read message body at offset " + offset, e);
+        } finally {
+            dst.limit(limit);
+        }
+
+        return bytesToWrite;
+    }
+
+    // <editor-fold desc="Disk-backed body">
+
+    private boolean hasBody() {
+        return mData != null || isDiskBacked();
+    }
+
+    /**
+     * Fill dst from {@link #mBodyChannel} beginning at offset
+     */
+    private void readPositional(@NonNull ByteBuffer dst, int offset) throws IOException {
+        long position = offset;
+        while (dst.hasRemaining()) {
+            int read = mBodyChannel.read(dst, position);
+            if (read == -1) throw new IOException("Unexpected end of body File");
+            position += read;
+        }
+    }
+
+    /**
+     * Fill dst from {@link #mBodySource} beginning at offset, skipping forward if necessary
+     */
+    private void readSequential(@NonNull ByteBuffer dst, int offset) throws IOException {
+        if (offset < mBodySourcePosition)
+            throw new IllegalStateException(String.format("Cannot rewind stream-backed body from %d to %d",
+                                                          mBodySourcePosition, offset));
+
+        if (offset > mBodySourcePosition) {
+            ByteBuffer skip = ByteBuffer.allocate(Math.min(offset - mBodySourcePosition, 8 * 1024));
+            while (mBodySourcePosition < offset) {
+                skip.clear();
+                skip.limit(Math.min(skip.capacity(), offset - mBodySourcePosition));
+                int read = mBodySource.read(skip);
+                if (read == -1) throw new IOException("Unexpected end of body stream");
+                mBodySourcePosition += read;
+            }
+        }
+
+        while (dst.hasRemaining()) {
+            int read = mBodySource.read(dst);
+            if (read == -1) throw new IOException("Unexpected end of body stream");
+            mBodySourcePosition += read;
+        }
+    }
+
+    /**
+     * Adapts a shared FileChannel to a sequential reader without modifying the channel's position
+     */
+    private static class PositionalReadChannel implements ReadableByteChannel {
+
+        private final FileChannel mChannel;
+        private long mPosition;
+
+        PositionalReadChannel(@NonNull FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = mChannel.read(dst, mPosition);
+            if (read > 0) mPosition += read;
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mChannel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // The underlying channel is owned by the DataTransferMessage
+        }
+    }
+
+    /**
+     * Reads a ByteBuffer from its position to its limit
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        BufferInputStream(@NonNull ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+
+            int bytesToRead = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, bytesToRead);
+            return bytesToRead;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    // </editor-fold desc="Disk-backed body">
+}
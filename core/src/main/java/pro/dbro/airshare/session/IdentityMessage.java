@@ -1,12 +1,17 @@
 package pro.dbro.airshare.session;
 
-import android.util.Base64;
-
 import com.google.common.base.Objects;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import pro.dbro.airshare.DataUtil;
 
 /**
  * Representation of network identity. Closely related to {@link pro.dbro.airshare.session.Peer}
@@ -21,23 +26,50 @@ public class IdentityMessage extends SessionMessage {
     public static final String HEADER_TRANSPORTS  = "transports";
     public static final String HEADER_PUBKEY      = "pubkey";
     public static final String HEADER_ALIAS       = "alias";
+    public static final String HEADER_MAX_VERSION = "max-version";
+    public static final String HEADER_FEATURES    = "features";
 
     private Peer mPeer;
 
     /**
      * Convenience creator for deserialization
+     *
+     * @throws IllegalArgumentException if the id or public key received is malformed
      */
     public static IdentityMessage fromHeaders(Map<String, Object> headers) {
-        int transports = headers.containsKey(HEADER_TRANSPORTS) ? (int) headers.get(HEADER_TRANSPORTS) : 0;
+        Object id = headers.get(SessionMessage.HEADER_ID);
+        Object pubKey = headers.get(HEADER_PUBKEY);
+        Object alias = headers.get(HEADER_ALIAS);
+        if (!(id instanceof String) || !(pubKey instanceof String) || (alias != null && !(alias instanceof String)))
+            throw new IllegalArgumentException(String.format("Malformed identity id %s, public key %s or alias %s",
+                                                             id, pubKey, alias));
+
+        Object transports = headers.get(HEADER_TRANSPORTS);
+
+        // Peers predating header version negotiation only support JSON headers, as is assumed
+        // of a peer advertising a malformed version
+        Object maxHeaderVersion = headers.get(HEADER_MAX_VERSION);
+        if (!(maxHeaderVersion instanceof Integer) || (Integer) maxHeaderVersion < SessionMessage.HEADER_VERSION_JSON)
+            maxHeaderVersion = SessionMessage.HEADER_VERSION_JSON;
+
+        // Peers predating feature advertisement support none. Unknown features are ignored
+        Set<String> features = new HashSet<>();
+        Object advertised = headers.get(HEADER_FEATURES);
+        if (advertised instanceof List) {
+            for (Object feature : (List<?>) advertised) {
+                if (Peer.SUPPORTED_FEATURES.contains(feature)) features.add((String) feature);
+            }
+        }
 
-        Peer peer = new Peer(Base64.decode((String) headers.get(HEADER_PUBKEY), Base64.DEFAULT),
-                             (String) headers.get(HEADER_ALIAS),
+        Peer peer = new Peer(DataUtil.base64ToBytes((String) pubKey),
+                             (String) alias,
                              new Date(),
                              -1,
-                             transports);
+                             transports instanceof Integer ? (Integer) transports : 0,
+                             (Integer) maxHeaderVersion,
+                             Collections.unmodifiableSet(features));
 
-        return new IdentityMessage((String) headers.get(SessionMessage.HEADER_ID),
-                                   peer);
+        return new IdentityMessage((String) id, peer);
     }
 
     public IdentityMessage(String id, Peer peer) {
@@ -75,8 +107,10 @@ public class IdentityMessage extends SessionMessage {
         HashMap<String, Object> headerMap = super.populateHeaders();
 
         headerMap.put(HEADER_ALIAS, mPeer.getAlias());
-        headerMap.put(HEADER_PUBKEY, Base64.encodeToString(mPeer.getPublicKey(), Base64.DEFAULT));
+        headerMap.put(HEADER_PUBKEY, DataUtil.bytesToBase64(mPeer.getPublicKey()));
         headerMap.put(HEADER_TRANSPORTS, mPeer.getTransports());
+        headerMap.put(HEADER_MAX_VERSION, mPeer.getMaxHeaderVersion());
+        headerMap.put(HEADER_FEATURES, new ArrayList<Object>(mPeer.getFeatures()));
 
         return headerMap;
     }
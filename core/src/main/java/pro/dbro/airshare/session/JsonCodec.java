@@ -0,0 +1,43 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts {@link SessionMessage} headers and the state of the session stores to and from JSON.
+ *
+ * The session core uses {@link #getDefault()}, a self-contained codec, unless another is
+ * installed via {@link #setDefault(JsonCodec)}. The sdk installs one backed by the platform's
+ * org.json. Any codec must represent JSON numbers as Integer where they fit, else as Long or
+ * Double, JSON arrays as Lists and JSON objects as HashMaps.
+ */
+@SuppressWarnings("WeakerAccess")
+public abstract class JsonCodec {
+
+    private static volatile JsonCodec sDefault = new SimpleJsonCodec();
+
+    public static @NonNull JsonCodec getDefault() {
+        return sDefault;
+    }
+
+    public static void setDefault(@NonNull JsonCodec codec) {
+        sDefault = codec;
+    }
+
+    /**
+     * @return object as a JSON object. Values may be null, Strings, Numbers, Booleans, Maps
+     * and Collections thereof
+     * @throws IllegalArgumentException if object holds a value that JSON cannot represent,
+     * e.g: NaN
+     */
+    public abstract @NonNull String encode(@NonNull Map<String, ?> object);
+
+    /**
+     * @return the JSON object json as a Map
+     * @throws IOException if json is not a well-formed JSON object
+     */
+    public abstract @NonNull HashMap<String, Object> decode(@NonNull String json) throws IOException;
+}
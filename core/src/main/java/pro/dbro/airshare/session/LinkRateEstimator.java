@@ -0,0 +1,79 @@
+package pro.dbro.airshare.session;
+
+/**
+ * Estimates the throughput of a single link from the acknowledgement of data sent over it.
+ *
+ * Acknowledged bytes are accumulated over sample intervals of at least {@link #SAMPLE_INTERVAL_MS},
+ * and each sample's rate is folded into an exponentially weighted moving average. A pause
+ * in acknowledgements longer than {@link #IDLE_MS} ends the current interval without a sample,
+ * so that an idle link is not mistaken for a slow one.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LinkRateEstimator {
+
+    public static final long SAMPLE_INTERVAL_MS = 100;
+    public static final long IDLE_MS = 1000;
+
+    /** Weight of each new sample in the average */
+    public static final double DEFAULT_SMOOTHING = 0.25;
+
+    private final double mSmoothing;
+
+    private double mBytesPerSecond;
+    private int mSampleCount;
+
+    private long mIntervalStartMs = -1;
+    private long mLastAckMs;
+    private long mIntervalBytes;
+
+    public LinkRateEstimator() {
+        this(DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param smoothing weight of each new sample, in (0, 1]
+     */
+    public LinkRateEstimator(double smoothing) {
+        if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("Smoothing must be in (0, 1]");
+
+        mSmoothing = smoothing;
+    }
+
+    /**
+     * Record that bytes sent over this link were acknowledged at nowMs
+     */
+    public synchronized void onBytesAcked(long bytes, long nowMs) {
+        if (mIntervalStartMs < 0 || nowMs - mLastAckMs > IDLE_MS) {
+            // The first acknowledgement after idling marks when transmission was known to be underway
+            mIntervalStartMs = nowMs;
+            mIntervalBytes = 0;
+            mLastAckMs = nowMs;
+            return;
+        }
+
+        mIntervalBytes += bytes;
+        mLastAckMs = nowMs;
+
+        long elapsedMs = nowMs - mIntervalStartMs;
+        if (elapsedMs < SAMPLE_INTERVAL_MS) return;
+
+        double sample = mIntervalBytes * 1000.0 / elapsedMs;
+        mBytesPerSecond = mSampleCount == 0 ? sample : mSmoothing * sample + (1 - mSmoothing) * mBytesPerSecond;
+        mSampleCount++;
+
+        mIntervalStartMs = nowMs;
+        mIntervalBytes = 0;
+    }
+
+    /**
+     * @return the estimated throughput, or 0 if no sample interval has completed
+     */
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSampleCount;
+    }
+}
@@ -0,0 +1,381 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import pro.dbro.airshare.DataUtil;
+
+/**
+ * Persists outgoing {@link DataTransferMessage}s to peers that are not currently available,
+ * keyed by recipient public key, so that they may be forwarded once the peer is next
+ * identified, even after this process restarts.
+ *
+ * Each message is stored as a JSON file of its headers and a File of its body, named by
+ * sequence number and expiry time so that the index of thousands of messages is rebuilt
+ * from a directory listing alone. Message bodies are read only as each message is taken for
+ * sending, via {@link #takeNext(byte[])}, and are memory-mapped rather than loaded.
+ *
+ * A message is removed once its delivery is reported via {@link #onSent(byte[], String)},
+ * when it expires, or on construction if it has expired. The messages and bytes stored per
+ * peer are capped.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OutboxStore {
+
+    public static final long DEFAULT_TTL_MS = 7 * 24 * 60 * 60 * 1000;
+
+    public static final int DEFAULT_MAX_MESSAGES_PER_PEER = 10 * 1000;
+
+    public static final long DEFAULT_MAX_BYTES_PER_PEER = 64 * 1024 * 1024;
+
+    private static final String HEADERS_SUFFIX = ".json";
+    private static final String BODY_SUFFIX    = ".body";
+
+    private static final String KEY_HEADERS  = "headers";
+    private static final String KEY_PRIORITY = "priority";
+
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    private static class Entry {
+
+        final long sequence;
+        final long expires;
+        final File headersFile;
+        final File bodyFile;
+        final long lengthBytes;
+
+        Entry(long sequence, long expires, File headersFile, File bodyFile) {
+            this.sequence = sequence;
+            this.expires = expires;
+            this.headersFile = headersFile;
+            this.bodyFile = bodyFile;
+            this.lengthBytes = headersFile.length() + bodyFile.length();
+        }
+    }
+
+    /**
+     * Messages stored for one peer, in the order they were stored
+     */
+    private static class Outbox {
+
+        final TreeMap<Long, Entry> entries = new TreeMap<>();
+        /** Message id -> Entry taken for sending */
+        final HashMap<String, Entry> sending = new HashMap<>();
+        long lengthBytes;
+    }
+
+    private final File mDirectory;
+    private final int mMaxMessagesPerPeer;
+    private final long mMaxBytesPerPeer;
+
+    /** Hex public key -> Outbox */
+    private final HashMap<String, Outbox> mOutboxes = new HashMap<>();
+    private long mNextSequence;
+
+    public OutboxStore(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_MESSAGES_PER_PEER, DEFAULT_MAX_BYTES_PER_PEER);
+    }
+
+    public OutboxStore(@NonNull File directory, int maxMessagesPerPeer, long maxBytesPerPeer) {
+        mDirectory = directory;
+        mMaxMessagesPerPeer = maxMessagesPerPeer;
+        mMaxBytesPerPeer = maxBytesPerPeer;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            SessionLog.e("Failed to create outbox directory %s", mDirectory.getAbsolutePath());
+
+        load(System.currentTimeMillis());
+    }
+
+    /**
+     * Store message for delivery to the peer with peerKey, discarding it if undelivered after ttlMs
+     *
+     * @throws IOException if the peer's outbox is full or message could not be written
+     */
+    public synchronized void add(@NonNull byte[] peerKey,
+                                 @NonNull DataTransferMessage message,
+                                 long ttlMs) throws IOException {
+
+        String key = DataUtil.bytesToHex(peerKey);
+        Outbox outbox = getOrCreateOutbox(key);
+        pruneExpired(outbox, System.currentTimeMillis());
+
+        if (outbox.entries.size() >= mMaxMessagesPerPeer ||
+            outbox.lengthBytes + message.getBodyLengthBytes() > mMaxBytesPerPeer) {
+
+            throw new IOException(String.format(Locale.US, "Outbox of %d messages, %d bytes is full",
+                                                outbox.entries.size(), outbox.lengthBytes));
+        }
+
+        long sequence = mNextSequence++;
+        long expires = System.currentTimeMillis() + ttlMs;
+        File directory = new File(mDirectory, key);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create outbox directory " + directory.getAbsolutePath());
+
+        String name = sequence + "-" + expires;
+        File headersFile = new File(directory, name + HEADERS_SUFFIX);
+        File bodyFile = new File(directory, name + BODY_SUFFIX);
+
+        try {
+            // The headers are written last, so that an interrupted write leaves no entry
+            writeBody(message, bodyFile);
+
+            HashMap<String, Object> stored = new HashMap<>();
+            stored.put(KEY_HEADERS, message.getHeaders());
+            stored.put(KEY_PRIORITY, message.getPriority().name());
+            DataUtil.writeFile(headersFile, JsonCodec.getDefault().encode(stored).getBytes("UTF-8"));
+
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            DataUtil.deleteFile(bodyFile);
+            throw new IOException("Failed to store message " + message.getId(), e);
+        }
+
+        Entry entry = new Entry(sequence, expires, headersFile, bodyFile);
+        outbox.entries.put(sequence, entry);
+        outbox.lengthBytes += entry.lengthBytes;
+    }
+
+    /**
+     * Take the oldest message stored for the peer with peerKey that has not yet been taken,
+     * discarding any expired or unreadable messages before it. The message remains stored
+     * until reported sent via {@link #onSent(byte[], String)}.
+     *
+     * @return the message, with a memory-mapped body, or null if none remains
+     */
+    public synchronized @Nullable DataTransferMessage takeNext(@NonNull byte[] peerKey) {
+        Outbox outbox = mOutboxes.get(DataUtil.bytesToHex(peerKey));
+        if (outbox == null) return null;
+
+        pruneExpired(outbox, System.currentTimeMillis());
+
+        Entry entry;
+        while ((entry = nextUntaken(outbox)) != null) {
+            try {
+                DataTransferMessage message = read(entry);
+                outbox.sending.put(message.getId(), entry);
+                return message;
+
+            } catch (IOException | IllegalArgumentException | ClassCastException e) {
+                SessionLog.e(e, "Discarding unreadable outbox message %s", entry.headersFile.getName());
+                remove(outbox, entry);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the message with messageId taken for the peer with peerKey, now delivered
+     *
+     * @return whether messageId was a message taken from this store
+     */
+    public synchronized boolean onSent(@NonNull byte[] peerKey, @NonNull String messageId) {
+        Outbox outbox = mOutboxes.get(DataUtil.bytesToHex(peerKey));
+        if (outbox == null) return false;
+
+        Entry entry = outbox.sending.remove(messageId);
+        if (entry == null) return false;
+
+        remove(outbox, entry);
+        return true;
+    }
+
+    /**
+     * Make the message with messageId taken for the peer with peerKey available to
+     * {@link #takeNext(byte[])} again, e.g. on failure to send it
+     */
+    public synchronized void release(@NonNull byte[] peerKey, @NonNull String messageId) {
+        Outbox outbox = mOutboxes.get(DataUtil.bytesToHex(peerKey));
+        if (outbox != null) outbox.sending.remove(messageId);
+    }
+
+    /**
+     * Make all taken messages available to {@link #takeNext(byte[])} again
+     */
+    public synchronized void releaseAll() {
+        for (Outbox outbox : mOutboxes.values()) outbox.sending.clear();
+    }
+
+    /**
+     * @return the number of messages taken for the peer with peerKey and not yet reported sent
+     */
+    public synchronized int getSendingCount(@NonNull byte[] peerKey) {
+        Outbox outbox = mOutboxes.get(DataUtil.bytesToHex(peerKey));
+        return outbox == null ? 0 : outbox.sending.size();
+    }
+
+    /**
+     * @return the number of messages stored for the peer with peerKey
+     */
+    public synchronized int size(@NonNull byte[] peerKey) {
+        Outbox outbox = mOutboxes.get(DataUtil.bytesToHex(peerKey));
+        return outbox == null ? 0 : outbox.entries.size();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Outbox outbox : mOutboxes.values()) size += outbox.entries.size();
+        return size;
+    }
+
+    private Outbox getOrCreateOutbox(String key) {
+        Outbox outbox = mOutboxes.get(key);
+        if (outbox == null) {
+            outbox = new Outbox();
+            mOutboxes.put(key, outbox);
+        }
+        return outbox;
+    }
+
+    private static @Nullable Entry nextUntaken(Outbox outbox) {
+        for (Entry entry : outbox.entries.values()) {
+            if (!outbox.sending.containsValue(entry)) return entry;
+        }
+        return null;
+    }
+
+    private void pruneExpired(Outbox outbox, long now) {
+        Iterator<Entry> entries = outbox.entries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            // A message being sent is removed once delivered
+            if (entry.expires > now || outbox.sending.containsValue(entry)) continue;
+
+            SessionLog.d("Discarding expired outbox message %s", entry.headersFile.getName());
+            entries.remove();
+            outbox.lengthBytes -= entry.lengthBytes;
+            DataUtil.deleteFile(entry.headersFile);
+            DataUtil.deleteFile(entry.bodyFile);
+        }
+    }
+
+    private void remove(Outbox outbox, Entry entry) {
+        if (outbox.entries.remove(entry.sequence) == null) return;
+
+        outbox.sending.values().remove(entry);
+        outbox.lengthBytes -= entry.lengthBytes;
+        DataUtil.deleteFile(entry.headersFile);
+        DataUtil.deleteFile(entry.bodyFile);
+    }
+
+    // <editor-fold desc="Persistence">
+
+    private void load(long now) {
+        File[] peerDirectories = mDirectory.listFiles();
+        if (peerDirectories == null) return;
+
+        int expired = 0;
+        for (File peerDirectory : peerDirectories) {
+            File[] files = peerDirectory.listFiles();
+            if (files == null) continue;
+
+            Outbox outbox = new Outbox();
+            for (File file : files) {
+                String name = file.getName();
+
+                if (!name.endsWith(HEADERS_SUFFIX)) {
+                    // Bodies are indexed by their headers. Others were interrupted while written
+                    if (!name.endsWith(BODY_SUFFIX) ||
+                        !new File(peerDirectory, name.replace(BODY_SUFFIX, HEADERS_SUFFIX)).exists())
+                        DataUtil.deleteFile(file);
+                    continue;
+                }
+
+                String[] fields = name.substring(0, name.length() - HEADERS_SUFFIX.length()).split("-");
+                File bodyFile = new File(peerDirectory, name.replace(HEADERS_SUFFIX, BODY_SUFFIX));
+                long sequence, expires;
+                try {
+                    sequence = Long.parseLong(fields[0]);
+                    expires = Long.parseLong(fields[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    SessionLog.w("Discarding malformed outbox file %s", name);
+                    DataUtil.deleteFile(file);
+                    DataUtil.deleteFile(bodyFile);
+                    continue;
+                }
+
+                if (expires <= now) {
+                    DataUtil.deleteFile(file);
+                    DataUtil.deleteFile(bodyFile);
+                    expired++;
+                    continue;
+                }
+
+                Entry entry = new Entry(sequence, expires, file, bodyFile);
+                outbox.entries.put(sequence, entry);
+                outbox.lengthBytes += entry.lengthBytes;
+                mNextSequence = Math.max(mNextSequence, sequence + 1);
+            }
+
+            if (!outbox.entries.isEmpty()) mOutboxes.put(peerDirectory.getName(), outbox);
+        }
+
+        SessionLog.d("Loaded %d outbox messages for %d peers. Discarded %d expired",
+                 size(), mOutboxes.size(), expired);
+    }
+
+    private static DataTransferMessage read(Entry entry) throws IOException {
+        HashMap<String, Object> stored = JsonCodec.getDefault().decode(new String(DataUtil.readFile(entry.headersFile), "UTF-8"));
+        if (!(stored.get(KEY_HEADERS) instanceof HashMap) || !(stored.get(KEY_PRIORITY) instanceof String))
+            throw new IOException("Missing headers or priority");
+
+        @SuppressWarnings("unchecked")
+        HashMap<String, Object> headers = (HashMap<String, Object>) stored.get(KEY_HEADERS);
+
+        DataTransferMessage message = new DataTransferMessage(headers, null);
+        message.setPriority(SessionMessage.Priority.valueOf((String) stored.get(KEY_PRIORITY)));
+
+        if (entry.bodyFile.length() != message.getBodyLengthBytes())
+            throw new IOException(String.format(Locale.US, "Body of %d bytes, expected %d",
+                                                entry.bodyFile.length(), message.getBodyLengthBytes()));
+
+        if (message.getBodyLengthBytes() == 0) {
+            message.setBody(new byte[0]);
+            return message;
+        }
+
+        RandomAccessFile body = new RandomAccessFile(entry.bodyFile, "r");
+        try {
+            // The mapping remains valid after the File is closed
+            message.setBody(entry.bodyFile, body.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, body.length()));
+        } finally {
+            body.close();
+        }
+        return message;
+    }
+
+    /**
+     * Write the entire body of message to file, a piece at a time
+     */
+    private static void writeBody(final DataTransferMessage message, File file) throws IOException {
+        DataUtil.writeFile(file, new DataUtil.ContentWriter() {
+            @Override
+            public void write(FileOutputStream out) throws IOException {
+                ByteBuffer buffer = ByteBuffer.allocate(Math.min(COPY_BUFFER_BYTES, Math.max(1, message.getBodyLengthBytes())));
+                int offset = 0;
+                while (offset < message.getBodyLengthBytes()) {
+                    buffer.clear();
+                    int read = message.writeBodyAtOffset(buffer, offset);
+                    if (read == 0) throw new IOException("Body unavailable at offset " + offset);
+
+                    buffer.flip();
+                    out.getChannel().write(buffer);
+                    offset += read;
+                }
+            }
+        });
+    }
+
+    // </editor-fold desc="Persistence">
+}
@@ -0,0 +1,157 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Created by davidbrodsky on 2/21/15.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class Peer {
+
+    /**
+     * Features advertised in {@link IdentityMessage#HEADER_FEATURES}. Independent of the
+     * header version, which describes only how headers and frames are encoded
+     */
+    public static final String FEATURE_RESUMPTION = "resume";
+    public static final String FEATURE_STRIPES    = "stripes";
+
+    /** Features of this implementation */
+    public static final Set<String> SUPPORTED_FEATURES =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList(FEATURE_RESUMPTION, FEATURE_STRIPES)));
+
+    private byte[] mPublicKey;
+    private String mAlias;
+    private Date mLastSeen;
+    private int mRssi;
+    protected int mTransports;
+    protected int mMaxHeaderVersion;
+    protected Set<String> mFeatures;
+
+    public Peer(byte[] publicKey,
+                   String alias,
+                   Date lastSeen,
+                   int rssi,
+                   int transports) {
+
+        this(publicKey, alias, lastSeen, rssi, transports, SessionMessage.HEADER_VERSION_JSON);
+    }
+
+    public Peer(byte[] publicKey,
+                String alias,
+                Date lastSeen,
+                int rssi,
+                int transports,
+                int maxHeaderVersion) {
+
+        this(publicKey, alias, lastSeen, rssi, transports, maxHeaderVersion, Collections.<String>emptySet());
+    }
+
+    public Peer(byte[] publicKey,
+                String alias,
+                Date lastSeen,
+                int rssi,
+                int transports,
+                int maxHeaderVersion,
+                @NonNull Set<String> features) {
+
+        mPublicKey = publicKey;
+        mAlias = alias;
+        mLastSeen = lastSeen;
+        mRssi = rssi;
+        mTransports = transports;
+        mMaxHeaderVersion = maxHeaderVersion;
+        mFeatures = features;
+    }
+
+    public byte[] getPublicKey() {
+        return mPublicKey;
+    }
+
+    public String getAlias() {
+        return mAlias;
+    }
+
+    public Date getLastSeen() {
+        return mLastSeen;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public int getTransports() {
+        return mTransports;
+    }
+
+    /**
+     * @return the newest {@link SessionMessage} header version this peer can deserialize
+     */
+    public int getMaxHeaderVersion() {
+        return mMaxHeaderVersion;
+    }
+
+    /**
+     * @return the features this peer advertised, e.g. {@link #FEATURE_RESUMPTION}
+     */
+    public @NonNull Set<String> getFeatures() {
+        return mFeatures;
+    }
+
+    /**
+     * @return whether this peer answers {@link ResumeMessage}s and accepts messages resumed
+     * at a 'body-offset'. Peers not advertising {@link #FEATURE_RESUMPTION} recognize neither
+     */
+    public boolean supportsResumption() {
+        return mFeatures.contains(FEATURE_RESUMPTION);
+    }
+
+    /**
+     * @return whether this peer assembles stripes of a message, serialized with 'body-offset' and
+     * 'stripe-length' headers. Peers not advertising {@link #FEATURE_STRIPES} would take a stripe
+     * for the whole message
+     */
+    public boolean supportsStripes() {
+        return mFeatures.contains(FEATURE_STRIPES);
+    }
+
+    public boolean supportsTransportWithCode(int transportCode) {
+        return (mTransports & transportCode) == transportCode;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "Peer{" +
+                "publicKey=" + Arrays.toString(mPublicKey) +
+                ", alias='" + mAlias + '\'' +
+                ", lastSeen=" + mLastSeen +
+                ", rssi=" + mRssi +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if(obj == this) return true;
+        if(obj == null) return false;
+
+        if (getClass().equals(obj.getClass()))
+        {
+            Peer other = (Peer) obj;
+            return Arrays.equals(mPublicKey, other.mPublicKey);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mPublicKey);
+    }
+}
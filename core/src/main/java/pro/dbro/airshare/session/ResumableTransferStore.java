@@ -0,0 +1,204 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import pro.dbro.airshare.DataUtil;
+
+/**
+ * Persists partially received {@link DataTransferMessage} bodies, keyed by sender public key
+ * and message id, so that an interrupted transfer may resume where it left off after the
+ * sender reconnects, on any transport, or after this process restarts.
+ *
+ * Each partial is a body File, which for bodies held in memory during receipt is written here,
+ * and the number of leading body bytes it holds. The index is stored as JSON alongside.
+ * Partials older than {@link #DEFAULT_MAX_AGE_MS} are discarded on construction.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResumableTransferStore {
+
+    public static final long DEFAULT_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private static final String INDEX_FILENAME = "partials.json";
+
+    private static final String KEY_PATH     = "path";
+    private static final String KEY_OFFSET   = "offset";
+    private static final String KEY_MODIFIED = "modified";
+
+    public static class Partial {
+
+        public final File bodyFile;
+        public final int bodyBytesReceived;
+        final long modified;
+
+        Partial(@NonNull File bodyFile, int bodyBytesReceived, long modified) {
+            this.bodyFile = bodyFile;
+            this.bodyBytesReceived = bodyBytesReceived;
+            this.modified = modified;
+        }
+    }
+
+    private final File mDirectory;
+
+    /** Hex public key -> Message id -> Partial */
+    private final HashMap<String, HashMap<String, Partial>> mPartials = new HashMap<>();
+
+    public ResumableTransferStore(@NonNull File directory) {
+        this(directory, DEFAULT_MAX_AGE_MS);
+    }
+
+    public ResumableTransferStore(@NonNull File directory, long maxAgeMs) {
+        mDirectory = directory;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            SessionLog.e("Failed to create resumable transfer directory %s", mDirectory.getAbsolutePath());
+
+        load(System.currentTimeMillis() - maxAgeMs);
+    }
+
+    /**
+     * @return a File in this store's directory suitable for a partial body held in memory during receipt.
+     * Named by a hash of messageId, which is chosen by the remote peer and so unfit for a path
+     */
+    public File createBodyFile(@NonNull byte[] peerKey, @NonNull String messageId) {
+        String messageHash = Hashing.sha256().hashString(messageId, Charsets.UTF_8).toString();
+        return new File(mDirectory, DataUtil.bytesToHex(peerKey) + "-" + messageHash + ".partial");
+    }
+
+    /**
+     * Record that bodyFile holds the first bodyBytesReceived bytes of message messageId
+     * from the peer with peerKey, replacing any previous record
+     */
+    public synchronized void save(@NonNull byte[] peerKey,
+                                  @NonNull String messageId,
+                                  @NonNull File bodyFile,
+                                  int bodyBytesReceived) {
+
+        String key = DataUtil.bytesToHex(peerKey);
+        HashMap<String, Partial> partials = mPartials.get(key);
+
+        if (partials == null) {
+            partials = new HashMap<>();
+            mPartials.put(key, partials);
+        }
+
+        Partial previous = partials.put(messageId, new Partial(bodyFile, bodyBytesReceived, System.currentTimeMillis()));
+        if (previous != null && !previous.bodyFile.equals(bodyFile)) DataUtil.deleteFile(previous.bodyFile);
+
+        persist();
+    }
+
+    public synchronized @Nullable Partial get(@NonNull byte[] peerKey, @NonNull String messageId) {
+        HashMap<String, Partial> partials = mPartials.get(DataUtil.bytesToHex(peerKey));
+        return partials == null ? null : partials.get(messageId);
+    }
+
+    /**
+     * @return the body bytes held of messageId from the peer with peerKey, or 0 if none
+     */
+    public synchronized int getOffset(@NonNull byte[] peerKey, @NonNull String messageId) {
+        Partial partial = get(peerKey, messageId);
+        return partial == null ? 0 : partial.bodyBytesReceived;
+    }
+
+    /**
+     * Forget the partial for messageId, e.g. on its completion
+     *
+     * @param deleteBody whether to delete the body File. False if it now belongs to a complete message
+     */
+    public synchronized void remove(@NonNull byte[] peerKey, @NonNull String messageId, boolean deleteBody) {
+        String key = DataUtil.bytesToHex(peerKey);
+        HashMap<String, Partial> partials = mPartials.get(key);
+        if (partials == null) return;
+
+        Partial partial = partials.remove(messageId);
+        if (partial == null) return;
+
+        if (partials.isEmpty()) mPartials.remove(key);
+        if (deleteBody) DataUtil.deleteFile(partial.bodyFile);
+
+        persist();
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (HashMap<String, Partial> partials : mPartials.values()) size += partials.size();
+        return size;
+    }
+
+    // <editor-fold desc="Persistence">
+
+    private void load(long oldestModified) {
+        File index = new File(mDirectory, INDEX_FILENAME);
+        if (!index.exists()) return;
+
+        try {
+            HashMap<String, Object> peers = JsonCodec.getDefault().decode(new String(DataUtil.readFile(index), "UTF-8"));
+            boolean pruned = false;
+
+            for (Map.Entry<String, Object> peer : peers.entrySet()) {
+                String peerKey = peer.getKey();
+                Map<?, ?> messages = (Map<?, ?>) peer.getValue();
+                HashMap<String, Partial> partials = new HashMap<>();
+
+                for (Map.Entry<?, ?> message : messages.entrySet()) {
+                    String messageId = (String) message.getKey();
+                    Map<?, ?> entry = (Map<?, ?>) message.getValue();
+                    Partial partial = new Partial(new File((String) entry.get(KEY_PATH)),
+                                                  ((Number) entry.get(KEY_OFFSET)).intValue(),
+                                                  ((Number) entry.get(KEY_MODIFIED)).longValue());
+
+                    if (partial.modified < oldestModified || !partial.bodyFile.exists()) {
+                        DataUtil.deleteFile(partial.bodyFile);
+                        pruned = true;
+                        continue;
+                    }
+                    partials.put(messageId, partial);
+                }
+
+                if (!partials.isEmpty()) mPartials.put(peerKey, partials);
+            }
+
+            if (pruned) persist();
+            SessionLog.d("Loaded %d resumable transfers", size());
+
+        } catch (IOException | ClassCastException | NullPointerException e) {
+            // A malformed index, or a well-formed one lacking an expected entry
+            SessionLog.e(e, "Failed to load resumable transfers");
+        }
+    }
+
+    private void persist() {
+        try {
+            HashMap<String, Object> peers = new HashMap<>();
+            for (Map.Entry<String, HashMap<String, Partial>> peer : mPartials.entrySet()) {
+                HashMap<String, Object> messages = new HashMap<>();
+
+                for (Map.Entry<String, Partial> message : peer.getValue().entrySet()) {
+                    Partial partial = message.getValue();
+                    HashMap<String, Object> entry = new HashMap<>();
+                    entry.put(KEY_PATH, partial.bodyFile.getAbsolutePath());
+                    entry.put(KEY_OFFSET, partial.bodyBytesReceived);
+                    entry.put(KEY_MODIFIED, partial.modified);
+                    messages.put(message.getKey(), entry);
+                }
+                peers.put(peer.getKey(), messages);
+            }
+
+            DataUtil.writeFile(new File(mDirectory, INDEX_FILENAME), JsonCodec.getDefault().encode(peers).getBytes("UTF-8"));
+
+        } catch (IOException e) {
+            SessionLog.e(e, "Failed to persist resumable transfers");
+        }
+    }
+
+    // </editor-fold desc="Persistence">
+}
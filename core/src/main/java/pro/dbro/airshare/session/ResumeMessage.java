@@ -0,0 +1,157 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Negotiates the resumption of {@link DataTransferMessage}s interrupted by a disconnection.
+ *
+ * The sender of interrupted messages sends a request listing their ids. The recipient answers
+ * with the body bytes it holds of each, and the sender resumes each message at that offset
+ * via {@link DataTransferMessage#resumeAt(int)}. A message the recipient holds nothing of
+ * is answered with offset 0 and sent again in full.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResumeMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "resume";
+
+    /** Header keys */
+    public static final String HEADER_MESSAGE_IDS = "message-ids";
+    public static final String HEADER_OFFSETS     = "offsets";
+
+    private List<String> mMessageIds;
+    private Map<String, Integer> mOffsets;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    /**
+     * @throws IllegalArgumentException if headers, received from a remote peer, are malformed
+     */
+    ResumeMessage(@NonNull Map<String, Object> headers) {
+
+        super(requireId(headers));
+
+        init();
+
+        Object offsets = headers.get(HEADER_OFFSETS);
+        Object messageIds = headers.get(HEADER_MESSAGE_IDS);
+
+        if (offsets instanceof Map) {
+            mOffsets = new HashMap<>();
+            for (Map.Entry<?, ?> offset : ((Map<?, ?>) offsets).entrySet()) {
+                if (!(offset.getKey() instanceof String) || !(offset.getValue() instanceof Integer) ||
+                    (Integer) offset.getValue() < 0)
+                    throw new IllegalArgumentException("Malformed resume offset " + offset);
+
+                mOffsets.put((String) offset.getKey(), (Integer) offset.getValue());
+            }
+        } else if (offsets == null && messageIds instanceof List) {
+            mMessageIds = new ArrayList<>();
+            for (Object messageId : (List<?>) messageIds) {
+                if (!(messageId instanceof String))
+                    throw new IllegalArgumentException("Malformed resume message id " + messageId);
+
+                mMessageIds.add((String) messageId);
+            }
+        } else {
+            throw new IllegalArgumentException(String.format("Malformed resume offsets %s or message ids %s",
+                                                             offsets, messageIds));
+        }
+
+        Object bodyLength = headers.get(HEADER_BODY_LENGTH);
+        if (!(bodyLength instanceof Integer))
+            throw new IllegalArgumentException("Malformed body length " + bodyLength);
+
+        mHeaders = headers;
+        mBodyLengthBytes = (Integer) bodyLength;
+        mStatus = Status.COMPLETE;
+
+        serializeAndCacheHeaders();
+    }
+
+    private static String requireId(@NonNull Map<String, Object> headers) {
+        Object id = headers.get(SessionMessage.HEADER_ID);
+        if (!(id instanceof String))
+            throw new IllegalArgumentException("Malformed message id " + id);
+
+        return (String) id;
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    /**
+     * @return a request for the offsets at which the recipient can resume the given messages
+     */
+    public static ResumeMessage createRequest(@NonNull Collection<String> messageIds) {
+        return new ResumeMessage(new ArrayList<>(messageIds), null);
+    }
+
+    /**
+     * @param offsets message id -> body bytes held. Must include every requested id
+     */
+    public static ResumeMessage createAnswer(@NonNull Map<String, Integer> offsets) {
+        return new ResumeMessage(null, new HashMap<>(offsets));
+    }
+
+    private ResumeMessage(@Nullable List<String> messageIds, @Nullable Map<String, Integer> offsets) {
+        super();
+
+        init();
+
+        mMessageIds = messageIds;
+        mOffsets = offsets;
+
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    public boolean isRequest() {
+        return mOffsets == null;
+    }
+
+    /**
+     * @return the ids of interrupted messages, if this is a request
+     */
+    public @Nullable List<String> getMessageIds() {
+        return mMessageIds;
+    }
+
+    /**
+     * @return message id -> body bytes the recipient holds, if this is an answer
+     */
+    public @Nullable Map<String, Integer> getOffsets() {
+        return mOffsets;
+    }
+
+    private void init() {
+        mType = HEADER_TYPE;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+
+        if (mOffsets != null)
+            headerMap.put(HEADER_OFFSETS, new HashMap<String, Object>(mOffsets));
+        else
+            headerMap.put(HEADER_MESSAGE_IDS, new ArrayList<Object>(mMessageIds));
+
+        return headerMap;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getBodyAtOffset(int offset, int length) {
+        return null;
+    }
+}
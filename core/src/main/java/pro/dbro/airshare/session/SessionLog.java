@@ -0,0 +1,91 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+/**
+ * The log of the session core, which cannot depend on Timber as it must run off Android.
+ * Messages are passed to the {@link Logger} set via {@link #setLogger(Logger)}, and are
+ * otherwise discarded without being formatted. The sdk routes them to Timber.
+ *
+ * Log lines on per-chunk paths are gated at compile time by {@link #VERBOSE}, and at runtime by
+ * {@link #isLoggable(int)}, so that their arguments are neither boxed nor formatted when
+ * unwanted. Per-chunk events are better recorded by {@link SessionTrace}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SessionLog {
+
+    /** Priorities, matching those of android.util.Log */
+    public static final int DEBUG = 3;
+    public static final int INFO  = 4;
+    public static final int WARN  = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Whether per-chunk log lines are compiled in. Each is written
+     * {@code if (VERBOSE && isLoggable(DEBUG)) ...}, so when false the compiler removes it
+     */
+    public static final boolean VERBOSE = false;
+
+    public interface Logger {
+
+        void log(int priority, @Nullable Throwable t, @NonNull String message);
+    }
+
+    private static volatile Logger sLogger;
+    private static volatile int sMinPriority = DEBUG;
+
+    private SessionLog() {}
+
+    /**
+     * Set the Logger to receive messages of the session core, or null to discard them
+     */
+    public static void setLogger(@Nullable Logger logger) {
+        sLogger = logger;
+    }
+
+    /**
+     * Set the lowest priority of messages passed to the Logger. Messages of lower priority
+     * are discarded without being formatted
+     */
+    public static void setMinPriority(int priority) {
+        sMinPriority = priority;
+    }
+
+    /**
+     * @return whether a message of priority would be logged. Check before logging with arguments
+     * that are costly to compute, or that would be boxed, on paths taken for every chunk
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= sMinPriority && sLogger != null;
+    }
+
+    public static void d(String message, Object... args) {
+        log(DEBUG, null, message, args);
+    }
+
+    public static void i(String message, Object... args) {
+        log(INFO, null, message, args);
+    }
+
+    public static void w(String message, Object... args) {
+        log(WARN, null, message, args);
+    }
+
+    public static void e(String message, Object... args) {
+        log(ERROR, null, message, args);
+    }
+
+    public static void e(Throwable t, String message, Object... args) {
+        log(ERROR, t, message, args);
+    }
+
+    private static void log(int priority, @Nullable Throwable t, String message, Object[] args) {
+        Logger logger = sLogger;
+        if (logger == null || priority < sMinPriority) return;
+
+        logger.log(priority, t, args.length > 0 ? String.format(Locale.US, message, args) : message);
+    }
+}
@@ -0,0 +1,419 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.common.base.Objects;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Represents a Session segment suitable for transport via a Transport
+ *
+ * Requirements of Child Classes:
+ *
+ * Constructors must call {@link #serializeAndCacheHeaders()}.
+ *
+ * Constructors must set {@link #mStatus} to {@link Status#HEADER_ONLY} if appropriate
+ *
+ * Created by davidbrodsky on 2/22/15.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class SessionMessage {
+
+    public enum Status { HEADER_ONLY, COMPLETE }
+
+    /**
+     * Scheduling class, in descending order of precedence. See {@link SessionMessageSerializer}
+     */
+    public enum Priority { CONTROL, INTERACTIVE, BULK }
+
+    /** Header serialized as JSON. Supported by all peers */
+    public static final int HEADER_VERSION_JSON    = 1;
+
+    /** Header serialized via {@link BinaryHeaderCodec}. Used when supported by the remote peer */
+    public static final int HEADER_VERSION_BINARY  = 2;
+
+    /** SessionMessage version. Must be representable by {@link #HEADER_VERSION_BYTES} bytes */
+    public static final int CURRENT_HEADER_VERSION = HEADER_VERSION_BINARY;
+
+    /**
+     * Leading byte of a multiplexed frame rather than a SessionMessage. A peer advertising this
+     * version accepts frames. See {@link SessionMessageSerializer#setFramingEnabled(boolean)}
+     */
+    public static final int HEADER_VERSION_FRAMED  = 3;
+
+    /** Highest version deserialized, as advertised to peers */
+    public static final int SUPPORTED_HEADER_VERSION = HEADER_VERSION_FRAMED;
+
+    /** Leading byte specifies header format version */
+    public static final int HEADER_VERSION_BYTES   = 1;
+
+    /** Next bytes specify header size in bytes as uint16. Max header size: 65.535 kB */
+    public static final int HEADER_LENGTH_BYTES    = 2;
+
+    /** Required header map keys */
+    public static final String HEADER_TYPE         = "type";
+    public static final String HEADER_BODY_LENGTH  = "body-length";
+    public static final String HEADER_ID           = "id";
+
+    /** Optional header key. Body bytes preceding those serialized, when resuming an interrupted message */
+    public static final String HEADER_BODY_OFFSET  = "body-offset";
+
+    /** Optional header key. Body bytes serialized from 'body-offset', when striping a message across transports */
+    public static final String HEADER_STRIPE_LENGTH = "stripe-length";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    protected int mVersion;
+    protected @NonNull String mType;
+    protected int mBodyLengthBytes;
+    protected int mBodyOffset;
+    protected int mStripeLengthBytes;
+    protected @NonNull String mId;
+    protected @NonNull Status mStatus;
+    protected Map<String, Object> mHeaders;
+    private   byte[] mSerializedJsonHeaders;
+    private   byte[] mSerializedBinaryHeaders;
+
+    /**
+     * Construct a SessionMessage with a given id.
+     * This constructor should be used for deserialization of
+     * incoming SessionMessages.
+     */
+    public SessionMessage(@NonNull String id) {
+        mId = id;
+        mType = getClass().getSimpleName();
+        mBodyLengthBytes = 0;
+        mVersion = CURRENT_HEADER_VERSION;
+        mStatus = Status.COMPLETE;
+
+        // Child classes must call serializeAndCacheHeaders()
+        // in their constructors
+
+        // Child classes must set status to Status.HEADER_ONLY if they
+        // are constructed without a body but expect one to become available
+    }
+
+    /**
+     * Construct a new SessionMessage with a unique identifier.
+     * This constructor should be used for creating new outgoing SessionMessages
+     */
+    public SessionMessage() {
+        this(UUID.randomUUID().toString().substring(28));
+    }
+
+
+    /**
+     * @return a HashMap representation of the message headers.
+     * This method will be called once, and so it should not
+     * rely on state that cannot be represented on construction.
+     */
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = new HashMap<>();
+        headerMap.put(HEADER_TYPE, mType);
+        headerMap.put(HEADER_BODY_LENGTH, mBodyLengthBytes);
+        headerMap.put(HEADER_ID, mId);
+
+        return headerMap;
+    }
+
+    public @NonNull String getType() {
+        return mType;
+    }
+
+    public @NonNull String getId() {
+        return mId;
+    }
+
+    /**
+     * @return the scheduling class of this message. Messages of the SDK's own protocol are
+     * {@link Priority#CONTROL} so that they are not delayed by application data
+     */
+    public @NonNull Priority getPriority() {
+        return Priority.CONTROL;
+    }
+
+    /**
+     * @return the header version used when none is specified
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the length of the serialized headers
+     */
+    public int getHeaderLengthBytes() {
+        return getHeaderLengthBytes(mVersion);
+    }
+
+    /**
+     * @return the length of the headers serialized in the given header version
+     */
+    public int getHeaderLengthBytes(int version) {
+        return getSerializedHeaders(version).length;
+    }
+
+    public @NonNull Map<String, Object> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * @return the length of the blob body in bytes
+     */
+    public int getBodyLengthBytes() {
+        return mBodyLengthBytes;
+    }
+
+    /**
+     * @return the number of leading body bytes omitted from serialization because the
+     * recipient already holds them. See {@link #HEADER_BODY_OFFSET}
+     */
+    public int getBodyOffset() {
+        return mBodyOffset;
+    }
+
+    /**
+     * @return the number of body bytes serialized from {@link #getBodyOffset()} if this message is
+     * one stripe of a body sent over several transports, or 0. See {@link #HEADER_STRIPE_LENGTH}
+     */
+    public int getStripeLengthBytes() {
+        return mStripeLengthBytes;
+    }
+
+    /**
+     * @return the number of body bytes included in serialization
+     */
+    public int getSerializedBodyLengthBytes() {
+        return mStripeLengthBytes > 0 ? mStripeLengthBytes : getBodyLengthBytes() - mBodyOffset;
+    }
+
+    public abstract @Nullable byte[] getBodyAtOffset(int offset, int length);
+
+    /**
+     * Write up to {@code dst.remaining()} body bytes beginning at offset directly into dst.
+     * Child classes holding their body in memory should override this to avoid the
+     * intermediate copy made by {@link #getBodyAtOffset(int, int)}
+     *
+     * @return the number of bytes written
+     */
+    protected int writeBodyAtOffset(@NonNull ByteBuffer dst, int offset) {
+        byte[] body = getBodyAtOffset(offset, dst.remaining());
+
+        if (body == null) return 0;
+
+        dst.put(body);
+        return body.length;
+    }
+
+    /**
+     * Serialize this SessionMessage for transport. Note that when the returned byte[]
+     * has length less than given length or is null (data ended precisely on the last call),
+     * serialization is complete.
+     *
+     * See {@link #serializeInto(ByteBuffer, int, int)} for the serialized format.
+     */
+    public @Nullable byte[] serialize(int offset, int length) {
+        return serialize(offset, length, mVersion);
+    }
+
+    /**
+     * Serialize this SessionMessage for transport in the given header version.
+     * See {@link #serialize(int, int)}
+     */
+    public @Nullable byte[] serialize(int offset, int length, int version) {
+        long bytesRemaining = getTotalLengthBytes(version) - offset;
+
+        if (bytesRemaining <= 0 || length <= 0) return null;
+
+        ByteBuffer result = ByteBuffer.allocate((int) Math.min(length, bytesRemaining));
+        int bytesWritten = serializeInto(result, offset, version);
+
+        //SessionLog.d(String.format("Serialized %d SessionMessage bytes", bytesWritten));
+        // Do not return zero length byte[]. Use null to represent no more data
+        if (bytesWritten == 0) return null;
+
+        return bytesWritten == result.capacity() ? result.array() : Arrays.copyOf(result.array(), bytesWritten);
+    }
+
+    /**
+     * Serialize up to {@code dst.remaining()} bytes of this SessionMessage beginning at offset
+     * directly into dst. See {@link #serializeInto(ByteBuffer, int, int)}
+     */
+    public int serializeInto(@NonNull ByteBuffer dst, int offset) {
+        return serializeInto(dst, offset, mVersion);
+    }
+
+    /**
+     * Serialize up to {@code dst.remaining()} bytes of this SessionMessage, beginning at offset,
+     * directly into dst. Performs no allocation when the body is held in memory.
+     * When fewer bytes are written than were available in dst, serialization is complete.
+     *
+     * The general format of the serialized bytestream:
+     *
+     * byte idx | description
+     * ---------|------------
+     * [0]      | SessionMessage version
+     * [1-2]    | Header length
+     * [3-X]    | Header JSON or binary header, as specified by version. 'X' is value specified by Header length
+     * [X-Y]    | Body. 'Y' is value specified in 'body-length' entry of Header, less any 'body-offset'.
+     *          | When 'body-offset' is present the body begins at that offset, and when
+     *          | 'stripe-length' is also present only that many bytes follow.
+     *
+     * When multiplexed, each slice of a SessionMessage's bytestream is carried in a frame:
+     *
+     * byte idx | description
+     * ---------|------------
+     * [0]      | {@link #HEADER_VERSION_FRAMED}
+     * [1]      | Stream id. Each stream carries one SessionMessage at a time
+     * [2-3]    | Payload length as little endian uint16
+     * [4-Z]    | Payload. The next bytes of the stream's SessionMessage
+     *
+     * @param version one of {@link #HEADER_VERSION_JSON} or {@link #HEADER_VERSION_BINARY}.
+     *                Must remain constant for the duration of a message's serialization
+     * @return the number of bytes written to dst. 0 indicates there is no more data
+     */
+    public int serializeInto(@NonNull ByteBuffer dst, int offset, int version) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Serialization offset may not be negative");
+
+        if (mHeaders == null)
+            throw new IllegalStateException("Must call serializeAndCacheHeaders() before serialization");
+
+        byte[] serializedHeaders = getSerializedHeaders(version);
+        int startPosition = dst.position();
+        int prefixLength = HEADER_VERSION_BYTES + HEADER_LENGTH_BYTES;
+        int headerEnd = prefixLength + serializedHeaders.length;
+
+        // Write SessionMessage header version if offset dictates
+        if (offset < HEADER_VERSION_BYTES && dst.hasRemaining()) {
+            dst.put((byte) version);
+            offset += HEADER_VERSION_BYTES;
+        }
+
+        // Write SessionMessage header length as little endian uint16 if offset dictates
+        while (offset < prefixLength && dst.hasRemaining()) {
+            dst.put((byte) (serializedHeaders.length >> (8 * (offset - HEADER_VERSION_BYTES))));
+            offset++;
+        }
+
+        // Write SessionMessage HashMap header if offset dictates
+        if (offset < headerEnd && dst.hasRemaining()) {
+            int headerBytesToCopy = Math.min(dst.remaining(), headerEnd - offset);
+            dst.put(serializedHeaders, offset - prefixLength, headerBytesToCopy);
+            offset += headerBytesToCopy;
+        }
+
+        // Write raw body if offset dictates
+        int bodyRemaining = getSerializedBodyLengthBytes() - (offset - headerEnd);
+        if (offset >= headerEnd && bodyRemaining > 0 && dst.hasRemaining() && mStatus == Status.COMPLETE) {
+            // A stripe must not write beyond its range of the body
+            int limit = dst.limit();
+            dst.limit(Math.min(limit, dst.position() + bodyRemaining));
+            try {
+                writeBodyAtOffset(dst, offset - headerEnd + mBodyOffset);
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        return dst.position() - startPosition;
+    }
+
+    /**
+     * Serialize the entire message in one go. Must only be used for messages less than 2 MB.
+     */
+    public byte[] serialize() {
+        if (getTotalLengthBytes() > Integer.MAX_VALUE)
+            SessionLog.e("Message too long for serialize! Will be truncated");
+
+        return serialize(0, (int) getTotalLengthBytes());
+    }
+
+    /**
+     * @return the length of the total SessionMessage in bytes
+     */
+    public long getTotalLengthBytes() {
+        return getTotalLengthBytes(mVersion);
+    }
+
+    /**
+     * @return the length of the total SessionMessage in bytes when serialized in the given header version
+     */
+    public long getTotalLengthBytes(int version) {
+
+        return HEADER_VERSION_BYTES +
+               HEADER_LENGTH_BYTES +
+               getHeaderLengthBytes(version) +
+               getSerializedBodyLengthBytes();
+    }
+
+    /**
+     * Cache the serialized representation of {@link #mHeaders}.
+     * Must be called before {@link #serialize()}, {@link #serialize(int, int)}
+     * or {@link #serializeInto(ByteBuffer, int)}
+     */
+    protected void serializeAndCacheHeaders() {
+        if (mHeaders == null) mHeaders = populateHeaders();
+        getSerializedHeaders(mVersion);
+    }
+
+    /**
+     * @return the serialized representation of {@link #mHeaders} in the given header version,
+     * serializing and caching it on first request
+     */
+    private byte[] getSerializedHeaders(int version) {
+        switch (version) {
+            case HEADER_VERSION_JSON:
+                if (mSerializedJsonHeaders == null) {
+                    mSerializedJsonHeaders = JsonCodec.getDefault().encode(mHeaders).getBytes(UTF_8);
+                }
+                return mSerializedJsonHeaders;
+
+            case HEADER_VERSION_BINARY:
+                if (mSerializedBinaryHeaders == null) {
+                    mSerializedBinaryHeaders = BinaryHeaderCodec.encode(mHeaders);
+                }
+                return mSerializedBinaryHeaders;
+
+            default:
+                throw new IllegalArgumentException("Unknown SessionMessage version " + version);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        // If we only target API 19+, we can move to java.util.Objects.hash
+        return Objects.hashCode(mHeaders.get(HEADER_TYPE),
+                                mHeaders.get(HEADER_BODY_LENGTH),
+                                mHeaders.get(HEADER_ID));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if(obj == this) return true;
+        if(obj == null) return false;
+
+        if (getClass().equals(obj.getClass()))
+        {
+            final SessionMessage other = (SessionMessage) obj;
+            // If we only target API 19+, we can move to the java.util.Objects.equals
+            return Objects.equal(getHeaders().get(HEADER_TYPE),
+                                 other.getHeaders().get(HEADER_TYPE)) &&
+                   Objects.equal(getHeaders().get(HEADER_BODY_LENGTH),
+                                 other.getHeaders().get(HEADER_BODY_LENGTH)) &&
+                   Objects.equal(getHeaders().get(HEADER_ID),
+                                 other.getHeaders().get(HEADER_ID));
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,734 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * This class facilitates deserializing a {@link pro.dbro.airshare.session.SessionMessage} from
+ * in-order data streams.
+ *
+ * After construction, call {@link #dataReceived(byte[])} as data arrives and await
+ * notification of deserialization events via the
+ * {@link pro.dbro.airshare.session.SessionMessageDeserializer.SessionMessageDeserializerCallback}
+ * passed to the constructor.
+ *
+ * This class assumes contiguous serialized SessionMessage chunks will be delivered in-order and
+ * that any discontinuities in the data stream will be reported by the client of this class via
+ * {@link #reset(boolean)}. A call to {@link #reset(boolean)} with true argument will result
+ * in the loss of any partially accumulated SessionMessage.
+ *
+ * Given a {@link ResumableTransferStore} via {@link #setResumeStore(ResumableTransferStore, byte[])},
+ * a partially received {@link DataTransferMessage} may be preserved via {@link #suspend()}
+ * and later completed from a resumed message bearing {@link SessionMessage#HEADER_BODY_OFFSET}.
+ *
+ * Given a {@link StripeAssembler} via {@link #setStripeAssembler(StripeAssembler, byte[])},
+ * stripes bearing {@link SessionMessage#HEADER_STRIPE_LENGTH} are written to the shared assembly
+ * of their message, which is delivered by whichever receiver completes its final stripe.
+ *
+ * Frames of {@link SessionMessage#HEADER_VERSION_FRAMED} may arrive between SessionMessages.
+ * The payload of each frame is passed to a receiver dedicated to its stream, so that the
+ * SessionMessages of several streams are received concurrently. Callbacks of stream receivers
+ * are reported as of this receiver.
+ *
+ * Created by davidbrodsky on 2/24/15.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class SessionMessageDeserializer {
+
+    public interface SessionMessageDeserializerCallback {
+
+        void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message);
+
+        void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress);
+
+        void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e);
+    }
+
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
+
+    /** Bodies over this size will be stored on disk */
+    static final int BODY_SIZE_CUTOFF_BYTES = 2 * 1000 * 1000; // 2 MB
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Initial and steady-state capacity of {@link #mBuffer} */
+    private static final int DEFAULT_BUFFER_BYTES = 5 * 1000;
+
+    private BodyStorage mStorage;
+    private ByteBuffer mBuffer;
+    private SessionMessageDeserializerCallback mCallback;
+    private File mBodyFile;
+    private MappedByteBuffer mBodyMapping;
+    private ByteBuffer mHeaderLengthBuffer;
+    private SessionMessage mSessionMessage;
+    private ResumableTransferStore mResumeStore;
+    private byte[] mPeerKey;
+    private StripeAssembler mStripeAssembler;
+    private StripeAssembler.Assembly mStripe;
+    private int mStripeOffset;
+    private int mStripeLength;
+
+    /** Receivers of multiplexed streams by stream id, and the state of the frame being received */
+    private HashMap<Integer, SessionMessageDeserializer> mStreams;
+    private SessionMessageDeserializerCallback mStreamCallback;
+    private ByteBuffer mFramePrefix;
+    private int mFramePayloadRemaining;
+
+    private int mVersion;
+    private boolean mGotVersion;
+    private boolean mGotHeaderLength;
+    private boolean mGotHeader;
+
+    private int mHeaderLength;
+    private int mBodyLength;
+    private int mBodyBytesReceived;
+
+    public SessionMessageDeserializer(BodyStorage storage, SessionMessageDeserializerCallback callback) {
+        mBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_BYTES);
+        mCallback = callback;
+        mStorage = storage;
+
+        init();
+    }
+
+    /**
+     * Reset the state of the receiver in preparation for a new SessionMessage.
+     *
+     * @param clear whether to delete the partially accumulated SessionMessage. If the data stream
+     *              is interrupted and not resumable we'd want to do this.
+     *              e.g: the source of incoming data becomes unavailable.
+     */
+    public void reset(boolean clear) {
+        mGotVersion = false;
+        mGotHeaderLength = false;
+        mGotHeader = false;
+
+        mHeaderLength = 0;
+        mBodyLength = 0;
+        mBodyBytesReceived = 0;
+        mSessionMessage = null;
+        mStripe = null;
+        mStripeOffset = 0;
+        mStripeLength = 0;
+
+        releaseBuffer();
+
+        // The mapping is released when garbage collected. On completion it is owned by the message
+        mBodyMapping = null;
+
+        if (clear) {
+            // The frame being received, and messages of every stream, are abandoned with it
+            resetFrame();
+            for (SessionMessageDeserializer stream : mStreams.values()) stream.reset(true);
+
+            // A partially received body cannot be recovered
+            if (mBodyFile != null && !mBodyFile.delete())
+                SessionLog.w("Failed to delete partial body File %s", mBodyFile.getAbsolutePath());
+        }
+
+        mBodyFile = null;
+    }
+
+    /**
+     * Preserve partially received {@link DataTransferMessage} bodies from the peer with peerKey
+     * in store on {@link #suspend()}, and restore them when that peer resumes
+     */
+    public void setResumeStore(@Nullable ResumableTransferStore store, @Nullable byte[] peerKey) {
+        mResumeStore = store;
+        mPeerKey = peerKey;
+
+        for (SessionMessageDeserializer stream : mStreams.values()) stream.setResumeStore(store, peerKey);
+    }
+
+    /**
+     * Write stripes of messages from the peer with peerKey to their shared assembly in assembler
+     */
+    public void setStripeAssembler(@Nullable StripeAssembler assembler, @Nullable byte[] peerKey) {
+        mStripeAssembler = assembler;
+        mPeerKey = peerKey;
+
+        for (SessionMessageDeserializer stream : mStreams.values()) stream.setStripeAssembler(assembler, peerKey);
+    }
+
+    /**
+     * Stop receiving the current SessionMessage, preserving its body received so far in the
+     * {@link ResumableTransferStore} if resumable, and prepare for a new SessionMessage.
+     * Otherwise equivalent to {@code reset(true)}. The SessionMessages of all streams are
+     * suspended likewise.
+     *
+     * @return whether a partially received body was preserved
+     */
+    public boolean suspend() {
+        boolean preserved = false;
+        for (SessionMessageDeserializer stream : mStreams.values()) preserved |= stream.suspend();
+
+        resetFrame();
+        return suspendMessage() || preserved;
+    }
+
+    private boolean suspendMessage() {
+        // An incomplete stripe is sent again in full
+        if (mStripe != null || mResumeStore == null || !mGotHeader || !(mSessionMessage instanceof DataTransferMessage) ||
+            mBodyBytesReceived == 0 || mBodyBytesReceived == mBodyLength) {
+
+            reset(true);
+            return false;
+        }
+
+        String messageId = mSessionMessage.getId();
+        try {
+            if (mBodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                mBodyMapping.force();
+                mResumeStore.save(mPeerKey, messageId, mBodyFile, mBodyBytesReceived);
+                // The body File now belongs to the store
+                mBodyFile = null;
+            } else {
+                File bodyFile = mResumeStore.createBodyFile(mPeerKey, messageId);
+                FileOutputStream out = new FileOutputStream(bodyFile);
+                try {
+                    out.write(mBuffer.array(), getPrefixAndHeaderLengthBytes(), mBodyBytesReceived);
+                } finally {
+                    out.close();
+                }
+                mResumeStore.save(mPeerKey, messageId, bodyFile, mBodyBytesReceived);
+            }
+        } catch (IOException e) {
+            SessionLog.e(e, "Failed to preserve partial body of %s", messageId);
+            reset(true);
+            return false;
+        }
+
+        SessionLog.d("Suspended %s after %d of %d body bytes", messageId, mBodyBytesReceived, mBodyLength);
+        reset(false);
+        return true;
+    }
+
+    /**
+     * @return the SessionMessage whose header has been received and body is being received, if any.
+     * When multiplexed, that of the lowest stream id
+     */
+    public @Nullable SessionMessage getCurrentMessage() {
+        if (mGotHeader) return mSessionMessage;
+
+        for (SessionMessageDeserializer stream : mStreams.values()) {
+            SessionMessage message = stream.getCurrentMessage();
+            if (message != null) return message;
+        }
+        return null;
+    }
+
+    /**
+     * Process sequential chunk of a serialized {@link pro.dbro.airshare.session.SessionMessage}.
+     * The chunk may complete the current SessionMessage and contain the beginning (or entirety) of
+     * following SessionMessages.
+     *
+     * This method will call {@link #reset(boolean)} internally if data provided completes a SessionMessage.
+     *
+     * @param data sequential chunk of a serialized {@link pro.dbro.airshare.session.SessionMessage}
+     */
+    public void dataReceived(byte[] data) {
+        dataReceived(data, 0, data.length);
+    }
+
+    private void dataReceived(byte[] data, int offset, int length) {
+        int dataOffset = offset;
+        int dataEnd = offset + length;
+
+        while (dataOffset < dataEnd) {
+            // A frame may only begin where a SessionMessage would
+            boolean frame = mFramePrefix.position() > 0 ||
+                            (!mGotHeaderLength && mBuffer.position() == 0 && data[dataOffset] == SessionMessage.HEADER_VERSION_FRAMED);
+
+            int bytesProcessed = frame ? processFrameData(data, dataOffset, dataEnd - dataOffset) :
+                                         processData(data, dataOffset, dataEnd - dataOffset);
+
+            if (bytesProcessed < 0) return; // Unrecoverable error. Remaining data was discarded
+
+            dataOffset += bytesProcessed;
+        }
+    }
+
+    /**
+     * @return the current capacity of the receive buffer in bytes. The buffer only holds the
+     * SessionMessage currently being received and is released as each message completes, so this
+     * is bounded by the largest in-memory message regardless of how many messages have been received.
+     */
+    public int getBufferCapacityBytes() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Consume bytes from data belonging to the SessionMessage currently being deserialized.
+     * Never consumes beyond the end of the current SessionMessage.
+     *
+     * @return the number of bytes consumed from data, or -1 if the data stream could not be deserialized
+     */
+    private int processData(byte[] data, int offset, int length) {
+        int bytesConsumed;
+
+        /* Accumulate SessionMessage version and header length bytes, if not yet done since construction
+         * or last call to {@link #reset()}
+         */
+        if (!mGotHeaderLength) {
+            int prefixBytes = SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES;
+            bytesConsumed = bufferData(data, offset, Math.min(length, prefixBytes - mBuffer.position()));
+
+            if (!mGotVersion && mBuffer.position() >= SessionMessage.HEADER_VERSION_BYTES) {
+                // Get version int from first byte
+                // Check we can deserialize this version
+                mVersion = mBuffer.get(0);
+                if (mVersion != SessionMessage.HEADER_VERSION_JSON && mVersion != SessionMessage.HEADER_VERSION_BINARY) {
+                    SessionLog.e("Unknown SessionMessage version");
+                    abort(new UnsupportedOperationException("Unknown SessionMessage version " + mVersion));
+                    return -1;
+                }
+                mGotVersion = true;
+            }
+
+            if (mBuffer.position() == prefixBytes) {
+                // Get header length and store. Deserialize header when possible
+                mHeaderLengthBuffer.clear();
+                mHeaderLengthBuffer.put(mBuffer.array(), SessionMessage.HEADER_VERSION_BYTES, SessionMessage.HEADER_LENGTH_BYTES);
+                mHeaderLengthBuffer.rewind();
+
+                mHeaderLength = mHeaderLengthBuffer.getInt();
+                mGotHeaderLength = true;
+            }
+
+            return bytesConsumed;
+        }
+
+        /* Accumulate and deserialize SessionMessage Header content, if not yet done since construction
+         * or last call to {@link #reset()}
+         */
+        if (!mGotHeader) {
+            bytesConsumed = bufferData(data, offset, Math.min(length, getPrefixAndHeaderLengthBytes() - mBuffer.position()));
+
+            if (mBuffer.position() == getPrefixAndHeaderLengthBytes()) {
+
+                try {
+                    HashMap<String, Object> headers = deserializeHeaders(mVersion,
+                                                                         mBuffer.array(),
+                                                                         SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES,
+                                                                         mHeaderLength);
+
+                    Object bodyLength = headers.get(SessionMessage.HEADER_BODY_LENGTH);
+                    if (!(bodyLength instanceof Integer) || (Integer) bodyLength < 0)
+                        throw new IllegalArgumentException("Malformed body length " + bodyLength);
+
+                    mBodyLength = (Integer) bodyLength;
+                    Object bodyOffset = headers.get(SessionMessage.HEADER_BODY_OFFSET);
+                    Object stripeLength = headers.get(SessionMessage.HEADER_STRIPE_LENGTH);
+
+                    // A stripe requires its offset
+                    if ((bodyOffset != null && !(bodyOffset instanceof Integer)) ||
+                        (stripeLength != null && !(stripeLength instanceof Integer && bodyOffset != null)))
+                        throw new IllegalArgumentException(String.format(Locale.US, "Malformed body offset %s or stripe length %s",
+                                                                         bodyOffset, stripeLength));
+
+                    mSessionMessage = sessionMessageFromHeaders(headers);
+
+                    Object type = headers.get(SessionMessage.HEADER_TYPE);
+                    SessionTrace.record(SessionTrace.Event.HEADER_RECEIVED, type, mBodyLength);
+                    if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                        SessionLog.d("Deserialized version %d %s header indicating body length %d", mVersion, type, mBodyLength);
+
+                    if (mSessionMessage != null && mCallback != null) {
+                        mCallback.onHeaderReady(this, mSessionMessage);
+                    }
+
+                    if (stripeLength != null)
+                        openStripe((Integer) bodyOffset, (Integer) stripeLength);
+                    else if (bodyOffset != null)
+                        restorePartialBody((Integer) bodyOffset);
+                }
+                catch (IllegalArgumentException e) {
+                    SessionLog.e(e, "Failed to deserialize SessionMessage header");
+                    abort(e);
+                    return -1;
+                }
+                catch (IOException | IllegalStateException e) {
+                    SessionLog.e(e, "Failed to restore partial or striped body");
+                    abort(e);
+                    return -1;
+                }
+
+                mGotHeader = true;
+
+                if (mStripe == null && mBodyBytesReceived == mBodyLength) completeMessage();
+            }
+
+            return bytesConsumed;
+        }
+
+        if (mStripe != null) return processStripeData(data, offset, length);
+
+        /* Accumulate SessionMessage body. If this SessionMessage requires off-memory body storage
+         * write directly to {@link mBodyMapping}, else to {@link mBuffer}
+         */
+        bytesConsumed = Math.min(length, mBodyLength - mBodyBytesReceived);
+
+        if (mBodyLength > BODY_SIZE_CUTOFF_BYTES) {
+            if (mBodyMapping == null) {
+                try {
+                    prepareBodyMapping();
+                } catch (IOException e) {
+                    SessionLog.e(e, "Failed to map body File");
+                    abort(e);
+                    return -1;
+                }
+            }
+
+            // Lands in the page cache at mBodyBytesReceived. No syscall per chunk
+            mBodyMapping.put(data, offset, bytesConsumed);
+        } else {
+            bufferData(data, offset, bytesConsumed);
+        }
+
+        mBodyBytesReceived += bytesConsumed;
+
+        if (mCallback != null)
+            mCallback.onBodyProgress(this, mSessionMessage, mBodyBytesReceived / (float) mBodyLength);
+
+        if (mBodyBytesReceived == mBodyLength) completeMessage();
+
+        return bytesConsumed;
+    }
+
+    /**
+     * Consume bytes of the current frame, passing its payload to the receiver of its stream.
+     * Never consumes beyond the end of the current frame.
+     *
+     * @return the number of bytes consumed from data
+     */
+    private int processFrameData(byte[] data, int offset, int length) {
+        int bytesConsumed;
+
+        if (mFramePrefix.hasRemaining()) {
+            bytesConsumed = Math.min(length, mFramePrefix.remaining());
+            mFramePrefix.put(data, offset, bytesConsumed);
+
+            if (!mFramePrefix.hasRemaining()) {
+                mFramePayloadRemaining = mFramePrefix.getShort(SessionMessage.HEADER_VERSION_BYTES + 1) & 0xFFFF;
+                if (mFramePayloadRemaining == 0) resetFrame();
+            }
+            return bytesConsumed;
+        }
+
+        bytesConsumed = Math.min(length, mFramePayloadRemaining);
+        int streamId = mFramePrefix.get(SessionMessage.HEADER_VERSION_BYTES) & 0xFF;
+
+        SessionMessageDeserializer stream = mStreams.get(streamId);
+        if (stream == null) {
+            stream = new SessionMessageDeserializer(mStorage, mStreamCallback);
+            stream.setResumeStore(mResumeStore, mPeerKey);
+            stream.setStripeAssembler(mStripeAssembler, mPeerKey);
+            mStreams.put(streamId, stream);
+        }
+
+        stream.dataReceived(data, offset, bytesConsumed);
+
+        mFramePayloadRemaining -= bytesConsumed;
+        if (mFramePayloadRemaining == 0) resetFrame();
+
+        return bytesConsumed;
+    }
+
+    private void resetFrame() {
+        mFramePrefix.clear();
+        mFramePayloadRemaining = 0;
+    }
+
+    /**
+     * Consume bytes of the current stripe, writing them to its assembly
+     *
+     * @return the number of bytes consumed from data
+     */
+    private int processStripeData(byte[] data, int offset, int length) {
+        int bytesConsumed = Math.min(length, mStripeLength - mBodyBytesReceived);
+
+        mStripe.write(mStripeOffset + mBodyBytesReceived, data, offset, bytesConsumed);
+        mBodyBytesReceived += bytesConsumed;
+
+        if (mCallback != null)
+            mCallback.onBodyProgress(this, mStripe.getMessage(), mStripe.getProgress() + mBodyBytesReceived / (float) mBodyLength);
+
+        if (mBodyBytesReceived == mStripeLength) {
+            DataTransferMessage message = mStripeAssembler.onStripeReceived(mStripe, mStripeOffset, mStripeLength);
+
+            if (message != null) {
+                SessionLog.d("Assembled %s from stripes", message.getId());
+                if (mResumeStore != null) mResumeStore.remove(mPeerKey, message.getId(), true);
+                if (mCallback != null) mCallback.onComplete(this, message, null);
+            }
+
+            reset(false);
+        }
+
+        return bytesConsumed;
+    }
+
+    /**
+     * Prepare to receive the stripe of the current message's body at bodyOffset
+     *
+     * @throws IllegalStateException if stripes cannot be assembled
+     */
+    private void openStripe(int bodyOffset, int stripeLength) throws IOException {
+        if (mStripeAssembler == null || !(mSessionMessage instanceof DataTransferMessage))
+            throw new IllegalStateException("Cannot assemble stripe of " + (mSessionMessage == null ? null : mSessionMessage.getId()));
+
+        if (stripeLength < 1 || bodyOffset < 0 || stripeLength > mBodyLength - bodyOffset)
+            throw new IllegalStateException(String.format(Locale.US, "Stripe %d-%d outside body of %d bytes",
+                                                          bodyOffset, bodyOffset + stripeLength, mBodyLength));
+
+        mStripe = mStripeAssembler.open(mPeerKey, (DataTransferMessage) mSessionMessage);
+        mStripeOffset = bodyOffset;
+        mStripeLength = stripeLength;
+    }
+
+    /**
+     * Restore the first bodyOffset body bytes of the current message, preserved by {@link #suspend()},
+     * so that receipt continues with the remainder
+     *
+     * @throws IllegalStateException if the preserved body does not match bodyOffset
+     */
+    private void restorePartialBody(int bodyOffset) throws IOException {
+        if (bodyOffset == 0) return;
+
+        String messageId = mSessionMessage == null ? null : mSessionMessage.getId();
+        ResumableTransferStore.Partial partial = mResumeStore == null || !(mSessionMessage instanceof DataTransferMessage) ?
+                                                 null : mResumeStore.get(mPeerKey, messageId);
+
+        if (partial == null || partial.bodyBytesReceived != bodyOffset || bodyOffset > mBodyLength)
+            throw new IllegalStateException(String.format(Locale.US, "No partial body of %d bytes to resume %s",
+                                                          bodyOffset, messageId));
+
+        if (mBodyLength > BODY_SIZE_CUTOFF_BYTES) {
+            mBodyFile = partial.bodyFile;
+            // The body File now belongs to this receiver
+            mResumeStore.remove(mPeerKey, messageId, false);
+
+            RandomAccessFile bodyFile = new RandomAccessFile(mBodyFile, "rw");
+            try {
+                mBodyMapping = bodyFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mBodyLength);
+            } finally {
+                bodyFile.close();
+            }
+            mBodyMapping.position(bodyOffset);
+        } else {
+            byte[] body = new byte[bodyOffset];
+            FileInputStream in = new FileInputStream(partial.bodyFile);
+            try {
+                int read = 0;
+                while (read < body.length) {
+                    int count = in.read(body, read, body.length - read);
+                    if (count == -1) throw new IOException("Partial body shorter than recorded");
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+            bufferData(body, 0, body.length);
+            mResumeStore.remove(mPeerKey, messageId, true);
+        }
+
+        mBodyBytesReceived = bodyOffset;
+        SessionLog.d("Resuming %s at %d of %d body bytes", messageId, bodyOffset, mBodyLength);
+    }
+
+    /**
+     * Construct and deliver the complete SessionMessage, then prepare for the next
+     */
+    private void completeMessage() {
+        // Construct appropriate SessionMessage or child object
+        if (mBodyLength > BODY_SIZE_CUTOFF_BYTES) {
+
+            if (!(mSessionMessage instanceof DataTransferMessage)) {
+                abort(new UnsupportedOperationException("Only DataTransferMessage may have a disk-backed body"));
+                return;
+            }
+
+            // The body File and mapping now belong to the message
+            ((DataTransferMessage) mSessionMessage).setBody(mBodyFile, mBodyMapping);
+        } else if (mBodyLength > 0) {
+            byte[] body = new byte[mBodyLength];
+            System.arraycopy(mBuffer.array(), getPrefixAndHeaderLengthBytes(), body, 0, mBodyLength);
+
+            if (mSessionMessage instanceof DataTransferMessage) {
+                ((DataTransferMessage) mSessionMessage).setBody(body);
+            }
+        }
+
+        // A message sent again in full supersedes any partial body preserved of it
+        if (mResumeStore != null && mSessionMessage instanceof DataTransferMessage)
+            mResumeStore.remove(mPeerKey, mSessionMessage.getId(), true);
+
+        // As does any partial assembly of its stripes
+        if (mStripeAssembler != null && mSessionMessage instanceof DataTransferMessage)
+            mStripeAssembler.discard(mPeerKey, mSessionMessage.getId());
+
+        if (mCallback != null) mCallback.onComplete(this, mSessionMessage, null);
+
+        // Prepare for next incoming message
+        reset(false);
+    }
+
+    /**
+     * Report an unrecoverable deserialization error and discard the partially accumulated SessionMessage
+     */
+    private void abort(Exception e) {
+        if (mCallback != null)
+            mCallback.onComplete(this, null, e);
+
+        reset(true);
+    }
+
+    private void init() {
+        mHeaderLengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
+        mFramePrefix = ByteBuffer.allocate(SessionMessageSerializer.FRAME_PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        mStreams = new HashMap<>();
+
+        // Messages of every stream are reported as received by this receiver
+        mStreamCallback = new SessionMessageDeserializerCallback() {
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
+                if (mCallback != null) mCallback.onHeaderReady(SessionMessageDeserializer.this, message);
+            }
+
+            @Override
+            public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
+                if (mCallback != null) mCallback.onBodyProgress(SessionMessageDeserializer.this, message, progress);
+            }
+
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                if (mCallback != null) mCallback.onComplete(SessionMessageDeserializer.this, message, e);
+            }
+        };
+    }
+
+    /**
+     * Append length bytes of data to {@link #mBuffer}, growing it if necessary
+     *
+     * @return length
+     */
+    private int bufferData(byte[] data, int offset, int length) {
+        if (length > mBuffer.remaining())
+            resizeBuffer(mBuffer.position() + length);
+
+        mBuffer.put(data, offset, length);
+        return length;
+    }
+
+    /**
+     * Discard the bytes of the delivered (or abandoned) SessionMessage held in {@link #mBuffer}.
+     * If a large message grew the buffer, return to {@link #DEFAULT_BUFFER_BYTES} so memory per
+     * session does not remain at its high-water mark.
+     */
+    private void releaseBuffer() {
+        if (mBuffer.capacity() > DEFAULT_BUFFER_BYTES) {
+            SessionTrace.record(SessionTrace.Event.BUFFER_RESIZED, null, DEFAULT_BUFFER_BYTES);
+            mBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_BYTES);
+        } else {
+            mBuffer.clear();
+        }
+    }
+
+    private void resizeBuffer(int minLength) {
+        int curLen = mBuffer.capacity();
+        int curOccupied = mBuffer.position();
+        int newLen = Math.max(minLength, (int) (curLen * 1.5));
+        ByteBuffer newBuffer = ByteBuffer.allocate(newLen);
+        mBuffer.flip();
+        newBuffer.put(mBuffer);
+        mBuffer = newBuffer;
+        SessionTrace.record(SessionTrace.Event.BUFFER_RESIZED, null, newLen);
+        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+            SessionLog.d("Buffer resized from %d (%d used) to %d", curLen, curOccupied, newLen);
+    }
+
+    /**
+     * Preallocate a body File of {@link #mBodyLength} bytes and map it into memory
+     */
+    private void prepareBodyMapping() throws IOException {
+        mBodyFile = new File(mStorage.getBodyDirectory(), UUID.randomUUID().toString().replace("-","") + ".body");
+
+        RandomAccessFile bodyFile = new RandomAccessFile(mBodyFile, "rw");
+        try {
+            bodyFile.setLength(mBodyLength);
+            // The mapping remains valid after the File is closed
+            mBodyMapping = bodyFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mBodyLength);
+        } finally {
+            bodyFile.close();
+        }
+    }
+
+    private float getCurrentMessageProgress() {
+        if (mBodyLength == 0) return 0;
+        return mBodyBytesReceived / (float) mBodyLength;
+    }
+
+    /**
+     * @return the number of bytes which the prefix and header occupy
+     * This method only returns a valid value if {@link #mGotHeaderLength} is {@code true}
+     */
+    private int getPrefixAndHeaderLengthBytes() {
+        return SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + mHeaderLength;
+    }
+
+    /**
+     * Deserialize a SessionMessage header serialized in the given header version
+     *
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    static HashMap<String, Object> deserializeHeaders(int version, byte[] data, int offset, int length) {
+        if (version == SessionMessage.HEADER_VERSION_BINARY)
+            return BinaryHeaderCodec.decode(data, offset, length);
+
+        try {
+            return JsonCodec.getDefault().decode(new String(data, offset, length, UTF_8));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed JSON header", e);
+        }
+    }
+
+    static @Nullable SessionMessage sessionMessageFromHeaders(HashMap<String, Object> headers) {
+        final String headerType = (String) headers.get(SessionMessage.HEADER_TYPE);
+
+        if (headerType == null) {
+            throw new IllegalArgumentException("headers map must have 'type' entry");
+        }
+
+        switch(headerType) {
+            case IdentityMessage.HEADER_TYPE:
+                return IdentityMessage.fromHeaders(headers);
+
+            case TransportUpgradeMessage.HEADER_TYPE:
+                return new TransportUpgradeMessage(headers);
+
+            case DataTransferMessage.HEADER_TYPE:
+                return new DataTransferMessage(headers, null);
+
+            case ResumeMessage.HEADER_TYPE:
+                return new ResumeMessage(headers);
+
+            default:
+                SessionLog.w("Unable to deserialize %s message", headerType);
+                return null;
+
+        }
+    }
+}
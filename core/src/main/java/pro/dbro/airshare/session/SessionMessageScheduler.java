@@ -1,12 +1,16 @@
 package pro.dbro.airshare.session;
 
+import java.util.Collection;
+
 /**
  * An item that schedules {@link pro.dbro.airshare.session.SessionMessage}s for delivery
- * to a {@link pro.dbro.airshare.session.Peer}
+ * to one or more {@link pro.dbro.airshare.session.Peer}s
  *
  * Created by davidbrodsky on 3/14/15.
  */
 public interface SessionMessageScheduler {
 
     void sendMessage(SessionMessage message, Peer recipient);
+
+    void sendMessage(SessionMessage message, Collection<Peer> recipients);
 }
@@ -0,0 +1,589 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import pro.dbro.airshare.Pair;
+
+/**
+ * This class facilitates queuing {@link pro.dbro.airshare.session.SessionMessage}s
+ * for sequential serialization
+ *
+ * Messages are queued by {@link SessionMessage#getPriority()} and serialized highest priority
+ * first, in the order queued within each priority. With preemption enabled via
+ * {@link #setPreemptionEnabled(boolean)}, a {@link SessionMessage.Priority#BULK}
+ * {@link DataTransferMessage} is serialized as segments of at most {@link #DEFAULT_SEGMENT_CHUNKS}
+ * chunks, each a stripe of its body (see {@link DataTransferMessage#stripe(int, int)}), so that
+ * higher priority messages queued meanwhile are sent between segments rather than after
+ * the entire body. The recipient must assemble stripes, see {@link StripeAssembler}.
+ *
+ * With framing enabled via {@link #setFramingEnabled(boolean)}, each chunk is instead a frame
+ * of one of several concurrent streams, each carrying one message at a time. Up to
+ * {@link #getMaxStreams()} messages of each priority are serialized concurrently, chunk by chunk
+ * in turn, and a message of higher priority takes the next chunk. Control messages are
+ * serialized one at a time so that they arrive in the order queued.
+ *
+ * A message queued with a {@link SharedSerialization} takes its chunks from those serialized
+ * for its other recipients where possible. Such messages are not segmented.
+ *
+ * Up to {@link #getWindowSize()} chunks may be awaiting acknowledgement at once.
+ * Acknowledgements are assumed to arrive in the order chunks were produced.
+ *
+ * Created by davidbrodsky on 3/12/15.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SessionMessageSerializer {
+
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
+
+    /** Upper bound on chunk size, used when the caller does not specify a length */
+    private static final int MAX_CHUNK_BYTES = 500 * 1024;
+
+    /** Number of chunks that may await acknowledgement. 1 is stop-and-wait */
+    public static final int DEFAULT_WINDOW_CHUNKS = 1;
+
+    /**
+     * Number of chunks in each segment of a preemptible message. Bounds how long a higher priority
+     * message waits, while amortizing the header each segment repeats
+     */
+    public static final int DEFAULT_SEGMENT_CHUNKS = 64;
+
+    /** Version, stream id and uint16 payload length preceding each frame's payload */
+    public static final int FRAME_PREFIX_BYTES = 4;
+
+    /** Largest frame, as its payload length is a uint16 */
+    public static final int MAX_FRAME_BYTES = FRAME_PREFIX_BYTES + 0xFFFF;
+
+    /** Number of messages of each priority serialized concurrently when framing */
+    public static final int DEFAULT_MAX_STREAMS = 8;
+
+    /** Stream ids are represented by a single byte */
+    private static final int STREAM_ID_COUNT = 256;
+
+    /**
+     * A message being serialized, and the segment of it being serialized if preemptible,
+     * else the message itself
+     */
+    private static class Stream {
+
+        final int id;
+        final SessionMessage message;
+        final SessionMessage.Priority priority;
+        SessionMessage segment;
+        SharedSerialization serialization;
+        int headerVersion;
+        int marker;
+
+        Stream(int id, SessionMessage message, SessionMessage.Priority priority) {
+            this.id = id;
+            this.message = message;
+            this.priority = priority;
+        }
+    }
+
+    /** Messages awaiting serialization, by priority */
+    private EnumMap<SessionMessage.Priority, ArrayDeque<SessionMessage>> mQueues;
+
+    /** Messages being serialized, in the order they began. At most one unless framing */
+    private ArrayList<Stream> mStreams;
+    private boolean[] mStreamIdsInUse;
+    private int mNextStreamIndex;
+    private int mMaxStreams;
+    private boolean mFramingEnabled;
+    private boolean mFraming;
+
+    /** Queued messages whose chunks are shared with other recipients */
+    private IdentityHashMap<SessionMessage, SharedSerialization> mSerializations;
+
+    /** Preemptible messages partially serialized, mapped to the body offset of their next segment */
+    private IdentityHashMap<SessionMessage, Integer> mSegmentOffsets;
+    private boolean mPreemptionEnabled;
+
+    /** Chunk buffers, and message and its progress, of in-flight chunks, indexed by chunk sequence modulo window size */
+    private ByteBuffer[] mChunkBuffers;
+    private SessionMessage[] mChunkMessages;
+    private float[] mChunkProgress;
+    private int mWindowSize;
+    private int mHeaderVersion;
+    private int mSerializeCount;
+    private int mAckCount;
+
+    public SessionMessageSerializer(final SessionMessage message) {
+        this(new ArrayList<SessionMessage>() {{ add(message); }});
+    }
+
+    public SessionMessageSerializer(List<SessionMessage> messages) {
+        mQueues = new EnumMap<>(SessionMessage.Priority.class);
+        for (SessionMessage.Priority priority : SessionMessage.Priority.values())
+            mQueues.put(priority, new ArrayDeque<SessionMessage>());
+
+        mStreams = new ArrayList<>();
+        mStreamIdsInUse = new boolean[STREAM_ID_COUNT];
+        mMaxStreams = DEFAULT_MAX_STREAMS;
+        mSegmentOffsets = new IdentityHashMap<>();
+        mSerializations = new IdentityHashMap<>();
+        mHeaderVersion = SessionMessage.HEADER_VERSION_JSON;
+        setWindowSize(DEFAULT_WINDOW_CHUNKS);
+        mSerializeCount = 0;
+        mAckCount = 0;
+
+        for (SessionMessage message : messages) queueMessage(message);
+    }
+
+    /**
+     * @return the message being serialized, or else the next message to be serialized.
+     * When framing, the earliest begun of the messages being serialized
+     */
+    public @Nullable SessionMessage getCurrentMessage() {
+        if (!mStreams.isEmpty()) return mStreams.get(0).message;
+
+        for (ArrayDeque<SessionMessage> queue : mQueues.values()) {
+            if (!queue.isEmpty()) return queue.peek();
+        }
+        return null;
+    }
+
+    public void queueMessage(SessionMessage message) {
+        mQueues.get(message.getPriority()).offer(message);
+    }
+
+    /**
+     * Queue a message sent to several recipients, sharing its chunks via serialization
+     * with the serializers of the others
+     */
+    public void queueMessage(SessionMessage message, @Nullable SharedSerialization serialization) {
+        if (serialization != null) {
+            if (serialization.getMessage() != message)
+                throw new IllegalArgumentException("Serialization is not of " + message.getId());
+
+            serialization.addReader(this);
+            mSerializations.put(message, serialization);
+        }
+        queueMessage(message);
+    }
+
+    /**
+     * Set the {@link SessionMessage} header version to serialize with. Until set,
+     * {@link SessionMessage#HEADER_VERSION_JSON} is used as it is supported by all peers.
+     * Takes effect at the beginning of the next message.
+     */
+    public void setHeaderVersion(int headerVersion) {
+        mHeaderVersion = headerVersion;
+    }
+
+    /**
+     * Set whether {@link SessionMessage.Priority#BULK} messages are serialized in segments that
+     * higher priority messages may preempt. Enable only if the recipient assembles stripes.
+     * Has no effect while framing, which interleaves messages chunk by chunk.
+     * Takes effect at the beginning of the next message.
+     */
+    public void setPreemptionEnabled(boolean enabled) {
+        mPreemptionEnabled = enabled;
+    }
+
+    /**
+     * Set whether messages are multiplexed as frames of concurrent streams. Enable only if the
+     * recipient supports {@link SessionMessage#HEADER_VERSION_FRAMED}. Takes effect once no
+     * message is being serialized.
+     */
+    public void setFramingEnabled(boolean enabled) {
+        mFramingEnabled = enabled;
+    }
+
+    public boolean isFraming() {
+        return mFraming;
+    }
+
+    /**
+     * Set the number of messages of each priority serialized concurrently when framing
+     */
+    public void setMaxStreams(int streams) {
+        if (streams < 1 || streams * SessionMessage.Priority.values().length > STREAM_ID_COUNT)
+            throw new IllegalArgumentException(String.format("Streams must be in [1, %d]",
+                                                             STREAM_ID_COUNT / SessionMessage.Priority.values().length));
+
+        mMaxStreams = streams;
+    }
+
+    public int getMaxStreams() {
+        return mMaxStreams;
+    }
+
+    /**
+     * Set the number of chunks returned by {@link #getNextChunk(int)} that may await
+     * acknowledgement via {@link #ackChunkDelivery()}. May only be changed while no chunks are in flight.
+     */
+    public void setWindowSize(int chunks) {
+        if (chunks < 1)
+            throw new IllegalArgumentException("Window must allow at least one chunk");
+
+        if (isAwaitingAck())
+            throw new IllegalStateException("Cannot change window size with chunks in flight");
+
+        mWindowSize = chunks;
+        mChunkBuffers = new ByteBuffer[chunks];
+        mChunkMessages = new SessionMessage[chunks];
+        mChunkProgress = new float[chunks];
+    }
+
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * @return the serialization progress of the current message. Because chunks may be in flight,
+     * delivery progress is reported by {@link #ackChunkDelivery()}
+     */
+    public float getCurrentMessageProgress() {
+        SessionMessage message = getCurrentMessage();
+        if (message == null) return 1;
+
+        if (!mStreams.isEmpty()) {
+            Stream stream = mStreams.get(0);
+            return getProgress(stream.message, stream.segment, stream.marker, stream.headerVersion);
+        }
+
+        // A preempted message resumes with its next segment
+        Integer nextOffset = mSegmentOffsets.get(message);
+        if (nextOffset != null)
+            return (nextOffset - message.getBodyOffset()) / (float) message.getSerializedBodyLengthBytes();
+
+        // Before serialization begins the message header version is not yet determined
+        return getProgress(message, message, 0, mHeaderVersion);
+    }
+
+    /**
+     * @return messages not yet completely acknowledged, in order. This includes the current
+     * message and any completely serialized messages with chunks in flight.
+     */
+    public List<SessionMessage> getUndeliveredMessages() {
+        List<SessionMessage> messages = new ArrayList<>();
+
+        for (int sequence = mAckCount; sequence < mSerializeCount; sequence++)
+            addOnce(messages, mChunkMessages[sequence % mWindowSize]);
+
+        for (Stream stream : mStreams) addOnce(messages, stream.message);
+
+        for (ArrayDeque<SessionMessage> queue : mQueues.values()) {
+            for (SessionMessage message : queue) addOnce(messages, message);
+        }
+        return messages;
+    }
+
+    /**
+     * @return whether any chunk returned by {@link #getNextChunk(int)} awaits
+     * a call to {@link #ackChunkDelivery()}
+     */
+    public boolean isAwaitingAck() {
+        return getChunksInFlight() > 0;
+    }
+
+    /**
+     * @return whether another chunk may be sent before an acknowledgement is received
+     */
+    public boolean hasWindowCapacity() {
+        return getChunksInFlight() < mWindowSize;
+    }
+
+    public int getChunksInFlight() {
+        return mSerializeCount - mAckCount;
+    }
+
+    /**
+     * @return the number of messages queued or being serialized. Unlike
+     * {@link #getUndeliveredMessages()}, this excludes completely serialized messages
+     * awaiting acknowledgement
+     */
+    public int getQueuedMessageCount() {
+        int count = mStreams.size();
+        for (ArrayDeque<SessionMessage> queue : mQueues.values()) count += queue.size();
+        return count;
+    }
+
+    /**
+     * Read up to length bytes of the current outgoing SessionMessage.
+     * If length is 0, a fixed memory-safe size will be read.
+     *
+     * If {@param length} extends beyond the bytes left in the current message,
+     * the result will be a byte[] of lesser length containing the completion of the current message.
+     * When framing, length includes the {@link #FRAME_PREFIX_BYTES} of the frame, and is at most
+     * {@link #MAX_FRAME_BYTES}.
+     *
+     * Returns null if there is no data to send or {@link #getWindowSize()} chunks already
+     * await acknowledgement via {@link #ackChunkDelivery()}
+     *
+     * Chunks are serialized into buffers owned by this serializer and full-length chunks
+     * share their backing arrays, so the steady-state send path does not allocate. A returned
+     * byte[] must therefore not be retained after its delivery is acknowledged.
+     */
+    public @Nullable byte[] getNextChunk(int length) {
+        if (!hasWindowCapacity()) return null;
+
+        length = length <= 0 ? MAX_CHUNK_BYTES : Math.min(length, MAX_CHUNK_BYTES);
+
+        beginMessages(length);
+        // Framing is decided as messages begin
+        if (mFraming) length = Math.min(length, MAX_FRAME_BYTES);
+
+        Stream stream = nextStream();
+        if (stream == null) return null;
+
+        if (mFraming && length <= FRAME_PREFIX_BYTES)
+            throw new IllegalArgumentException("Chunk of " + length + " bytes cannot hold a frame");
+
+        // Header version may only change between messages
+        if (stream.marker == 0) stream.headerVersion = mHeaderVersion;
+
+        byte[] chunk;
+        if (stream.serialization != null) {
+            chunk = getSharedChunk(stream, length);
+        } else {
+            // This slot's previous chunk was acknowledged, so its buffer may be reused
+            int slot = mSerializeCount % mWindowSize;
+            ByteBuffer chunkBuffer = mChunkBuffers[slot];
+            if (chunkBuffer == null || chunkBuffer.capacity() != length) {
+                chunkBuffer = ByteBuffer.allocate(length);
+                mChunkBuffers[slot] = chunkBuffer;
+            }
+            chunk = serializeChunk(stream, chunkBuffer);
+        }
+
+        if (chunk == null) {
+            SessionLog.w("No bytes remain of %s message at %d", stream.segment.getType(), stream.marker);
+            completeSegment(stream);
+            return getNextChunk(length);
+        }
+
+        int slot = mSerializeCount % mWindowSize;
+        stream.marker += chunk.length - (mFraming ? FRAME_PREFIX_BYTES : 0);
+        mChunkMessages[slot] = stream.message;
+        mChunkProgress[slot] = getProgress(stream.message, stream.segment, stream.marker, stream.headerVersion);
+        mSerializeCount++;
+
+        if (stream.marker == stream.segment.getTotalLengthBytes(stream.headerVersion)) completeSegment(stream);
+
+        return chunk;
+    }
+
+    /**
+     * @return a Pair containing the message delivery progress and the
+     * {@link pro.dbro.airshare.session.SessionMessage} corresponding
+     * to the chunk being acknowledged. Assumes sequential delivery of chunks returned
+     * by {@link #getNextChunk(int)}
+     */
+    public @Nullable Pair<SessionMessage, Float> ackChunkDelivery() {
+        if (!isAwaitingAck()) return null; // Acknowledgements have fallen out of sync!
+
+        int slot = mAckCount % mWindowSize;
+        mAckCount++;
+
+        SessionMessage message = mChunkMessages[slot];
+        mChunkMessages[slot] = null;
+        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) SessionLog.d("ackChunkDelivery reporting %s progress %f", message.getType(), mChunkProgress[slot]);
+
+        return new Pair<>(message, mChunkProgress[slot]);
+    }
+
+    /**
+     * Serialize the next chunk of stream into chunkBuffer, framed if framing
+     *
+     * @return the chunk, sharing the backing array of chunkBuffer if it was filled, or null
+     * if no bytes of the stream's message remain
+     */
+    private @Nullable byte[] serializeChunk(Stream stream, ByteBuffer chunkBuffer) {
+        chunkBuffer.clear();
+        if (mFraming) chunkBuffer.position(FRAME_PREFIX_BYTES);
+
+        int bytesWritten = stream.segment.serializeInto(chunkBuffer, stream.marker, stream.headerVersion);
+        if (bytesWritten == 0) return null;
+
+        if (mFraming) {
+            chunkBuffer.put(0, (byte) SessionMessage.HEADER_VERSION_FRAMED);
+            chunkBuffer.put(1, (byte) stream.id);
+            chunkBuffer.put(2, (byte) bytesWritten);
+            chunkBuffer.put(3, (byte) (bytesWritten >> 8));
+        }
+
+        // Only the final, partial chunk of a message requires a right-sized copy
+        int chunkLength = chunkBuffer.position();
+        return chunkLength == chunkBuffer.capacity() ? chunkBuffer.array() :
+                                                      Arrays.copyOf(chunkBuffer.array(), chunkLength);
+    }
+
+    /**
+     * @return the next chunk of stream as shared with other recipients alike, serializing and
+     * sharing it if none has yet, or null if no bytes of the stream's message remain
+     */
+    private @Nullable byte[] getSharedChunk(Stream stream, int length) {
+        long track = SharedSerialization.getTrack(length, stream.headerVersion, mFraming ? stream.id : -1);
+
+        byte[] chunk = stream.serialization.readChunk(track, this, stream.marker);
+        if (chunk == null) {
+            // Shared chunks are never reused, so each is serialized into a buffer of its own
+            chunk = serializeChunk(stream, ByteBuffer.allocate(length));
+            if (chunk != null) stream.serialization.putChunk(track, this, stream.marker, chunk);
+        }
+        return chunk;
+    }
+
+    // <editor-fold desc="Scheduling">
+
+    /**
+     * Begin serializing queued messages, highest priority first, while streams are available
+     */
+    private void beginMessages(int chunkLength) {
+        // Framing may only change between messages
+        if (mStreams.isEmpty()) mFraming = mFramingEnabled;
+
+        for (Map.Entry<SessionMessage.Priority, ArrayDeque<SessionMessage>> queue : mQueues.entrySet()) {
+            SessionMessage.Priority priority = queue.getKey();
+
+            while (!queue.getValue().isEmpty()) {
+                if (!mStreams.isEmpty() && (!mFraming || getStreamCount(priority) >= getStreamLimit(priority))) break;
+
+                beginMessage(queue.getValue().poll(), priority, chunkLength);
+            }
+        }
+    }
+
+    private void beginMessage(SessionMessage message, SessionMessage.Priority priority, int chunkLength) {
+        int id = 0;
+        while (mStreamIdsInUse[id]) id++;
+        mStreamIdsInUse[id] = true;
+
+        Stream stream = new Stream(id, message, priority);
+        stream.segment = message;
+        stream.serialization = mSerializations.remove(message);
+
+        Integer segmentOffset = mSegmentOffsets.remove(message);
+        if (segmentOffset == null && stream.serialization == null && isPreemptible(message, chunkLength))
+            segmentOffset = message.getBodyOffset();
+
+        if (segmentOffset != null) {
+            int segmentLength = Math.min(chunkLength * DEFAULT_SEGMENT_CHUNKS, getBodyEnd(message) - segmentOffset);
+            stream.segment = ((DataTransferMessage) message).stripe(segmentOffset, segmentLength);
+        }
+
+        mStreams.add(stream);
+    }
+
+    /**
+     * @return the stream to take the next chunk from: the stream of highest priority,
+     * in turn with others of that priority
+     */
+    private @Nullable Stream nextStream() {
+        if (mStreams.isEmpty()) return null;
+
+        SessionMessage.Priority priority = mStreams.get(0).priority;
+        for (Stream stream : mStreams) {
+            if (stream.priority.compareTo(priority) < 0) priority = stream.priority;
+        }
+
+        for (int i = 0; i < mStreams.size(); i++) {
+            int index = (mNextStreamIndex + i) % mStreams.size();
+            Stream stream = mStreams.get(index);
+            if (stream.priority != priority) continue;
+
+            mNextStreamIndex = index + 1;
+            return stream;
+        }
+        return null;
+    }
+
+    /**
+     * Finish serializing the stream's current segment, returning its message to the front of its queue
+     * if segments remain, so that any message of higher priority queued meanwhile is sent first
+     */
+    private void completeSegment(Stream stream) {
+        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+            SessionLog.d("Completed %s message (%d / %d bytes)", stream.segment.getType(),
+                    stream.marker, stream.segment.getTotalLengthBytes(stream.headerVersion));
+
+        if (stream.segment != stream.message) {
+            int nextOffset = stream.segment.getBodyOffset() + stream.segment.getStripeLengthBytes();
+            if (nextOffset < getBodyEnd(stream.message)) {
+                mSegmentOffsets.put(stream.message, nextOffset);
+                mQueues.get(stream.priority).addFirst(stream.message);
+            }
+        }
+
+        if (stream.serialization != null) stream.serialization.release(this);
+
+        int index = mStreams.indexOf(stream);
+        mStreams.remove(index);
+        if (mNextStreamIndex > index) mNextStreamIndex--;
+        mStreamIdsInUse[stream.id] = false;
+    }
+
+    private int getStreamCount(SessionMessage.Priority priority) {
+        int count = 0;
+        for (Stream stream : mStreams) {
+            if (stream.priority == priority) count++;
+        }
+        return count;
+    }
+
+    private int getStreamLimit(SessionMessage.Priority priority) {
+        return priority == SessionMessage.Priority.CONTROL ? 1 : mMaxStreams;
+    }
+
+    /**
+     * @return whether message should be serialized in segments sent chunkLength bytes at a time
+     */
+    private boolean isPreemptible(SessionMessage message, int chunkLength) {
+        if (!mPreemptionEnabled || mFraming || message.getPriority() != SessionMessage.Priority.BULK ||
+            !(message instanceof DataTransferMessage) || !((DataTransferMessage) message).isStripeable())
+            return false;
+
+        // The recipient of a resumed message holds a partial body that stripes do not complete
+        if (message.getBodyOffset() > 0 && message.getStripeLengthBytes() == 0) return false;
+
+        return message.getSerializedBodyLengthBytes() > (long) chunkLength * DEFAULT_SEGMENT_CHUNKS;
+    }
+
+    /**
+     * @return the body offset following the last body byte message serializes
+     */
+    private static int getBodyEnd(SessionMessage message) {
+        return message.getBodyOffset() + message.getSerializedBodyLengthBytes();
+    }
+
+    /**
+     * @return the serialization progress of message after marker bytes of its segment
+     */
+    private static float getProgress(SessionMessage message, SessionMessage segment, int marker, int headerVersion) {
+        long segmentLength = segment.getTotalLengthBytes(headerVersion);
+
+        if (segment != message) {
+            int bodyLength = message.getSerializedBodyLengthBytes();
+            int segmentStart = segment.getBodyOffset() - message.getBodyOffset();
+
+            // The final chunk of the final segment completes the message exactly
+            if (marker == segmentLength && segmentStart + segment.getStripeLengthBytes() == bodyLength) return 1;
+
+            return (segmentStart + segment.getStripeLengthBytes() * (marker / (float) segmentLength)) / bodyLength;
+        }
+
+        // A resumed message's progress includes the body the recipient already holds.
+        // A stripe's progress is of its own range
+        int heldBytes = message.getStripeLengthBytes() > 0 ? 0 : message.getBodyOffset();
+        return ((float) marker + heldBytes) / (segmentLength + heldBytes);
+    }
+
+    private static void addOnce(List<SessionMessage> messages, SessionMessage message) {
+        for (SessionMessage existing : messages) {
+            if (existing == message) return;
+        }
+        messages.add(message);
+    }
+
+    // </editor-fold desc="Scheduling">
+}
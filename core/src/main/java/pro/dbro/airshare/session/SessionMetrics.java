@@ -0,0 +1,501 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records traffic of a session: bytes, chunks and messages sent and received per peer and per
+ * transport, and the round-trip time from sending each chunk to its acknowledgement.
+ *
+ * Disabled by default. While disabled each recording method returns after reading a single
+ * volatile field, so that an idle recorder costs the data path nothing measurable.
+ *
+ * Recording methods are called by the owner of the session, which must serialize them with
+ * {@link #snapshot(Collection, long)}. Only {@link #setEnabled(boolean)} and
+ * {@link #isEnabled()} may be called from any thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SessionMetrics {
+
+    /** Rates in a {@link Snapshot} are measured over intervals of at least this long */
+    public static final long RATE_INTERVAL_MS = 1000;
+
+    private volatile boolean mEnabled;
+
+    private long mEnabledAtMs;
+    private final Counters mTotal = new Counters();
+    /** Transport code -> Traffic over transports of that kind */
+    private final HashMap<Integer, Counters> mTransports = new HashMap<>();
+    /** Transport code -> Ack round-trip times over transports of that kind */
+    private final HashMap<Integer, Histogram> mRoundTrips = new HashMap<>();
+    private final HashMap<Peer, Counters> mPeers = new HashMap<>();
+    /** Identifier -> Link state */
+    private final HashMap<String, Link> mLinks = new HashMap<>();
+
+    private long mRateSampleMs;
+    private final Counters mRateSample = new Counters();
+    private Rates mRates = new Rates(0, 0, 0, 0);
+
+    /**
+     * A connection to a peer over a single transport, identified as by the transport
+     */
+    private static class Link {
+
+        final Counters transport;
+        final Histogram roundTrips;
+        @Nullable Counters peer;
+
+        /** Send times of chunks awaiting acknowledgement, in nanoseconds, as a ring */
+        long[] sendTimesNs = new long[16];
+        int sendTimesHead;
+        int sendTimesCount;
+
+        Link(Counters transport, Histogram roundTrips) {
+            this.transport = transport;
+            this.roundTrips = roundTrips;
+        }
+
+        void pushSendTime(long nowNs) {
+            if (sendTimesCount == sendTimesNs.length) {
+                long[] grown = new long[sendTimesNs.length * 2];
+                for (int i = 0; i < sendTimesCount; i++)
+                    grown[i] = sendTimesNs[(sendTimesHead + i) % sendTimesNs.length];
+                sendTimesNs = grown;
+                sendTimesHead = 0;
+            }
+            sendTimesNs[(sendTimesHead + sendTimesCount) % sendTimesNs.length] = nowNs;
+            sendTimesCount++;
+        }
+
+        /**
+         * @return the send time of the oldest unacknowledged chunk, or -1 if none
+         */
+        long popSendTime() {
+            if (sendTimesCount == 0) return -1;
+
+            long sendTimeNs = sendTimesNs[sendTimesHead];
+            sendTimesHead = (sendTimesHead + 1) % sendTimesNs.length;
+            sendTimesCount--;
+            return sendTimeNs;
+        }
+    }
+
+    // <editor-fold desc="Recording">
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Discard everything recorded, and begin measuring rates anew at nowMs
+     */
+    public void reset(long nowMs) {
+        mEnabledAtMs = nowMs;
+        mTotal.clear();
+        mTransports.clear();
+        mRoundTrips.clear();
+        mPeers.clear();
+        mLinks.clear();
+        mRateSampleMs = nowMs;
+        mRateSample.clear();
+        mRates = new Rates(0, 0, 0, 0);
+    }
+
+    /**
+     * Record that identifier, connected over the transport with transportCode, was identified as peer.
+     * Traffic with identifier is subsequently attributed to peer.
+     */
+    public void onLinkIdentified(@NonNull String identifier, int transportCode, @NonNull Peer peer) {
+        if (!mEnabled) return;
+
+        Counters peerCounters = mPeers.get(peer);
+        if (peerCounters == null) {
+            peerCounters = new Counters();
+            mPeers.put(peer, peerCounters);
+        }
+        getLink(identifier, transportCode).peer = peerCounters;
+    }
+
+    public void onLinkClosed(@NonNull String identifier) {
+        if (!mEnabled) return;
+
+        mLinks.remove(identifier);
+    }
+
+    /**
+     * Record that a chunk of bytes was handed to the transport for delivery to identifier
+     */
+    public void onChunkSent(@NonNull String identifier, int transportCode, int bytes) {
+        if (!mEnabled) return;
+
+        Link link = getLink(identifier, transportCode);
+        link.pushSendTime(System.nanoTime());
+
+        mTotal.onChunkSent(bytes);
+        link.transport.onChunkSent(bytes);
+        if (link.peer != null) link.peer.onChunkSent(bytes);
+    }
+
+    /**
+     * Record that the transport reported the oldest chunk sent to identifier delivered,
+     * or failed if delivered is false
+     */
+    public void onChunkAcked(@NonNull String identifier, int transportCode, boolean delivered) {
+        if (!mEnabled) return;
+
+        Link link = getLink(identifier, transportCode);
+        long sendTimeNs = link.popSendTime();
+        // Chunks sent before recording was enabled have no send time. Their acknowledgements
+        // may be attributed to later chunks, briefly understating round trips
+        if (delivered && sendTimeNs >= 0) link.roundTrips.record((System.nanoTime() - sendTimeNs) / 1000);
+    }
+
+    public void onChunkReceived(@NonNull String identifier, int transportCode, int bytes) {
+        if (!mEnabled) return;
+
+        Link link = getLink(identifier, transportCode);
+        mTotal.onChunkReceived(bytes);
+        link.transport.onChunkReceived(bytes);
+        if (link.peer != null) link.peer.onChunkReceived(bytes);
+    }
+
+    /**
+     * Record that a message was completely delivered to identifier
+     */
+    public void onMessageSent(@NonNull String identifier, int transportCode) {
+        if (!mEnabled) return;
+
+        Link link = getLink(identifier, transportCode);
+        mTotal.messagesSent++;
+        link.transport.messagesSent++;
+        if (link.peer != null) link.peer.messagesSent++;
+    }
+
+    /**
+     * Record that a message was completely received from identifier
+     */
+    public void onMessageReceived(@NonNull String identifier, int transportCode) {
+        if (!mEnabled) return;
+
+        Link link = getLink(identifier, transportCode);
+        mTotal.messagesReceived++;
+        link.transport.messagesReceived++;
+        if (link.peer != null) link.peer.messagesReceived++;
+    }
+
+    private Link getLink(String identifier, int transportCode) {
+        Link link = mLinks.get(identifier);
+        if (link == null) {
+            Counters transport = mTransports.get(transportCode);
+            if (transport == null) {
+                transport = new Counters();
+                mTransports.put(transportCode, transport);
+            }
+
+            Histogram roundTrips = mRoundTrips.get(transportCode);
+            if (roundTrips == null) {
+                roundTrips = new Histogram();
+                mRoundTrips.put(transportCode, roundTrips);
+            }
+
+            link = new Link(transport, roundTrips);
+            mLinks.put(identifier, link);
+        }
+        return link;
+    }
+
+    // </editor-fold desc="Recording">
+
+    // <editor-fold desc="Snapshot">
+
+    /**
+     * @param links the state of each link at nowMs, as only the session's owner can observe it
+     * @return a copy of everything recorded, unaffected by further recording
+     */
+    public @NonNull Snapshot snapshot(@NonNull Collection<LinkState> links, long nowMs) {
+        long sampleMs = nowMs - mRateSampleMs;
+        if (sampleMs >= RATE_INTERVAL_MS) {
+            double seconds = sampleMs / 1000.0;
+            mRates = new Rates((mTotal.messagesSent - mRateSample.messagesSent) / seconds,
+                               (mTotal.messagesReceived - mRateSample.messagesReceived) / seconds,
+                               (mTotal.bytesSent - mRateSample.bytesSent) / seconds,
+                               (mTotal.bytesReceived - mRateSample.bytesReceived) / seconds);
+            mRateSample.set(mTotal);
+            mRateSampleMs = nowMs;
+        }
+
+        HashMap<Integer, Counters> transports = new HashMap<>();
+        for (Map.Entry<Integer, Counters> entry : mTransports.entrySet())
+            transports.put(entry.getKey(), entry.getValue().copy());
+
+        HashMap<Integer, Histogram> roundTrips = new HashMap<>();
+        for (Map.Entry<Integer, Histogram> entry : mRoundTrips.entrySet())
+            roundTrips.put(entry.getKey(), entry.getValue().copy());
+
+        HashMap<Peer, Counters> peers = new HashMap<>();
+        for (Map.Entry<Peer, Counters> entry : mPeers.entrySet())
+            peers.put(entry.getKey(), entry.getValue().copy());
+
+        return new Snapshot(nowMs, nowMs - mEnabledAtMs, mTotal.copy(), transports, roundTrips, peers,
+                            Collections.unmodifiableCollection(links), mRates);
+    }
+
+    /**
+     * Everything recorded by a {@link SessionMetrics} at one time
+     */
+    public static class Snapshot {
+
+        public final long timestampMs;
+        /** Time over which traffic was recorded */
+        public final long elapsedMs;
+        public final Counters total;
+        /** Transport code -> Traffic over transports of that kind */
+        public final Map<Integer, Counters> transports;
+        /** Transport code -> Ack round-trip times over transports of that kind, in microseconds */
+        public final Map<Integer, Histogram> roundTrips;
+        /** Traffic with each peer identified while recording */
+        public final Map<Peer, Counters> peers;
+        /** Queue depths and buffer sizes of each connected link */
+        public final Collection<LinkState> links;
+        /** Rates over the last {@link #RATE_INTERVAL_MS} or more */
+        public final Rates rates;
+
+        Snapshot(long timestampMs,
+                 long elapsedMs,
+                 Counters total,
+                 Map<Integer, Counters> transports,
+                 Map<Integer, Histogram> roundTrips,
+                 Map<Peer, Counters> peers,
+                 Collection<LinkState> links,
+                 Rates rates) {
+
+            this.timestampMs = timestampMs;
+            this.elapsedMs = elapsedMs;
+            this.total = total;
+            this.transports = Collections.unmodifiableMap(transports);
+            this.roundTrips = Collections.unmodifiableMap(roundTrips);
+            this.peers = Collections.unmodifiableMap(peers);
+            this.links = links;
+            this.rates = rates;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{elapsedMs=" + elapsedMs + ", total=" + total + ", rates=" + rates +
+                   ", transports=" + transports + ", roundTrips=" + roundTrips + ", links=" + links + '}';
+        }
+    }
+
+    // </editor-fold desc="Snapshot">
+
+    /**
+     * Traffic counts. Chunks are counted as handed to or received from a transport,
+     * and messages once completely delivered or received.
+     */
+    public static class Counters {
+
+        public long bytesSent;
+        public long bytesReceived;
+        public long chunksSent;
+        public long chunksReceived;
+        public long messagesSent;
+        public long messagesReceived;
+
+        void onChunkSent(int bytes) {
+            chunksSent++;
+            bytesSent += bytes;
+        }
+
+        void onChunkReceived(int bytes) {
+            chunksReceived++;
+            bytesReceived += bytes;
+        }
+
+        void set(Counters other) {
+            bytesSent = other.bytesSent;
+            bytesReceived = other.bytesReceived;
+            chunksSent = other.chunksSent;
+            chunksReceived = other.chunksReceived;
+            messagesSent = other.messagesSent;
+            messagesReceived = other.messagesReceived;
+        }
+
+        void clear() {
+            set(new Counters());
+        }
+
+        Counters copy() {
+            Counters copy = new Counters();
+            copy.set(this);
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "Counters{sent=" + messagesSent + " msgs/" + chunksSent + " chunks/" + bytesSent + " B" +
+                   ", received=" + messagesReceived + " msgs/" + chunksReceived + " chunks/" + bytesReceived + " B}";
+        }
+    }
+
+    /**
+     * Message and byte rates, per second
+     */
+    public static class Rates {
+
+        public final double messagesSentPerSecond;
+        public final double messagesReceivedPerSecond;
+        public final double bytesSentPerSecond;
+        public final double bytesReceivedPerSecond;
+
+        Rates(double messagesSentPerSecond,
+              double messagesReceivedPerSecond,
+              double bytesSentPerSecond,
+              double bytesReceivedPerSecond) {
+
+            this.messagesSentPerSecond = messagesSentPerSecond;
+            this.messagesReceivedPerSecond = messagesReceivedPerSecond;
+            this.bytesSentPerSecond = bytesSentPerSecond;
+            this.bytesReceivedPerSecond = bytesReceivedPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "Rates{sent=" + Math.round(messagesSentPerSecond) + " msgs/s " + Math.round(bytesSentPerSecond) + " B/s" +
+                   ", received=" + Math.round(messagesReceivedPerSecond) + " msgs/s " + Math.round(bytesReceivedPerSecond) + " B/s}";
+        }
+    }
+
+    /**
+     * A histogram of durations in microseconds. Bucket i counts durations below 2^i microseconds
+     * and at least 2^(i-1), so that a wide range is covered at a constant relative precision.
+     * The last bucket counts all longer durations.
+     */
+    public static class Histogram {
+
+        public static final int BUCKET_COUNT = 32;
+
+        private final long[] mCounts;
+        private long mCount;
+        private long mSumUs;
+        private long mMaxUs;
+
+        Histogram() {
+            mCounts = new long[BUCKET_COUNT];
+        }
+
+        private Histogram(Histogram other) {
+            mCounts = Arrays.copyOf(other.mCounts, BUCKET_COUNT);
+            mCount = other.mCount;
+            mSumUs = other.mSumUs;
+            mMaxUs = other.mMaxUs;
+        }
+
+        void record(long durationUs) {
+            if (durationUs < 0) durationUs = 0;
+
+            int bucket = 64 - Long.numberOfLeadingZeros(durationUs);
+            mCounts[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            mCount++;
+            mSumUs += durationUs;
+            mMaxUs = Math.max(mMaxUs, durationUs);
+        }
+
+        Histogram copy() {
+            return new Histogram(this);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxUs() {
+            return mMaxUs;
+        }
+
+        public double getMeanUs() {
+            return mCount == 0 ? 0 : mSumUs / (double) mCount;
+        }
+
+        /**
+         * @return the count of durations in bucket, see {@link Histogram}
+         */
+        public long getBucketCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        /**
+         * @param percentile in [0, 100]
+         * @return an upper bound on the given percentile of durations, exact to within a factor of two
+         */
+        public long getPercentileUs(double percentile) {
+            if (mCount == 0) return 0;
+
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT - 1; bucket++) {
+                seen += mCounts[bucket];
+                if (seen >= rank && seen > 0) return Math.min(mMaxUs, (1L << bucket) - 1);
+            }
+            return mMaxUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram{count=" + mCount + ", meanUs=" + Math.round(getMeanUs()) +
+                   ", p50Us=" + getPercentileUs(50) + ", p99Us=" + getPercentileUs(99) + ", maxUs=" + mMaxUs + '}';
+        }
+    }
+
+    /**
+     * Queue depths and buffer sizes of a single link, observed at the time of a {@link Snapshot}
+     */
+    public static class LinkState {
+
+        public final String identifier;
+        public final int transportCode;
+        /** The peer at identifier, or null if not yet identified */
+        public final @Nullable Peer peer;
+        /** Messages queued or being serialized by the link's {@link SessionMessageSerializer} */
+        public final int queuedMessages;
+        /** Chunks sent and awaiting acknowledgement */
+        public final int chunksInFlight;
+        /** Chunks accepted by the transport but not yet transmitted */
+        public final int transportQueuedChunks;
+        /** Capacity of the link's {@link SessionMessageDeserializer} receive buffer */
+        public final int receiveBufferBytes;
+
+        public LinkState(@NonNull String identifier,
+                         int transportCode,
+                         @Nullable Peer peer,
+                         int queuedMessages,
+                         int chunksInFlight,
+                         int transportQueuedChunks,
+                         int receiveBufferBytes) {
+
+            this.identifier = identifier;
+            this.transportCode = transportCode;
+            this.peer = peer;
+            this.queuedMessages = queuedMessages;
+            this.chunksInFlight = chunksInFlight;
+            this.transportQueuedChunks = transportQueuedChunks;
+            this.receiveBufferBytes = receiveBufferBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "LinkState{" + identifier + " over " + transportCode +
+                   ", queuedMessages=" + queuedMessages + ", chunksInFlight=" + chunksInFlight +
+                   ", transportQueuedChunks=" + transportQueuedChunks + ", receiveBufferBytes=" + receiveBufferBytes + '}';
+        }
+    }
+}
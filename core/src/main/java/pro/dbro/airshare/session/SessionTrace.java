@@ -0,0 +1,151 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Records events of the data path, such as each chunk sent and received, into a ring buffer
+ * that may be dumped on demand, e.g. after a transfer stalls.
+ *
+ * Unlike {@link SessionLog}, recording an event formats nothing and allocates nothing: each
+ * event is stored as its time, type, a subject already at hand, such as an identifier, and a
+ * number, such as a byte count. Formatting is deferred until {@link #dump(Appendable)}.
+ * Once the buffer fills, each event overwrites the oldest.
+ *
+ * Disabled by default, when {@link #record(Event, Object, long)} returns after reading a
+ * single volatile field.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class SessionTrace {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public enum Event {
+        /** A chunk was handed to a transport. Value is its length in bytes */
+        CHUNK_SENT,
+        /** A transport reported a chunk delivered. Value is its length in bytes */
+        CHUNK_ACKED,
+        /** A transport reported a chunk failed. Value is its length in bytes */
+        CHUNK_FAILED,
+        /** A chunk was received from a transport. Value is its length in bytes */
+        CHUNK_RECEIVED,
+        /** A message header was deserialized. Subject is the message type, value its body length */
+        HEADER_RECEIVED,
+        /** A message was completely received. Value is its body length */
+        MESSAGE_RECEIVED,
+        /** A message was completely delivered. Value is its body length */
+        MESSAGE_SENT,
+        /** A receive buffer was resized. Value is its new capacity in bytes */
+        BUFFER_RESIZED,
+        /** A packet was written or notified to a connected device. Value is its length in bytes */
+        PACKET_SENT,
+        /** A write or notification to a connected device completed. Value is the status code */
+        PACKET_SENT_COMPLETE,
+        /** A packet was received from a connected device. Value is its length in bytes */
+        PACKET_RECEIVED
+    }
+
+    private static volatile boolean sEnabled;
+
+    private static long[] sTimesNs;
+    private static Event[] sEvents;
+    private static Object[] sSubjects;
+    private static long[] sValues;
+    /** Total events recorded since enabled. The next is stored at sCount modulo capacity */
+    private static long sCount;
+
+    private SessionTrace() {}
+
+    /**
+     * Begin recording, keeping the most recent capacity events. Discards any previously recorded
+     */
+    public static synchronized void enable(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+
+        sTimesNs = new long[capacity];
+        sEvents = new Event[capacity];
+        sSubjects = new Object[capacity];
+        sValues = new long[capacity];
+        sCount = 0;
+        sEnabled = true;
+    }
+
+    /**
+     * Stop recording, and release recorded events
+     */
+    public static synchronized void disable() {
+        sEnabled = false;
+        sTimesNs = null;
+        sEvents = null;
+        sSubjects = null;
+        sValues = null;
+        sCount = 0;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @param subject what the event concerns, e.g. an identifier. Held until overwritten, so
+     *                it should be an object already at hand rather than one built to record
+     */
+    public static void record(@NonNull Event event, @Nullable Object subject, long value) {
+        if (!sEnabled) return;
+
+        long nowNs = System.nanoTime();
+        synchronized (SessionTrace.class) {
+            // Disabled since checked
+            if (sEvents == null) return;
+
+            int slot = (int) (sCount % sEvents.length);
+            sTimesNs[slot] = nowNs;
+            sEvents[slot] = event;
+            sSubjects[slot] = subject;
+            sValues[slot] = value;
+            sCount++;
+        }
+    }
+
+    /**
+     * Write recorded events to out, oldest first, one per line. Times are in milliseconds
+     * relative to the oldest event
+     */
+    public static synchronized void dump(@NonNull Appendable out) throws IOException {
+        if (sEvents == null) {
+            out.append("Tracing disabled\n");
+            return;
+        }
+
+        int capacity = sEvents.length;
+        long first = Math.max(0, sCount - capacity);
+        if (first > 0) out.append(String.format(Locale.US, "%d earlier events overwritten\n", first));
+
+        long startNs = sTimesNs[(int) (first % capacity)];
+        for (long i = first; i < sCount; i++) {
+            int slot = (int) (i % capacity);
+            out.append(String.format(Locale.US, "%10.3f ms %-20s %s %d\n",
+                                     (sTimesNs[slot] - startNs) / 1e6,
+                                     sEvents[slot],
+                                     sSubjects[slot],
+                                     sValues[slot]));
+        }
+    }
+
+    /**
+     * @return recorded events as by {@link #dump(Appendable)}
+     */
+    public static @NonNull String dump() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            dump(builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+}
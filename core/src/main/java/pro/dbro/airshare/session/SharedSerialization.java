@@ -0,0 +1,174 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The chunks of a {@link SessionMessage} sent to several recipients, serialized once and shared
+ * by the {@link SessionMessageSerializer} of each recipient.
+ *
+ * Recipients whose chunks are of the same length, header version and, when framing, stream id
+ * receive identical chunks. Each such track of chunks is serialized by the first recipient to
+ * reach a chunk and read by the others. Chunks are immutable and are released once every reader
+ * of their track has passed them and no recipient has yet to begin reading, so the memory held
+ * is bounded by the spread between the fastest and slowest recipient rather than the length
+ * of the message.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SharedSerialization {
+
+    /**
+     * Chunks of one track by serialization offset, and the offset of the chunk each reader last read
+     */
+    private static class Track {
+
+        final TreeMap<Integer, byte[]> chunks = new TreeMap<>();
+        final IdentityHashMap<Object, Integer> cursors = new IdentityHashMap<>();
+
+        /** Count of readers at each cursor, so that the slowest is known */
+        final TreeMap<Integer, Integer> cursorCounts = new TreeMap<>();
+        int retainedBytes;
+
+        void moveCursor(@NonNull Object reader, @Nullable Integer to, boolean releasable) {
+            Integer from = to == null ? cursors.remove(reader) : cursors.put(reader, to);
+
+            if (from != null) {
+                int count = cursorCounts.get(from);
+                if (count == 1) cursorCounts.remove(from);
+                else cursorCounts.put(from, count - 1);
+            }
+
+            if (to != null) {
+                Integer count = cursorCounts.get(to);
+                cursorCounts.put(to, count == null ? 1 : count + 1);
+            }
+
+            if (!releasable) return;
+
+            // Release chunks preceding those the slowest reader last read
+            int slowest = cursorCounts.isEmpty() ? Integer.MAX_VALUE : cursorCounts.firstKey();
+            while (!chunks.isEmpty() && chunks.firstKey() < slowest) {
+                retainedBytes -= chunks.pollFirstEntry().getValue().length;
+            }
+        }
+    }
+
+    private final SessionMessage mMessage;
+    private final HashMap<Long, Track> mTracks = new HashMap<>();
+
+    /** Readers yet to read their first chunk, and so whose track is unknown */
+    private final Set<Object> mPendingReaders = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    private int mChunksSerialized;
+    private int mChunksRead;
+    private int mPeakRetainedBytes;
+
+    /**
+     * @throws IllegalArgumentException if message is a {@link DataTransferMessage} with a
+     * stream-backed body, which cannot be read by more than one track
+     */
+    public SharedSerialization(@NonNull SessionMessage message) {
+        if (message instanceof DataTransferMessage && !((DataTransferMessage) message).isStripeable())
+            throw new IllegalArgumentException("Cannot share serialization of a stream-backed body");
+
+        mMessage = message;
+    }
+
+    public @NonNull SessionMessage getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * @return the number of chunks serialized, including any serialized again for a reader
+     * that reached them after their release
+     */
+    public synchronized int getChunksSerialized() {
+        return mChunksSerialized;
+    }
+
+    /**
+     * @return the number of chunks read by all readers
+     */
+    public synchronized int getChunksRead() {
+        return mChunksRead;
+    }
+
+    /**
+     * @return the greatest number of chunk bytes retained at once
+     */
+    public synchronized int getPeakRetainedBytes() {
+        return mPeakRetainedBytes;
+    }
+
+    /**
+     * @return the track of chunks of chunkLength bytes serialized with headerVersion, framed
+     * with streamId or unframed if streamId is negative
+     */
+    static long getTrack(int chunkLength, int headerVersion, int streamId) {
+        return ((long) chunkLength << 24) | (headerVersion << 16) | (streamId + 1);
+    }
+
+    /**
+     * Read the chunk of track beginning at offset on behalf of reader
+     *
+     * @return the chunk, or null if it must be serialized and shared via
+     * {@link #putChunk(long, Object, int, byte[])}
+     */
+    synchronized @Nullable byte[] readChunk(long track, @NonNull Object reader, int offset) {
+        Track chunks = mTracks.get(track);
+        byte[] chunk = chunks == null ? null : chunks.chunks.get(offset);
+        if (chunk != null) onChunkRead(chunks, reader, offset);
+        return chunk;
+    }
+
+    /**
+     * Share the chunk of track beginning at offset, serialized and read by reader
+     */
+    synchronized void putChunk(long track, @NonNull Object reader, int offset, @NonNull byte[] chunk) {
+        Track chunks = mTracks.get(track);
+        if (chunks == null) {
+            chunks = new Track();
+            mTracks.put(track, chunks);
+        }
+
+        // Recipients on different threads may both serialize a chunk before either shares it
+        byte[] previous = chunks.chunks.put(offset, chunk);
+        chunks.retainedBytes += chunk.length - (previous == null ? 0 : previous.length);
+        if (previous == null) mChunksSerialized++;
+
+        int retainedBytes = 0;
+        for (Track each : mTracks.values()) retainedBytes += each.retainedBytes;
+        mPeakRetainedBytes = Math.max(mPeakRetainedBytes, retainedBytes);
+
+        onChunkRead(chunks, reader, offset);
+    }
+
+    /**
+     * Record that reader will read this serialization, so that chunks are retained until it begins
+     */
+    synchronized void addReader(@NonNull Object reader) {
+        mPendingReaders.add(reader);
+    }
+
+    /**
+     * Record that reader will read no further chunks, so that they may be released
+     */
+    synchronized void release(@NonNull Object reader) {
+        mPendingReaders.remove(reader);
+        for (Track track : mTracks.values()) {
+            if (track.cursors.containsKey(reader)) track.moveCursor(reader, null, mPendingReaders.isEmpty());
+        }
+    }
+
+    private void onChunkRead(Track track, Object reader, int offset) {
+        mChunksRead++;
+        mPendingReaders.remove(reader);
+        track.moveCursor(reader, offset, mPendingReaders.isEmpty());
+    }
+}
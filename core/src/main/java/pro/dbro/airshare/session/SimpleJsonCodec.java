@@ -0,0 +1,292 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A self-contained {@link JsonCodec}, so that the session core requires no JSON library.
+ * Numbers are encoded and decoded as org.json does: integral values as Integer if they fit,
+ * else as Long, and others as Double.
+ */
+final class SimpleJsonCodec extends JsonCodec {
+
+    // <editor-fold desc="Encoding">
+
+    @Override
+    public @NonNull String encode(@NonNull Map<String, ?> object) {
+        StringBuilder out = new StringBuilder();
+        writeValue(out, object);
+        return out.toString();
+    }
+
+    private static void writeValue(StringBuilder out, Object value) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Number) {
+            writeNumber(out, (Number) value);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                writeString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                writeValue(out, entry.getValue());
+            }
+            out.append('}');
+        } else if (value instanceof Collection || value instanceof Object[]) {
+            Collection<?> values = value instanceof Collection ? (Collection<?>) value : Arrays.asList((Object[]) value);
+            out.append('[');
+            boolean first = true;
+            for (Object element : values) {
+                if (!first) out.append(',');
+                first = false;
+                writeValue(out, element);
+            }
+            out.append(']');
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeNumber(StringBuilder out, Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            double value = number.doubleValue();
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                throw new IllegalArgumentException("JSON cannot represent " + number);
+
+            // As org.json, integral values are written without a fraction
+            if (value == (long) value) out.append((long) value);
+            else out.append(value);
+        } else {
+            out.append(number);
+        }
+    }
+
+    private static void writeString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':  out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\b': out.append("\\b");  break;
+                case '\f': out.append("\\f");  break;
+                case '\n': out.append("\\n");  break;
+                case '\r': out.append("\\r");  break;
+                case '\t': out.append("\\t");  break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    // </editor-fold desc="Encoding">
+
+    // <editor-fold desc="Decoding">
+
+    @Override
+    public @NonNull HashMap<String, Object> decode(@NonNull String json) throws IOException {
+        Parser parser = new Parser(json);
+        parser.skipWhitespace();
+        if (parser.peek() != '{') throw parser.syntaxError("Expected an object");
+
+        HashMap<String, Object> object = parser.readObject();
+        parser.skipWhitespace();
+        if (parser.position < json.length()) throw parser.syntaxError("Unexpected trailing data");
+
+        return object;
+    }
+
+    private static class Parser {
+
+        final String json;
+        int position;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        Object readValue() throws IOException {
+            skipWhitespace();
+            switch (peek()) {
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case '"':
+                    return readString();
+                case 't':
+                    readLiteral("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    readLiteral("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    readLiteral("null");
+                    return null;
+                default:
+                    return readNumber();
+            }
+        }
+
+        HashMap<String, Object> readObject() throws IOException {
+            HashMap<String, Object> object = new HashMap<>();
+            position++;
+
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') throw syntaxError("Expected a name");
+                String name = readString();
+
+                skipWhitespace();
+                if (next() != ':') throw syntaxError("Expected ':'");
+                object.put(name, readValue());
+
+                skipWhitespace();
+                char c = next();
+                if (c == '}') return object;
+                if (c != ',') throw syntaxError("Expected ',' or '}'");
+            }
+        }
+
+        List<Object> readArray() throws IOException {
+            List<Object> array = new ArrayList<>();
+            position++;
+
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+
+            while (true) {
+                array.add(readValue());
+
+                skipWhitespace();
+                char c = next();
+                if (c == ']') return array;
+                if (c != ',') throw syntaxError("Expected ',' or ']'");
+            }
+        }
+
+        String readString() throws IOException {
+            position++;
+            StringBuilder value = null;
+            int start = position;
+
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    if (value == null) return json.substring(start, position - 1);
+                    return value.append(json, start, position - 1).toString();
+                }
+                if (c != '\\') continue;
+
+                if (value == null) value = new StringBuilder();
+                value.append(json, start, position - 1);
+
+                char escaped = next();
+                switch (escaped) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (position + 4 > json.length()) throw syntaxError("Truncated escape");
+                        try {
+                            value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw syntaxError("Invalid escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+                start = position;
+            }
+        }
+
+        Number readNumber() throws IOException {
+            int start = position;
+            boolean integral = true;
+
+            while (position < json.length()) {
+                char c = json.charAt(position);
+                if (c == '.' || c == 'e' || c == 'E') integral = false;
+                else if ((c < '0' || c > '9') && c != '-' && c != '+') break;
+                position++;
+            }
+            if (start == position) throw syntaxError("Unexpected character");
+
+            String literal = json.substring(start, position);
+            try {
+                if (integral) {
+                    try {
+                        long value = Long.parseLong(literal);
+                        if (value == (int) value) return (int) value;
+                        return value;
+                    } catch (NumberFormatException e) {
+                        // Beyond the range of long
+                    }
+                }
+                return Double.valueOf(literal);
+
+            } catch (NumberFormatException e) {
+                throw syntaxError("Invalid number " + literal);
+            }
+        }
+
+        void readLiteral(String literal) throws IOException {
+            if (!json.startsWith(literal, position)) throw syntaxError("Unexpected character");
+            position += literal.length();
+        }
+
+        void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) position++;
+        }
+
+        char peek() throws IOException {
+            if (position >= json.length()) throw syntaxError("Unexpected end of input");
+            return json.charAt(position);
+        }
+
+        char next() throws IOException {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        IOException syntaxError(String message) {
+            return new IOException(message + " at character " + position);
+        }
+    }
+
+    // </editor-fold desc="Decoding">
+}
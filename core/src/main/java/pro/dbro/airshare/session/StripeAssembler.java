@@ -0,0 +1,206 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import pro.dbro.airshare.DataUtil;
+
+/**
+ * Reassembles {@link DataTransferMessage} bodies received as stripes over several transports.
+ * Shared by the {@link SessionMessageDeserializer}s of all a peer's identifiers, each of which
+ * writes the stripes it receives into the peer's {@link Assembly} at their body offset.
+ *
+ * A stripe counts towards completion only once received entirely, so a stripe interrupted
+ * by disconnection may simply be sent again in full, over any transport. Stripes sent again
+ * need not share the boundaries of those they replace, as only the body range they cover is counted.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StripeAssembler {
+
+    /**
+     * The body of a single striped message
+     */
+    public static class Assembly {
+
+        private final String mKey;
+        private final DataTransferMessage mMessage;
+        private final int mBodyLength;
+
+        /** Exactly one of a memory or disk body is used, as in {@link SessionMessageDeserializer} */
+        private byte[] mData;
+        private File mBodyFile;
+        private MappedByteBuffer mBodyMapping;
+
+        /** Start -> end offset of body ranges covered by stripes received entirely, merged where they meet */
+        private final TreeMap<Integer, Integer> mRanges = new TreeMap<>();
+        private int mBytesReceived;
+
+        Assembly(@NonNull String key, @NonNull DataTransferMessage message) {
+            mKey = key;
+            mMessage = message;
+            mBodyLength = message.getBodyLengthBytes();
+        }
+
+        /**
+         * Write length bytes of data beginning at offset to the body at bodyOffset
+         */
+        public synchronized void write(int bodyOffset, @NonNull byte[] data, int offset, int length) {
+            if (bodyOffset < 0 || bodyOffset + length > mBodyLength)
+                throw new IllegalArgumentException(String.format("Write %d-%d outside body of %d bytes",
+                                                                 bodyOffset, bodyOffset + length, mBodyLength));
+
+            if (mData != null) {
+                System.arraycopy(data, offset, mData, bodyOffset, length);
+            } else {
+                ByteBuffer dst = mBodyMapping.duplicate();
+                dst.position(bodyOffset);
+                dst.put(data, offset, length);
+            }
+        }
+
+        /**
+         * @return the fraction of the body received in complete stripes
+         */
+        public synchronized float getProgress() {
+            return mBodyLength == 0 ? 1 : mBytesReceived / (float) mBodyLength;
+        }
+
+        public @NonNull DataTransferMessage getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * Record that the body range [start, end) was received, merging it with the ranges it meets
+         */
+        private void addRange(int start, int end) {
+            Map.Entry<Integer, Integer> range = mRanges.floorEntry(start);
+            if (range == null || range.getValue() < start) range = mRanges.ceilingEntry(start);
+
+            while (range != null && range.getKey() <= end) {
+                start = Math.min(start, range.getKey());
+                end = Math.max(end, range.getValue());
+                mBytesReceived -= range.getValue() - range.getKey();
+                mRanges.remove(range.getKey());
+                range = mRanges.ceilingEntry(start);
+            }
+
+            mRanges.put(start, end);
+            mBytesReceived += end - start;
+        }
+
+        private void release() {
+            mData = null;
+            mBodyMapping = null;
+            if (mBodyFile != null && mBodyFile.exists() && !mBodyFile.delete())
+                SessionLog.w("Failed to delete striped body File %s", mBodyFile.getAbsolutePath());
+        }
+    }
+
+    private final BodyStorage mStorage;
+
+    /** Hex public key and message id -> Assembly */
+    private final HashMap<String, Assembly> mAssemblies = new HashMap<>();
+
+    public StripeAssembler(@NonNull BodyStorage storage) {
+        mStorage = storage;
+    }
+
+    /**
+     * @return the Assembly for message from the peer with peerKey, created with a body of the
+     * message's length if this is its first stripe
+     */
+    public synchronized Assembly open(@NonNull byte[] peerKey, @NonNull DataTransferMessage message) throws IOException {
+        String key = DataUtil.bytesToHex(peerKey) + "-" + message.getId();
+        Assembly assembly = mAssemblies.get(key);
+
+        if (assembly != null) {
+            if (assembly.mBodyLength != message.getBodyLengthBytes())
+                throw new IllegalStateException(String.format("Stripe of %s declares body of %d bytes, expected %d",
+                                                              message.getId(), message.getBodyLengthBytes(), assembly.mBodyLength));
+            return assembly;
+        }
+
+        assembly = new Assembly(key, message);
+
+        if (assembly.mBodyLength > SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES) {
+            assembly.mBodyFile = new File(mStorage.getBodyDirectory(), UUID.randomUUID().toString().replace("-", "") + ".body");
+
+            RandomAccessFile bodyFile = new RandomAccessFile(assembly.mBodyFile, "rw");
+            try {
+                bodyFile.setLength(assembly.mBodyLength);
+                assembly.mBodyMapping = bodyFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, assembly.mBodyLength);
+            } finally {
+                bodyFile.close();
+            }
+        } else {
+            assembly.mData = new byte[assembly.mBodyLength];
+        }
+
+        mAssemblies.put(key, assembly);
+        return assembly;
+    }
+
+    /**
+     * Record that the stripe of length bytes at bodyOffset was written to assembly entirely
+     *
+     * @return the complete message if this stripe completed its body, else null
+     */
+    public synchronized @Nullable DataTransferMessage onStripeReceived(@NonNull Assembly assembly, int bodyOffset, int length) {
+        synchronized (assembly) {
+            // A stripe sent again after an interruption is only counted once
+            assembly.addRange(bodyOffset, bodyOffset + length);
+
+            if (assembly.mBytesReceived < assembly.mBodyLength) return null;
+
+            mAssemblies.remove(assembly.mKey);
+
+            // The body now belongs to the message
+            if (assembly.mData != null) {
+                assembly.mMessage.setBody(assembly.mData);
+            } else {
+                assembly.mBodyMapping.force();
+                assembly.mMessage.setBody(assembly.mBodyFile, assembly.mBodyMapping);
+            }
+            return assembly.mMessage;
+        }
+    }
+
+    /**
+     * Discard any incomplete assembly of the message with messageId from the peer with peerKey,
+     * as when the message is received again in full
+     */
+    public synchronized void discard(@NonNull byte[] peerKey, @NonNull String messageId) {
+        Assembly assembly = mAssemblies.remove(DataUtil.bytesToHex(peerKey) + "-" + messageId);
+        if (assembly == null) return;
+
+        SessionLog.d("Discarding assembly of %s", messageId);
+        assembly.release();
+    }
+
+    public synchronized int getAssemblyCount() {
+        return mAssemblies.size();
+    }
+
+    /**
+     * Discard all incomplete assemblies and their bodies
+     */
+    public synchronized void clear() {
+        Iterator<Assembly> assemblies = mAssemblies.values().iterator();
+        while (assemblies.hasNext()) {
+            assemblies.next().release();
+            assemblies.remove();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Divides a {@link DataTransferMessage} body among the links connected to a peer in proportion
+ * to each link's throughput, as estimated by a {@link LinkRateEstimator} per link identifier,
+ * so that all stripes complete at about the same time.
+ *
+ * A link without a throughput estimate, or whose share would fall below the minimum stripe size,
+ * receives no stripe. Bodies that do not warrant more than one stripe are not striped.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StripeScheduler {
+
+    /** Smallest stripe worth the overhead of its header and reassembly */
+    public static final int DEFAULT_MIN_STRIPE_BYTES = 256 * 1024;
+
+    public static class Stripe {
+
+        public final String identifier;
+        public final int offset;
+        public final int length;
+
+        public Stripe(@NonNull String identifier, int offset, int length) {
+            this.identifier = identifier;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return identifier + " [" + offset + ", " + (offset + length) + ")";
+        }
+    }
+
+    private final int mMinStripeBytes;
+    private final HashMap<String, LinkRateEstimator> mLinks = new HashMap<>();
+
+    public StripeScheduler() {
+        this(DEFAULT_MIN_STRIPE_BYTES);
+    }
+
+    public StripeScheduler(int minStripeBytes) {
+        if (minStripeBytes < 1)
+            throw new IllegalArgumentException("Stripes must include at least one byte");
+
+        mMinStripeBytes = minStripeBytes;
+    }
+
+    // <editor-fold desc="Rate Estimation">
+
+    public void onBytesAcked(@NonNull String identifier, long bytes) {
+        onBytesAcked(identifier, bytes, System.nanoTime() / 1000000);
+    }
+
+    public synchronized void onBytesAcked(@NonNull String identifier, long bytes, long nowMs) {
+        LinkRateEstimator estimator = mLinks.get(identifier);
+
+        if (estimator == null) {
+            estimator = new LinkRateEstimator();
+            mLinks.put(identifier, estimator);
+        }
+
+        estimator.onBytesAcked(bytes, nowMs);
+    }
+
+    /**
+     * @return the estimated throughput of the link with identifier, or 0 if unknown
+     */
+    public synchronized double getBytesPerSecond(@NonNull String identifier) {
+        LinkRateEstimator estimator = mLinks.get(identifier);
+        return estimator == null ? 0 : estimator.getBytesPerSecond();
+    }
+
+    public synchronized void removeLink(@NonNull String identifier) {
+        mLinks.remove(identifier);
+    }
+
+    public synchronized void clear() {
+        mLinks.clear();
+    }
+
+    // </editor-fold desc="Rate Estimation">
+
+    /**
+     * @return contiguous stripes covering bodyLength bytes, fastest link first,
+     * or an empty list if the body should not be striped among identifiers
+     */
+    public synchronized List<Stripe> schedule(int bodyLength, @NonNull Collection<String> identifiers) {
+        final HashMap<String, Double> rates = new HashMap<>();
+        for (String identifier : identifiers) {
+            double rate = getBytesPerSecond(identifier);
+            if (rate > 0) rates.put(identifier, rate);
+        }
+
+        List<String> links = new ArrayList<>(rates.keySet());
+        Collections.sort(links, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return Double.compare(rates.get(rhs), rates.get(lhs));
+            }
+        });
+
+        // Drop the slowest link until every share meets the minimum
+        while (links.size() > 1) {
+            double slowestShare = bodyLength * rates.get(links.get(links.size() - 1)) / sum(rates, links);
+            if (slowestShare >= mMinStripeBytes) break;
+            links.remove(links.size() - 1);
+        }
+
+        List<Stripe> stripes = new ArrayList<>(links.size());
+        if (links.size() < 2) return stripes;
+
+        double totalRate = sum(rates, links);
+        int offset = 0;
+        for (int i = 0; i < links.size(); i++) {
+            String identifier = links.get(i);
+            // The last stripe takes any rounding remainder
+            int length = i == links.size() - 1 ? bodyLength - offset :
+                                                 (int) (bodyLength * rates.get(identifier) / totalRate);
+            stripes.add(new Stripe(identifier, offset, length));
+            offset += length;
+        }
+        return stripes;
+    }
+
+    private static double sum(HashMap<String, Double> rates, List<String> links) {
+        double sum = 0;
+        for (String link : links) sum += rates.get(link);
+        return sum;
+    }
+}
@@ -69,8 +69,8 @@ public abstract class Transport implements Comparable<Transport> {
      *  This value must be a valid bit field value that does
      *  not conflict with any existing transports.
      *
-     *  see {@link pro.dbro.airshare.transport.wifi.WifiTransport#TRANSPORT_CODE}
-     *  see {@link pro.dbro.airshare.transport.ble.BLETransport#TRANSPORT_CODE}
+     *  see {@code pro.dbro.airshare.transport.wifi.WifiTransport#TRANSPORT_CODE}
+     *  see {@code pro.dbro.airshare.transport.ble.BLETransport#TRANSPORT_CODE}
      */
     public abstract int getTransportCode();
 
@@ -79,6 +79,14 @@ public abstract class Transport implements Comparable<Transport> {
      */
     public abstract int getMtuForIdentifier(String identifier);
 
+    /**
+     * @return the number of chunks accepted by {@link #sendData(byte[], String)} for identifier
+     * but not yet transmitted. Transports that do not queue data report 0
+     */
+    public int getQueuedChunkCount(String identifier) {
+        return 0;
+    }
+
     @Override
     public int compareTo (@NonNull Transport another) {
         return getMtuForIdentifier("") - another.getMtuForIdentifier("");
@@ -0,0 +1,109 @@
+package pro.dbro.airshare.transport.loopback;
+
+import java.util.Locale;
+
+/**
+ * The characteristics of a simulated link between two {@link LoopbackTransport}s.
+ * Immutable. Derive variations via the with* methods, e.g.
+ * {@code LinkConditions.IDEAL.withBandwidth(100 * 1000).withLatency(20 * 1000)}
+ *
+ * Links are reliable and ordered, as are the BLE and Wi-Fi transports they stand in for, so a
+ * lost transmission is retransmitted after a round trip rather than dropped, delaying it and
+ * all data behind it.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LinkConditions {
+
+    /** Unlimited bandwidth with no latency, loss or disconnection */
+    public static final LinkConditions IDEAL = new LinkConditions(0, 0, 0, 0, 0, 0, 0);
+
+    /** Roughly a BLE connection: 20 byte MTU, ~10 kB/s and a 15 ms connection interval */
+    public static final LinkConditions BLE = IDEAL.withMtu(20)
+                                                  .withBandwidth(10 * 1000)
+                                                  .withLatency(15 * 1000)
+                                                  .withJitter(15 * 1000);
+
+    /** Roughly a Wi-Fi Direct connection: ~2 MB/s with a few ms of latency */
+    public static final LinkConditions WIFI_DIRECT = IDEAL.withMtu(1024)
+                                                          .withBandwidth(2 * 1000 * 1000)
+                                                          .withLatency(3 * 1000)
+                                                          .withJitter(2 * 1000);
+
+    /** Largest chunk accepted, or 0 to accept the MTU of the sending transport */
+    public final int mtuBytes;
+
+    /** Throughput in each direction, or 0 if unlimited */
+    public final long bytesPerSecond;
+
+    /** One-way propagation delay */
+    public final long latencyMicros;
+
+    /** Greatest additional one-way delay, drawn uniformly per transmission */
+    public final long jitterMicros;
+
+    /** Probability in [0, 1) that a transmission is lost and must be retransmitted */
+    public final double lossRate;
+
+    /** Mean time connected before a random disconnection, or 0 if never disconnected */
+    public final long meanUptimeMicros;
+
+    /** Time a randomly disconnected link remains down before it may reconnect */
+    public final long downtimeMicros;
+
+    public LinkConditions(int mtuBytes,
+                          long bytesPerSecond,
+                          long latencyMicros,
+                          long jitterMicros,
+                          double lossRate,
+                          long meanUptimeMicros,
+                          long downtimeMicros) {
+
+        if (lossRate < 0 || lossRate >= 1)
+            throw new IllegalArgumentException("Loss rate must be in [0, 1)");
+
+        this.mtuBytes = mtuBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.lossRate = lossRate;
+        this.meanUptimeMicros = meanUptimeMicros;
+        this.downtimeMicros = downtimeMicros;
+    }
+
+    public LinkConditions withMtu(int mtuBytes) {
+        return new LinkConditions(mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+
+    public LinkConditions withBandwidth(long bytesPerSecond) {
+        return new LinkConditions(mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+
+    public LinkConditions withLatency(long latencyMicros) {
+        return new LinkConditions(mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+
+    public LinkConditions withJitter(long jitterMicros) {
+        return new LinkConditions(mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+
+    public LinkConditions withLoss(double lossRate) {
+        return new LinkConditions(mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+
+    public LinkConditions withDisconnects(long meanUptimeMicros, long downtimeMicros) {
+        return new LinkConditions(mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+
+    /**
+     * @return the time to transmit length bytes at this link's bandwidth
+     */
+    long getTransmitMicros(int length) {
+        return bytesPerSecond == 0 ? 0 : length * 1000 * 1000L / bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "LinkConditions{mtu=%d, %d B/s, latency=%d+%d us, loss=%.3f, uptime=%d us, downtime=%d us}",
+                             mtuBytes, bytesPerSecond, latencyMicros, jitterMicros, lossRate, meanUptimeMicros, downtimeMicros);
+    }
+}
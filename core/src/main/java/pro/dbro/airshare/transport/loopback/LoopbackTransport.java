@@ -0,0 +1,120 @@
+package pro.dbro.airshare.transport.loopback;
+
+import androidx.annotation.NonNull;
+
+import java.util.Set;
+
+import pro.dbro.airshare.transport.Transport;
+
+/**
+ * A Transport carried by a {@link SimulatedMedium} within this process, so that the session
+ * layer may be exercised without radios, e.g. on a plain JVM.
+ *
+ * Advertising transports connect with scanning transports of the same service name and
+ * transport code on the medium. The advertiser acts as host. Each transport is identified to
+ * its peers by its address. Callbacks are delivered on the thread running the medium.
+ *
+ * Inject into a {@code pro.dbro.airshare.session.SessionManager} in place of the BLE and
+ * Wi-Fi Direct transports. Transports of one SessionManager are ordered by MTU, so each needs a
+ * distinct MTU and transport code.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LoopbackTransport extends Transport {
+
+    /** Values to id transport useful in bit fields */
+    public static final int TRANSPORT_CODE = 4;
+
+    private final SimulatedMedium mMedium;
+    private final String mAddress;
+    private final int mTransportCode;
+    private final int mMtuBytes;
+
+    /**
+     * Create a transport with {@link #TRANSPORT_CODE}
+     */
+    public LoopbackTransport(@NonNull SimulatedMedium medium,
+                             @NonNull String address,
+                             int mtuBytes,
+                             String serviceName,
+                             TransportCallback callback) {
+
+        this(medium, address, TRANSPORT_CODE, mtuBytes, serviceName, callback);
+    }
+
+    /**
+     * @param address      the identifier by which peers know this transport. Unique within medium
+     * @param transportCode a code distinguishing this transport from others of the same device.
+     *                     Only transports of the same code connect
+     * @param mtuBytes     the largest chunk sent, unless a link's {@link LinkConditions#mtuBytes} is set
+     */
+    public LoopbackTransport(@NonNull SimulatedMedium medium,
+                             @NonNull String address,
+                             int transportCode,
+                             int mtuBytes,
+                             String serviceName,
+                             TransportCallback callback) {
+
+        super(serviceName, callback);
+        mMedium = medium;
+        mAddress = address;
+        mTransportCode = transportCode;
+        mMtuBytes = mtuBytes;
+
+        mMedium.register(this);
+    }
+
+    public @NonNull String getAddress() {
+        return mAddress;
+    }
+
+    String getServiceName() {
+        return mServiceName;
+    }
+
+    @Override
+    public boolean sendData(byte[] data, Set<String> identifiers) {
+        boolean didSendAll = true;
+
+        for (String identifier : identifiers) {
+            if (!sendData(data, identifier)) didSendAll = false;
+        }
+
+        return didSendAll;
+    }
+
+    @Override
+    public boolean sendData(byte[] data, String identifier) {
+        return mMedium.send(this, identifier, data);
+    }
+
+    @Override
+    public void advertise() {
+        mMedium.setAdvertising(this, true);
+    }
+
+    @Override
+    public void scanForPeers() {
+        mMedium.setScanning(this, true);
+    }
+
+    @Override
+    public void stop() {
+        mMedium.stop(this);
+    }
+
+    @Override
+    public int getTransportCode() {
+        return mTransportCode;
+    }
+
+    @Override
+    public int getMtuForIdentifier(String identifier) {
+        int linkMtu = mMedium.getLinkMtu(this, identifier);
+        return linkMtu > 0 ? linkMtu : mMtuBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopbackTransport{" + mAddress + ", code " + mTransportCode + "}";
+    }
+}
@@ -0,0 +1,452 @@
+package pro.dbro.airshare.transport.loopback;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import pro.dbro.airshare.session.SessionLog;
+import pro.dbro.airshare.transport.Transport;
+
+/**
+ * A deterministic, discrete-event simulation of the radio medium shared by
+ * {@link LoopbackTransport}s.
+ *
+ * Time is simulated, advancing only as events are run via {@link #runUntilIdle()},
+ * {@link #runFor(long)} or {@link #runNext()} on the calling thread, so that a simulation
+ * of minutes of transfer completes as fast as the session layer can process it. All randomness
+ * derives from the seed given on construction, so a simulation with the same seed and inputs
+ * produces the same result.
+ *
+ * Each link between two transports has {@link LinkConditions}: data sent in each direction is
+ * serialized at the link's bandwidth, delayed by its latency and jitter, retransmitted on loss,
+ * and received in order. Delivery is reported to the sender once acknowledged by the receiver,
+ * a further latency later. A disconnected link drops data in flight.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SimulatedMedium {
+
+    private static class Event implements Comparable<Event> {
+
+        final long timeMicros;
+        final long sequence;
+        final Runnable action;
+
+        Event(long timeMicros, long sequence, Runnable action) {
+            this.timeMicros = timeMicros;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(@NonNull Event another) {
+            // Events at the same time run in the order scheduled
+            if (timeMicros != another.timeMicros) return timeMicros < another.timeMicros ? -1 : 1;
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Transmission state of one direction of a link
+     */
+    private static class Direction {
+
+        /** When the link finishes transmitting data already sent */
+        long busyUntilMicros;
+        /** When the data most recently sent arrives. Data arrives in order */
+        long lastArrivalMicros;
+    }
+
+    /**
+     * The link between two transports, the first being that of lesser address
+     */
+    private static class Link {
+
+        final LoopbackTransport first;
+        final LoopbackTransport second;
+        LinkConditions conditions;
+
+        boolean connected;
+        boolean connecting;
+        /** Until when a disconnected link may not reconnect */
+        long downUntilMicros;
+        LoopbackTransport host;
+        /** Incremented on each connection and disconnection, invalidating events of the previous */
+        int generation;
+
+        final Direction fromFirst = new Direction();
+        final Direction fromSecond = new Direction();
+
+        Link(LoopbackTransport first, LoopbackTransport second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        LoopbackTransport other(LoopbackTransport transport) {
+            return transport == first ? second : first;
+        }
+
+        Direction from(LoopbackTransport transport) {
+            return transport == first ? fromFirst : fromSecond;
+        }
+    }
+
+    private final Random mRandom;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mNextSequence;
+    private long mNowMicros;
+
+    private LinkConditions mDefaultConditions = LinkConditions.IDEAL;
+
+    /** Address -> Transport */
+    private final LinkedHashMap<String, LoopbackTransport> mTransports = new LinkedHashMap<>();
+    /** Link key -> Link */
+    private final HashMap<String, Link> mLinks = new HashMap<>();
+    // Transports of the same class and code are equal, so membership is by identity
+    private final Set<LoopbackTransport> mAdvertising = Collections.newSetFromMap(new IdentityHashMap<LoopbackTransport, Boolean>());
+    private final Set<LoopbackTransport> mScanning = Collections.newSetFromMap(new IdentityHashMap<LoopbackTransport, Boolean>());
+
+    public SimulatedMedium(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    // <editor-fold desc="Simulation">
+
+    /**
+     * @return the simulated time elapsed since construction
+     */
+    public long getTimeMicros() {
+        return mNowMicros;
+    }
+
+    /**
+     * Run action once delayMicros of simulated time have elapsed, e.g. to send a message mid-transfer
+     */
+    public void schedule(long delayMicros, @NonNull Runnable action) {
+        mEvents.add(new Event(mNowMicros + Math.max(0, delayMicros), mNextSequence++, action));
+    }
+
+    /**
+     * Run the next event, advancing time to it
+     *
+     * @return false if no events remain
+     */
+    public boolean runNext() {
+        Event event = mEvents.poll();
+        if (event == null) return false;
+
+        mNowMicros = Math.max(mNowMicros, event.timeMicros);
+        event.action.run();
+        return true;
+    }
+
+    /**
+     * Run events until none remain. Links with random disconnections never become idle,
+     * so simulate those via {@link #runFor(long)}
+     */
+    public void runUntilIdle() {
+        //noinspection StatementWithEmptyBody
+        while (runNext());
+    }
+
+    /**
+     * Run events occurring within the next durationMicros, then advance time to its end
+     */
+    public void runFor(long durationMicros) {
+        long endMicros = mNowMicros + durationMicros;
+
+        while (!mEvents.isEmpty() && mEvents.peek().timeMicros <= endMicros) runNext();
+
+        mNowMicros = endMicros;
+    }
+
+    // </editor-fold desc="Simulation">
+
+    // <editor-fold desc="Link Conditions">
+
+    /**
+     * Set the conditions of links not otherwise configured
+     */
+    public void setDefaultConditions(@NonNull LinkConditions conditions) {
+        mDefaultConditions = conditions;
+    }
+
+    /**
+     * Set the conditions of the link between a and b, in both directions.
+     * Takes effect for data sent afterwards
+     */
+    public void setConditions(@NonNull LoopbackTransport a,
+                              @NonNull LoopbackTransport b,
+                              @NonNull LinkConditions conditions) {
+
+        getLink(a, b).conditions = conditions;
+    }
+
+    public @NonNull LinkConditions getConditions(@NonNull LoopbackTransport a, @NonNull LoopbackTransport b) {
+        return getConditions(getLink(a, b));
+    }
+
+    /**
+     * Disconnect a and b, dropping data in flight. The link may reconnect after downtimeMicros
+     * if one transport is then advertising and the other scanning
+     */
+    public void disconnect(@NonNull LoopbackTransport a, @NonNull LoopbackTransport b, long downtimeMicros) {
+        Link link = getLink(a, b);
+        link.downUntilMicros = mNowMicros + downtimeMicros;
+
+        if (link.connected || link.connecting) close(link);
+
+        scheduleReconnection(link, downtimeMicros);
+    }
+
+    // </editor-fold desc="Link Conditions">
+
+    // <editor-fold desc="LoopbackTransport">
+
+    void register(@NonNull LoopbackTransport transport) {
+        if (mTransports.containsKey(transport.getAddress()))
+            throw new IllegalArgumentException("Address " + transport.getAddress() + " already registered");
+
+        mTransports.put(transport.getAddress(), transport);
+    }
+
+    void setAdvertising(@NonNull LoopbackTransport transport, boolean advertising) {
+        if (advertising) mAdvertising.add(transport);
+        else mAdvertising.remove(transport);
+
+        connectAll(transport);
+    }
+
+    void setScanning(@NonNull LoopbackTransport transport, boolean scanning) {
+        if (scanning) mScanning.add(transport);
+        else mScanning.remove(transport);
+
+        connectAll(transport);
+    }
+
+    void stop(@NonNull LoopbackTransport transport) {
+        mAdvertising.remove(transport);
+        mScanning.remove(transport);
+
+        for (Link link : new ArrayList<>(mLinks.values())) {
+            if ((link.first == transport || link.second == transport) && (link.connected || link.connecting))
+                close(link);
+        }
+    }
+
+    int getLinkMtu(@NonNull LoopbackTransport transport, String identifier) {
+        LoopbackTransport remote = mTransports.get(identifier);
+        return remote == null ? 0 : getConditions(getLink(transport, remote)).mtuBytes;
+    }
+
+    /**
+     * Transmit data from sender to the transport at identifier
+     *
+     * @return false if the two are not connected or data exceeds the link MTU
+     */
+    boolean send(@NonNull LoopbackTransport sender, String identifier, @NonNull final byte[] data) {
+        final LoopbackTransport recipient = mTransports.get(identifier);
+        final Link link = recipient == null ? null : getLink(sender, recipient);
+
+        if (link == null || !link.connected) {
+            SessionLog.w("Cannot send to %s, not connected", identifier);
+            return false;
+        }
+
+        if (data.length > sender.getMtuForIdentifier(identifier)) {
+            SessionLog.w("Cannot send %d bytes to %s, exceeds MTU %d", data.length, identifier,
+                                                                   sender.getMtuForIdentifier(identifier));
+            return false;
+        }
+
+        LinkConditions conditions = getConditions(link);
+        Direction direction = link.from(sender);
+        long transmitMicros = conditions.getTransmitMicros(data.length);
+
+        long sentMicros = Math.max(mNowMicros, direction.busyUntilMicros) + transmitMicros;
+        long delayMicros = conditions.latencyMicros + nextJitter(conditions);
+
+        // Each loss is detected a round trip later, and the retransmission occupies the link again
+        while (conditions.lossRate > 0 && mRandom.nextDouble() < conditions.lossRate) {
+            sentMicros += 2 * conditions.latencyMicros + transmitMicros;
+        }
+
+        direction.busyUntilMicros = sentMicros;
+        long arrivalMicros = Math.max(sentMicros + delayMicros, direction.lastArrivalMicros);
+        direction.lastArrivalMicros = arrivalMicros;
+
+        final int generation = link.generation;
+        final String senderAddress = sender.getAddress();
+        final LoopbackTransport senderTransport = sender;
+
+        schedule(arrivalMicros - mNowMicros, new Runnable() {
+            @Override
+            public void run() {
+                if (link.generation != generation) return; // Dropped on disconnection
+
+                Transport.TransportCallback callback = recipient.getCallback();
+                if (callback != null) callback.dataReceivedFromIdentifier(recipient, data, senderAddress);
+            }
+        });
+
+        schedule(arrivalMicros + conditions.latencyMicros - mNowMicros, new Runnable() {
+            @Override
+            public void run() {
+                if (link.generation != generation) return;
+
+                Transport.TransportCallback callback = senderTransport.getCallback();
+                if (callback != null) callback.dataSentToIdentifier(senderTransport, data, recipient.getAddress(), null);
+            }
+        });
+
+        return true;
+    }
+
+    // </editor-fold desc="LoopbackTransport">
+
+    // <editor-fold desc="Connection">
+
+    /**
+     * Connect transport with each transport it may now connect with
+     */
+    private void connectAll(LoopbackTransport transport) {
+        List<LoopbackTransport> others = new ArrayList<>(mTransports.values());
+        for (LoopbackTransport other : others) {
+            if (other != transport) connectIfPossible(getLink(transport, other));
+        }
+    }
+
+    private void connectIfPossible(final Link link) {
+        final LoopbackTransport host = getHost(link);
+        if (host == null || link.connected || link.connecting || mNowMicros < link.downUntilMicros) return;
+
+        link.connecting = true;
+        final int generation = ++link.generation;
+
+        // Connection takes a round trip
+        schedule(2 * getConditions(link).latencyMicros, new Runnable() {
+            @Override
+            public void run() {
+                if (link.generation != generation) return;
+
+                link.connecting = false;
+                if (getHost(link) != host) return;
+
+                link.connected = true;
+                link.host = host;
+                link.fromFirst.busyUntilMicros = link.fromFirst.lastArrivalMicros = mNowMicros;
+                link.fromSecond.busyUntilMicros = link.fromSecond.lastArrivalMicros = mNowMicros;
+
+                LoopbackTransport client = link.other(host);
+                SessionLog.d("%s connected to host %s", client.getAddress(), host.getAddress());
+                notifyStatus(host, client, Transport.ConnectionStatus.CONNECTED, false);
+                notifyStatus(client, host, Transport.ConnectionStatus.CONNECTED, true);
+
+                scheduleRandomDisconnection(link);
+            }
+        });
+    }
+
+    private void close(Link link) {
+        boolean wasConnected = link.connected;
+        link.connected = false;
+        link.connecting = false;
+        link.generation++;
+
+        if (!wasConnected) return;
+
+        // Reported asynchronously, as by radio transports
+        final LoopbackTransport host = link.host;
+        final LoopbackTransport client = link.other(host);
+        schedule(0, new Runnable() {
+            @Override
+            public void run() {
+                SessionLog.d("%s disconnected from host %s", client.getAddress(), host.getAddress());
+                notifyStatus(host, client, Transport.ConnectionStatus.DISCONNECTED, false);
+                notifyStatus(client, host, Transport.ConnectionStatus.DISCONNECTED, true);
+            }
+        });
+    }
+
+    private void scheduleRandomDisconnection(final Link link) {
+        final LinkConditions conditions = getConditions(link);
+        if (conditions.meanUptimeMicros <= 0) return;
+
+        // Exponentially distributed uptime, as for independent failures
+        long uptimeMicros = (long) (-Math.log(1 - mRandom.nextDouble()) * conditions.meanUptimeMicros);
+        final int generation = link.generation;
+
+        schedule(uptimeMicros, new Runnable() {
+            @Override
+            public void run() {
+                if (link.generation != generation) return;
+
+                disconnect(link.first, link.second, conditions.downtimeMicros);
+            }
+        });
+    }
+
+    private void scheduleReconnection(final Link link, long delayMicros) {
+        schedule(delayMicros, new Runnable() {
+            @Override
+            public void run() {
+                connectIfPossible(link);
+            }
+        });
+    }
+
+    /**
+     * @return the transport of link that would host a connection, or null if they may not connect
+     */
+    private @Nullable LoopbackTransport getHost(Link link) {
+        if (link.first.getTransportCode() != link.second.getTransportCode() ||
+            !link.first.getServiceName().equals(link.second.getServiceName())) return null;
+
+        // Prefer the first as host where each might host the other
+        if (mAdvertising.contains(link.first) && mScanning.contains(link.second)) return link.first;
+        if (mAdvertising.contains(link.second) && mScanning.contains(link.first)) return link.second;
+
+        return null;
+    }
+
+    private static void notifyStatus(LoopbackTransport transport,
+                                     LoopbackTransport remote,
+                                     Transport.ConnectionStatus status,
+                                     boolean remoteIsHost) {
+
+        Transport.TransportCallback callback = transport.getCallback();
+        if (callback != null) callback.identifierUpdated(transport, remote.getAddress(), status, remoteIsHost, null);
+    }
+
+    // </editor-fold desc="Connection">
+
+    private Link getLink(LoopbackTransport a, LoopbackTransport b) {
+        boolean aFirst = a.getAddress().compareTo(b.getAddress()) < 0;
+        LoopbackTransport first = aFirst ? a : b;
+        LoopbackTransport second = aFirst ? b : a;
+
+        String key = first.getAddress() + "\n" + second.getAddress();
+        Link link = mLinks.get(key);
+        if (link == null) {
+            link = new Link(first, second);
+            mLinks.put(key, link);
+        }
+        return link;
+    }
+
+    private LinkConditions getConditions(Link link) {
+        return link.conditions != null ? link.conditions : mDefaultConditions;
+    }
+
+    private long nextJitter(LinkConditions conditions) {
+        return conditions.jitterMicros <= 0 ? 0 : (long) (mRandom.nextDouble() * conditions.jitterMicros);
+    }
+}
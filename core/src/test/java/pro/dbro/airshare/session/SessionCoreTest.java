@@ -0,0 +1,340 @@
+package pro.dbro.airshare.session;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.DataUtil;
+
+/**
+ * Tests the session core on a plain JVM, with no Android classes available
+ */
+public class SessionCoreTest extends TestCase {
+
+    private static final int MTU_BYTES = 155;
+
+    private File mBodyDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBodyDirectory = File.createTempFile("bodies", "");
+        assertTrue(mBodyDirectory.delete());
+        assertTrue(mBodyDirectory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] bodies = mBodyDirectory.listFiles();
+        if (bodies != null) for (File body : bodies) assertTrue(body.delete());
+        assertTrue(mBodyDirectory.delete());
+        super.tearDown();
+    }
+
+    public void testJsonHeadersRoundTrip() throws Exception {
+        assertRoundTrip(SessionMessage.HEADER_VERSION_JSON, 1000);
+    }
+
+    public void testBinaryHeadersRoundTrip() throws Exception {
+        assertRoundTrip(SessionMessage.HEADER_VERSION_BINARY, 1000);
+    }
+
+    public void testDiskBackedBodyRoundTrip() throws Exception {
+        DataTransferMessage incoming = assertRoundTrip(SessionMessage.HEADER_VERSION_JSON,
+                SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES + 1);
+
+        assertTrue(incoming.isDiskBacked());
+        assertEquals(mBodyDirectory, incoming.getBodyFile().getParentFile());
+    }
+
+    public void testJsonCodecRoundTrip() throws Exception {
+        HashMap<String, Object> nested = new HashMap<>();
+        nested.put("quote", "\"a\\b\"\n\u2028");
+        nested.put("list", Arrays.asList(1, "two", null, true));
+
+        HashMap<String, Object> object = new HashMap<>();
+        object.put("int", 7);
+        object.put("long", 1L << 40);
+        object.put("double", 0.5);
+        object.put("integral", 2.0);
+        object.put("nested", nested);
+
+        HashMap<String, Object> decoded = JsonCodec.getDefault().decode(JsonCodec.getDefault().encode(object));
+
+        assertEquals(7, decoded.get("int"));
+        assertEquals(1L << 40, decoded.get("long"));
+        assertEquals(0.5, decoded.get("double"));
+        assertEquals(2, decoded.get("integral"));
+
+        @SuppressWarnings("unchecked")
+        HashMap<String, Object> decodedNested = (HashMap<String, Object>) decoded.get("nested");
+        assertEquals(nested.get("quote"), decodedNested.get("quote"));
+        assertEquals(nested.get("list"), (List) decodedNested.get("list"));
+    }
+
+    public void testJsonCodecRejectsMalformed() {
+        for (String json : new String[] {"", "[]", "{\"a\":}", "{\"a\":1", "{\"a\":1} {"}) {
+            try {
+                JsonCodec.getDefault().decode(json);
+                fail("Decoded malformed JSON " + json);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testMalformedStripeHeadersAbort() throws Exception {
+        final List<Exception> errors = new ArrayList<>();
+        final List<SessionMessage> received = new ArrayList<>();
+
+        SessionMessageDeserializer receiver = createReceiver(errors, received);
+
+        // A stripe without its offset, and an offset of the wrong type
+        HashMap<String, Object> noOffset = new HashMap<>();
+        noOffset.put(SessionMessage.HEADER_STRIPE_LENGTH, 5);
+        receiver.dataReceived(serializeJsonHeaders(noOffset));
+
+        HashMap<String, Object> stringOffset = new HashMap<>();
+        stringOffset.put(SessionMessage.HEADER_BODY_OFFSET, "5");
+        receiver.dataReceived(serializeJsonHeaders(stringOffset));
+
+        assertEquals(2, errors.size());
+        for (Exception e : errors) assertTrue(e instanceof IllegalArgumentException);
+
+        // The receiver recovers
+        receiver.dataReceived(serializeJsonHeaders(new HashMap<String, Object>()));
+        assertEquals(1, received.size());
+    }
+
+    public void testMalformedBodyLengthAborts() throws Exception {
+        final List<Exception> errors = new ArrayList<>();
+        final List<SessionMessage> received = new ArrayList<>();
+
+        SessionMessageDeserializer receiver = createReceiver(errors, received);
+
+        // Missing, of the wrong type, beyond int range and negative
+        for (Object bodyLength : new Object[] {null, "5", 1L << 40, -1}) {
+            HashMap<String, Object> malformed = new HashMap<>();
+            malformed.put(SessionMessage.HEADER_BODY_LENGTH, bodyLength);
+            receiver.dataReceived(serializeJsonHeaders(malformed));
+        }
+
+        assertEquals(4, errors.size());
+        for (Exception e : errors) assertTrue(e instanceof IllegalArgumentException);
+
+        receiver.dataReceived(serializeJsonHeaders(new HashMap<String, Object>()));
+        assertEquals(1, received.size());
+    }
+
+    public void testMalformedResumeHeadersAbort() throws Exception {
+        final List<Exception> errors = new ArrayList<>();
+        final List<SessionMessage> received = new ArrayList<>();
+
+        SessionMessageDeserializer receiver = createReceiver(errors, received);
+
+        HashMap<String, Object> stringOffset = new HashMap<>();
+        stringOffset.put("id", "5");
+        HashMap<String, Object> negativeOffset = new HashMap<>();
+        negativeOffset.put("id", -1);
+
+        List<HashMap<String, Object>> malformed = new ArrayList<>();
+        malformed.add(new HashMap<String, Object>());
+        malformed.add(resumeHeaders(ResumeMessage.HEADER_MESSAGE_IDS, Arrays.<Object>asList("id", 5)));
+        malformed.add(resumeHeaders(ResumeMessage.HEADER_MESSAGE_IDS, "id"));
+        malformed.add(resumeHeaders(ResumeMessage.HEADER_OFFSETS, stringOffset));
+        malformed.add(resumeHeaders(ResumeMessage.HEADER_OFFSETS, negativeOffset));
+        HashMap<String, Object> numericId = resumeHeaders(ResumeMessage.HEADER_MESSAGE_IDS, new ArrayList<>());
+        numericId.put(SessionMessage.HEADER_ID, 5);
+        malformed.add(numericId);
+
+        for (HashMap<String, Object> headers : malformed) {
+            headers.put(SessionMessage.HEADER_TYPE, ResumeMessage.HEADER_TYPE);
+            receiver.dataReceived(serializeJsonHeaders(headers));
+        }
+
+        assertEquals(malformed.size(), errors.size());
+        for (Exception e : errors) assertTrue(e instanceof IllegalArgumentException);
+
+        HashMap<String, Object> offsets = new HashMap<>();
+        offsets.put("id", 5);
+        HashMap<String, Object> answer = resumeHeaders(ResumeMessage.HEADER_OFFSETS, offsets);
+        answer.put(SessionMessage.HEADER_TYPE, ResumeMessage.HEADER_TYPE);
+        receiver.dataReceived(serializeJsonHeaders(answer));
+
+        assertEquals(1, received.size());
+        assertEquals(Integer.valueOf(5), ((ResumeMessage) received.get(0)).getOffsets().get("id"));
+    }
+
+    public void testMalformedIdentityVersionTreatedAsJson() throws Exception {
+        for (Object maxVersion : new Object[] {null, 0, -1, "3", 3L << 40}) {
+            HashMap<String, Object> headers = identityHeaders();
+            if (maxVersion != null) headers.put(IdentityMessage.HEADER_MAX_VERSION, maxVersion);
+
+            Peer peer = IdentityMessage.fromHeaders(headers).getPeer();
+            assertEquals(SessionMessage.HEADER_VERSION_JSON, peer.getMaxHeaderVersion());
+        }
+
+        HashMap<String, Object> headers = identityHeaders();
+        headers.put(IdentityMessage.HEADER_MAX_VERSION, SessionMessage.HEADER_VERSION_FRAMED);
+        headers.put(IdentityMessage.HEADER_TRANSPORTS, "ble");
+        Peer peer = IdentityMessage.fromHeaders(headers).getPeer();
+        assertEquals(SessionMessage.HEADER_VERSION_FRAMED, peer.getMaxHeaderVersion());
+        assertEquals(0, peer.getTransports());
+
+        // A malformed public key aborts the message
+        final List<Exception> errors = new ArrayList<>();
+        SessionMessageDeserializer receiver = createReceiver(errors, new ArrayList<SessionMessage>());
+        HashMap<String, Object> numericKey = identityHeaders();
+        numericKey.put(IdentityMessage.HEADER_PUBKEY, 5);
+        receiver.dataReceived(serializeJsonHeaders(numericKey));
+
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof IllegalArgumentException);
+    }
+
+    public void testFeaturesAdvertisedIndependentlyOfHeaderVersion() {
+        Peer local = new Peer(new byte[] {1, 2, 3, 4}, "alias", new Date(), -1, 0,
+                              SessionMessage.SUPPORTED_HEADER_VERSION, Peer.SUPPORTED_FEATURES);
+        Peer received = IdentityMessage.fromHeaders(new IdentityMessage(local).getHeaders()).getPeer();
+        assertTrue(received.supportsResumption());
+        assertTrue(received.supportsStripes());
+
+        // A peer speaking the newest headers is not assumed to support features it does not advertise
+        HashMap<String, Object> headers = identityHeaders();
+        headers.put(IdentityMessage.HEADER_MAX_VERSION, SessionMessage.SUPPORTED_HEADER_VERSION);
+        headers.put(IdentityMessage.HEADER_FEATURES, Arrays.<Object>asList(Peer.FEATURE_STRIPES, "teleport", 5));
+        Peer partial = IdentityMessage.fromHeaders(headers).getPeer();
+        assertFalse(partial.supportsResumption());
+        assertTrue(partial.supportsStripes());
+        assertEquals(1, partial.getFeatures().size());
+
+        headers.put(IdentityMessage.HEADER_FEATURES, Peer.FEATURE_RESUMPTION);
+        assertTrue(IdentityMessage.fromHeaders(headers).getPeer().getFeatures().isEmpty());
+    }
+
+    private static HashMap<String, Object> identityHeaders() {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE, IdentityMessage.HEADER_TYPE);
+        headers.put(SessionMessage.HEADER_ID, "identity");
+        headers.put(IdentityMessage.HEADER_PUBKEY, DataUtil.bytesToBase64(new byte[] {1, 2, 3, 4}));
+        headers.put(IdentityMessage.HEADER_ALIAS, "alias");
+        return headers;
+    }
+
+    private static HashMap<String, Object> resumeHeaders(String key, Object value) {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(key, value);
+        return headers;
+    }
+
+    /**
+     * @return a receiver recording failed messages to errors and others to received
+     */
+    private SessionMessageDeserializer createReceiver(final List<Exception> errors,
+                                                      final List<SessionMessage> received) {
+
+        return new SessionMessageDeserializer(new BodyStorage() {
+            @Override
+            public File getBodyDirectory() {
+                return mBodyDirectory;
+            }
+        }, new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+            @Override
+            public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                if (e != null) errors.add(e);
+                else received.add(message);
+            }
+        });
+    }
+
+    /**
+     * @return a JSON-headed data transfer message with an empty body and extraHeaders
+     */
+    private static byte[] serializeJsonHeaders(HashMap<String, Object> extraHeaders) throws IOException {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE, DataTransferMessage.HEADER_TYPE);
+        headers.put(SessionMessage.HEADER_BODY_LENGTH, 0);
+        headers.put(SessionMessage.HEADER_ID, "malformed");
+        headers.putAll(extraHeaders);
+
+        byte[] json = JsonCodec.getDefault().encode(headers).getBytes("UTF-8");
+        ByteBuffer serialized = ByteBuffer.allocate(SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + json.length);
+        serialized.put((byte) SessionMessage.HEADER_VERSION_JSON);
+        serialized.put((byte) json.length);
+        serialized.put((byte) (json.length >> 8));
+        serialized.put(json);
+        return serialized.array();
+    }
+
+    private DataTransferMessage assertRoundTrip(int headerVersion, int bodyBytes) throws Exception {
+        byte[] payload = new byte[bodyBytes];
+        new Random(42).nextBytes(payload);
+
+        HashMap<String, Object> extraHeaders = new HashMap<>();
+        extraHeaders.put("name", "payload.bin");
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(extraHeaders, payload);
+
+        final AtomicReference<SessionMessage> received = new AtomicReference<>();
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new BodyStorage() {
+            @Override
+            public File getBodyDirectory() {
+                return mBodyDirectory;
+            }
+        }, new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+            @Override
+            public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                assertNull(e);
+                received.set(message);
+            }
+        });
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(outgoing);
+        sender.setHeaderVersion(headerVersion);
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(MTU_BYTES)) != null) {
+            receiver.dataReceived(chunk.clone());
+            sender.ackChunkDelivery();
+        }
+
+        assertTrue(received.get() instanceof DataTransferMessage);
+        DataTransferMessage incoming = (DataTransferMessage) received.get();
+        assertEquals(outgoing.getHeaders(), incoming.getHeaders());
+        assertEquals(bodyBytes, incoming.getBodyLengthBytes());
+
+        byte[] receivedPayload = new byte[bodyBytes];
+        InputStream body = incoming.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = body.read(receivedPayload, totalRead, bodyBytes - totalRead)) > 0) {
+            totalRead += read;
+        }
+        body.close();
+
+        assertTrue(Arrays.equals(payload, receivedPayload));
+        return incoming;
+    }
+}
@@ -0,0 +1,128 @@
+package pro.dbro.airshare.session;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Tests {@link SessionMetrics} recording and snapshots
+ */
+public class SessionMetricsTest extends TestCase {
+
+    private static final int BLE = 1;
+    private static final int WIFI = 2;
+
+    private final Peer mPeer = new Peer(new byte[] {1, 2, 3}, "peer", new Date(), 0, BLE | WIFI);
+
+    public void testDisabledRecordsNothing() {
+        SessionMetrics metrics = new SessionMetrics();
+        metrics.reset(0);
+
+        metrics.onLinkIdentified("ble", BLE, mPeer);
+        metrics.onChunkSent("ble", BLE, 100);
+        metrics.onChunkAcked("ble", BLE, true);
+        metrics.onChunkReceived("ble", BLE, 100);
+        metrics.onMessageSent("ble", BLE);
+
+        SessionMetrics.Snapshot snapshot = snapshot(metrics, 0);
+        assertEquals(0, snapshot.total.chunksSent);
+        assertTrue(snapshot.transports.isEmpty());
+        assertTrue(snapshot.peers.isEmpty());
+    }
+
+    public void testTrafficAttributedToPeerAndTransport() {
+        SessionMetrics metrics = enabledMetrics();
+
+        // Traffic before identification is attributed to the transport alone
+        metrics.onChunkReceived("ble", BLE, 50);
+        metrics.onLinkIdentified("ble", BLE, mPeer);
+        metrics.onChunkReceived("ble", BLE, 50);
+        metrics.onMessageReceived("ble", BLE);
+
+        metrics.onLinkIdentified("wifi", WIFI, mPeer);
+        for (int i = 0; i < 3; i++) metrics.onChunkSent("wifi", WIFI, 1000);
+        metrics.onMessageSent("wifi", WIFI);
+
+        SessionMetrics.Snapshot snapshot = snapshot(metrics, 0);
+
+        assertEquals(2, snapshot.total.chunksReceived);
+        assertEquals(100, snapshot.total.bytesReceived);
+        assertEquals(3000, snapshot.total.bytesSent);
+
+        assertEquals(100, snapshot.transports.get(BLE).bytesReceived);
+        assertEquals(0, snapshot.transports.get(BLE).bytesSent);
+        assertEquals(3, snapshot.transports.get(WIFI).chunksSent);
+
+        SessionMetrics.Counters peer = snapshot.peers.get(mPeer);
+        assertEquals(50, peer.bytesReceived);
+        assertEquals(3000, peer.bytesSent);
+        assertEquals(1, peer.messagesSent);
+        assertEquals(1, peer.messagesReceived);
+
+        // Snapshots are unaffected by later recording
+        metrics.onChunkSent("wifi", WIFI, 1000);
+        assertEquals(3000, snapshot.total.bytesSent);
+    }
+
+    public void testRoundTripsRecordedPerAcknowledgement() {
+        SessionMetrics metrics = enabledMetrics();
+
+        // More chunks in flight than the initial capacity for send times
+        for (int i = 0; i < 40; i++) metrics.onChunkSent("ble", BLE, 20);
+        for (int i = 0; i < 39; i++) metrics.onChunkAcked("ble", BLE, true);
+        metrics.onChunkAcked("ble", BLE, false);
+
+        // Acknowledgements of chunks sent before recording began are not recorded
+        metrics.onChunkAcked("ble", BLE, true);
+
+        SessionMetrics.Histogram roundTrips = snapshot(metrics, 0).roundTrips.get(BLE);
+        assertEquals(39, roundTrips.getCount());
+        assertTrue(roundTrips.getPercentileUs(50) <= roundTrips.getPercentileUs(100));
+        assertEquals(roundTrips.getMaxUs(), roundTrips.getPercentileUs(100));
+    }
+
+    public void testHistogramPercentiles() {
+        SessionMetrics.Histogram histogram = new SessionMetrics.Histogram();
+        for (int i = 0; i < 90; i++) histogram.record(10);
+        for (int i = 0; i < 10; i++) histogram.record(5000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(509.0, histogram.getMeanUs());
+        assertEquals(15, histogram.getPercentileUs(50));
+        assertEquals(15, histogram.getPercentileUs(90));
+        assertEquals(5000, histogram.getPercentileUs(99));
+        assertEquals(90, histogram.getBucketCount(4));
+    }
+
+    public void testRatesMeasuredOverInterval() {
+        SessionMetrics metrics = enabledMetrics();
+
+        for (int i = 0; i < 10; i++) {
+            metrics.onChunkSent("ble", BLE, 100);
+            metrics.onMessageSent("ble", BLE);
+        }
+
+        // Too soon to measure
+        assertEquals(0.0, snapshot(metrics, SessionMetrics.RATE_INTERVAL_MS / 2).rates.bytesSentPerSecond);
+
+        SessionMetrics.Rates rates = snapshot(metrics, 2 * SessionMetrics.RATE_INTERVAL_MS).rates;
+        assertEquals(500.0, rates.bytesSentPerSecond);
+        assertEquals(5.0, rates.messagesSentPerSecond);
+
+        // The measurement holds until the next interval elapses
+        metrics.onChunkSent("ble", BLE, 100);
+        assertEquals(500.0, snapshot(metrics, 2 * SessionMetrics.RATE_INTERVAL_MS + 1).rates.bytesSentPerSecond);
+    }
+
+    private static SessionMetrics enabledMetrics() {
+        SessionMetrics metrics = new SessionMetrics();
+        metrics.reset(0);
+        metrics.setEnabled(true);
+        return metrics;
+    }
+
+    private static SessionMetrics.Snapshot snapshot(SessionMetrics metrics, long nowMs) {
+        return metrics.snapshot(Collections.<SessionMetrics.LinkState>emptyList(), nowMs);
+    }
+}
@@ -0,0 +1,53 @@
+package pro.dbro.airshare.session;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link SessionTrace} recording and dumps
+ */
+public class SessionTraceTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        SessionTrace.disable();
+        super.tearDown();
+    }
+
+    public void testDisabledRecordsNothing() {
+        SessionTrace.record(SessionTrace.Event.CHUNK_SENT, "peer", 20);
+
+        assertFalse(SessionTrace.isEnabled());
+        assertEquals("Tracing disabled\n", SessionTrace.dump());
+    }
+
+    public void testEventsDumpedOldestFirst() {
+        SessionTrace.enable(8);
+        SessionTrace.record(SessionTrace.Event.CHUNK_SENT, "peer", 20);
+        SessionTrace.record(SessionTrace.Event.CHUNK_ACKED, "peer", 20);
+
+        String[] lines = SessionTrace.dump().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].matches(" +0\\.000 ms CHUNK_SENT +peer 20"));
+        assertTrue(lines[1].matches(" +\\d+\\.\\d{3} ms CHUNK_ACKED +peer 20"));
+    }
+
+    public void testOldestEventsOverwritten() {
+        SessionTrace.enable(4);
+        for (int i = 0; i < 10; i++) SessionTrace.record(SessionTrace.Event.CHUNK_RECEIVED, null, i);
+
+        String[] lines = SessionTrace.dump().split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("6 earlier events overwritten", lines[0]);
+        for (int i = 1; i < lines.length; i++) {
+            assertTrue(lines[i].endsWith("CHUNK_RECEIVED       null " + (i + 5)));
+        }
+    }
+
+    public void testEnableDiscardsRecorded() {
+        SessionTrace.enable(4);
+        SessionTrace.record(SessionTrace.Event.MESSAGE_SENT, "peer", 100);
+        SessionTrace.enable(4);
+
+        assertEquals("", SessionTrace.dump());
+    }
+}
@@ -0,0 +1,157 @@
+package pro.dbro.airshare.transport.loopback;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import pro.dbro.airshare.transport.Transport;
+
+/**
+ * Tests that {@link SimulatedMedium} models its {@link LinkConditions} deterministically,
+ * on a plain JVM with no Android classes available
+ */
+public class SimulatedMediumTest extends TestCase {
+
+    private static final String SERVICE_NAME = "SimulatedService";
+
+    private static final long SEED = 42;
+
+    public void testTransferPacedByBandwidthAndLatency() {
+        SimulatedMedium medium = new SimulatedMedium(SEED);
+        medium.setDefaultConditions(LinkConditions.IDEAL.withBandwidth(10 * 1000).withLatency(20 * 1000));
+
+        RecordingCallback hostCallback = new RecordingCallback(medium);
+        RecordingCallback clientCallback = new RecordingCallback(medium);
+        LoopbackTransport host = new LoopbackTransport(medium, "host", 100, SERVICE_NAME, hostCallback);
+        LoopbackTransport client = new LoopbackTransport(medium, "client", 100, SERVICE_NAME, clientCallback);
+
+        host.advertise();
+        client.scanForPeers();
+        medium.runUntilIdle();
+
+        // Connection takes a round trip. The advertiser hosts
+        assertEquals(40 * 1000, medium.getTimeMicros());
+        assertEquals(Collections.singletonList("client CONNECTED client"), hostCallback.events);
+        assertEquals(Collections.singletonList("host CONNECTED host"), clientCallback.events);
+
+        long start = medium.getTimeMicros();
+        for (int i = 0; i < 10; i++) assertTrue(client.sendData(new byte[100], "host"));
+        assertFalse(client.sendData(new byte[101], "host"));
+        medium.runUntilIdle();
+
+        // 1000 bytes at 10 kB/s, the last arriving a latency later and acknowledged a latency after that
+        assertEquals(10, hostCallback.receivedTimes.size());
+        assertEquals(start + 100 * 1000 + 20 * 1000, (long) hostCallback.receivedTimes.get(9));
+        assertEquals(start + 100 * 1000 + 40 * 1000, (long) clientCallback.sentTimes.get(9));
+    }
+
+    public void testSameSeedSameTimeline() {
+        LinkConditions lossy = LinkConditions.BLE.withLoss(0.2);
+
+        assertEquals(simulateTransfer(lossy, SEED), simulateTransfer(lossy, SEED));
+        assertFalse(simulateTransfer(lossy, SEED).equals(simulateTransfer(lossy, SEED + 1)));
+
+        // Retransmissions delay delivery, but data arrives in order
+        List<Long> lossless = simulateTransfer(LinkConditions.BLE.withJitter(0), SEED);
+        List<Long> withLoss = simulateTransfer(LinkConditions.BLE.withJitter(0).withLoss(0.2), SEED);
+        assertTrue(withLoss.get(withLoss.size() - 1) > lossless.get(lossless.size() - 1));
+
+        List<Long> sorted = new ArrayList<>(withLoss);
+        Collections.sort(sorted);
+        assertEquals(sorted, withLoss);
+    }
+
+    public void testDisconnectDropsDataInFlightAndReconnects() {
+        SimulatedMedium medium = new SimulatedMedium(SEED);
+        medium.setDefaultConditions(LinkConditions.IDEAL.withLatency(10 * 1000));
+
+        RecordingCallback hostCallback = new RecordingCallback(medium);
+        RecordingCallback clientCallback = new RecordingCallback(medium);
+        LoopbackTransport host = new LoopbackTransport(medium, "host", 100, SERVICE_NAME, hostCallback);
+        LoopbackTransport client = new LoopbackTransport(medium, "client", 100, SERVICE_NAME, clientCallback);
+
+        host.advertise();
+        client.scanForPeers();
+        medium.runUntilIdle();
+
+        assertTrue(client.sendData(new byte[10], "host"));
+        medium.disconnect(host, client, 1000 * 1000);
+        assertFalse(client.sendData(new byte[10], "host"));
+        medium.runFor(500 * 1000);
+
+        assertTrue(hostCallback.receivedTimes.isEmpty());
+        assertEquals(Arrays.asList("client CONNECTED client", "client DISCONNECTED client"), hostCallback.events);
+
+        // Reconnects once the link is restored, as the transports still advertise and scan
+        medium.runUntilIdle();
+        assertEquals(1020 * 1000 + 20 * 1000, medium.getTimeMicros());
+        assertEquals("client CONNECTED client", hostCallback.events.get(2));
+        assertTrue(client.sendData(new byte[10], "host"));
+
+        // Transports of another service or code do not connect
+        LoopbackTransport other = new LoopbackTransport(medium, "other", 100, "OtherService", new RecordingCallback(medium));
+        other.scanForPeers();
+        medium.runUntilIdle();
+        assertEquals(3, hostCallback.events.size());
+    }
+
+    /**
+     * @return the simulated arrival time of each of 50 chunks sent over a link of conditions
+     */
+    private static List<Long> simulateTransfer(LinkConditions conditions, long seed) {
+        SimulatedMedium medium = new SimulatedMedium(seed);
+        medium.setDefaultConditions(conditions);
+
+        RecordingCallback hostCallback = new RecordingCallback(medium);
+        LoopbackTransport host = new LoopbackTransport(medium, "host", 20, SERVICE_NAME, hostCallback);
+        LoopbackTransport client = new LoopbackTransport(medium, "client", 20, SERVICE_NAME, new RecordingCallback(medium));
+
+        host.advertise();
+        client.scanForPeers();
+        medium.runUntilIdle();
+
+        for (int i = 0; i < 50; i++) client.sendData(new byte[20], "host");
+        medium.runUntilIdle();
+
+        return hostCallback.receivedTimes;
+    }
+
+    /**
+     * Records the events and simulated time of callbacks from a transport
+     */
+    private static class RecordingCallback implements Transport.TransportCallback {
+
+        final SimulatedMedium medium;
+        final List<String> events = new ArrayList<>();
+        final List<Long> receivedTimes = new ArrayList<>();
+        final List<Long> sentTimes = new ArrayList<>();
+
+        RecordingCallback(SimulatedMedium medium) {
+            this.medium = medium;
+        }
+
+        @Override
+        public void dataReceivedFromIdentifier(Transport transport, byte[] data, String identifier) {
+            receivedTimes.add(medium.getTimeMicros());
+        }
+
+        @Override
+        public void dataSentToIdentifier(Transport transport, byte[] data, String identifier, Exception exception) {
+            sentTimes.add(medium.getTimeMicros());
+        }
+
+        @Override
+        public void identifierUpdated(Transport transport,
+                                      String identifier,
+                                      Transport.ConnectionStatus status,
+                                      boolean peerIsHost,
+                                      Map<String, Object> extraInfo) {
+
+            events.add(identifier + " " + status + " " + (peerIsHost ? "host" : "client"));
+        }
+    }
+}
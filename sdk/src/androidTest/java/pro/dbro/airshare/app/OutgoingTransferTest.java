@@ -0,0 +1,112 @@
+package pro.dbro.airshare.app;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMessageScheduler;
+
+/**
+ * Tests that an {@link OutgoingTransfer} of a File releases the File once the transfer
+ * is sent or fails
+ */
+public class OutgoingTransferTest extends ApplicationTestCase<Application> {
+
+    private static final byte[] BODY = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+
+    private File mBodyFile;
+
+    private Peer mRecipient;
+
+    public OutgoingTransferTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBodyFile = File.createTempFile("outgoing-transfer", ".bin");
+        FileOutputStream out = new FileOutputStream(mBodyFile);
+        try {
+            out.write(BODY);
+        } finally {
+            out.close();
+        }
+        mRecipient = new Peer(new byte[] {1, 2, 3, 4}, "recipient", new Date(), 0, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBodyFile.delete();
+        super.tearDown();
+    }
+
+    public void testBodyClosedWhenSent() throws IOException {
+        assertBodyClosedOnDelivery(null);
+    }
+
+    public void testBodyClosedWhenFailed() throws IOException {
+        assertBodyClosedOnDelivery(new IOException("Disconnected"));
+    }
+
+    public void testBodyClosedWhenSendThrows() throws IOException {
+        final SessionMessage[] sent = new SessionMessage[1];
+        try {
+            new OutgoingTransfer(mBodyFile, mRecipient, new SessionMessageScheduler() {
+                @Override
+                public void sendMessage(SessionMessage message, Peer recipient) {
+                    sent[0] = message;
+                    throw new IllegalStateException("Not connected");
+                }
+
+                @Override
+                public void sendMessage(SessionMessage message, Collection<Peer> recipients) {}
+            });
+            fail("Expected sendMessage failure to be rethrown");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        assertBodyUnreadable(sent[0]);
+    }
+
+    private void assertBodyClosedOnDelivery(Exception exception) throws IOException {
+        RecordingScheduler scheduler = new RecordingScheduler();
+        OutgoingTransfer transfer = new OutgoingTransfer(mBodyFile, mRecipient, scheduler);
+
+        assertEquals(BODY.length, scheduler.mSent.getBodyAtOffset(0, BODY.length).length);
+
+        assertFalse(transfer.onMessageDelivered(scheduler.mSent, mRecipient, exception));
+        assertTrue(transfer.isComplete());
+        assertBodyUnreadable(scheduler.mSent);
+    }
+
+    private static void assertBodyUnreadable(SessionMessage message) {
+        try {
+            message.getBodyAtOffset(0, BODY.length);
+            fail("Expected the body of a finished transfer to be closed");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    private static class RecordingScheduler implements SessionMessageScheduler {
+
+        SessionMessage mSent;
+
+        @Override
+        public void sendMessage(SessionMessage message, Peer recipient) {
+            mSent = message;
+        }
+
+        @Override
+        public void sendMessage(SessionMessage message, Collection<Peer> recipients) {}
+    }
+}
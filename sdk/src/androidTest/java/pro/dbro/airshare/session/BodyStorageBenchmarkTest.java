@@ -0,0 +1,87 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.os.Debug;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.transport.ble.BLETransport;
+import timber.log.Timber;
+
+/**
+ * Compares receive CPU time of the memory-mapped body storage used by
+ * {@link SessionMessageDeserializer} against writing each chunk to a {@link FileOutputStream}
+ */
+public class BodyStorageBenchmarkTest extends ApplicationTestCase<Application> {
+
+    private static final int BODY_BYTES = 50 * 1000 * 1000;
+
+    public BodyStorageBenchmarkTest() {
+        super(Application.class);
+    }
+
+    public void testMappedBodyReceiveCpuTime() throws Exception {
+        byte[] payload = new byte[BODY_BYTES];
+        new Random().nextBytes(payload);
+
+        byte[] serialized = DataTransferMessage.createOutgoing(null, payload).serialize();
+        byte[] chunk = new byte[BLETransport.DEFAULT_MTU_BYTES];
+
+        // Previous approach: one write syscall per chunk
+        File streamFile = new File(getContext().getCacheDir(), "stream.body");
+        FileOutputStream stream = new FileOutputStream(streamFile);
+
+        long streamStart = Debug.threadCpuTimeNanos();
+        for (int offset = 0; offset < serialized.length; offset += chunk.length) {
+            int length = Math.min(chunk.length, serialized.length - offset);
+            System.arraycopy(serialized, offset, chunk, 0, length);
+            stream.write(chunk, 0, length);
+        }
+        stream.close();
+        long streamCpuNs = Debug.threadCpuTimeNanos() - streamStart;
+        assertTrue(streamFile.delete());
+
+        final AtomicReference<SessionMessage> received = new AtomicReference<>();
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        received.set(message);
+                    }
+                }
+        );
+
+        long mappedStart = Debug.threadCpuTimeNanos();
+        for (int offset = 0; offset < serialized.length; offset += chunk.length) {
+            int length = Math.min(chunk.length, serialized.length - offset);
+            if (length < chunk.length) chunk = new byte[length];
+            System.arraycopy(serialized, offset, chunk, 0, length);
+            receiver.dataReceived(chunk);
+        }
+        long mappedCpuNs = Debug.threadCpuTimeNanos() - mappedStart;
+
+        Timber.d("Received %d byte body in %d byte chunks. Stream: %d ms CPU, Mapped: %d ms CPU",
+                 BODY_BYTES, BLETransport.DEFAULT_MTU_BYTES, streamCpuNs / 1000000, mappedCpuNs / 1000000);
+
+        DataTransferMessage message = (DataTransferMessage) received.get();
+        assertNotNull(message);
+        assertTrue(message.isDiskBacked());
+        assertEquals(ByteBuffer.wrap(payload), message.getBodyBuffer());
+        assertTrue(message.getBodyFile().delete());
+    }
+}
@@ -0,0 +1,178 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.airshare.transport.wifi.WifiTransport;
+import timber.log.Timber;
+
+/**
+ * Compares the serialization cost of sending a file-backed message to many simulated peers with
+ * and without a {@link SharedSerialization}, and verifies each peer receives the message intact
+ */
+public class BroadcastBenchmarkTest extends ApplicationTestCase<Application> {
+
+    private static final int PEER_COUNT = 32;
+
+    private static final int BODY_BYTES = 1000 * 1000;
+
+    private static final int MTU_BYTES = WifiTransport.DEFAULT_MTU_BYTES;
+
+    private static final int WINDOW_CHUNKS = 8;
+
+    private static final int ITERATIONS = 5;
+
+    public BroadcastBenchmarkTest() {
+        super(Application.class);
+    }
+
+    public void testSharedSerializationOfBroadcast() throws Exception {
+        byte[] payload = new byte[BODY_BYTES];
+        new Random().nextBytes(payload);
+        File body = File.createTempFile("broadcast", null);
+        FileOutputStream output = new FileOutputStream(body);
+        output.write(payload);
+        output.close();
+
+        long unsharedNs = Long.MAX_VALUE, sharedNs = Long.MAX_VALUE;
+        long unsharedBytes = 0;
+        SharedSerialization serialization = null;
+
+        // The fastest of several iterations excludes JIT warm-up
+        for (int i = 0; i < ITERATIONS; i++) {
+            DataTransferMessage message = createMessage(body);
+            long start = System.nanoTime();
+            unsharedBytes = broadcast(message, null, null);
+            unsharedNs = Math.min(unsharedNs, System.nanoTime() - start);
+
+            message = createMessage(body);
+            serialization = new SharedSerialization(message);
+            start = System.nanoTime();
+            assertEquals(unsharedBytes, broadcast(message, serialization, null));
+            sharedNs = Math.min(sharedNs, System.nanoTime() - start);
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        body.delete();
+
+        int chunksPerPeer = serialization.getChunksRead() / PEER_COUNT;
+        long sharedBytes = (long) serialization.getChunksSerialized() * MTU_BYTES;
+
+        Timber.d("%d kB to %d peers: %.1f ms serializing %d kB unshared, %.1f ms serializing %d kB shared. " +
+                 "Peak shared chunks retained %d kB",
+                 BODY_BYTES / 1000, PEER_COUNT,
+                 unsharedNs / 1e6, unsharedBytes / 1000,
+                 sharedNs / 1e6, sharedBytes / 1000,
+                 serialization.getPeakRetainedBytes() / 1000);
+
+        // Peers progressing together share every chunk, and only those in flight are retained
+        assertEquals(chunksPerPeer, serialization.getChunksSerialized());
+        assertTrue(serialization.getPeakRetainedBytes() <= 2 * WINDOW_CHUNKS * MTU_BYTES);
+        assertTrue(sharedBytes * PEER_COUNT <= unsharedBytes * 1.01);
+    }
+
+    public void testEachPeerReceivesBroadcast() throws Exception {
+        byte[] payload = new byte[BODY_BYTES];
+        new Random().nextBytes(payload);
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, payload);
+
+        List<SessionMessage> received = new ArrayList<>();
+        broadcast(message, new SharedSerialization(message), received);
+
+        assertEquals(PEER_COUNT, received.size());
+        for (SessionMessage incoming : received) {
+            assertEquals(message, incoming);
+            assertTrue(Arrays.equals(payload, readBody((DataTransferMessage) incoming)));
+        }
+    }
+
+    public void testStreamBackedBodyNotShared() {
+        try {
+            new SharedSerialization(DataTransferMessage.createOutgoing(null, new ByteArrayInputStream(new byte[10]), 10));
+            fail("Stream-backed body shared");
+        } catch (IllegalArgumentException expected) {
+            // Tracks of different chunk lengths would read the stream out of order
+        }
+    }
+
+    /**
+     * Send message to {@link #PEER_COUNT} framing serializers, each window-full of chunks in turn,
+     * delivering chunks to a receiver per peer if received is not null
+     *
+     * @return the total bytes of chunks produced
+     */
+    private long broadcast(DataTransferMessage message,
+                           SharedSerialization serialization,
+                           final List<SessionMessage> received) {
+
+        List<SessionMessageSerializer> senders = new ArrayList<>();
+        List<SessionMessageDeserializer> receivers = new ArrayList<>();
+
+        for (int i = 0; i < PEER_COUNT; i++) {
+            SessionMessageSerializer sender = new SessionMessageSerializer(Collections.<SessionMessage>emptyList());
+            sender.setHeaderVersion(SessionMessage.HEADER_VERSION_BINARY);
+            sender.setFramingEnabled(true);
+            sender.setWindowSize(WINDOW_CHUNKS);
+            sender.queueMessage(message, serialization);
+            senders.add(sender);
+
+            if (received != null) receivers.add(new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+                    new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                        @Override
+                        public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                        @Override
+                        public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                        @Override
+                        public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                            assertNull(e);
+                            received.add(message);
+                        }
+                    }));
+        }
+
+        long bytes = 0;
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            for (int i = 0; i < PEER_COUNT; i++) {
+                SessionMessageSerializer sender = senders.get(i);
+                byte[] chunk;
+                while ((chunk = sender.getNextChunk(MTU_BYTES)) != null) {
+                    bytes += chunk.length;
+                    if (received != null) receivers.get(i).dataReceived(chunk);
+                    busy = true;
+                }
+                while (sender.isAwaitingAck()) sender.ackChunkDelivery();
+            }
+        }
+        return bytes;
+    }
+
+    private static DataTransferMessage createMessage(File body) throws IOException {
+        return DataTransferMessage.createOutgoing(null, new RandomAccessFile(body, "r").getChannel());
+    }
+
+    private static byte[] readBody(DataTransferMessage message) throws Exception {
+        byte[] body = new byte[message.getBodyLengthBytes()];
+        InputStream stream = message.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = stream.read(body, totalRead, body.length - totalRead)) > 0) totalRead += read;
+        stream.close();
+        return body;
+    }
+}
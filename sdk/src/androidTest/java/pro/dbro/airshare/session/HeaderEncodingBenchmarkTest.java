@@ -0,0 +1,86 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.airshare.transport.wifi.WifiTransport;
+import timber.log.Timber;
+
+/**
+ * Compares {@link SessionMessage#HEADER_VERSION_JSON} and {@link SessionMessage#HEADER_VERSION_BINARY}
+ * header size and parse time for each message type
+ */
+public class HeaderEncodingBenchmarkTest extends ApplicationTestCase<Application> {
+
+    private static final int PARSE_ITERATIONS = 10 * 1000;
+
+    public HeaderEncodingBenchmarkTest() {
+        super(Application.class);
+    }
+
+    public void testBinaryHeadersSmallerAndEquivalent() throws Exception {
+        byte[] publicKey = new byte[32];
+        new Random().nextBytes(publicKey);
+        Peer peer = new Peer(publicKey, "Alice", new Date(), -1, 0, SessionMessage.CURRENT_HEADER_VERSION);
+
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put("filename", "photo.jpg");
+        extras.put("mime-type", "image/jpeg");
+        extras.put("size", 1024 * 1024);
+
+        List<SessionMessage> messages = new ArrayList<>();
+        messages.add(new IdentityMessage(peer));
+        messages.add(new TransportUpgradeMessage(WifiTransport.TRANSPORT_CODE));
+        messages.add(DataTransferMessage.createOutgoing(null, "Hi".getBytes()));
+        messages.add(DataTransferMessage.createOutgoing(extras, "Hi".getBytes()));
+
+        for (SessionMessage message : messages) {
+            int jsonLength  = message.getHeaderLengthBytes(SessionMessage.HEADER_VERSION_JSON);
+            int binaryLength = message.getHeaderLengthBytes(SessionMessage.HEADER_VERSION_BINARY);
+
+            long jsonParseNs   = timeParse(message, SessionMessage.HEADER_VERSION_JSON);
+            long binaryParseNs = timeParse(message, SessionMessage.HEADER_VERSION_BINARY);
+
+            Timber.d("%s header: json %d bytes %d ns/parse, binary %d bytes %d ns/parse",
+                     message.getType(), jsonLength, jsonParseNs, binaryLength, binaryParseNs);
+
+            assertTrue(message.getType() + " binary header not smaller", binaryLength < jsonLength);
+
+            SessionMessage fromJson   = parse(message, SessionMessage.HEADER_VERSION_JSON);
+            SessionMessage fromBinary = parse(message, SessionMessage.HEADER_VERSION_BINARY);
+            assertEquals(message, fromJson);
+            assertEquals(message, fromBinary);
+            assertEquals(fromJson.getHeaders(), fromBinary.getHeaders());
+        }
+    }
+
+    private static long timeParse(SessionMessage message, int version) throws Exception {
+        byte[] serialized = message.serialize(0, (int) message.getTotalLengthBytes(version), version);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < PARSE_ITERATIONS; i++) {
+            SessionMessageDeserializer.deserializeHeaders(version,
+                                                          serialized,
+                                                          SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES,
+                                                          message.getHeaderLengthBytes(version));
+        }
+        return (System.nanoTime() - start) / PARSE_ITERATIONS;
+    }
+
+    private static SessionMessage parse(SessionMessage message, int version) throws Exception {
+        byte[] serialized = message.serialize(0, (int) message.getTotalLengthBytes(version), version);
+
+        assertEquals(version, serialized[0]);
+        return SessionMessageDeserializer.sessionMessageFromHeaders(
+                SessionMessageDeserializer.deserializeHeaders(version,
+                                                              serialized,
+                                                              SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES,
+                                                              message.getHeaderLengthBytes(version)));
+    }
+}
@@ -0,0 +1,216 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.airshare.Pair;
+import pro.dbro.airshare.transport.ble.BLETransport;
+
+/**
+ * Tests that messages multiplexed as frames of concurrent streams are interleaved by
+ * {@link SessionMessageSerializer} and reassembled by {@link SessionMessageDeserializer},
+ * regardless of how the framed bytestream is divided in transit
+ */
+public class MultiplexedStreamTest extends ApplicationTestCase<Application> {
+
+    private static final int MTU_BYTES = BLETransport.DEFAULT_MTU_BYTES;
+
+    private static final int WINDOW_CHUNKS = 4;
+
+    private static final int BULK_BODY_BYTES = 200 * 1000;
+
+    public MultiplexedStreamTest() {
+        super(Application.class);
+    }
+
+    public void testSmallMessagesInterleavedWithBulk() throws Exception {
+        DataTransferMessage bulk = createMessage(BULK_BODY_BYTES);
+        DataTransferMessage small = createMessage(500);
+
+        SessionMessageSerializer sender = createSender(bulk);
+        List<SessionMessage> received = new ArrayList<>();
+        SessionMessageDeserializer receiver = createReceiver(received);
+
+        // Queued once the bulk message is underway, the small message is sent concurrently
+        byte[] stream = transmit(sender, small, 10);
+        receiveInPieces(receiver, stream);
+
+        assertEquals(Arrays.<SessionMessage>asList(small, bulk), received);
+        assertBodiesEqual(Arrays.asList(small, bulk), received);
+    }
+
+    public void testConcurrentBulkMessagesShareLink() throws Exception {
+        DataTransferMessage first = createMessage(BULK_BODY_BYTES);
+        DataTransferMessage second = createMessage(BULK_BODY_BYTES);
+
+        SessionMessageSerializer sender = createSender(first);
+        sender.queueMessage(second);
+
+        List<Float> firstProgress = new ArrayList<>();
+        List<Float> secondProgress = new ArrayList<>();
+        byte[] chunk;
+        while (true) {
+            //noinspection StatementWithEmptyBody
+            while ((chunk = sender.getNextChunk(MTU_BYTES)) != null) assertTrue(chunk.length <= MTU_BYTES);
+
+            Pair<SessionMessage, Float> ack = sender.ackChunkDelivery();
+            if (ack == null) break;
+            (ack.first == first ? firstProgress : secondProgress).add(ack.second);
+        }
+
+        // Chunks alternate between streams, so both messages complete at about the same time
+        assertEquals(1f, firstProgress.get(firstProgress.size() - 1));
+        assertEquals(1f, secondProgress.get(secondProgress.size() - 1));
+        assertEquals(firstProgress.size(), secondProgress.size(), 1);
+        assertTrue(secondProgress.get(0) < firstProgress.get(firstProgress.size() / 2));
+    }
+
+    public void testControlMessagesNotInterleaved() {
+        ResumeMessage firstControl = ResumeMessage.createRequest(Collections.singletonList("first"));
+        ResumeMessage secondControl = ResumeMessage.createRequest(Collections.singletonList("second"));
+        DataTransferMessage bulk = createMessage(BULK_BODY_BYTES);
+
+        SessionMessageSerializer sender = createSender(bulk);
+        sender.queueMessage(firstControl);
+        sender.queueMessage(secondControl);
+
+        List<SessionMessage> acked = new ArrayList<>();
+        while (sender.getNextChunk(MTU_BYTES) != null) {
+            SessionMessage message = sender.ackChunkDelivery().first;
+            if (acked.isEmpty() || acked.get(acked.size() - 1) != message) acked.add(message);
+        }
+
+        // Each control message is sent whole and in order, ahead of the bulk message
+        assertEquals(Arrays.<SessionMessage>asList(firstControl, secondControl, bulk), acked);
+    }
+
+    public void testFramingBeginsBetweenMessages() throws Exception {
+        DataTransferMessage unframed = createMessage(5000);
+        DataTransferMessage framed = createMessage(5000);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(unframed);
+        sender.setHeaderVersion(SessionMessage.HEADER_VERSION_BINARY);
+        sender.setWindowSize(WINDOW_CHUNKS);
+        List<SessionMessage> received = new ArrayList<>();
+        SessionMessageDeserializer receiver = createReceiver(received);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(sender.getNextChunk(MTU_BYTES));
+        sender.ackChunkDelivery();
+
+        // The message underway completes unframed
+        sender.setFramingEnabled(true);
+        sender.queueMessage(framed);
+        assertFalse(sender.isFraming());
+        stream.write(transmit(sender, null, 0));
+        assertTrue(sender.isFraming());
+
+        receiveInPieces(receiver, stream.toByteArray());
+        assertEquals(Arrays.<SessionMessage>asList(unframed, framed), received);
+        assertBodiesEqual(Arrays.asList(unframed, framed), received);
+    }
+
+    public void testChunkLengthLimitedToFrame() throws Exception {
+        DataTransferMessage bulk = createMessage(BULK_BODY_BYTES);
+
+        SessionMessageSerializer sender = createSender(bulk);
+        List<SessionMessage> received = new ArrayList<>();
+        SessionMessageDeserializer receiver = createReceiver(received);
+
+        // Length 0 requests the largest chunk, which exceeds the largest frame
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(0)) != null) {
+            assertTrue(chunk.length <= SessionMessageSerializer.MAX_FRAME_BYTES);
+            stream.write(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        receiveInPieces(receiver, stream.toByteArray());
+        assertEquals(Collections.<SessionMessage>singletonList(bulk), received);
+        assertBodiesEqual(Collections.singletonList(bulk), received);
+    }
+
+    private static DataTransferMessage createMessage(int bodyLength) {
+        byte[] body = new byte[bodyLength];
+        new Random().nextBytes(body);
+        return DataTransferMessage.createOutgoing(null, body);
+    }
+
+    private static SessionMessageSerializer createSender(SessionMessage message) {
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setHeaderVersion(SessionMessage.HEADER_VERSION_BINARY);
+        sender.setFramingEnabled(true);
+        sender.setWindowSize(WINDOW_CHUNKS);
+        return sender;
+    }
+
+    private SessionMessageDeserializer createReceiver(final List<SessionMessage> received) {
+        return new SessionMessageDeserializer(new ContextBodyStorage(getContext()), new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+            @Override
+            public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                assertNull(e);
+                received.add(message);
+            }
+        });
+    }
+
+    /**
+     * Serialize all of sender's messages, queuing toQueue after the chunk at queueAfterChunk
+     *
+     * @return the concatenated chunks
+     */
+    private static byte[] transmit(SessionMessageSerializer sender, SessionMessage toQueue, int queueAfterChunk) throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int chunkCount = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(MTU_BYTES)) != null) {
+            stream.write(chunk);
+            sender.ackChunkDelivery();
+            if (toQueue != null && ++chunkCount == queueAfterChunk) sender.queueMessage(toQueue);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Deliver stream to receiver in pieces of random length, as a stream transport might
+     */
+    private static void receiveInPieces(SessionMessageDeserializer receiver, byte[] stream) {
+        Random random = new Random();
+        int offset = 0;
+        while (offset < stream.length) {
+            int length = Math.min(stream.length - offset, 1 + random.nextInt(2 * MTU_BYTES));
+            receiver.dataReceived(Arrays.copyOfRange(stream, offset, offset + length));
+            offset += length;
+        }
+    }
+
+    private static void assertBodiesEqual(List<DataTransferMessage> expected, List<SessionMessage> actual) throws Exception {
+        for (int i = 0; i < expected.size(); i++)
+            assertTrue(Arrays.equals(readBody(expected.get(i)), readBody((DataTransferMessage) actual.get(i))));
+    }
+
+    private static byte[] readBody(DataTransferMessage message) throws Exception {
+        byte[] body = new byte[message.getBodyLengthBytes()];
+        InputStream stream = message.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = stream.read(body, totalRead, body.length - totalRead)) > 0) totalRead += read;
+        stream.close();
+        return body;
+    }
+}
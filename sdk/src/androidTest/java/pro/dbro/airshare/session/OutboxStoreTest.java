@@ -0,0 +1,159 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that {@link OutboxStore} holds messages for unavailable peers across restarts,
+ * forwarding them in order until delivered or expired
+ */
+public class OutboxStoreTest extends ApplicationTestCase<Application> {
+
+    private static final byte[] PEER_KEY = new byte[] {1, 2, 3, 4};
+
+    private static final byte[] OTHER_PEER_KEY = new byte[] {5, 6, 7, 8};
+
+    private static final int QUEUED_MESSAGES = 2000;
+
+    private File mStoreDirectory;
+
+    public OutboxStoreTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStoreDirectory = new File(getContext().getCacheDir(), "outbox-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mStoreDirectory);
+        super.tearDown();
+    }
+
+    public void testMessagePersistsAcrossRestart() throws Exception {
+        byte[] payload = new byte[100 * 1000];
+        new Random().nextBytes(payload);
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put("filename", "photo.jpg");
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(extras, payload);
+        outgoing.setPriority(SessionMessage.Priority.INTERACTIVE);
+
+        new OutboxStore(mStoreDirectory).add(PEER_KEY, outgoing, OutboxStore.DEFAULT_TTL_MS);
+
+        OutboxStore store = new OutboxStore(mStoreDirectory);
+        assertEquals(1, store.size(PEER_KEY));
+        assertNull(store.takeNext(OTHER_PEER_KEY));
+
+        DataTransferMessage stored = store.takeNext(PEER_KEY);
+        assertEquals(outgoing, stored);
+        assertEquals(outgoing.getHeaders(), stored.getHeaders());
+        assertEquals(SessionMessage.Priority.INTERACTIVE, stored.getPriority());
+        assertTrue(Arrays.equals(payload, stored.getBodyAtOffset(0, payload.length)));
+        assertTrue(Arrays.equals(outgoing.serialize(), stored.serialize()));
+
+        // Taken messages remain stored until delivered
+        assertNull(store.takeNext(PEER_KEY));
+        assertEquals(1, new OutboxStore(mStoreDirectory).size(PEER_KEY));
+
+        assertTrue(store.onSent(PEER_KEY, stored.getId()));
+        assertEquals(0, store.size(PEER_KEY));
+        assertEquals(0, new OutboxStore(mStoreDirectory).size());
+    }
+
+    public void testThousandsOfMessagesForwardedInOrder() throws Exception {
+        OutboxStore store = new OutboxStore(mStoreDirectory);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < QUEUED_MESSAGES; i++) {
+            DataTransferMessage message = DataTransferMessage.createOutgoing(null, ("Message " + i).getBytes("UTF-8"));
+            store.add(PEER_KEY, message, OutboxStore.DEFAULT_TTL_MS);
+            ids.add(message.getId());
+        }
+
+        // Only the index is rebuilt on construction
+        store = new OutboxStore(mStoreDirectory);
+        assertEquals(QUEUED_MESSAGES, store.size(PEER_KEY));
+
+        for (int i = 0; i < QUEUED_MESSAGES; i++) {
+            DataTransferMessage message = store.takeNext(PEER_KEY);
+            assertEquals(ids.get(i), message.getId());
+            assertEquals("Message " + i, new String(message.getBodyAtOffset(0, message.getBodyLengthBytes()), "UTF-8"));
+            assertEquals(1, store.getSendingCount(PEER_KEY));
+            assertTrue(store.onSent(PEER_KEY, message.getId()));
+        }
+        assertEquals(0, store.size());
+    }
+
+    public void testReleasedMessageTakenAgain() throws Exception {
+        OutboxStore store = new OutboxStore(mStoreDirectory);
+        DataTransferMessage first = DataTransferMessage.createOutgoing(null, new byte[10]);
+        DataTransferMessage second = DataTransferMessage.createOutgoing(null, new byte[10]);
+        store.add(PEER_KEY, first, OutboxStore.DEFAULT_TTL_MS);
+        store.add(PEER_KEY, second, OutboxStore.DEFAULT_TTL_MS);
+
+        assertEquals(first, store.takeNext(PEER_KEY));
+        assertEquals(second, store.takeNext(PEER_KEY));
+        assertEquals(2, store.getSendingCount(PEER_KEY));
+
+        store.release(PEER_KEY, first.getId());
+        assertEquals(first, store.takeNext(PEER_KEY));
+
+        store.releaseAll();
+        assertEquals(0, store.getSendingCount(PEER_KEY));
+        assertEquals(first, store.takeNext(PEER_KEY));
+    }
+
+    public void testExpiredMessagesDiscarded() throws Exception {
+        OutboxStore store = new OutboxStore(mStoreDirectory);
+        DataTransferMessage expiring = DataTransferMessage.createOutgoing(null, new byte[10]);
+        DataTransferMessage lasting = DataTransferMessage.createOutgoing(null, new byte[10]);
+        store.add(PEER_KEY, expiring, 1);
+        store.add(PEER_KEY, lasting, OutboxStore.DEFAULT_TTL_MS);
+
+        Thread.sleep(10);
+
+        assertEquals(lasting, store.takeNext(PEER_KEY));
+        assertEquals(1, store.size(PEER_KEY));
+        assertEquals(1, mStoreDirectory.listFiles()[0].listFiles().length / 2);
+    }
+
+    public void testCapsEnforced() throws Exception {
+        OutboxStore store = new OutboxStore(mStoreDirectory, 2, 1000);
+        store.add(PEER_KEY, DataTransferMessage.createOutgoing(null, new byte[10]), OutboxStore.DEFAULT_TTL_MS);
+
+        try {
+            store.add(PEER_KEY, DataTransferMessage.createOutgoing(null, new byte[1000]), OutboxStore.DEFAULT_TTL_MS);
+            fail("Outbox exceeded byte cap");
+        } catch (IOException expected) {
+            // Rejected without affecting stored messages
+        }
+
+        store.add(PEER_KEY, DataTransferMessage.createOutgoing(null, new byte[10]), OutboxStore.DEFAULT_TTL_MS);
+        try {
+            store.add(PEER_KEY, DataTransferMessage.createOutgoing(null, new byte[10]), OutboxStore.DEFAULT_TTL_MS);
+            fail("Outbox exceeded message cap");
+        } catch (IOException expected) {
+            // Caps apply per peer
+        }
+
+        store.add(OTHER_PEER_KEY, DataTransferMessage.createOutgoing(null, new byte[10]), OutboxStore.DEFAULT_TTL_MS);
+        assertEquals(3, new OutboxStore(mStoreDirectory).size());
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) for (File child : files) delete(child);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,224 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.airshare.Pair;
+import pro.dbro.airshare.transport.wifi.WifiTransport;
+import timber.log.Timber;
+
+/**
+ * Tests {@link SessionMessageSerializer} priority scheduling, and compares the latency of small
+ * messages sent during a bulk transfer over a simulated link with and without preemption
+ */
+public class PriorityLatencyBenchmarkTest extends ApplicationTestCase<Application> {
+
+    private static final int MTU_BYTES = WifiTransport.DEFAULT_MTU_BYTES;
+
+    private static final int LINK_BYTES_PER_S = 100 * 1000;
+
+    private static final int BULK_BODY_BYTES = 5 * 1000 * 1000;
+
+    private static final int SMALL_BODY_BYTES = 200;
+
+    /** Simulated interval at which a small message is queued while the bulk transfer is in flight */
+    private static final int SMALL_INTERVAL_MS = 250;
+
+    private static final int TICK_MS = 5;
+
+    /** Required ratio of small-message p99 latency without preemption to that with it */
+    private static final int MIN_P99_IMPROVEMENT = 10;
+
+    private static final byte[] PEER_KEY = new byte[] {1, 2, 3, 4};
+
+    public PriorityLatencyBenchmarkTest() {
+        super(Application.class);
+    }
+
+    public void testHigherPrioritySentFirst() {
+        DataTransferMessage bulk = DataTransferMessage.createOutgoing(null, new byte[DataTransferMessage.INTERACTIVE_MAX_BODY_BYTES + 1]);
+        DataTransferMessage interactive = DataTransferMessage.createOutgoing(null, new byte[SMALL_BODY_BYTES]);
+        DataTransferMessage demoted = DataTransferMessage.createOutgoing(null, new byte[SMALL_BODY_BYTES]);
+        demoted.setPriority(SessionMessage.Priority.BULK);
+        ResumeMessage control = ResumeMessage.createRequest(Collections.singletonList(bulk.getId()));
+
+        assertEquals(SessionMessage.Priority.BULK, bulk.getPriority());
+        assertEquals(SessionMessage.Priority.INTERACTIVE, interactive.getPriority());
+        assertEquals(SessionMessage.Priority.CONTROL, control.getPriority());
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(Arrays.<SessionMessage>asList(bulk, demoted, interactive));
+        sender.queueMessage(control);
+
+        List<SessionMessage> sent = new ArrayList<>();
+        while (sender.getNextChunk(0) != null) {
+            SessionMessage message = sender.ackChunkDelivery().first;
+            if (!sent.contains(message)) sent.add(message);
+        }
+
+        assertEquals(Arrays.<SessionMessage>asList(control, interactive, bulk, demoted), sent);
+    }
+
+    public void testBulkPreemptedBetweenSegments() throws Exception {
+        byte[] payload = new byte[MTU_BYTES * SessionMessageSerializer.DEFAULT_SEGMENT_CHUNKS * 3];
+        new Random().nextBytes(payload);
+        DataTransferMessage bulk = DataTransferMessage.createOutgoing(null, payload);
+        DataTransferMessage interactive = DataTransferMessage.createOutgoing(null, new byte[SMALL_BODY_BYTES]);
+
+        List<SessionMessage> received = new ArrayList<>();
+        SessionMessageSerializer sender = new SessionMessageSerializer(bulk);
+        sender.setPreemptionEnabled(true);
+        SessionMessageDeserializer receiver = createReceiver(new StripeAssembler(new ContextBodyStorage(getContext())), received, null);
+
+        float lastProgress = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(MTU_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            Pair<SessionMessage, Float> ack = sender.ackChunkDelivery();
+
+            if (ack.first == bulk) {
+                assertTrue(ack.second > lastProgress);
+                lastProgress = ack.second;
+            }
+
+            // Queued once the bulk message is underway, the interactive message cuts in at the next segment
+            if (ack.first == bulk && received.isEmpty() && sender.getUndeliveredMessages().size() == 1)
+                sender.queueMessage(interactive);
+        }
+
+        assertEquals(1f, lastProgress);
+        assertEquals(2, received.size());
+        assertEquals(interactive, received.get(0));
+        assertEquals(bulk, received.get(1));
+        assertTrue(Arrays.equals(payload, readBody((DataTransferMessage) received.get(1))));
+    }
+
+    public void testSmallMessageLatencyDuringBulkTransfer() throws Exception {
+        long[] sequentialLatenciesMs = timeSmallMessages(false);
+        long[] preemptiveLatenciesMs = timeSmallMessages(true);
+
+        long sequentialP99Ms = percentile(sequentialLatenciesMs, 99);
+        long preemptiveP99Ms = percentile(preemptiveLatenciesMs, 99);
+
+        Timber.d("%d small messages during %d kB transfer at %d kB/s: p50 %d ms, p99 %d ms sequential. " +
+                 "p50 %d ms, p99 %d ms with preemption",
+                 preemptiveLatenciesMs.length,
+                 BULK_BODY_BYTES / 1000,
+                 LINK_BYTES_PER_S / 1000,
+                 percentile(sequentialLatenciesMs, 50), sequentialP99Ms,
+                 percentile(preemptiveLatenciesMs, 50), preemptiveP99Ms);
+
+        assertTrue(String.format("Preemptive p99 (%d ms) not well below sequential p99 (%d ms)", preemptiveP99Ms, sequentialP99Ms),
+                   preemptiveP99Ms * MIN_P99_IMPROVEMENT < sequentialP99Ms);
+    }
+
+    /**
+     * Send a bulk message over a simulated link, queuing a small message every
+     * {@link #SMALL_INTERVAL_MS} until the bulk message is delivered
+     *
+     * @return the simulated latency of each small message, from queuing to delivery
+     */
+    private long[] timeSmallMessages(boolean preemption) throws Exception {
+        byte[] payload = new byte[BULK_BODY_BYTES];
+        new Random().nextBytes(payload);
+        DataTransferMessage bulk = DataTransferMessage.createOutgoing(null, payload);
+
+        final HashMap<String, Long> queuedMs = new HashMap<>();
+        final List<Long> latenciesMs = new ArrayList<>();
+        final long[] nowMs = new long[1];
+        List<SessionMessage> received = new ArrayList<>();
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(bulk);
+        sender.setPreemptionEnabled(preemption);
+        SessionMessageDeserializer receiver = createReceiver(new StripeAssembler(new ContextBodyStorage(getContext())), received,
+                new DeliveryListener() {
+                    @Override
+                    public void onDelivered(SessionMessage message) {
+                        Long queued = queuedMs.remove(message.getId());
+                        if (queued != null) latenciesMs.add(nowMs[0] - queued);
+                    }
+                });
+
+        double budget = 0;
+        long nextSmallMs = 0;
+        while (!received.contains(bulk) || !queuedMs.isEmpty()) {
+            nowMs[0] += TICK_MS;
+
+            if (!received.contains(bulk) && nowMs[0] >= nextSmallMs) {
+                DataTransferMessage small = DataTransferMessage.createOutgoing(null, new byte[SMALL_BODY_BYTES]);
+                queuedMs.put(small.getId(), nowMs[0]);
+                sender.queueMessage(small);
+                nextSmallMs += SMALL_INTERVAL_MS;
+            }
+
+            budget += LINK_BYTES_PER_S * TICK_MS / 1000.0;
+            byte[] chunk;
+            while (budget > 0 && (chunk = sender.getNextChunk(MTU_BYTES)) != null) {
+                budget -= chunk.length;
+                receiver.dataReceived(chunk);
+                sender.ackChunkDelivery();
+            }
+            if (sender.getCurrentMessage() == null) budget = 0;
+        }
+
+        DataTransferMessage incoming = (DataTransferMessage) received.get(received.indexOf(bulk));
+        assertTrue(Arrays.equals(payload, readBody(incoming)));
+        if (incoming.getBodyFile() != null) assertTrue(incoming.getBodyFile().delete());
+
+        long[] result = new long[latenciesMs.size()];
+        for (int i = 0; i < result.length; i++) result[i] = latenciesMs.get(i);
+        return result;
+    }
+
+    private interface DeliveryListener {
+        void onDelivered(SessionMessage message);
+    }
+
+    private SessionMessageDeserializer createReceiver(StripeAssembler assembler,
+                                                      final List<SessionMessage> received,
+                                                      final DeliveryListener listener) {
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        received.add(message);
+                        if (listener != null) listener.onDelivered(message);
+                    }
+                }
+        );
+        receiver.setStripeAssembler(assembler, PEER_KEY);
+        return receiver;
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(sorted.length * percentile / 100.0) - 1)];
+    }
+
+    private static byte[] readBody(DataTransferMessage message) throws Exception {
+        byte[] body = new byte[message.getBodyLengthBytes()];
+        InputStream stream = message.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = stream.read(body, totalRead, body.length - totalRead)) > 0) totalRead += read;
+        stream.close();
+        return body;
+    }
+}
@@ -0,0 +1,239 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.transport.ble.BLETransport;
+
+/**
+ * Tests that a {@link DataTransferMessage} interrupted mid-body completes from a resumed
+ * message carrying only the remainder, and the {@link ResumeMessage} negotiation.
+ */
+public class ResumableTransferTest extends ApplicationTestCase<Application> {
+
+    /** Held in memory by the receiver */
+    private static final int MEMORY_BODY_BYTES = 100 * 1000;
+
+    /** Large enough to be stored on disk by the receiver */
+    private static final int DISK_BODY_BYTES = 3 * 1000 * 1000;
+
+    private static final byte[] PEER_KEY = new byte[] {1, 2, 3, 4};
+
+    private File mStoreDirectory;
+
+    public ResumableTransferTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStoreDirectory = new File(getContext().getCacheDir(), "resumable-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mStoreDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        mStoreDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testMemoryBodyResumes() throws Exception {
+        byte[] payload = new byte[MEMORY_BODY_BYTES];
+        new Random().nextBytes(payload);
+
+        DataTransferMessage incoming = transferWithInterruption(DataTransferMessage.createOutgoing(null, payload), payload.length / 3);
+        assertFalse(incoming.isDiskBacked());
+        assertTrue(Arrays.equals(payload, incoming.getBodyAtOffset(0, payload.length)));
+    }
+
+    public void testDiskBodyResumes() throws Exception {
+        byte[] payload = new byte[DISK_BODY_BYTES];
+        new Random().nextBytes(payload);
+
+        DataTransferMessage incoming = transferWithInterruption(DataTransferMessage.createOutgoing(null, payload), payload.length / 2);
+        assertTrue(incoming.isDiskBacked());
+
+        byte[] receivedPayload = new byte[DISK_BODY_BYTES];
+        InputStream body = incoming.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = body.read(receivedPayload, totalRead, DISK_BODY_BYTES - totalRead)) > 0) {
+            totalRead += read;
+        }
+        body.close();
+
+        assertTrue(Arrays.equals(payload, receivedPayload));
+        assertTrue(incoming.getBodyFile().delete());
+    }
+
+    public void testResumeWithoutPartialFails() {
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(null, new byte[MEMORY_BODY_BYTES]);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+
+        SessionMessageDeserializer receiver = createReceiver(new AtomicReference<SessionMessage>(), error);
+        receiver.setResumeStore(new ResumableTransferStore(mStoreDirectory), PEER_KEY);
+        receiver.dataReceived(outgoing.resumeAt(1000).serialize());
+
+        assertNotNull(error.get());
+    }
+
+    public void testStorePersistsPartials() throws Exception {
+        byte[] payload = new byte[MEMORY_BODY_BYTES];
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(null, payload);
+        byte[] serialized = outgoing.serialize();
+
+        ResumableTransferStore store = new ResumableTransferStore(mStoreDirectory);
+        SessionMessageDeserializer receiver = createReceiver(new AtomicReference<SessionMessage>(),
+                                                             new AtomicReference<Exception>());
+        receiver.setResumeStore(store, PEER_KEY);
+
+        int interruptAt = serialized.length - 1000;
+        receiver.dataReceived(Arrays.copyOfRange(serialized, 0, interruptAt));
+        assertTrue(receiver.suspend());
+
+        // A new store over the same directory, as after a restart, holds the partial
+        int held = new ResumableTransferStore(mStoreDirectory).getOffset(PEER_KEY, outgoing.getId());
+        assertEquals(payload.length - 1000, held);
+        assertEquals(0, store.getOffset(new byte[] {5}, outgoing.getId()));
+
+        // Partials beyond the maximum age are discarded
+        Thread.sleep(10);
+        assertEquals(0, new ResumableTransferStore(mStoreDirectory, 1).size());
+    }
+
+    public void testResumeMessageRoundTrip() throws Exception {
+        DataTransferMessage first  = DataTransferMessage.createOutgoing(null, new byte[10]);
+        DataTransferMessage second = DataTransferMessage.createOutgoing(null, new byte[10]);
+
+        for (int version : new int[] {SessionMessage.HEADER_VERSION_JSON, SessionMessage.HEADER_VERSION_BINARY}) {
+            ResumeMessage request = (ResumeMessage) roundTrip(
+                    ResumeMessage.createRequest(Arrays.asList(first.getId(), second.getId())), version);
+
+            assertTrue(request.isRequest());
+            assertEquals(Arrays.asList(first.getId(), second.getId()), request.getMessageIds());
+
+            HashMap<String, Integer> offsets = new HashMap<>();
+            offsets.put(first.getId(), 0);
+            offsets.put(second.getId(), 7);
+            ResumeMessage answer = (ResumeMessage) roundTrip(ResumeMessage.createAnswer(offsets), version);
+
+            assertFalse(answer.isRequest());
+            assertEquals(offsets, answer.getOffsets());
+        }
+    }
+
+    public void testUndeliveredMessagesIncludeUnacknowledged() {
+        DataTransferMessage first  = DataTransferMessage.createOutgoing(null, new byte[10]);
+        DataTransferMessage second = DataTransferMessage.createOutgoing(null, new byte[10]);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(first);
+        sender.queueMessage(second);
+        sender.setWindowSize(4);
+
+        // The first message is serialized completely, but not acknowledged
+        assertNotNull(sender.getNextChunk((int) first.getTotalLengthBytes(SessionMessage.HEADER_VERSION_JSON)));
+
+        List<SessionMessage> undelivered = sender.getUndeliveredMessages();
+        assertEquals(2, undelivered.size());
+        assertSame(first, undelivered.get(0));
+        assertSame(second, undelivered.get(1));
+
+        sender.ackChunkDelivery();
+        assertEquals(1, sender.getUndeliveredMessages().size());
+    }
+
+    /**
+     * Send outgoing until interruptAtBodyByte body bytes are received, suspend the receiver,
+     * then complete via a fresh receiver from the message resumed at the offset the store reports
+     */
+    private DataTransferMessage transferWithInterruption(DataTransferMessage outgoing, int interruptAtBodyByte) {
+        ResumableTransferStore store = new ResumableTransferStore(mStoreDirectory);
+        AtomicReference<SessionMessage> received = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        SessionMessageDeserializer receiver = createReceiver(received, error);
+        receiver.setResumeStore(store, PEER_KEY);
+
+        byte[] serialized = outgoing.serialize();
+        int interruptAt = serialized.length - outgoing.getBodyLengthBytes() + interruptAtBodyByte;
+        for (int offset = 0; offset < interruptAt; offset += BLETransport.DEFAULT_MTU_BYTES) {
+            receiver.dataReceived(Arrays.copyOfRange(serialized, offset, Math.min(offset + BLETransport.DEFAULT_MTU_BYTES, interruptAt)));
+        }
+
+        assertEquals(outgoing.getId(), receiver.getCurrentMessage().getId());
+        assertTrue(receiver.suspend());
+        assertNull(received.get());
+
+        int offset = store.getOffset(PEER_KEY, outgoing.getId());
+        assertEquals(interruptAtBodyByte, offset);
+
+        // The sender learns the offset and sends only the remainder
+        DataTransferMessage resumed = outgoing.resumeAt(offset);
+        assertEquals(outgoing, resumed);
+        assertEquals(offset, resumed.getBodyOffset());
+
+        SessionMessageDeserializer resumingReceiver = createReceiver(received, error);
+        resumingReceiver.setResumeStore(store, PEER_KEY);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(resumed);
+        long sentBytes = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES * 100)) != null) {
+            resumingReceiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+            sentBytes += chunk.length;
+        }
+
+        assertNull(error.get());
+        assertEquals(resumed.getTotalLengthBytes(SessionMessage.HEADER_VERSION_JSON), sentBytes);
+        assertTrue(sentBytes < outgoing.getTotalLengthBytes(SessionMessage.HEADER_VERSION_JSON) - offset + 100);
+        assertTrue(received.get() instanceof DataTransferMessage);
+        assertFalse(received.get().getHeaders().containsKey(SessionMessage.HEADER_BODY_OFFSET));
+        assertEquals(0, store.size());
+
+        return (DataTransferMessage) received.get();
+    }
+
+    private SessionMessage roundTrip(SessionMessage message, int version) {
+        AtomicReference<SessionMessage> received = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setHeaderVersion(version);
+        createReceiver(received, error).dataReceived(sender.getNextChunk((int) message.getTotalLengthBytes(version)));
+
+        assertNull(error.get());
+        return received.get();
+    }
+
+    private SessionMessageDeserializer createReceiver(final AtomicReference<SessionMessage> received,
+                                                     final AtomicReference<Exception> error) {
+
+        return new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        if (e != null) error.set(e);
+                        else received.set(message);
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,152 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.Pair;
+import pro.dbro.airshare.transport.ble.BLETransport;
+import timber.log.Timber;
+
+/**
+ * Compares throughput of stop-and-wait against a sliding send window over a
+ * simulated link where each chunk is acknowledged after a fixed latency
+ */
+public class SendWindowBenchmarkTest extends ApplicationTestCase<Application> {
+
+    private static final int CHUNK_COUNT = 40;
+
+    private static final int WINDOW_CHUNKS = 8;
+
+    private static final int[] ACK_LATENCIES_MS = {10, 50, 100};
+
+    public SendWindowBenchmarkTest() {
+        super(Application.class);
+    }
+
+    public void testWindowThroughputAtLatency() throws Exception {
+        byte[] payload = new byte[BLETransport.DEFAULT_MTU_BYTES * CHUNK_COUNT];
+        new Random().nextBytes(payload);
+
+        for (int latencyMs : ACK_LATENCIES_MS) {
+            long stopAndWaitMs = timeTransfer(payload, 1, latencyMs);
+            long windowMs = timeTransfer(payload, WINDOW_CHUNKS, latencyMs);
+
+            Timber.d("%d ms ack latency: stop-and-wait %.1f kB/s, %d chunk window %.1f kB/s",
+                     latencyMs,
+                     payload.length / (float) stopAndWaitMs,
+                     WINDOW_CHUNKS,
+                     payload.length / (float) windowMs);
+
+            assertTrue(String.format("Window (%d ms) not faster than stop-and-wait (%d ms)", windowMs, stopAndWaitMs),
+                       windowMs < stopAndWaitMs);
+        }
+    }
+
+    public void testProgressReportedOnAck() {
+        byte[] payload = new byte[BLETransport.DEFAULT_MTU_BYTES * CHUNK_COUNT];
+        SessionMessage message = DataTransferMessage.createOutgoing(null, payload);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setWindowSize(WINDOW_CHUNKS);
+
+        int sent = 0;
+        while (sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES) != null) sent++;
+        assertEquals(WINDOW_CHUNKS, sent);
+        assertFalse(sender.hasWindowCapacity());
+
+        // Progress must reflect acknowledged rather than serialized bytes
+        Pair<SessionMessage, Float> ack = sender.ackChunkDelivery();
+        assertEquals(message, ack.first);
+        assertEquals(BLETransport.DEFAULT_MTU_BYTES / (float) message.getTotalLengthBytes(SessionMessage.HEADER_VERSION_JSON),
+                     ack.second, 0.0001f);
+
+        float lastProgress = ack.second;
+        while (sender.isAwaitingAck()) {
+            //noinspection StatementWithEmptyBody
+            while (sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES) != null);
+
+            ack = sender.ackChunkDelivery();
+            assertTrue(ack.second > lastProgress);
+            lastProgress = ack.second;
+        }
+        assertEquals(1f, lastProgress);
+    }
+
+    /**
+     * Transfer payload over a link acknowledging each chunk latencyMs after it is sent
+     *
+     * @return elapsed milliseconds
+     */
+    private long timeTransfer(byte[] payload, int windowChunks, int latencyMs) throws InterruptedException {
+
+        final AtomicReference<SessionMessage> received = new AtomicReference<>();
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        received.set(message);
+                    }
+                }
+        );
+
+        SessionMessage message = DataTransferMessage.createOutgoing(null, payload);
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setWindowSize(windowChunks);
+
+        DelayQueue<PendingAck> acks = new DelayQueue<>();
+        long start = System.nanoTime();
+
+        while (true) {
+            byte[] chunk;
+            while ((chunk = sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES)) != null) {
+                receiver.dataReceived(chunk.clone());
+                acks.add(new PendingAck(latencyMs));
+            }
+
+            if (!sender.isAwaitingAck()) break;
+
+            acks.take();
+            sender.ackChunkDelivery();
+        }
+
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(message, received.get());
+        return elapsedMs;
+    }
+
+    private static class PendingAck implements Delayed {
+
+        private final long mDueNs;
+
+        PendingAck(int latencyMs) {
+            mDueNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latencyMs);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDueNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed another) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), another.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.transport.ble.BLETransport;
+
+/**
+ * Tests {@link SessionMessageDeserializer} behavior over long-lived sessions
+ */
+public class SessionMessageDeserializerTest extends ApplicationTestCase<Application> {
+
+    private static final int MESSAGE_COUNT = 100 * 1000;
+
+    /** The receive buffer should never need to grow beyond its initial capacity for small messages */
+    private static final int MAX_BUFFER_BYTES = 5 * 1000;
+
+    /** Large enough to be stored on disk by the receiver */
+    private static final int DISK_BODY_BYTES = 3 * 1000 * 1000;
+
+    public SessionMessageDeserializerTest() {
+        super(Application.class);
+    }
+
+    public void testBufferBoundedOverLongSession() {
+
+        final AtomicInteger onCompleteCount = new AtomicInteger(0);
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        onCompleteCount.incrementAndGet();
+                    }
+                }
+        );
+
+        // Pack serialized messages back-to-back into MTU-sized chunks so that
+        // message boundaries regularly fall within a single chunk
+        ByteBuffer chunk = ByteBuffer.allocate(BLETransport.DEFAULT_MTU_BYTES);
+        int maxCapacity = 0;
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            byte[] payload = ("Message #" + i).getBytes();
+            ByteBuffer serialized = ByteBuffer.wrap(DataTransferMessage.createOutgoing(null, payload).serialize());
+
+            while (serialized.hasRemaining()) {
+                int toCopy = Math.min(chunk.remaining(), serialized.remaining());
+                chunk.put(serialized.array(), serialized.position(), toCopy);
+                serialized.position(serialized.position() + toCopy);
+
+                if (!chunk.hasRemaining()) {
+                    receiver.dataReceived(chunk.array().clone());
+                    chunk.clear();
+                    maxCapacity = Math.max(maxCapacity, receiver.getBufferCapacityBytes());
+                }
+            }
+        }
+
+        if (chunk.position() > 0) {
+            byte[] remaining = new byte[chunk.position()];
+            System.arraycopy(chunk.array(), 0, remaining, 0, remaining.length);
+            receiver.dataReceived(remaining);
+        }
+
+        assertEquals(MESSAGE_COUNT, onCompleteCount.get());
+        assertTrue("Receive buffer grew to " + maxCapacity + " bytes", maxCapacity <= MAX_BUFFER_BYTES);
+    }
+
+    public void testBufferShrinksAfterLargeMessage() {
+
+        final AtomicInteger onCompleteCount = new AtomicInteger(0);
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        onCompleteCount.incrementAndGet();
+                    }
+                }
+        );
+
+        byte[] serialized = DataTransferMessage.createOutgoing(null, new byte[100 * 1000]).serialize();
+        int halfLength = serialized.length / 2;
+
+        receiver.dataReceived(Arrays.copyOfRange(serialized, 0, halfLength));
+        assertTrue(receiver.getBufferCapacityBytes() > MAX_BUFFER_BYTES);
+
+        receiver.dataReceived(Arrays.copyOfRange(serialized, halfLength, serialized.length));
+        assertEquals(1, onCompleteCount.get());
+        assertTrue(receiver.getBufferCapacityBytes() <= MAX_BUFFER_BYTES);
+    }
+
+    public void testDiskBackedBodyRoundTrip() throws Exception {
+
+        byte[] payload = new byte[DISK_BODY_BYTES];
+        new Random().nextBytes(payload);
+
+        File outgoingFile = new File(getContext().getCacheDir(), "outgoing.body");
+        FileOutputStream outgoingStream = new FileOutputStream(outgoingFile);
+        outgoingStream.write(payload);
+        outgoingStream.close();
+
+        FileChannel outgoingChannel = new RandomAccessFile(outgoingFile, "r").getChannel();
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(null, outgoingChannel);
+        assertEquals(DISK_BODY_BYTES, outgoing.getBodyLengthBytes());
+
+        final AtomicReference<SessionMessage> received = new AtomicReference<>();
+
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        received.set(message);
+                    }
+                }
+        );
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(outgoing);
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES * 100)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        assertTrue(received.get() instanceof DataTransferMessage);
+        DataTransferMessage incoming = (DataTransferMessage) received.get();
+        assertTrue(incoming.isDiskBacked());
+        assertEquals(DISK_BODY_BYTES, incoming.getBodyFile().length());
+
+        byte[] receivedPayload = new byte[DISK_BODY_BYTES];
+        InputStream body = incoming.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = body.read(receivedPayload, totalRead, DISK_BODY_BYTES - totalRead)) > 0) {
+            totalRead += read;
+        }
+        body.close();
+
+        assertTrue(Arrays.equals(payload, receivedPayload));
+        assertTrue(receiver.getBufferCapacityBytes() <= MAX_BUFFER_BYTES);
+
+        outgoingChannel.close();
+        assertTrue(outgoingFile.delete());
+        assertTrue(incoming.getBodyFile().delete());
+    }
+}
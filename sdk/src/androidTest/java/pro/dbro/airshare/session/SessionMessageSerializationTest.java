@@ -7,6 +7,7 @@ import android.test.ApplicationTestCase;
 import com.google.common.util.concurrent.AtomicDouble;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -47,7 +48,7 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
         KeyPair keyPair = SodiumShaker.generateKeyPair();
         LocalPeer localPeer = new LocalPeer(getContext(), keyPair, "dbro");
 
-        messages.add(new IdentityMessage(getContext(), localPeer));
+        messages.add(new IdentityMessage(localPeer));
     }
 
     private void initializeDataTransferMessage(List<SessionMessage> messages) {
@@ -60,8 +61,8 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
         byte[] longPayload = new byte[16000];
 
 
-        DataTransferMessage shortDataTransferMessage = new DataTransferMessage(null, shortPayload);
-        DataTransferMessage longDataTransferMessage = new DataTransferMessage(null, longPayload);
+        DataTransferMessage shortDataTransferMessage = DataTransferMessage.createOutgoing(null, shortPayload);
+        DataTransferMessage longDataTransferMessage = DataTransferMessage.createOutgoing(null, longPayload);
 
         messages.add(shortDataTransferMessage);
         messages.add(longDataTransferMessage);
@@ -125,6 +126,29 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
         return true;
     }
 
+    public void testSerializeIntoMatchesSerialize() {
+        // Reuse a single destination buffer across chunks, as SessionMessageSerializer does
+        ByteBuffer chunk = ByteBuffer.allocate(20);
+
+        for (SessionMessage message : messages) {
+            byte[] expected = message.serialize();
+            ByteBuffer actual = ByteBuffer.allocate(expected.length);
+
+            int offset = 0;
+            int bytesWritten;
+            chunk.clear();
+            while ((bytesWritten = message.serializeInto(chunk, offset)) > 0) {
+                chunk.flip();
+                actual.put(chunk);
+                chunk.clear();
+                offset += bytesWritten;
+            }
+
+            assertEquals(expected.length, offset);
+            assertTrue(Arrays.equals(expected, actual.array()));
+        }
+    }
+
     public void testSerializationAndDeserialization() throws InterruptedException {
 
         final AtomicBoolean isComplete = new AtomicBoolean(false);
@@ -136,7 +160,7 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
 
         SessionMessageSerializer sender = new SessionMessageSerializer(messages);
 
-        SessionMessageDeserializer receiver = new SessionMessageDeserializer(mContext,
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(new ContextBodyStorage(mContext),
 
                 new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
 
@@ -174,7 +198,7 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
             serializedBytes.addAndGet(chunk.length);
 
             receiver.dataReceived(chunk);
-
+            sender.ackChunkDelivery();
         }
 
         assertEquals(onCompleteCount.get(), messages.size());
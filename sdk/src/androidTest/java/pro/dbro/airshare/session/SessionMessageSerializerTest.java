@@ -0,0 +1,64 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import pro.dbro.airshare.transport.ble.BLETransport;
+import timber.log.Timber;
+
+/**
+ * Tests {@link SessionMessageSerializer} behavior over long-lived sessions
+ */
+public class SessionMessageSerializerTest extends ApplicationTestCase<Application> {
+
+    private static final int MESSAGE_COUNT = 1000 * 1000;
+
+    private static final int BUCKET_COUNT = 10;
+
+    private static final int WINDOW_CHUNKS = 8;
+
+    /** Allowed ratio of the slowest to the first (JIT warm-up inclusive) bucket's mean ack time */
+    private static final int MAX_ACK_COST_GROWTH = 3;
+
+    public SessionMessageSerializerTest() {
+        super(Application.class);
+    }
+
+    public void testAckCostConstantOverLongSession() {
+        // Each message fits within a single chunk, so every ack completes a message
+        SessionMessage message = DataTransferMessage.createOutgoing(null, "Hi".getBytes());
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setWindowSize(WINDOW_CHUNKS);
+
+        int messagesPerBucket = MESSAGE_COUNT / BUCKET_COUNT;
+        long[] bucketAckNs = new long[BUCKET_COUNT];
+        int queued = 1;
+        int acked = 0;
+
+        while (acked < MESSAGE_COUNT) {
+            while (queued < MESSAGE_COUNT && sender.hasWindowCapacity()) {
+                sender.queueMessage(message);
+                queued++;
+            }
+
+            //noinspection StatementWithEmptyBody
+            while (sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES) != null);
+
+            long start = System.nanoTime();
+            assertNotNull(sender.ackChunkDelivery());
+            bucketAckNs[acked / messagesPerBucket] += System.nanoTime() - start;
+            acked++;
+        }
+
+        long firstBucketNs = bucketAckNs[0];
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            Timber.d("Messages %d-%d: %d ns/ack", bucket * messagesPerBucket, (bucket + 1) * messagesPerBucket,
+                     bucketAckNs[bucket] / messagesPerBucket);
+
+            assertTrue(String.format("Ack cost grew from %d to %d ns", firstBucketNs / messagesPerBucket,
+                                     bucketAckNs[bucket] / messagesPerBucket),
+                       bucketAckNs[bucket] <= firstBucketNs * MAX_ACK_COST_GROWTH);
+        }
+    }
+}
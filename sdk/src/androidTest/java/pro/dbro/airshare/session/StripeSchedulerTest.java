@@ -0,0 +1,241 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests {@link StripeScheduler} rate estimation and proportional division, and that a body
+ * striped over two simulated links of different bandwidth is reassembled by offset and
+ * completes in about the time their combined bandwidth allows.
+ */
+public class StripeSchedulerTest extends ApplicationTestCase<Application> {
+
+    private static final String SLOW_LINK = "slow";
+    private static final String FAST_LINK = "fast";
+
+    private static final int SLOW_BYTES_PER_S = 200 * 1000;
+    private static final int FAST_BYTES_PER_S = 800 * 1000;
+
+    private static final int SLOW_MTU_BYTES = 512;
+    private static final int FAST_MTU_BYTES = 16 * 1024;
+
+    private static final int TICK_MS = 5;
+
+    private static final byte[] PEER_KEY = new byte[] {1, 2, 3, 4};
+
+    public StripeSchedulerTest() {
+        super(Application.class);
+    }
+
+    public void testEstimatorConvergesOnSteadyRate() {
+        LinkRateEstimator estimator = new LinkRateEstimator();
+
+        // 1000 bytes every 10 ms
+        for (long nowMs = 0; nowMs <= 2000; nowMs += 10) estimator.onBytesAcked(1000, nowMs);
+        assertEquals(100 * 1000, estimator.getBytesPerSecond(), 1000);
+
+        // An idle period is not a slow sample
+        int samples = estimator.getSampleCount();
+        for (long nowMs = 10000; nowMs <= 10050; nowMs += 10) estimator.onBytesAcked(1000, nowMs);
+        assertEquals(samples, estimator.getSampleCount());
+        assertEquals(100 * 1000, estimator.getBytesPerSecond(), 1000);
+    }
+
+    public void testScheduleProportionalToRate() {
+        StripeScheduler scheduler = new StripeScheduler();
+        warmUp(scheduler, SLOW_LINK, 100 * 1000);
+        warmUp(scheduler, FAST_LINK, 300 * 1000);
+
+        int bodyLength = 10 * 1000 * 1000;
+        List<StripeScheduler.Stripe> stripes = scheduler.schedule(bodyLength, Arrays.asList(SLOW_LINK, FAST_LINK));
+
+        assertEquals(2, stripes.size());
+        assertEquals(FAST_LINK, stripes.get(0).identifier);
+        assertEquals(0, stripes.get(0).offset);
+        assertEquals(bodyLength * 3 / 4, stripes.get(0).length, bodyLength / 100);
+        assertEquals(stripes.get(0).length, stripes.get(1).offset);
+        assertEquals(bodyLength, stripes.get(1).offset + stripes.get(1).length);
+    }
+
+    public void testSmallBodiesAndUnmeasuredLinksNotStriped() {
+        StripeScheduler scheduler = new StripeScheduler();
+        warmUp(scheduler, SLOW_LINK, 100 * 1000);
+        warmUp(scheduler, FAST_LINK, 300 * 1000);
+
+        // The slow link's share would fall below the minimum stripe
+        assertTrue(scheduler.schedule(StripeScheduler.DEFAULT_MIN_STRIPE_BYTES * 2, Arrays.asList(SLOW_LINK, FAST_LINK)).isEmpty());
+
+        // A link without an estimate receives no stripe
+        assertTrue(scheduler.schedule(10 * 1000 * 1000, Arrays.asList(FAST_LINK, "unmeasured")).isEmpty());
+
+        scheduler.removeLink(SLOW_LINK);
+        assertEquals(0.0, scheduler.getBytesPerSecond(SLOW_LINK));
+    }
+
+    public void testMemoryBodyStripedOverTwoLinks() throws Exception {
+        DataTransferMessage incoming = transferStriped(1500 * 1000);
+        assertFalse(incoming.isDiskBacked());
+    }
+
+    public void testDiskBodyStripedOverTwoLinks() throws Exception {
+        DataTransferMessage incoming = transferStriped(3 * 1000 * 1000);
+        assertTrue(incoming.isDiskBacked());
+        assertTrue(incoming.getBodyFile().delete());
+    }
+
+    /**
+     * Measure two links by sending a message over each, then stripe a body of bodyLength
+     * across both and verify its reassembly and duration
+     */
+    private DataTransferMessage transferStriped(int bodyLength) throws Exception {
+        StripeScheduler scheduler = new StripeScheduler();
+        StripeAssembler assembler = new StripeAssembler(new ContextBodyStorage(getContext()));
+        AtomicReference<SessionMessage> received = new AtomicReference<>();
+
+        List<SimulatedLink> links = new ArrayList<>();
+        links.add(new SimulatedLink(SLOW_LINK, SLOW_BYTES_PER_S, SLOW_MTU_BYTES, assembler, received));
+        links.add(new SimulatedLink(FAST_LINK, FAST_BYTES_PER_S, FAST_MTU_BYTES, assembler, received));
+
+        // Measure each link with a message of about one second's transmission
+        long nowMs = 0;
+        for (SimulatedLink link : links)
+            link.sender.queueMessage(DataTransferMessage.createOutgoing(null, new byte[link.bytesPerSecond]));
+        nowMs = run(links, scheduler, nowMs);
+        received.set(null);
+
+        assertEquals(SLOW_BYTES_PER_S, scheduler.getBytesPerSecond(SLOW_LINK), SLOW_BYTES_PER_S / 10);
+        assertEquals(FAST_BYTES_PER_S, scheduler.getBytesPerSecond(FAST_LINK), FAST_BYTES_PER_S / 10);
+
+        byte[] payload = new byte[bodyLength];
+        new Random().nextBytes(payload);
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(null, payload);
+
+        List<StripeScheduler.Stripe> stripes = scheduler.schedule(bodyLength, Arrays.asList(SLOW_LINK, FAST_LINK));
+        assertEquals(2, stripes.size());
+
+        for (StripeScheduler.Stripe stripe : stripes) {
+            for (SimulatedLink link : links) {
+                if (link.identifier.equals(stripe.identifier))
+                    link.sender.queueMessage(outgoing.stripe(stripe.offset, stripe.length));
+            }
+        }
+
+        long startMs = nowMs;
+        long durationMs = run(links, scheduler, nowMs) - startMs;
+
+        // Both links finish together, well ahead of the fast link alone
+        long expectedMs = bodyLength * 1000L / (SLOW_BYTES_PER_S + FAST_BYTES_PER_S);
+        assertEquals(expectedMs, durationMs, expectedMs / 10);
+        assertTrue(durationMs < bodyLength * 1000L / FAST_BYTES_PER_S * 0.9);
+
+        assertTrue(received.get() instanceof DataTransferMessage);
+        DataTransferMessage incoming = (DataTransferMessage) received.get();
+        assertEquals(outgoing, incoming);
+        assertFalse(incoming.getHeaders().containsKey(SessionMessage.HEADER_STRIPE_LENGTH));
+        assertTrue(Arrays.equals(payload, readBody(incoming)));
+        assertEquals(0, assembler.getAssemblyCount());
+
+        return incoming;
+    }
+
+    /**
+     * Transmit each link's queued messages at its bandwidth until all are delivered
+     *
+     * @return the simulated time of completion
+     */
+    private static long run(List<SimulatedLink> links, StripeScheduler scheduler, long nowMs) {
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            nowMs += TICK_MS;
+            for (SimulatedLink link : links) busy |= link.tick(scheduler, nowMs);
+        }
+        return nowMs;
+    }
+
+    private static void warmUp(StripeScheduler scheduler, String identifier, int bytesPerSecond) {
+        for (long nowMs = 0; nowMs <= 2000; nowMs += 10) scheduler.onBytesAcked(identifier, bytesPerSecond / 100, nowMs);
+    }
+
+    private static byte[] readBody(DataTransferMessage message) throws Exception {
+        byte[] body = new byte[message.getBodyLengthBytes()];
+        InputStream stream = message.getBodyStream();
+        int totalRead = 0, read;
+        while ((read = stream.read(body, totalRead, body.length - totalRead)) > 0) totalRead += read;
+        stream.close();
+        return body;
+    }
+
+    /**
+     * A link that delivers chunks to its receiver, and acknowledges them, at a fixed bandwidth
+     */
+    private class SimulatedLink {
+
+        final String identifier;
+        final int bytesPerSecond;
+        final int mtu;
+        final SessionMessageSerializer sender = new SessionMessageSerializer(Collections.<SessionMessage>emptyList());
+        final SessionMessageDeserializer receiver;
+
+        /** Bytes the link may transmit before the next chunk is delayed */
+        double budget;
+
+        SimulatedLink(String identifier,
+                      int bytesPerSecond,
+                      int mtu,
+                      StripeAssembler assembler,
+                      final AtomicReference<SessionMessage> received) {
+
+            this.identifier = identifier;
+            this.bytesPerSecond = bytesPerSecond;
+            this.mtu = mtu;
+
+            receiver = new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                    new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                        @Override
+                        public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                        @Override
+                        public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                        @Override
+                        public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                            assertNull(e);
+                            received.set(message);
+                        }
+                    }
+            );
+            receiver.setStripeAssembler(assembler, PEER_KEY);
+        }
+
+        /**
+         * @return whether the link had data to send
+         */
+        boolean tick(StripeScheduler scheduler, long nowMs) {
+            if (sender.getCurrentMessage() == null) {
+                budget = 0;
+                return false;
+            }
+
+            budget += bytesPerSecond * TICK_MS / 1000.0;
+            byte[] chunk;
+            while (budget >= mtu && (chunk = sender.getNextChunk(mtu)) != null) {
+                budget -= chunk.length;
+                receiver.dataReceived(chunk);
+                sender.ackChunkDelivery();
+                scheduler.onBytesAcked(identifier, chunk.length, nowMs);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package pro.dbro.airshare.transport.ble;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.session.ContextBodyStorage;
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.SessionManager;
+import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMessageDeserializer;
+import pro.dbro.airshare.session.SessionMessageSerializer;
+import timber.log.Timber;
+
+/**
+ * Compares acknowledged write / indication against bulk write-without-response / notification
+ * with {@link CreditFlowController} over a simulated GATT link with a fixed connection interval.
+ *
+ * An acknowledged operation occupies a connection event awaiting its response, while unacknowledged
+ * packets may be sent back to back, up to {@link #PACKETS_PER_EVENT} in each direction per event.
+ * Also compares acknowledged transfer at the default and maximum ATT MTU.
+ */
+public class BulkTransferBenchmarkTest extends ApplicationTestCase<Application> {
+
+    private static final int BODY_BYTES = 100 * 1000;
+
+    private static final int CONNECTION_INTERVAL_MS = 30;
+
+    /** Packets a controller will exchange in each direction per connection event */
+    private static final int PACKETS_PER_EVENT = 6;
+
+    public BulkTransferBenchmarkTest() {
+        super(Application.class);
+    }
+
+    public void testBulkFasterThanAcknowledged() {
+        byte[] payload = new byte[BODY_BYTES];
+        new Random().nextBytes(payload);
+
+        int acknowledgedEvents = transferAcknowledged(payload, BLETransport.DEFAULT_MTU_BYTES);
+        int bulkEvents         = transferBulk(payload);
+
+        Timber.d("%d byte body over %d ms connection interval. Acknowledged: %.1f kB/s, Bulk: %.1f kB/s",
+                 BODY_BYTES,
+                 CONNECTION_INTERVAL_MS,
+                 BODY_BYTES / (float) (acknowledgedEvents * CONNECTION_INTERVAL_MS),
+                 BODY_BYTES / (float) (bulkEvents * CONNECTION_INTERVAL_MS));
+
+        assertTrue(String.format("Bulk (%d events) not faster than acknowledged (%d events)", bulkEvents, acknowledgedEvents),
+                   bulkEvents < acknowledgedEvents);
+    }
+
+    public void testMaxMtuFasterThanDefault() {
+        byte[] payload = new byte[BODY_BYTES];
+        new Random().nextBytes(payload);
+
+        int defaultMtuEvents = transferAcknowledged(payload, BLETransport.DEFAULT_MTU_BYTES - BLETransport.ATT_HEADER_BYTES);
+        int maxMtuEvents     = transferAcknowledged(payload, BLETransport.MAX_MTU_BYTES - BLETransport.ATT_HEADER_BYTES);
+
+        Timber.d("%d byte body over %d ms connection interval. %d byte MTU: %.1f kB/s, %d byte MTU: %.1f kB/s",
+                 BODY_BYTES,
+                 CONNECTION_INTERVAL_MS,
+                 BLETransport.DEFAULT_MTU_BYTES,
+                 BODY_BYTES / (float) (defaultMtuEvents * CONNECTION_INTERVAL_MS),
+                 BLETransport.MAX_MTU_BYTES,
+                 BODY_BYTES / (float) (maxMtuEvents * CONNECTION_INTERVAL_MS));
+
+        // Every chunk but the last fills the link's payload
+        int maxPayload = BLETransport.MAX_MTU_BYTES - BLETransport.ATT_HEADER_BYTES;
+        long totalBytes = DataTransferMessage.createOutgoing(null, payload).getTotalLengthBytes(SessionMessage.HEADER_VERSION_JSON);
+        assertEquals((totalBytes + maxPayload - 1) / maxPayload, maxMtuEvents);
+        assertTrue(maxMtuEvents < defaultMtuEvents);
+    }
+
+    public void testCreditRequestedWhenSenderRunsOut() {
+        CreditFlowController sender   = new CreditFlowController(4);
+        CreditFlowController receiver = new CreditFlowController(4);
+        List<byte[]> acked = new ArrayList<>();
+
+        for (int i = 0; i < 6; i++) sender.queue(new byte[] {(byte) i});
+
+        int sent = 0;
+        byte lastType = -1;
+        byte[] packet;
+        while ((packet = sender.nextPacket()) != null) {
+            sender.packetSent();
+            lastType = packet[0];
+            assertNotNull(receiver.onPacketReceived(packet, acked));
+            sent++;
+        }
+
+        // The window is exhausted, and the last packet requested credit
+        assertEquals(4, sent);
+        assertEquals(0, sender.getCredits());
+        assertEquals(CreditFlowController.PACKET_DATA_ACK_REQ, lastType);
+
+        byte[] credit = receiver.nextPacket();
+        assertNotNull(credit);
+        assertEquals(CreditFlowController.PACKET_CREDIT, credit[0]);
+        receiver.packetSent();
+        assertFalse(receiver.hasPacketToSend());
+
+        assertNull(sender.onPacketReceived(credit, acked));
+        assertEquals(4, acked.size());
+        for (int i = 0; i < acked.size(); i++) assertEquals(i, acked.get(i)[0]);
+        assertEquals(0, sender.getUnackedPacketCount());
+        assertTrue(sender.hasPacketToSend());
+    }
+
+    /**
+     * Transfer payload one acknowledged operation per connection event, as with
+     * {@link BLECentral#write(byte[], java.util.UUID, String)} using the default write type
+     *
+     * @param mtu largest chunk carried by a single operation
+     * @return connection events elapsed
+     */
+    private int transferAcknowledged(byte[] payload, int mtu) {
+        AtomicReference<SessionMessage> received = new AtomicReference<>();
+        SessionMessageDeserializer receiver = createReceiver(received);
+
+        SessionMessage message = DataTransferMessage.createOutgoing(null, payload);
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setWindowSize(SessionManager.DEFAULT_SEND_WINDOW_CHUNKS);
+
+        int events = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(mtu)) != null) {
+            receiver.dataReceived(chunk.clone());
+            sender.ackChunkDelivery();
+            events++;
+        }
+
+        assertEquals(message, received.get());
+        return events;
+    }
+
+    /**
+     * Transfer payload via unacknowledged packets paced by {@link CreditFlowController}
+     *
+     * @return connection events elapsed
+     */
+    private int transferBulk(byte[] payload) {
+        AtomicReference<SessionMessage> received = new AtomicReference<>();
+        SessionMessageDeserializer receiver = createReceiver(received);
+
+        SessionMessage message = DataTransferMessage.createOutgoing(null, payload);
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        sender.setWindowSize(SessionManager.DEFAULT_SEND_WINDOW_CHUNKS);
+
+        CreditFlowController senderFlow   = new CreditFlowController();
+        CreditFlowController receiverFlow = new CreditFlowController();
+        List<byte[]> acked = new ArrayList<>();
+
+        // Each packet carries the same payload per chunk as an acknowledged operation
+        int mtu = BLETransport.DEFAULT_MTU_BYTES - CreditFlowController.PACKET_OVERHEAD_BYTES;
+        int events = 0;
+
+        while (received.get() == null) {
+            byte[] chunk;
+            while ((chunk = sender.getNextChunk(mtu)) != null) senderFlow.queue(chunk);
+
+            exchange(senderFlow, receiverFlow, receiver, acked);
+            exchange(receiverFlow, senderFlow, receiver, acked);
+
+            for (int i = 0; i < acked.size(); i++) sender.ackChunkDelivery();
+            acked.clear();
+
+            events++;
+            assertTrue("Bulk transfer stalled", events < BODY_BYTES);
+        }
+
+        assertEquals(message, received.get());
+        return events;
+    }
+
+    /**
+     * Deliver up to {@link #PACKETS_PER_EVENT} packets from one controller to another
+     */
+    private static void exchange(CreditFlowController from,
+                                 CreditFlowController to,
+                                 SessionMessageDeserializer receiver,
+                                 List<byte[]> acked) {
+
+        byte[] packet;
+        for (int i = 0; i < PACKETS_PER_EVENT && (packet = from.nextPacket()) != null; i++) {
+            from.packetSent();
+
+            byte[] data = to.onPacketReceived(packet, acked);
+            if (data != null) receiver.dataReceived(data);
+        }
+    }
+
+    private SessionMessageDeserializer createReceiver(final AtomicReference<SessionMessage> received) {
+        return new SessionMessageDeserializer(new ContextBodyStorage(getContext()),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        received.set(message);
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,301 @@
+package pro.dbro.airshare.transport.ble;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.airshare.transport.ble.GattOperationQueue.OperationType;
+
+/**
+ * Tests {@link GattOperationQueue} against {@link FakeGatt}, a stand-in for
+ * {@link android.bluetooth.BluetoothGatt} that, like Android, rejects operations
+ * requested while another is outstanding.
+ */
+public class GattOperationQueueTest extends ApplicationTestCase<Application> {
+
+    private FakeGatt mGatt;
+    private ManualScheduler mScheduler;
+    private GattOperationQueue mQueue;
+
+    public GattOperationQueueTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGatt = new FakeGatt();
+        mScheduler = new ManualScheduler();
+        mQueue = new GattOperationQueue("AA:BB:CC:DD:EE:FF", mScheduler);
+    }
+
+    public void testOperationsSerialized() {
+        // The connection sequence BLECentral performs, followed by data writes
+        assertTrue(mQueue.enqueue(mGatt.operation(OperationType.REQUEST_MTU)));
+        assertTrue(mQueue.enqueue(mGatt.operation(OperationType.DISCOVER_SERVICES)));
+        assertTrue(mQueue.enqueue(mGatt.operation(OperationType.WRITE_DESCRIPTOR)));
+        for (int i = 0; i < 3; i++) assertTrue(mQueue.enqueue(mGatt.operation(OperationType.WRITE_CHARACTERISTIC)));
+        assertTrue(mQueue.enqueue(mGatt.operation(OperationType.READ_RSSI)));
+        assertTrue(mQueue.enqueue(mGatt.operation(OperationType.SET_PHY)));
+
+        assertEquals(8, mQueue.getQueueDepth());
+        assertEquals(1, mGatt.started.size());
+
+        // Each completion starts the next operation before returning
+        while (mGatt.outstanding != null) {
+            int startedBefore = mGatt.started.size();
+            mGatt.complete(mQueue);
+            assertTrue(mGatt.outstanding == null || mGatt.started.size() == startedBefore + 1);
+        }
+
+        assertEquals(0, mGatt.rejected);
+        assertEquals(0, mQueue.getQueueDepth());
+        assertEquals(8, mQueue.getMaxQueueDepth());
+        assertEquals(3, mQueue.getCompletedCount(OperationType.WRITE_CHARACTERISTIC));
+        assertEquals(OperationType.REQUEST_MTU, mGatt.started.get(0));
+        assertEquals(OperationType.SET_PHY, mGatt.started.get(mGatt.started.size() - 1));
+        assertFalse(mScheduler.isScheduled());
+    }
+
+    public void testTimeoutStartsNextOperation() {
+        RecordingOperation stalled = mGatt.operation(OperationType.DISCOVER_SERVICES);
+        mQueue.enqueue(stalled);
+        mQueue.enqueue(mGatt.operation(OperationType.WRITE_DESCRIPTOR));
+
+        // The stack never reports discovery
+        mGatt.outstanding = null;
+        assertTrue(mScheduler.isScheduled());
+        mScheduler.fire();
+
+        assertEquals(Boolean.TRUE, stalled.failedWithTimeout);
+        assertEquals(1, mQueue.getTimeoutCount());
+
+        // The next operation starts once no late completion arrives within another timeout
+        assertNull(mQueue.getCurrentOperationType());
+        assertTrue(mScheduler.isScheduled());
+        mScheduler.fire();
+        assertEquals(OperationType.WRITE_DESCRIPTOR, mQueue.getCurrentOperationType());
+
+        // A completion of the timed-out operation's type not in progress is ignored
+        assertNull(mQueue.onOperationComplete(OperationType.DISCOVER_SERVICES));
+        assertEquals(OperationType.WRITE_DESCRIPTOR, mQueue.getCurrentOperationType());
+
+        mGatt.complete(mQueue);
+        assertEquals(0, mQueue.getQueueDepth());
+        assertFalse(mScheduler.isScheduled());
+    }
+
+    public void testTimeoutFailureReportedWhileAnotherThreadEnqueues() throws InterruptedException {
+        // As BLECentral reports a failed write to the session, which enqueues writes holding the same lock
+        final Object sessionLock = new Object();
+        final RecordingOperation stalled = new RecordingOperation(mGatt, OperationType.WRITE_CHARACTERISTIC) {
+            @Override
+            public void onFailure(boolean timedOut) {
+                synchronized (sessionLock) {
+                    super.onFailure(timedOut);
+                }
+            }
+        };
+        mQueue.enqueue(stalled);
+        mGatt.outstanding = null;
+
+        final CountDownLatch sessionLocked = new CountDownLatch(1);
+        final Thread timeoutThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sessionLocked.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mScheduler.fire();
+            }
+        });
+
+        Thread enqueueThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sessionLock) {
+                    sessionLocked.countDown();
+
+                    // Enqueue once the timeout is reporting failure, and so waiting for the session lock
+                    long deadline = System.currentTimeMillis() + 5 * 1000;
+                    while (timeoutThread.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline)
+                        Thread.yield();
+
+                    mQueue.enqueue(mGatt.operation(OperationType.WRITE_CHARACTERISTIC));
+                }
+            }
+        });
+
+        timeoutThread.setDaemon(true);
+        enqueueThread.setDaemon(true);
+        timeoutThread.start();
+        enqueueThread.start();
+        timeoutThread.join(TimeUnit.SECONDS.toMillis(10));
+        enqueueThread.join(TimeUnit.SECONDS.toMillis(10));
+
+        assertFalse("Deadlocked", timeoutThread.isAlive() || enqueueThread.isAlive());
+        assertEquals(Boolean.TRUE, stalled.failedWithTimeout);
+        assertEquals(1, mQueue.getQueueDepth());
+
+        mScheduler.fire();
+        assertEquals(OperationType.WRITE_CHARACTERISTIC, mQueue.getCurrentOperationType());
+    }
+
+    public void testLateCompletionNotTakenForNextOperation() {
+        RecordingOperation stalled = mGatt.operation(OperationType.WRITE_CHARACTERISTIC);
+        RecordingOperation next = mGatt.operation(OperationType.WRITE_CHARACTERISTIC);
+        mQueue.enqueue(stalled);
+        mQueue.enqueue(next);
+
+        mScheduler.fire();
+        assertEquals(Boolean.TRUE, stalled.failedWithTimeout);
+        assertEquals(1, mGatt.started.size());
+
+        // The stalled write completes late. Its completion is discarded, and the next write started
+        mGatt.outstanding = null;
+        assertNull(mQueue.onOperationComplete(OperationType.WRITE_CHARACTERISTIC));
+        assertEquals(2, mGatt.started.size());
+        assertEquals(OperationType.WRITE_CHARACTERISTIC, mQueue.getCurrentOperationType());
+
+        // Only its own completion completes the next write
+        assertSame(next, mQueue.onOperationComplete(OperationType.WRITE_CHARACTERISTIC));
+        assertNull(next.failedWithTimeout);
+        assertEquals(0, mQueue.getQueueDepth());
+        assertFalse(mScheduler.isScheduled());
+        assertEquals(1, mQueue.getCompletedCount(OperationType.WRITE_CHARACTERISTIC));
+    }
+
+    public void testRejectedOperations() {
+        mGatt.rejectNext = true;
+        RecordingOperation rejected = mGatt.operation(OperationType.REQUEST_MTU);
+
+        // Rejected when started immediately. The caller handles failure
+        assertFalse(mQueue.enqueue(rejected));
+        assertNull(rejected.failedWithTimeout);
+        assertEquals(0, mQueue.getQueueDepth());
+
+        mQueue.enqueue(mGatt.operation(OperationType.DISCOVER_SERVICES));
+        RecordingOperation queuedRejected = mGatt.operation(OperationType.WRITE_CHARACTERISTIC);
+        mQueue.enqueue(queuedRejected);
+        mQueue.enqueue(mGatt.operation(OperationType.READ_RSSI));
+
+        // Rejected when started after the previous completion. Queue proceeds past it
+        mGatt.rejectNext = true;
+        mGatt.complete(mQueue);
+
+        assertEquals(Boolean.FALSE, queuedRejected.failedWithTimeout);
+        assertEquals(OperationType.READ_RSSI, mQueue.getCurrentOperationType());
+        assertEquals(2, mQueue.getStartFailureCount());
+    }
+
+    public void testLatencyRecorded() throws InterruptedException {
+        mQueue.enqueue(mGatt.operation(OperationType.WRITE_CHARACTERISTIC));
+        Thread.sleep(5);
+        mGatt.complete(mQueue);
+
+        assertTrue(mQueue.getMeanLatencyNs(OperationType.WRITE_CHARACTERISTIC) >= 5 * 1000 * 1000);
+        assertEquals(mQueue.getMeanLatencyNs(OperationType.WRITE_CHARACTERISTIC),
+                     mQueue.getMaxLatencyNs(OperationType.WRITE_CHARACTERISTIC));
+        assertEquals(0, mQueue.getMeanLatencyNs(OperationType.READ_RSSI));
+    }
+
+    public void testClearAbandonsOperations() {
+        RecordingOperation current = mGatt.operation(OperationType.WRITE_CHARACTERISTIC);
+        mQueue.enqueue(current);
+        mQueue.enqueue(mGatt.operation(OperationType.WRITE_CHARACTERISTIC));
+
+        mQueue.clear();
+
+        assertEquals(0, mQueue.getQueueDepth());
+        assertFalse(mScheduler.isScheduled());
+        assertNull(current.failedWithTimeout);
+        assertEquals(1, mGatt.started.size());
+    }
+
+    /**
+     * Permits one outstanding operation, rejecting any requested while it is in progress
+     */
+    private static class FakeGatt {
+
+        final List<OperationType> started = new ArrayList<>();
+        OperationType outstanding;
+        boolean rejectNext;
+        int rejected;
+
+        RecordingOperation operation(OperationType type) {
+            return new RecordingOperation(this, type);
+        }
+
+        boolean request(OperationType type) {
+            if (outstanding != null || rejectNext) {
+                rejectNext = false;
+                rejected++;
+                return false;
+            }
+            outstanding = type;
+            started.add(type);
+            return true;
+        }
+
+        /**
+         * Report completion of the outstanding operation, as a BluetoothGattCallback would
+         */
+        void complete(GattOperationQueue queue) {
+            OperationType type = outstanding;
+            outstanding = null;
+            assertNotNull(queue.onOperationComplete(type));
+        }
+    }
+
+    private static class RecordingOperation extends GattOperationQueue.Operation {
+
+        private final FakeGatt mGatt;
+        Boolean failedWithTimeout;
+
+        RecordingOperation(FakeGatt gatt, OperationType type) {
+            super(type);
+            mGatt = gatt;
+        }
+
+        @Override
+        public boolean start() {
+            return mGatt.request(getType());
+        }
+
+        @Override
+        public void onFailure(boolean timedOut) {
+            failedWithTimeout = timedOut;
+        }
+    }
+
+    private static class ManualScheduler implements GattOperationQueue.TimeoutScheduler {
+
+        private Runnable mScheduled;
+
+        @Override
+        public void schedule(Runnable timeout, long delayMs) {
+            mScheduled = timeout;
+        }
+
+        @Override
+        public void cancel(Runnable timeout) {
+            if (mScheduled == timeout) mScheduled = null;
+        }
+
+        boolean isScheduled() {
+            return mScheduled != null;
+        }
+
+        void fire() {
+            Runnable timeout = mScheduled;
+            mScheduled = null;
+            timeout.run();
+        }
+    }
+}
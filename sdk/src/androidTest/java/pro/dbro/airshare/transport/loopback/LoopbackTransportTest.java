@@ -0,0 +1,295 @@
+package pro.dbro.airshare.transport.loopback;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.airshare.crypto.KeyPair;
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.IdentityMessage;
+import pro.dbro.airshare.session.LocalPeer;
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.ResumeMessage;
+import pro.dbro.airshare.session.SessionManager;
+import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMetrics;
+import pro.dbro.airshare.session.SessionTrace;
+import pro.dbro.airshare.transport.Transport;
+
+/**
+ * Tests that {@link SessionManager}s exchange messages over injected {@link LoopbackTransport}s.
+ * The medium itself is tested on a plain JVM by the core module's SimulatedMediumTest
+ */
+public class LoopbackTransportTest extends ApplicationTestCase<Application> {
+
+    private static final String SERVICE_NAME = "SimulatedService";
+
+    private static final long SEED = 42;
+
+    public LoopbackTransportTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SessionTrace.disable();
+        for (String name : new String[] {"alice", "bob"}) delete(getFilesDir(name));
+        super.tearDown();
+    }
+
+    public void testSessionManagersExchangeMessage() throws Exception {
+        long windowLimitedMicros = simulateSessionTransfer(SessionManager.DEFAULT_SEND_WINDOW_CHUNKS);
+        long bandwidthLimitedMicros = simulateSessionTransfer(64);
+
+        // 10 kB as 16 byte frame payloads of 20 byte chunks take 1.25 s at 10 kB/s. A window of
+        // 8 chunks cannot fill a link of this latency, however long it takes to simulate
+        assertTrue(bandwidthLimitedMicros > 1250 * 1000);
+        assertTrue(bandwidthLimitedMicros < 1500 * 1000);
+        assertTrue(windowLimitedMicros > 2 * bandwidthLimitedMicros);
+    }
+
+    public void testSessionMetricsRecordTransfer() {
+        SimulatedMedium medium = new SimulatedMedium(SEED);
+        medium.setDefaultConditions(LinkConditions.BLE);
+
+        final List<SessionMessage> received = new ArrayList<>();
+        final List<Peer> connected = new ArrayList<>();
+
+        SessionManager alice = createSessionManager(medium, "alice", received, connected);
+        SessionManager bob = createSessionManager(medium, "bob", received, connected);
+        assertNull(bob.getMetrics());
+
+        alice.advertiseLocalPeer();
+        bob.scanForPeers();
+        medium.runUntilIdle();
+
+        // Enabled after identification, traffic is still attributed to the peer
+        bob.setMetricsEnabled(true);
+        Peer aliceSeenByBob = bob.getAvailablePeers().iterator().next();
+
+        bob.sendMessage(DataTransferMessage.createOutgoing(null, new byte[1000]), aliceSeenByBob);
+        SessionMetrics.Snapshot sending = bob.getMetrics();
+        assertEquals(1, sending.links.size());
+        SessionMetrics.LinkState link = sending.links.iterator().next();
+        assertEquals(aliceSeenByBob, link.peer);
+        assertEquals(SessionManager.DEFAULT_SEND_WINDOW_CHUNKS, link.chunksInFlight);
+        assertEquals(1, link.queuedMessages);
+
+        medium.runUntilIdle();
+        assertEquals(1, received.size());
+
+        SessionMetrics.Snapshot sent = bob.getMetrics();
+        assertEquals(1, sent.total.messagesSent);
+        assertTrue(sent.total.bytesSent > 1000);
+        assertEquals(sent.total.chunksSent, sent.roundTrips.get(LoopbackTransport.TRANSPORT_CODE).getCount());
+        assertEquals(sent.total.bytesSent, sent.peers.get(aliceSeenByBob).bytesSent);
+        // Acknowledgements are received, but no data
+        assertEquals(0, sent.total.bytesReceived);
+        assertEquals(0, sent.links.iterator().next().chunksInFlight);
+
+        bob.setMetricsEnabled(false);
+        assertNull(bob.getMetrics());
+    }
+
+    public void testInterruptedTransferToLegacyPeerResent() {
+        SimulatedMedium medium = new SimulatedMedium(SEED);
+        medium.setDefaultConditions(LinkConditions.BLE);
+        SessionTrace.enable(SessionTrace.DEFAULT_CAPACITY);
+
+        final List<SessionMessage> received = new ArrayList<>();
+        final List<Peer> connected = new ArrayList<>();
+
+        LoopbackTransport aliceTransport = new LoopbackTransport(medium, "alice", 20, SERVICE_NAME, null);
+        LoopbackTransport bobTransport = new LoopbackTransport(medium, "bob", 20, SERVICE_NAME, null);
+        SessionManager alice = createSessionManager(aliceTransport, SessionMessage.HEADER_VERSION_JSON, received, connected);
+        SessionManager bob = createSessionManager(bobTransport, SessionMessage.SUPPORTED_HEADER_VERSION, received, connected);
+
+        alice.advertiseLocalPeer();
+        bob.scanForPeers();
+        medium.runUntilIdle();
+
+        Peer aliceSeenByBob = bob.getAvailablePeers().iterator().next();
+        assertFalse(aliceSeenByBob.supportsResumption());
+
+        byte[] payload = new byte[10 * 1000];
+        new Random(SEED).nextBytes(payload);
+        bob.sendMessage(DataTransferMessage.createOutgoing(null, payload), aliceSeenByBob);
+
+        medium.runFor(500 * 1000);
+        medium.disconnect(aliceTransport, bobTransport, 1000 * 1000);
+        assertTrue(received.isEmpty());
+
+        // Once reconnected, the message is sent again in full rather than resumed
+        medium.runUntilIdle();
+        assertEquals(1, received.size());
+        DataTransferMessage message = (DataTransferMessage) received.get(0);
+        assertTrue(Arrays.equals(payload, message.getBodyAtOffset(0, payload.length)));
+        assertEquals(4, countHeadersReceived(IdentityMessage.HEADER_TYPE));
+        assertEquals(0, countHeadersReceived(ResumeMessage.HEADER_TYPE));
+    }
+
+    public void testBulkMessageToLegacyPeerNotSegmented() {
+        SimulatedMedium medium = new SimulatedMedium(SEED);
+        medium.setDefaultConditions(LinkConditions.BLE);
+        SessionTrace.enable(SessionTrace.DEFAULT_CAPACITY);
+
+        final List<SessionMessage> received = new ArrayList<>();
+        final List<Peer> connected = new ArrayList<>();
+
+        SessionManager alice = createSessionManager(new LoopbackTransport(medium, "alice", 20, SERVICE_NAME, null),
+                                                    SessionMessage.HEADER_VERSION_JSON, received, connected);
+        SessionManager bob = createSessionManager(medium, "bob", received, connected);
+
+        alice.advertiseLocalPeer();
+        bob.scanForPeers();
+        medium.runUntilIdle();
+
+        Peer aliceSeenByBob = bob.getAvailablePeers().iterator().next();
+        assertFalse(aliceSeenByBob.supportsStripes());
+
+        // Many times the size of a segment, which a legacy peer would take for the whole message
+        byte[] payload = new byte[10 * 1000];
+        new Random(SEED).nextBytes(payload);
+        DataTransferMessage outgoing = DataTransferMessage.createOutgoing(null, payload);
+        outgoing.setPriority(SessionMessage.Priority.BULK);
+        bob.sendMessage(outgoing, aliceSeenByBob);
+        medium.runUntilIdle();
+
+        assertEquals(1, received.size());
+        assertTrue(Arrays.equals(payload, ((DataTransferMessage) received.get(0)).getBodyAtOffset(0, payload.length)));
+        assertEquals(1, countHeadersReceived(DataTransferMessage.HEADER_TYPE));
+    }
+
+    /**
+     * Send 10 kB between two SessionManagers connected by a BLE-like link
+     *
+     * @return the simulated time from sending until the transfer is acknowledged
+     */
+    private long simulateSessionTransfer(int sendWindowChunks) {
+        SimulatedMedium medium = new SimulatedMedium(SEED);
+        medium.setDefaultConditions(LinkConditions.BLE);
+
+        final List<SessionMessage> received = new ArrayList<>();
+        final List<Peer> connected = new ArrayList<>();
+
+        SessionManager alice = createSessionManager(medium, "alice", received, connected);
+        SessionManager bob = createSessionManager(medium, "bob", received, connected);
+        bob.setSendWindow(sendWindowChunks);
+
+        alice.advertiseLocalPeer();
+        bob.scanForPeers();
+        medium.runUntilIdle();
+
+        assertEquals(2, connected.size());
+        Peer aliceSeenByBob = bob.getAvailablePeers().iterator().next();
+
+        byte[] payload = new byte[10 * 1000];
+        new Random(SEED).nextBytes(payload);
+        long start = medium.getTimeMicros();
+        bob.sendMessage(DataTransferMessage.createOutgoing(null, payload), aliceSeenByBob);
+        medium.runUntilIdle();
+
+        assertEquals(1, received.size());
+        DataTransferMessage message = (DataTransferMessage) received.get(0);
+        assertTrue(Arrays.equals(payload, message.getBodyAtOffset(0, payload.length)));
+
+        return medium.getTimeMicros() - start;
+    }
+
+    private SessionManager createSessionManager(SimulatedMedium medium,
+                                                String name,
+                                                final List<SessionMessage> received,
+                                                final List<Peer> connected) {
+
+        return createSessionManager(new LoopbackTransport(medium, name, 20, SERVICE_NAME, null),
+                                    SessionMessage.SUPPORTED_HEADER_VERSION,
+                                    received,
+                                    connected);
+    }
+
+    /**
+     * @param maxHeaderVersion the header version advertised, e.g. {@link SessionMessage#HEADER_VERSION_JSON}
+     *                         to be treated as a peer predating header version negotiation
+     */
+    private SessionManager createSessionManager(LoopbackTransport transport,
+                                                final int maxHeaderVersion,
+                                                final List<SessionMessage> received,
+                                                final List<Peer> connected) {
+
+        String name = transport.getAddress();
+        final File filesDir = getFilesDir(name);
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+        };
+
+        byte[] publicKey = new byte[32];
+        new Random(name.hashCode()).nextBytes(publicKey);
+        LocalPeer localPeer = new LocalPeer(context, new KeyPair(publicKey, new byte[64]), name) {{
+            mMaxHeaderVersion = maxHeaderVersion;
+            // Peers predating header version negotiation also predate feature advertisement
+            if (maxHeaderVersion == SessionMessage.HEADER_VERSION_JSON) mFeatures = Collections.emptySet();
+        }};
+
+        List<Transport> transports = Collections.<Transport>singletonList(transport);
+
+        return new SessionManager(context, SERVICE_NAME, localPeer, transports, new SessionManager.SessionManagerCallback() {
+
+            @Override
+            public void peerStatusUpdated(Peer peer, Transport.ConnectionStatus newStatus, boolean isHost) {
+                if (newStatus == Transport.ConnectionStatus.CONNECTED) connected.add(peer);
+            }
+
+            @Override
+            public void peerTransportUpdated(Peer peer, int newTransportCode, Exception exception) {}
+
+            @Override
+            public void messageReceivingFromPeer(SessionMessage message, Peer recipient, float progress) {}
+
+            @Override
+            public void messageReceivedFromPeer(SessionMessage message, Peer recipient) {
+                received.add(message);
+            }
+
+            @Override
+            public void messageSendingToPeer(SessionMessage message, Peer recipient, float progress) {}
+
+            @Override
+            public void messageSentToPeer(SessionMessage message, Peer recipient, Exception exception) {
+                assertNull(exception);
+            }
+        });
+    }
+
+    /**
+     * @return the number of headers of type recorded received by either SessionManager
+     */
+    private static int countHeadersReceived(String type) {
+        int count = 0;
+        for (String line : SessionTrace.dump().split("\n")) {
+            if (line.contains(" " + SessionTrace.Event.HEADER_RECEIVED + " ") && line.contains(" " + type + " ")) count++;
+        }
+        return count;
+    }
+
+    private File getFilesDir(String name) {
+        return new File(getContext().getCacheDir(), "loopback-test-" + name);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) for (File child : files) delete(child);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,524 @@
+package pro.dbro.airshare.transport.wifi;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Tests {@link SocketEngine} over localhost, comparing its per-chunk latency and idle
+ * wakeups against the socket loop it replaced, which polled for outgoing data between
+ * reads with a 50 ms timeout. Also compares stream throughput with large chunks, socket
+ * buffers and gathering writes against the previous small chunks and default buffers
+ */
+public class SocketEngineTest extends ApplicationTestCase<Application> {
+
+    private static final int CLIENT_COUNT = 3;
+
+    private static final int CHUNK_COUNT = 50;
+
+    private static final int IDLE_MS = 500;
+
+    private static final int POLL_TIMEOUT_MS = 50;
+
+    private static final int TIMEOUT_S = 10;
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private static final int STREAM_BYTES = 100 * 1024 * 1024;
+
+    /** Chunks outstanding at once, as with SessionManager's send window */
+    private static final int STREAM_WINDOW_CHUNKS = 8;
+
+    private static final int STREAM_TIMEOUT_S = 120;
+
+    public SocketEngineTest() {
+        super(Application.class);
+    }
+
+    public void testMultipleClientsPerServer() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(CLIENT_COUNT);
+        final Map<String, byte[]> received = new ConcurrentHashMap<>();
+
+        SocketEngine server = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                assertTrue(accepted);
+                connected.countDown();
+            }
+
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                received.put(identifier, data);
+                // Echo to the sender alone
+                engine.send(identifier, data);
+            }
+        });
+
+        int port = server.listen(0);
+
+        SocketChannel[] clients = new SocketChannel[CLIENT_COUNT];
+        for (int i = 0; i < CLIENT_COUNT; i++) clients[i] = connectFrom(i, port);
+        assertTrue(connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            clients[i].write(ByteBuffer.wrap(new byte[] {(byte) i}));
+        }
+
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            ByteBuffer echo = ByteBuffer.allocate(1);
+            clients[i].read(echo);
+            assertEquals(i, echo.get(0));
+            assertEquals(i, received.get(clientAddress(i))[0]);
+            clients[i].close();
+        }
+
+        server.stop();
+    }
+
+    public void testGroupOwnerServesManyClients() throws Exception {
+        final int clientCount = WifiTransport.MAX_GROUP_CLIENTS;
+        final CountDownLatch connected = new CountDownLatch(clientCount);
+        final Map<String, Byte> received = new ConcurrentHashMap<>();
+
+        SocketEngine server = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                received.put(identifier, data[0]);
+            }
+        });
+
+        int port = server.listen(0, clientCount);
+
+        SocketChannel[] clients = new SocketChannel[clientCount];
+        for (int i = 0; i < clientCount; i++) clients[i] = connectFrom(i, port);
+        assertTrue(connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(clientCount, server.getConnectionCount());
+
+        // A client beyond the limit is closed without being reported
+        SocketChannel rejected = connectFrom(clientCount, port);
+        assertEquals(-1, rejected.read(ByteBuffer.allocate(1)));
+        assertEquals(clientCount, server.getConnectionCount());
+        rejected.close();
+
+        // Each client is a distinct identifier
+        for (int i = 0; i < clientCount; i++) clients[i].write(ByteBuffer.wrap(new byte[] {(byte) i}));
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (received.size() < clientCount && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        for (int i = 0; i < clientCount; i++) assertEquals(i, (byte) received.get(clientAddress(i)));
+
+        // The first client never reads. Its queue backs up without delaying the others
+        byte[] backlog = new byte[16 * SocketEngine.DEFAULT_SOCKET_BUFFER_BYTES];
+        server.send(clientAddress(0), backlog);
+
+        byte[] payload = new byte[256 * 1024];
+        for (int i = 1; i < clientCount; i++) {
+            Arrays.fill(payload, (byte) i);
+            server.send(clientAddress(i), payload.clone());
+        }
+
+        for (int i = 1; i < clientCount; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(payload.length);
+            while (buffer.hasRemaining()) assertTrue(clients[i].read(buffer) > 0);
+            for (byte b : buffer.array()) assertEquals(i, b);
+        }
+
+        for (SocketChannel client : clients) client.close();
+        server.stop();
+    }
+
+    public void testReconnectingClientReplacesConnection() throws Exception {
+        final CountDownLatch reconnected = new CountDownLatch(2);
+        final ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<>();
+
+        SocketEngine server = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                events.add("connected " + identifier);
+                reconnected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(SocketEngine engine, String identifier, boolean accepted) {
+                events.add("disconnected " + identifier);
+            }
+        });
+
+        int port = server.listen(0, 1);
+
+        // The client reconnects before its previous connection is seen to close
+        SocketChannel first = connectFrom(0, port);
+        SocketChannel second = connectFrom(0, port);
+        assertTrue(reconnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        // The previous connection is reported closed before its replacement is reported
+        String client = clientAddress(0);
+        assertEquals(Arrays.asList("connected " + client, "disconnected " + client, "connected " + client),
+                     Arrays.asList(events.toArray()));
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(-1, first.read(ByteBuffer.allocate(1)));
+
+        server.send(client, new byte[] {7});
+        ByteBuffer received = ByteBuffer.allocate(1);
+        assertEquals(1, second.read(received));
+        assertEquals(7, received.get(0));
+
+        first.close();
+        second.close();
+        server.stop();
+    }
+
+    public void testCallbackFailureClosesOnlyItsConnection() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(2);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        SocketEngine server = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                if (data[0] == 0) throw new IllegalStateException("Malformed data from " + identifier);
+                engine.send(identifier, data);
+            }
+
+            @Override
+            public void onDisconnected(SocketEngine engine, String identifier, boolean accepted) {
+                disconnected.countDown();
+            }
+        });
+
+        int port = server.listen(0);
+
+        SocketChannel failing = connectFrom(0, port);
+        SocketChannel healthy = connectFrom(1, port);
+        assertTrue(connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        failing.write(ByteBuffer.wrap(new byte[] {0}));
+        assertTrue(disconnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(-1, failing.read(ByteBuffer.allocate(1)));
+
+        // The engine thread survives to serve the other client
+        healthy.write(ByteBuffer.wrap(new byte[] {1}));
+        ByteBuffer echo = ByteBuffer.allocate(1);
+        assertEquals(1, healthy.read(echo));
+        assertEquals(1, echo.get(0));
+        assertEquals(1, server.getConnectionCount());
+
+        failing.close();
+        healthy.close();
+        server.stop();
+    }
+
+    public void testLatencyAndIdleWakeupsBelowPolling() throws Exception {
+        byte[] chunk = new byte[WifiTransport.DEFAULT_MTU_BYTES];
+        new Random().nextBytes(chunk);
+
+        // Selector engine
+        final CountDownLatch connected = new CountDownLatch(1);
+        final ReceiptTimes engineReceipts = new ReceiptTimes(chunk.length);
+
+        SocketEngine server = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                engineReceipts.onReceived(data.length);
+            }
+        });
+        SocketEngine client = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                connected.countDown();
+            }
+        });
+
+        int port = server.listen(0);
+        client.connect(new InetSocketAddress(LOCALHOST, port));
+        assertTrue(connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        long engineWakeupsBefore = client.getWakeupCount() + server.getWakeupCount();
+        Thread.sleep(IDLE_MS);
+        long engineIdleWakeups = client.getWakeupCount() + server.getWakeupCount() - engineWakeupsBefore;
+
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            engineReceipts.onSent();
+            client.send(LOCALHOST, chunk);
+            engineReceipts.awaitReceipt();
+        }
+
+        client.stop();
+        server.stop();
+
+        // Polling loop
+        PollingSocketLoop polling = new PollingSocketLoop();
+        ReceiptTimes pollingReceipts = polling.receipts(chunk.length);
+
+        long pollingIterationsBefore = polling.iterations.get();
+        Thread.sleep(IDLE_MS);
+        long pollingIdleIterations = polling.iterations.get() - pollingIterationsBefore;
+
+        Random random = new Random();
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            // Queue at varying points in the poll interval
+            Thread.sleep(random.nextInt(POLL_TIMEOUT_MS));
+            pollingReceipts.onSent();
+            polling.outgoing.add(chunk);
+            pollingReceipts.awaitReceipt();
+        }
+        polling.stop();
+
+        Timber.d("Per-chunk latency: engine %d us, polling %d us. Idle wakeups in %d ms: engine %d, polling %d",
+                 engineReceipts.getMeanLatencyUs(), pollingReceipts.getMeanLatencyUs(), IDLE_MS,
+                 engineIdleWakeups, pollingIdleIterations);
+
+        assertTrue(engineReceipts.getMeanLatencyUs() < pollingReceipts.getMeanLatencyUs());
+        assertTrue(engineIdleWakeups < pollingIdleIterations);
+    }
+
+    public void testStreamThroughput() throws Exception {
+        long smallChunkNs = transferStream(WifiTransport.DEFAULT_MTU_BYTES, 0, 1);
+        long streamNs     = transferStream(WifiTransport.STREAM_MTU_BYTES,
+                                           SocketEngine.DEFAULT_SOCKET_BUFFER_BYTES,
+                                           SocketEngine.DEFAULT_MAX_GATHER_BUFFERS);
+
+        Timber.d("%d MB over localhost. %d byte chunks, default buffers: %.1f MB/s. %d byte chunks, %d byte buffers, gathering writes: %.1f MB/s",
+                 STREAM_BYTES / (1024 * 1024),
+                 WifiTransport.DEFAULT_MTU_BYTES,
+                 megabytesPerSecond(smallChunkNs),
+                 WifiTransport.STREAM_MTU_BYTES,
+                 SocketEngine.DEFAULT_SOCKET_BUFFER_BYTES,
+                 megabytesPerSecond(streamNs));
+
+        assertTrue(streamNs < smallChunkNs);
+    }
+
+    /**
+     * Connect to port from a distinct loopback address, as Wi-Fi Direct clients have distinct addresses
+     */
+    private static SocketChannel connectFrom(int client, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(InetAddress.getByName(clientAddress(client)), 0));
+        channel.connect(new InetSocketAddress(LOCALHOST, port));
+        return channel;
+    }
+
+    private static String clientAddress(int client) {
+        return "127.0.0." + (client + 2);
+    }
+
+    /**
+     * Send {@link #STREAM_BYTES} between two engines in chunks of chunkBytes, keeping
+     * {@link #STREAM_WINDOW_CHUNKS} chunks outstanding
+     *
+     * @return nanoseconds from first send to receipt of the final byte
+     */
+    private long transferStream(int chunkBytes, int socketBufferBytes, int maxGatherBuffers) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch complete = new CountDownLatch(1);
+        final AtomicLong receivedBytes = new AtomicLong();
+        final AtomicInteger chunksToSend = new AtomicInteger(STREAM_BYTES / chunkBytes);
+        final byte[] chunk = new byte[chunkBytes];
+        new Random().nextBytes(chunk);
+
+        SocketEngine server = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                if (receivedBytes.addAndGet(data.length) == STREAM_BYTES) complete.countDown();
+            }
+        }, socketBufferBytes, maxGatherBuffers);
+
+        SocketEngine client = new SocketEngine(new CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDataSent(SocketEngine engine, String identifier, byte[] data) {
+                if (chunksToSend.getAndDecrement() > 0) engine.send(identifier, chunk);
+            }
+        }, socketBufferBytes, maxGatherBuffers);
+
+        int port = server.listen(0);
+        client.connect(new InetSocketAddress(LOCALHOST, port));
+        assertTrue(connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        long startNs = System.nanoTime();
+        for (int i = 0; i < STREAM_WINDOW_CHUNKS && chunksToSend.getAndDecrement() > 0; i++) {
+            client.send(LOCALHOST, chunk);
+        }
+        assertTrue(complete.await(STREAM_TIMEOUT_S, TimeUnit.SECONDS));
+        long elapsedNs = System.nanoTime() - startNs;
+
+        client.stop();
+        server.stop();
+        return elapsedNs;
+    }
+
+    private static float megabytesPerSecond(long elapsedNs) {
+        return (STREAM_BYTES / (1024f * 1024f)) / (elapsedNs / (float) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Records latency from each send to receipt of its final byte
+     */
+    private static class ReceiptTimes {
+
+        private final int mChunkBytes;
+        private final AtomicInteger mPendingBytes = new AtomicInteger();
+        private final AtomicLong mTotalLatencyNs = new AtomicLong();
+        private volatile long mSentNs;
+        private volatile CountDownLatch mReceipt;
+        private int mCount;
+
+        ReceiptTimes(int chunkBytes) {
+            mChunkBytes = chunkBytes;
+        }
+
+        void onSent() {
+            mReceipt = new CountDownLatch(1);
+            mPendingBytes.set(mChunkBytes);
+            mSentNs = System.nanoTime();
+        }
+
+        void onReceived(int bytes) {
+            if (mPendingBytes.addAndGet(-bytes) == 0) {
+                mTotalLatencyNs.addAndGet(System.nanoTime() - mSentNs);
+                mReceipt.countDown();
+            }
+        }
+
+        void awaitReceipt() throws InterruptedException {
+            assertTrue(mReceipt.await(TIMEOUT_S, TimeUnit.SECONDS));
+            mCount++;
+        }
+
+        long getMeanLatencyUs() {
+            return TimeUnit.NANOSECONDS.toMicros(mTotalLatencyNs.get() / mCount);
+        }
+    }
+
+    /**
+     * The read / write loop WifiTransport used before {@link SocketEngine}: a blocking read with
+     * a short timeout, after which queued outgoing data is written
+     */
+    private static class PollingSocketLoop {
+
+        final ConcurrentLinkedQueue<byte[]> outgoing = new ConcurrentLinkedQueue<>();
+        final AtomicInteger iterations = new AtomicInteger();
+
+        private final ServerSocket mServerSocket;
+        private final Socket mClient;
+        private final Socket mAccepted;
+        private volatile boolean mRunning = true;
+        private ReceiptTimes mReceipts;
+
+        PollingSocketLoop() throws IOException {
+            mServerSocket = new ServerSocket(0);
+            mClient = new Socket(LOCALHOST, mServerSocket.getLocalPort());
+            mAccepted = mServerSocket.accept();
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    maintainSocket();
+                }
+            }).start();
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readAccepted();
+                }
+            }).start();
+        }
+
+        ReceiptTimes receipts(int chunkBytes) {
+            mReceipts = new ReceiptTimes(chunkBytes);
+            return mReceipts;
+        }
+
+        void stop() throws IOException {
+            mRunning = false;
+            mClient.close();
+            mAccepted.close();
+            mServerSocket.close();
+        }
+
+        private void maintainSocket() {
+            try {
+                mClient.setSoTimeout(POLL_TIMEOUT_MS);
+                InputStream inputStream = mClient.getInputStream();
+                OutputStream outputStream = mClient.getOutputStream();
+                byte[] buf = new byte[WifiTransport.DEFAULT_MTU_BYTES];
+
+                while (mRunning) {
+                    iterations.incrementAndGet();
+                    try {
+                        //noinspection StatementWithEmptyBody
+                        while (inputStream.read(buf) > 0);
+                    } catch (SocketTimeoutException e) {
+                        // No incoming data received
+                    }
+
+                    byte[] buffer;
+                    while ((buffer = outgoing.poll()) != null) outputStream.write(buffer);
+                }
+            } catch (IOException e) {
+                // Closed by stop
+            }
+        }
+
+        private void readAccepted() {
+            try {
+                InputStream inputStream = mAccepted.getInputStream();
+                byte[] buf = new byte[WifiTransport.DEFAULT_MTU_BYTES];
+                int read;
+                while ((read = inputStream.read(buf)) > 0) mReceipts.onReceived(read);
+            } catch (IOException e) {
+                // Closed by stop
+            }
+        }
+    }
+
+    static class CallbackAdapter implements SocketEngine.Callback {
+
+        @Override
+        public void onConnected(SocketEngine engine, String identifier, boolean accepted) {}
+
+        @Override
+        public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {}
+
+        @Override
+        public void onDataSent(SocketEngine engine, String identifier, byte[] data) {}
+
+        @Override
+        public void onDisconnected(SocketEngine engine, String identifier, boolean accepted) {}
+    }
+}
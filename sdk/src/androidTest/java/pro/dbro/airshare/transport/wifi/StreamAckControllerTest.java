@@ -0,0 +1,203 @@
+package pro.dbro.airshare.transport.wifi;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link StreamAckController} framing and windowing, and that over a {@link SocketEngine}
+ * connection, wired as {@link WifiTransport} does, delivery is reported only once the remote
+ * has processed the data.
+ */
+public class StreamAckControllerTest extends ApplicationTestCase<Application> {
+
+    private static final int TIMEOUT_S = 10;
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    public StreamAckControllerTest() {
+        super(Application.class);
+    }
+
+    public void testFramesReassembleAcrossReads() throws Exception {
+        StreamAckController sender   = new StreamAckController();
+        StreamAckController receiver = new StreamAckController();
+        Random random = new Random();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] payload = new byte[1 + random.nextInt(3000)];
+            random.nextBytes(payload);
+            payloads.add(payload);
+            expected.write(payload);
+            sender.queue(payload);
+        }
+
+        List<byte[]> frames = new ArrayList<>();
+        assertEquals(payloads.size(), sender.nextFrames(frames));
+        assertEquals(expected.size(), sender.getBytesInFlight());
+
+        // Deliver the stream in arbitrary slices, as socket reads would
+        byte[] stream = concatenate(frames);
+        List<byte[]> received = new ArrayList<>();
+        List<byte[]> acked = new ArrayList<>();
+        int offset = 0;
+        while (offset < stream.length) {
+            int length = Math.min(1 + random.nextInt(700), stream.length - offset);
+            receiver.onBytesReceived(Arrays.copyOfRange(stream, offset, offset + length), received, acked);
+            offset += length;
+        }
+
+        assertTrue(Arrays.equals(expected.toByteArray(), concatenate(received)));
+        assertTrue(acked.isEmpty());
+
+        // An acknowledgement split across reads reports every payload, in order
+        byte[] ack = receiver.createAckFrame();
+        assertNotNull(ack);
+        assertNull(receiver.createAckFrame());
+
+        sender.onBytesReceived(Arrays.copyOfRange(ack, 0, 3), received, acked);
+        assertTrue(acked.isEmpty());
+        sender.onBytesReceived(Arrays.copyOfRange(ack, 3, ack.length), received, acked);
+
+        assertEquals(payloads.size(), acked.size());
+        for (int i = 0; i < payloads.size(); i++) assertSame(payloads.get(i), acked.get(i));
+        assertEquals(0, sender.getBytesInFlight());
+    }
+
+    public void testWindowLimitsBytesInFlight() {
+        StreamAckController sender   = new StreamAckController(100);
+        StreamAckController receiver = new StreamAckController();
+        List<byte[]> received = new ArrayList<>();
+        List<byte[]> acked = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) sender.queue(new byte[60]);
+
+        List<byte[]> frames = new ArrayList<>();
+        assertEquals(1, sender.nextFrames(frames));
+        assertEquals(0, sender.nextFrames(frames));
+        assertEquals(2, sender.getPendingPayloadCount());
+
+        // Half of the first payload received acknowledges nothing
+        byte[] stream = concatenate(frames);
+        receiver.onBytesReceived(Arrays.copyOfRange(stream, 0, StreamAckController.DATA_HEADER_BYTES + 30), received, acked);
+        sender.onBytesReceived(receiver.createAckFrame(), received, acked);
+        assertTrue(acked.isEmpty());
+        assertEquals(0, sender.nextFrames(frames));
+
+        receiver.onBytesReceived(Arrays.copyOfRange(stream, StreamAckController.DATA_HEADER_BYTES + 30, stream.length), received, acked);
+        sender.onBytesReceived(receiver.createAckFrame(), received, acked);
+        assertEquals(1, acked.size());
+        assertEquals(1, sender.nextFrames(new ArrayList<byte[]>()));
+
+        // On disconnection, the payload in flight and the one not yet sent are undelivered
+        List<byte[]> undelivered = new ArrayList<>();
+        sender.drainUndelivered(undelivered);
+        assertEquals(2, undelivered.size());
+        assertEquals(0, sender.getUnackedPayloadCount() + sender.getPendingPayloadCount());
+    }
+
+    public void testMalformedStreamRejected() {
+        StreamAckController receiver = new StreamAckController();
+        try {
+            receiver.onBytesReceived(new byte[] {7}, new ArrayList<byte[]>(), new ArrayList<byte[]>());
+            fail("Accepted unknown frame type");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testSentReportedOnlyAfterRemoteReceipt() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final StreamAckController clientAcks = new StreamAckController();
+        final StreamAckController serverAcks = new StreamAckController();
+        final AtomicInteger socketWrites = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        final CountDownLatch allDelivered = new CountDownLatch(1);
+        final ConcurrentLinkedQueue<byte[]> withheld = new ConcurrentLinkedQueue<>();
+
+        final int payloadCount = 16;
+
+        // The server reads data but withholds it from its controller until released
+        SocketEngine server = new SocketEngine(new SocketEngineTest.CallbackAdapter() {
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                withheld.add(data);
+            }
+        });
+
+        SocketEngine client = new SocketEngine(new SocketEngineTest.CallbackAdapter() {
+            @Override
+            public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+                List<byte[]> acked = new ArrayList<>();
+                clientAcks.onBytesReceived(data, new ArrayList<byte[]>(), acked);
+                if (delivered.addAndGet(acked.size()) == payloadCount) allDelivered.countDown();
+            }
+
+            @Override
+            public void onDataSent(SocketEngine engine, String identifier, byte[] data) {
+                socketWrites.incrementAndGet();
+            }
+        });
+
+        int port = server.listen(0);
+        client.connect(new InetSocketAddress(LOCALHOST, port));
+        assertTrue(connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        for (int i = 0; i < payloadCount; i++) clientAcks.queue(new byte[WifiTransport.STREAM_MTU_BYTES]);
+        List<byte[]> frames = new ArrayList<>();
+        clientAcks.nextFrames(frames);
+        for (byte[] frame : frames) client.send(LOCALHOST, frame);
+
+        // Every frame is written to the socket, but none is acknowledged
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+        while (socketWrites.get() < frames.size() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(frames.size(), socketWrites.get());
+        Thread.sleep(100);
+        assertEquals(0, delivered.get());
+        assertEquals(payloadCount, clientAcks.getUnackedPayloadCount());
+
+        // Process what the server read, and acknowledge it
+        List<byte[]> received = new ArrayList<>();
+        int receivedBytes = 0;
+        while (receivedBytes < payloadCount * WifiTransport.STREAM_MTU_BYTES) {
+            byte[] data = withheld.poll();
+            if (data == null) {
+                Thread.sleep(10);
+                continue;
+            }
+            received.clear();
+            serverAcks.onBytesReceived(data, received, new ArrayList<byte[]>());
+            for (byte[] payload : received) receivedBytes += payload.length;
+        }
+        server.send(LOCALHOST, serverAcks.createAckFrame());
+
+        assertTrue(allDelivered.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, clientAcks.getBytesInFlight());
+
+        client.stop();
+        server.stop();
+    }
+
+    private static byte[] concatenate(List<byte[]> buffers) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] buffer : buffers) stream.write(buffer, 0, buffer.length);
+        return stream.toByteArray();
+    }
+}
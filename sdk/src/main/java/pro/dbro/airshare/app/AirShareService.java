@@ -15,6 +15,8 @@ import com.google.common.base.Objects;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -27,6 +29,8 @@ import pro.dbro.airshare.session.LocalPeer;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionManager;
 import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMetrics;
+import pro.dbro.airshare.session.SessionTrace;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
 
@@ -61,8 +65,37 @@ public class AirShareService extends Service implements ActivityRecevingMessages
 
     }
 
+    /**
+     * Optional callback providing access to each {@link Transfer}. Required to receive
+     * bodies stored on disk, which {@link Callback} reports with {@code null} data.
+     */
+    public interface TransferCallback {
+
+        void onTransferReceived(@NonNull AirShareService.ServiceBinder binder,
+                                @NonNull IncomingTransfer transfer,
+                                @NonNull Peer sender);
+
+        void onTransferSent(@NonNull AirShareService.ServiceBinder binder,
+                            @NonNull OutgoingTransfer transfer,
+                            @NonNull Peer recipient);
+    }
+
+    /**
+     * Optional callback periodically reporting session metrics. See
+     * {@link ServiceBinder#setMetricsCallback(MetricsCallback, long)}
+     */
+    public interface MetricsCallback {
+
+        void onMetrics(@NonNull AirShareService.ServiceBinder binder,
+                       @NonNull SessionMetrics.Snapshot metrics);
+    }
+
     private SessionManager mSessionManager;
     private Callback mCallback;
+    private TransferCallback mTransferCallback;
+    private MetricsCallback mMetricsCallback;
+    private long mMetricsIntervalMs;
+    private boolean mMetricsEnabled;
     private boolean mActivityRecevingMessages;
     private BiMap<Peer, ArrayDeque<OutgoingTransfer>> mOutPeerTransfers = HashBiMap.create();
     private BiMap<Peer, ArrayDeque<IncomingTransfer>> mInPeerTransfers = HashBiMap.create();
@@ -72,7 +105,6 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     private ServiceBinder mBinder;
 
     private Looper mBackgroundLooper;
-    @SuppressWarnings("FieldCanBeLocal")
     private BackgroundThreadHandler mBackgroundHandler;
     private Handler mForegroundHandler;
 
@@ -103,6 +135,7 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     @Override
     public void onDestroy() {
         Timber.d("Service destroyed");
+        mBackgroundHandler.removeCallbacks(mMetricsReporter);
         if (mSessionManager != null) mSessionManager.stop();
         mBackgroundLooper.quit();
     }
@@ -119,6 +152,27 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         return super.onStartCommand(intent, flags, startId);
     }
 
+    /** Takes a metrics snapshot on the background thread and reports it on the foreground */
+    private final Runnable mMetricsReporter = new Runnable() {
+        @Override
+        public void run() {
+            final MetricsCallback callback = mMetricsCallback;
+            if (callback == null) return;
+
+            final SessionMetrics.Snapshot metrics = mSessionManager != null ? mSessionManager.getMetrics() : null;
+            if (metrics != null) {
+                mForegroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onMetrics(mBinder, metrics);
+                    }
+                });
+            }
+
+            mBackgroundHandler.postDelayed(this, mMetricsIntervalMs);
+        }
+    };
+
     /** ActivityReceivingMessagesIndicator */
     @Override
     public boolean isActivityReceivingMessages() {
@@ -136,6 +190,7 @@ public class AirShareService extends Service implements ActivityRecevingMessages
             if (mSessionManager != null) mSessionManager.stop();
 
             mSessionManager = new SessionManager(AirShareService.this, serviceName, mLocalPeer, AirShareService.this);
+            mSessionManager.setMetricsEnabled(mMetricsEnabled);
         }
 
         public LocalPeer getLocalPeer() {
@@ -158,10 +213,71 @@ public class AirShareService extends Service implements ActivityRecevingMessages
             AirShareService.this.mCallback = callback;
         }
 
+        public void setTransferCallback(TransferCallback callback) {
+            AirShareService.this.mTransferCallback = callback;
+        }
+
+        /**
+         * Set whether session traffic is recorded for {@link #getMetrics()}. Enabling discards
+         * anything recorded before metrics were last disabled. Disabled by default, when recording costs next to nothing
+         */
+        public void setMetricsEnabled(boolean enabled) {
+            mMetricsEnabled = enabled;
+            if (mSessionManager != null) mSessionManager.setMetricsEnabled(enabled);
+        }
+
+        /**
+         * @return traffic recorded since metrics were enabled, and the current queue depths and
+         * buffer sizes of each connection, or null if metrics are disabled
+         */
+        public @Nullable SessionMetrics.Snapshot getMetrics() {
+            return mSessionManager != null ? mSessionManager.getMetrics() : null;
+        }
+
+        /**
+         * Report metrics to callback every intervalMs, enabling them if necessary.
+         * A null callback stops reporting, but leaves metrics enabled
+         */
+        public void setMetricsCallback(@Nullable MetricsCallback callback, long intervalMs) {
+            mBackgroundHandler.removeCallbacks(mMetricsReporter);
+            AirShareService.this.mMetricsCallback = callback;
+            mMetricsIntervalMs = intervalMs;
+
+            if (callback == null) return;
+
+            setMetricsEnabled(true);
+            mBackgroundHandler.postDelayed(mMetricsReporter, intervalMs);
+        }
+
+        /**
+         * Set whether data path events, such as each chunk and packet sent and received, are
+         * recorded into a ring buffer of the most recent {@link SessionTrace#DEFAULT_CAPACITY}
+         * events for {@link #dumpTrace()}. Disabled by default. Enabling discards any recorded
+         */
+        public void setTracingEnabled(boolean enabled) {
+            if (enabled) SessionTrace.enable(SessionTrace.DEFAULT_CAPACITY);
+            else SessionTrace.disable();
+        }
+
+        /**
+         * @return recorded trace events, oldest first, one per line
+         */
+        public @NonNull String dumpTrace() {
+            return SessionTrace.dump();
+        }
+
         public void send(byte[] data, Peer recipient) {
             addOutgoingTransfer(new OutgoingTransfer(data, recipient, mSessionManager));
         }
 
+        /**
+         * Send the contents of body without reading it into memory in full.
+         * Completion is reported with {@code null} data to {@link Callback#onDataSent}.
+         */
+        public void send(File body, Peer recipient) throws IOException {
+            addOutgoingTransfer(new OutgoingTransfer(body, recipient, mSessionManager));
+        }
+
         /**
          * Request a higher-bandwidth transport be established with the remote peer.
          * Notification of the result of this call is reported by
@@ -308,6 +424,14 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         return incomingTransfer;
     }
 
+    /**
+     * @return the body of transfer, or null if the body is stored on disk and so should be
+     * accessed via {@link TransferCallback}
+     */
+    private @Nullable byte[] getInMemoryBody(@NonNull Transfer transfer) {
+        return transfer.isBodyDiskBacked() ? null : transfer.getBodyBytes();
+    }
+
     private @Nullable OutgoingTransfer getOutgoingTransferForFileTransferMessage(SessionMessage transferMessage,
                                                                                  Peer recipient) {
 
@@ -376,7 +500,10 @@ public class AirShareService extends Service implements ActivityRecevingMessages
                 @Override
                 public void run() {
                     if (mCallback != null)
-                        mCallback.onDataReceived(mBinder, incomingTransfer.getBodyBytes(), sender, null);
+                        mCallback.onDataReceived(mBinder, getInMemoryBody(incomingTransfer), sender, null);
+
+                    if (mTransferCallback != null)
+                        mTransferCallback.onTransferReceived(mBinder, incomingTransfer, sender);
                 }
             });
         }
@@ -408,8 +535,11 @@ public class AirShareService extends Service implements ActivityRecevingMessages
                 @Override
                 public void run() {
                     if (mCallback != null && outgoingTransfer != null) {
-                        mCallback.onDataSent(mBinder, outgoingTransfer.getBodyBytes(), recipient, null);
+                        mCallback.onDataSent(mBinder, getInMemoryBody(outgoingTransfer), recipient, null);
                     }
+
+                    if (mTransferCallback != null && outgoingTransfer != null)
+                        mTransferCallback.onTransferSent(mBinder, outgoingTransfer, recipient);
                 }
             });
         }
@@ -1,5 +1,9 @@
 package pro.dbro.airshare.app;
 
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionMessage;
@@ -34,6 +38,14 @@ public class IncomingTransfer extends Transfer implements IncomingMessageListene
         return mSender;
     }
 
+    /**
+     * @return a read-only view of the received body. A large body is mapped from disk
+     * rather than read into memory. See {@link DataTransferMessage#getBodyBuffer()}
+     */
+    public @Nullable ByteBuffer getBodyBuffer() {
+        return ((DataTransferMessage) mTransferMessage).getBodyBuffer();
+    }
+
     public boolean isComplete() {
         return true;
     }
@@ -1,14 +1,20 @@
 package pro.dbro.airshare.app;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionMessage;
 import pro.dbro.airshare.session.SessionMessageScheduler;
+import timber.log.Timber;
 
 /**
  * An OutgoingTransfer wraps an outgoing data transfer.
  *
- * 1. Constructed with a byte[]
+ * 1. Constructed with a byte[] or File
  * 2. Sends a DataTransferMessage
  *
  * Created by davidbrodsky on 3/13/15.
@@ -28,6 +34,9 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
     private Peer mRecipient;
     private State mState;
 
+    /** Channel the body of a File transfer is read from, closed once the transfer is sent or fails */
+    private FileChannel mBodyChannel;
+
     // <editor-fold desc="Outgoing Constructors">
 
     public OutgoingTransfer(byte[] data,
@@ -42,6 +51,27 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
         mState = State.AWAITING_DATA_ACK;
     }
 
+    /**
+     * Send the contents of body. The File is read incrementally as the transfer progresses.
+     */
+    public OutgoingTransfer(File body,
+                            Peer recipient,
+                            SessionMessageScheduler messageSender) throws IOException {
+
+        init(recipient, messageSender);
+
+        mBodyChannel = new RandomAccessFile(body, "r").getChannel();
+        mTransferMessage = DataTransferMessage.createOutgoing(null, mBodyChannel);
+        try {
+            messageSender.sendMessage(mTransferMessage, recipient);
+        } catch (RuntimeException e) {
+            closeBody();
+            throw e;
+        }
+
+        mState = State.AWAITING_DATA_ACK;
+    }
+
 
     // </editor-fold desc="Outgoing Constructors">
 
@@ -72,6 +102,7 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
 
         if (mState == State.AWAITING_DATA_ACK && message.equals(mTransferMessage)) {
             mState = State.COMPLETE;
+            closeBody();
             return false;
         }
 
@@ -80,6 +111,17 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
 
     // </editor-fold desc="MessageDeliveryListener">
 
+    private void closeBody() {
+        if (mBodyChannel == null) return;
+
+        try {
+            mBodyChannel.close();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close body of transfer %s", getTransferId());
+        }
+        mBodyChannel = null;
+    }
+
     @Override
     public boolean isComplete() {
         return mState == State.COMPLETE;
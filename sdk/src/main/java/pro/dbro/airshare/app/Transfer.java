@@ -2,7 +2,6 @@ package pro.dbro.airshare.app;
 
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Map;
 
@@ -19,15 +18,34 @@ public abstract class Transfer {
 
     public abstract boolean isComplete();
 
+    /**
+     * @return a stream over the transfer body. A body too large to be held in memory is
+     * streamed from disk. See {@link DataTransferMessage#getBodyStream()}
+     */
     public @Nullable InputStream getBody() {
+        if (mTransferMessage == null) return null;
+
         if (mTransferMessage instanceof DataTransferMessage) {
-            return new ByteArrayInputStream(getBodyBytes());
+            return ((DataTransferMessage) mTransferMessage).getBodyStream();
         }
         else {
             throw new IllegalStateException("Only DataTransferMessage is supported!");
         }
     }
 
+    /**
+     * @return whether the transfer body resides on disk, in which case {@link #getBody()}
+     * should be preferred to {@link #getBodyBytes()}
+     */
+    public boolean isBodyDiskBacked() {
+        return mTransferMessage instanceof DataTransferMessage &&
+               ((DataTransferMessage) mTransferMessage).isDiskBacked();
+    }
+
+    /**
+     * @return the entire transfer body. This reads the complete body into memory,
+     * so use {@link #getBody()} when {@link #isBodyDiskBacked()}
+     */
     public @Nullable byte[] getBodyBytes() {
         if (mTransferMessage == null) return null;
 
@@ -0,0 +1,69 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link JsonCodec} backed by the platform's org.json
+ */
+@SuppressWarnings("WeakerAccess")
+public class AndroidJsonCodec extends JsonCodec {
+
+    @Override
+    public @NonNull String encode(@NonNull Map<String, ?> object) {
+        // JSONObject reports values it cannot represent by returning null
+        String json = new JSONObject(object).toString();
+        if (json == null) throw new IllegalArgumentException("JSON cannot represent " + object);
+
+        return json;
+    }
+
+    @Override
+    public @NonNull HashMap<String, Object> decode(@NonNull String json) throws IOException {
+        try {
+            return toMap(new JSONObject(json));
+        } catch (JSONException e) {
+            throw new IOException("Malformed JSON", e);
+        }
+    }
+
+    private static HashMap<String, Object> toMap(JSONObject object) throws JSONException {
+        HashMap<String, Object> map = new HashMap<>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, fromJson(object.get(key)));
+        }
+        return map;
+    }
+
+    private static Object fromJson(Object json) throws JSONException {
+        if (json == JSONObject.NULL) {
+            return null;
+        } else if (json instanceof JSONObject) {
+            return toMap((JSONObject) json);
+        } else if (json instanceof JSONArray) {
+            return toList((JSONArray) json);
+        } else {
+            return json;
+        }
+    }
+
+    private static List<Object> toList(JSONArray array) throws JSONException {
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            list.add(fromJson(array.get(i)));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,26 @@
+package pro.dbro.airshare.session;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * Stores received message bodies in the app's external files directory
+ */
+@SuppressWarnings("WeakerAccess")
+public class ContextBodyStorage implements BodyStorage {
+
+    private final Context mContext;
+
+    public ContextBodyStorage(@NonNull Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public @Nullable File getBodyDirectory() {
+        return mContext.getExternalFilesDir(null);
+    }
+}
@@ -19,7 +19,7 @@ public class LocalPeer extends Peer {
                      KeyPair keyPair,
                      String alias) {
 
-        super(keyPair.publicKey, alias, null, 0, 0);
+        super(keyPair.publicKey, alias, null, 0, 0, SessionMessage.SUPPORTED_HEADER_VERSION, SUPPORTED_FEATURES);
         privateKey = keyPair.secretKey;
         mTransports = doesDeviceSupportWifiDirect(context) ?
                         mTransports | WifiTransport.TRANSPORT_CODE :
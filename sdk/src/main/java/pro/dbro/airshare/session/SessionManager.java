@@ -3,16 +3,24 @@ package pro.dbro.airshare.session;
 import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import android.util.Pair;
 
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -20,6 +28,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import hugo.weaving.DebugLog;
+import pro.dbro.airshare.Pair;
 import pro.dbro.airshare.transport.Transport;
 import pro.dbro.airshare.transport.TransportState;
 import pro.dbro.airshare.transport.ble.BLETransport;
@@ -34,7 +43,19 @@ public class SessionManager implements Transport.TransportCallback,
                                        SessionMessageDeserializer.SessionMessageDeserializerCallback,
                                        SessionMessageScheduler {
 
-    private static final boolean VERBOSE = true;
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
+
+    /** Chunks that may be in flight to each identifier before awaiting acknowledgement */
+    public static final int DEFAULT_SEND_WINDOW_CHUNKS = 8;
+
+    /** Messages forwarded from the {@link OutboxStore} to each peer at a time */
+    public static final int OUTBOX_DRAIN_MESSAGES = 4;
+
+    static {
+        // The session core is platform independent. On Android, use the platform's JSON and Timber
+        JsonCodec.setDefault(new AndroidJsonCodec());
+        SessionLog.setLogger(new TimberLogger());
+    }
 
     public interface SessionManagerCallback {
 
@@ -64,6 +85,7 @@ public class SessionManager implements Transport.TransportCallback,
     }
 
     private Context mContext;
+    private BodyStorage mBodyStorage;
     private String mServiceName;
     private SortedSet<Transport> mTransports;
     @SuppressWarnings("FieldCanBeLocal")
@@ -80,6 +102,52 @@ public class SessionManager implements Transport.TransportCallback,
     private Set<String> mHostIdentifiers = new HashSet<>();
     private HashMap<Peer, Transport> mPeerUpgradeRequests = new HashMap<>();
     private TransportState mBaseTransportState = new TransportState(false, false, false);
+    private int mSendWindowChunks = DEFAULT_SEND_WINDOW_CHUNKS;
+    private ResumableTransferStore mResumeStore;
+    /** DataTransferMessages interrupted by disconnection, awaiting a {@link ResumeMessage} answer */
+    private final ListMultimap<Peer, DataTransferMessage> mInterruptedMessages = ArrayListMultimap.create();
+    private final StripeScheduler mStripeScheduler = new StripeScheduler();
+    private StripeAssembler mStripeAssembler;
+    /** Message id -> Striped message being sent */
+    private final HashMap<String, StripedSend> mStripedSends = new HashMap<>();
+    private boolean mStripingEnabled;
+    private OutboxStore mOutbox;
+    private long mOutboxTtlMs = OutboxStore.DEFAULT_TTL_MS;
+    private final SessionMetrics mMetrics = new SessionMetrics();
+
+    /**
+     * Delivery progress of a message sent as stripes over several transports
+     */
+    private static class StripedSend {
+
+        final DataTransferMessage message;
+        /** Stripe body offset -> Stripe length */
+        final HashMap<Integer, Integer> stripeLengths = new HashMap<>();
+        /** Stripe body offset -> Stripe delivery progress */
+        final HashMap<Integer, Float> stripeProgress = new HashMap<>();
+
+        StripedSend(DataTransferMessage message) {
+            this.message = message;
+        }
+
+        float onStripeProgress(int stripeOffset, float progress) {
+            stripeProgress.put(stripeOffset, progress);
+
+            float bytesSent = 0;
+            for (Map.Entry<Integer, Float> stripe : stripeProgress.entrySet())
+                bytesSent += stripe.getValue() * stripeLengths.get(stripe.getKey());
+
+            return bytesSent / message.getBodyLengthBytes();
+        }
+
+        boolean isComplete() {
+            for (Integer stripeOffset : stripeLengths.keySet()) {
+                Float progress = stripeProgress.get(stripeOffset);
+                if (progress == null || progress < 1) return false;
+            }
+            return true;
+        }
+    }
 
     // <editor-fold desc="Public API">
 
@@ -88,20 +156,120 @@ public class SessionManager implements Transport.TransportCallback,
                           LocalPeer localPeer,
                           SessionManagerCallback callback) {
 
+        this(context, serviceName, localPeer, null, callback);
+    }
+
+    /**
+     * @param transports the transports to use in place of BLE and Wi-Fi Direct, e.g.
+     *                   {@link pro.dbro.airshare.transport.loopback.LoopbackTransport}s.
+     *                   Ordered by MTU, the first is the base transport. Each will report to this
+     *                   SessionManager. If null, BLE and Wi-Fi Direct transports are used
+     */
+    public SessionManager(Context context,
+                          String serviceName,
+                          LocalPeer localPeer,
+                          @Nullable Collection<Transport> transports,
+                          SessionManagerCallback callback) {
+
         mContext = context;
+        mBodyStorage = new ContextBodyStorage(context);
         mServiceName = serviceName;
         mLocalPeer = localPeer;
         mCallback = callback;
 
         mLocalIdentityMessage = new IdentityMessage(mLocalPeer);
+        mResumeStore = new ResumableTransferStore(new File(context.getFilesDir(), "resumable"));
+        mStripeAssembler = new StripeAssembler(mBodyStorage);
+        mOutbox = new OutboxStore(new File(context.getFilesDir(), "outbox"));
 
-        initializeTransports(serviceName);
+        initializeTransports(serviceName, transports);
     }
 
     public String getServiceName() {
         return mServiceName;
     }
 
+    /**
+     * Set the number of chunks that may be in flight to each identifier before awaiting
+     * acknowledgement. Applies to identifiers without messages in flight.
+     */
+    public synchronized void setSendWindow(int chunks) {
+        mSendWindowChunks = chunks;
+
+        for (SessionMessageSerializer sender : mIdentifierSenders.values()) {
+            if (!sender.isAwaitingAck()) sender.setWindowSize(chunks);
+        }
+    }
+
+    /**
+     * Set whether large {@link DataTransferMessage}s are striped across all transports connected
+     * to a peer in proportion to their measured throughput. When enabled, the base transport
+     * remains connected after a transport upgrade so that it may carry stripes.
+     */
+    public synchronized void setStripingEnabled(boolean enabled) {
+        mStripingEnabled = enabled;
+    }
+
+    /**
+     * Set how long a {@link DataTransferMessage} sent to an unavailable peer is held for
+     * delivery before it is discarded. Applies to messages sent afterwards.
+     */
+    public synchronized void setOutboxTtl(long ttlMs) {
+        mOutboxTtlMs = ttlMs;
+    }
+
+    /**
+     * Set whether traffic is recorded for {@link #getMetrics()}. Enabling discards anything
+     * recorded before metrics were last disabled. While disabled, recording costs the data path a single field read.
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        if (enabled == mMetrics.isEnabled()) return;
+
+        if (enabled) {
+            mMetrics.reset(System.currentTimeMillis());
+            mMetrics.setEnabled(true);
+
+            // Attribute traffic over links identified before recording began
+            for (Map.Entry<String, Peer> identifiedPeer : mIdentifiedPeers.entrySet()) {
+                String identifier = identifiedPeer.getKey();
+                mMetrics.onLinkIdentified(identifier, getTransportCodeForIdentifier(identifier), identifiedPeer.getValue());
+            }
+        } else {
+            mMetrics.setEnabled(false);
+        }
+    }
+
+    public boolean isMetricsEnabled() {
+        return mMetrics.isEnabled();
+    }
+
+    /**
+     * @return traffic recorded since metrics were enabled, and the current queue depths
+     * and buffer sizes of each connected identifier, or null if metrics are disabled.
+     * See {@link #setMetricsEnabled(boolean)}
+     */
+    public synchronized @Nullable SessionMetrics.Snapshot getMetrics() {
+        if (!mMetrics.isEnabled()) return null;
+
+        List<SessionMetrics.LinkState> links = new ArrayList<>(mIdentifierTransports.size());
+        for (Map.Entry<String, Transport> identifierTransport : mIdentifierTransports.entrySet()) {
+            String identifier = identifierTransport.getKey();
+            Transport transport = identifierTransport.getValue();
+            SessionMessageSerializer sender = mIdentifierSenders.get(identifier);
+            SessionMessageDeserializer receiver = mIdentifierReceivers.get(identifier);
+
+            links.add(new SessionMetrics.LinkState(identifier,
+                                                   transport.getTransportCode(),
+                                                   mIdentifiedPeers.get(identifier),
+                                                   sender == null ? 0 : sender.getQueuedMessageCount(),
+                                                   sender == null ? 0 : sender.getChunksInFlight(),
+                                                   transport.getQueuedChunkCount(identifier),
+                                                   receiver == null ? 0 : receiver.getBufferCapacityBytes()));
+        }
+
+        return mMetrics.snapshot(links, System.currentTimeMillis());
+    }
+
     public void advertiseLocalPeer() {
         // Only advertise on the "base" (first) transport
         mTransports.first().advertise();
@@ -116,56 +284,50 @@ public class SessionManager implements Transport.TransportCallback,
 
     /**
      * Send a message to the given recipient. If the recipient is not currently available,
-     * delivery will occur next time the peer is available
+     * a {@link DataTransferMessage} is stored in the {@link OutboxStore} and delivered next
+     * time the peer is identified. Other messages are discarded.
      */
     // TODO : This  method needs to be re-evaluated to be more robust
     // If preferred transport not available, queue on base transport?
     @DebugLog
     public synchronized void sendMessage(SessionMessage message, Peer recipient) {
 
-        Set<String> recipientIdentifiers = mPeerIdentifiers.get(recipient);
-        String targetRecipientIdentifier = null;
-
-        if (recipientIdentifiers == null || recipientIdentifiers.size() == 0) { // TODO: Does HashMultiMap return null or empty collection?
-            Timber.e("No Identifiers for peer %s", recipient.getAlias());
+        if (mStripingEnabled && message instanceof DataTransferMessage &&
+            sendStriped((DataTransferMessage) message, recipient)) {
             return;
         }
 
-        Transport transport = getPreferredTransportForPeer(recipient);
-
-        if (transport == null) {
-            Timber.e("No transport for %s", recipient.getAlias());
-            return;
-        }
-
-        for (String recipientIdentifier : recipientIdentifiers) {
-            if (transport.equals(mIdentifierTransports.get(recipientIdentifier))) {
-                targetRecipientIdentifier = recipientIdentifier;
-            }
-        }
-
+        String targetRecipientIdentifier = getPreferredIdentifierForPeer(recipient);
         if (targetRecipientIdentifier == null) {
-            Timber.e("Could not find identifier for %s on preferred transport %d", recipient.getAlias(), transport.getTransportCode());
+            // If no transport for the peer is available, data will be sent next time peer is available
+            storeForLater(message, recipient);
             return;
-            // TODO : Fall back to base transport
         }
 
-        SessionMessageSerializer sender = mIdentifierSenders.get(targetRecipientIdentifier);
-
-        if (sender == null) {
-            sender = new SessionMessageSerializer(message);
-            mIdentifierSenders.put(targetRecipientIdentifier, sender);
-        }
-        else {
-            sender.queueMessage(message);
-        }
+        queueMessage(message, null, targetRecipientIdentifier, mIdentifierTransports.get(targetRecipientIdentifier));
+    }
 
-        transport.sendData(sender.getNextChunk(transport.getMtuForIdentifier(targetRecipientIdentifier)),
-                               targetRecipientIdentifier);
-//        else
-//            Timber.d("Send queued. No transport available for identifier %s", targetRecipientIdentifier);
+    /**
+     * Send a message to each of recipients. Each chunk is serialized once for all recipients
+     * whose preferred transports take chunks alike, see {@link SharedSerialization}.
+     * Progress and delivery are reported, and unavailable recipients are handled, per recipient
+     * as for {@link #sendMessage(SessionMessage, Peer)}.
+     *
+     * @throws IllegalArgumentException if message has a stream-backed body
+     */
+    @DebugLog
+    public synchronized void sendMessage(SessionMessage message, Collection<Peer> recipients) {
+        SharedSerialization serialization = new SharedSerialization(message);
+
+        for (Peer recipient : recipients) {
+            String identifier = getPreferredIdentifierForPeer(recipient);
+            if (identifier == null) {
+                storeForLater(message, recipient);
+                continue;
+            }
 
-        // If no transport for the peer is available, data will be sent next time peer is available
+            queueMessage(message, serialization, identifier, mIdentifierTransports.get(identifier));
+        }
     }
 
     public Set<Peer> getAvailablePeers() {
@@ -255,6 +417,8 @@ public class SessionManager implements Transport.TransportCallback,
 
     private void reset() {
 
+        for (String identifier : mIdentifierTransports.keySet()) mMetrics.onLinkClosed(identifier);
+
         mIdentifierTransports.clear();
         mPeerTransports.clear();
         mIdentifierReceivers.clear();
@@ -264,15 +428,31 @@ public class SessionManager implements Transport.TransportCallback,
         mHostIdentifiers.clear();
         mPeerUpgradeRequests.clear();
         mPeerIdentifiers.clear();
+        mInterruptedMessages.clear();
+        mStripedSends.clear();
+        mStripeScheduler.clear();
+        mStripeAssembler.clear();
+        // Messages taken from the outbox but undelivered are forwarded again next session
+        mOutbox.releaseAll();
 
         mBaseTransportState = new TransportState(false, false, false);
     }
 
-    private void initializeTransports(String serviceName) {
+    private void initializeTransports(String serviceName, @Nullable Collection<Transport> transports) {
         // First transport is considered "base" transport
         // Additional transports are considered supplementary and
         // will only be activated upon request
         mTransports = new TreeSet<>();
+
+        if (transports != null) {
+            for (Transport transport : transports) {
+                transport.setTransportCallback(this);
+                if (!mTransports.add(transport))
+                    throw new IllegalArgumentException("Transports must have distinct MTUs");
+            }
+            return;
+        }
+
         mTransports.add(new BLETransport(mContext, serviceName, this));
         mTransports.add(new WifiTransport(mContext, serviceName, this));
     }
@@ -323,6 +503,179 @@ public class SessionManager implements Transport.TransportCallback,
         return transports.last();
     }
 
+    /**
+     * @return the identifier of recipient on its preferred transport, or null if none is available
+     */
+    private @Nullable String getPreferredIdentifierForPeer(Peer recipient) {
+        Set<String> recipientIdentifiers = mPeerIdentifiers.get(recipient);
+
+        if (recipientIdentifiers == null || recipientIdentifiers.size() == 0) { // TODO: Does HashMultiMap return null or empty collection?
+            Timber.e("No Identifiers for peer %s", recipient.getAlias());
+            return null;
+        }
+
+        Transport transport = getPreferredTransportForPeer(recipient);
+
+        if (transport == null) {
+            Timber.e("No transport for %s", recipient.getAlias());
+            return null;
+        }
+
+        String targetRecipientIdentifier = null;
+        for (String recipientIdentifier : recipientIdentifiers) {
+            if (transport.equals(mIdentifierTransports.get(recipientIdentifier))) {
+                targetRecipientIdentifier = recipientIdentifier;
+            }
+        }
+
+        if (targetRecipientIdentifier == null) {
+            Timber.e("Could not find identifier for %s on preferred transport %d", recipient.getAlias(), transport.getTransportCode());
+            // TODO : Fall back to base transport
+        }
+        return targetRecipientIdentifier;
+    }
+
+    private void queueMessage(SessionMessage message, String identifier, Transport transport) {
+        queueMessage(message, null, identifier, transport);
+    }
+
+    private void queueMessage(SessionMessage message,
+                              @Nullable SharedSerialization serialization,
+                              String identifier,
+                              Transport transport) {
+
+        SessionMessageSerializer sender = mIdentifierSenders.get(identifier);
+
+        if (sender == null) {
+            sender = createSender(identifier);
+        }
+
+        sender.queueMessage(message, serialization);
+
+        // If the send window is full, the queued message will be sent as deliveries are acknowledged
+        sendNextChunks(sender, transport, identifier);
+    }
+
+    /**
+     * Send message as stripes over each of recipient's transports able to carry a worthwhile share
+     *
+     * @return whether message was striped. If false, it should be sent over a single transport
+     */
+    private boolean sendStriped(DataTransferMessage message, Peer recipient) {
+        // Stripes, and the remainders of resumed messages, are sent as they are
+        if (!message.isStripeable() || message.getStripeLengthBytes() > 0 || message.getBodyOffset() > 0 ||
+            !recipient.supportsStripes())
+            return false;
+
+        Set<String> identifiers = mPeerIdentifiers.get(recipient);
+        if (identifiers.size() < 2) return false;
+
+        List<StripeScheduler.Stripe> stripes = mStripeScheduler.schedule(message.getBodyLengthBytes(), identifiers);
+        if (stripes.isEmpty()) return false;
+
+        Timber.d("Striping %s to %s as %s", message.getId(), recipient.getAlias(), stripes);
+
+        StripedSend stripedSend = new StripedSend(message);
+        for (StripeScheduler.Stripe stripe : stripes) stripedSend.stripeLengths.put(stripe.offset, stripe.length);
+        mStripedSends.put(message.getId(), stripedSend);
+
+        for (StripeScheduler.Stripe stripe : stripes) {
+            queueMessage(message.stripe(stripe.offset, stripe.length),
+                         stripe.identifier,
+                         mIdentifierTransports.get(stripe.identifier));
+        }
+        return true;
+    }
+
+    /**
+     * Report the delivery progress of a stripe as that of its striped message
+     */
+    private void onStripeProgress(SessionMessage stripe, Peer recipient, float progress) {
+        StripedSend stripedSend = mStripedSends.get(stripe.getId());
+        if (stripedSend == null) {
+            Timber.w("No striped send for %s", stripe.getId());
+            return;
+        }
+
+        float messageProgress = stripedSend.onStripeProgress(stripe.getBodyOffset(), progress);
+
+        if (stripedSend.isComplete()) {
+            mStripedSends.remove(stripe.getId());
+            onMessageSent(stripedSend.message, recipient, null);
+        } else {
+            mCallback.messageSendingToPeer(stripedSend.message, recipient, messageProgress);
+        }
+    }
+
+    private SessionMessageSerializer createSender(String identifier) {
+        SessionMessageSerializer sender = new SessionMessageSerializer(Collections.<SessionMessage>emptyList());
+        sender.setHeaderVersion(getHeaderVersionForIdentifier(identifier));
+        sender.setWindowSize(mSendWindowChunks);
+        sender.setPreemptionEnabled(isPreemptionSupportedByIdentifier(identifier));
+        sender.setFramingEnabled(isFramingSupportedByIdentifier(identifier));
+        mIdentifierSenders.put(identifier, sender);
+        return sender;
+    }
+
+    /**
+     * Send chunks to identifier until the sender's window is full or no data remains
+     *
+     * @return whether all chunks were accepted by transport. false if none were available to send
+     */
+    private boolean sendNextChunks(SessionMessageSerializer sender, Transport transport, String identifier) {
+        boolean sentAny = false;
+        boolean didSendAll = true;
+        byte[] toSend;
+
+        while (sender.hasWindowCapacity() &&
+               (toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier))) != null) {
+
+            sentAny = true;
+            if (!transport.sendData(toSend, identifier)) didSendAll = false;
+            mMetrics.onChunkSent(identifier, transport.getTransportCode(), toSend.length);
+            SessionTrace.record(SessionTrace.Event.CHUNK_SENT, identifier, toSend.length);
+        }
+
+        return sentAny && didSendAll;
+    }
+
+    /**
+     * @return the newest {@link SessionMessage} header version supported by both the local peer
+     * and the peer at identifier, or {@link SessionMessage#HEADER_VERSION_JSON} if not yet identified
+     */
+    private int getHeaderVersionForIdentifier(String identifier) {
+        Peer peer = mIdentifiedPeers.get(identifier);
+
+        if (peer == null) return SessionMessage.HEADER_VERSION_JSON;
+
+        return Math.min(SessionMessage.CURRENT_HEADER_VERSION, peer.getMaxHeaderVersion());
+    }
+
+    /**
+     * @return whether the peer at identifier assembles stripes, so that bulk messages may be
+     * segmented for preemption
+     */
+    private boolean isPreemptionSupportedByIdentifier(String identifier) {
+        Peer peer = mIdentifiedPeers.get(identifier);
+        return peer != null && peer.supportsStripes();
+    }
+
+    /**
+     * @return whether the peer at identifier accepts frames of multiplexed messages
+     */
+    private boolean isFramingSupportedByIdentifier(String identifier) {
+        Peer peer = mIdentifiedPeers.get(identifier);
+        return peer != null && peer.getMaxHeaderVersion() >= SessionMessage.HEADER_VERSION_FRAMED;
+    }
+
+    /**
+     * @return the code of the transport connected to identifier, or -1 if none
+     */
+    private int getTransportCodeForIdentifier(String identifier) {
+        Transport transport = mIdentifierTransports.get(identifier);
+        return transport == null ? -1 : transport.getTransportCode();
+    }
+
     private boolean shouldIdentifyPeer(String identifier) {
         // TODO : Might have banned peers etc.
         return !mIdentifyingPeers.contains(identifier);
@@ -363,22 +716,173 @@ public class SessionManager implements Transport.TransportCallback,
         }
     }
 
+    // <editor-fold desc="Resumable Transfers">
+
+    /**
+     * Preserve the state of transfers with the disconnected identifier of peer, so that each
+     * may resume where it left off: Partially received bodies are saved to {@link #mResumeStore}
+     * and undelivered outgoing {@link DataTransferMessage}s are held until peer answers a
+     * {@link ResumeMessage} request.
+     */
+    private void suspendTransfers(Peer peer, String identifier) {
+        SessionMessageDeserializer receiver = mIdentifierReceivers.get(identifier);
+        if (receiver != null) receiver.suspend();
+
+        SessionMessageSerializer sender = mIdentifierSenders.get(identifier);
+        if (sender == null) return;
+
+        for (SessionMessage message : sender.getUndeliveredMessages()) {
+            if (message instanceof DataTransferMessage) mInterruptedMessages.put(peer, (DataTransferMessage) message);
+        }
+    }
+
+    /**
+     * Ask peer how much of each interrupted message it holds, if any. Delivered on the peer's
+     * preferred transport, queued behind any pending identity. If peer does not support
+     * resumption, interrupted messages are instead sent again in full
+     */
+    private void requestResumption(Peer peer) {
+        List<DataTransferMessage> interrupted = mInterruptedMessages.get(peer);
+        if (interrupted.isEmpty()) return;
+
+        if (!peer.supportsResumption()) {
+            // Such a peer would not answer, and holds no partial bodies to resume
+            List<DataTransferMessage> toResend = new ArrayList<>(interrupted);
+            mInterruptedMessages.removeAll(peer);
+
+            Timber.d("Resending %d interrupted messages to %s", toResend.size(), peer.getAlias());
+            for (DataTransferMessage message : toResend) sendMessage(message, peer);
+            return;
+        }
+
+        // Stripes of one message share its id
+        Set<String> messageIds = new LinkedHashSet<>();
+        for (DataTransferMessage message : interrupted) messageIds.add(message.getId());
+
+        Timber.d("Requesting resumption of %d messages to %s", messageIds.size(), peer.getAlias());
+        sendMessage(ResumeMessage.createRequest(messageIds), peer);
+    }
+
+    private void onResumeMessage(ResumeMessage message, Peer peer) {
+        if (message.isRequest()) {
+            List<String> messageIds = message.getMessageIds();
+
+            // The interrupted transport may not yet have reported disconnection. Preserve what it received
+            for (String identifier : mPeerIdentifiers.get(peer)) {
+                SessionMessageDeserializer receiver = mIdentifierReceivers.get(identifier);
+                SessionMessage current = receiver == null ? null : receiver.getCurrentMessage();
+                if (current != null && messageIds.contains(current.getId())) receiver.suspend();
+            }
+
+            HashMap<String, Integer> offsets = new HashMap<>();
+            for (String messageId : messageIds)
+                offsets.put(messageId, mResumeStore.getOffset(peer.getPublicKey(), messageId));
+
+            sendMessage(ResumeMessage.createAnswer(offsets), peer);
+            return;
+        }
+
+        Map<String, Integer> offsets = message.getOffsets();
+        Iterator<DataTransferMessage> interrupted = mInterruptedMessages.get(peer).iterator();
+        List<DataTransferMessage> toResume = new ArrayList<>();
+
+        while (interrupted.hasNext()) {
+            DataTransferMessage dataMessage = interrupted.next();
+            Integer offset = offsets.get(dataMessage.getId());
+            if (offset == null) continue;
+
+            interrupted.remove();
+            try {
+                // The recipient only counts a stripe once received in full
+                boolean resumable = offset > 0 && dataMessage.getStripeLengthBytes() == 0;
+                toResume.add(resumable ? dataMessage.resumeAt(offset) : dataMessage);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Timber.w(e, "Cannot resume %s to %s", dataMessage.getId(), peer.getAlias());
+                onMessageSent(dataMessage, peer, e);
+            }
+        }
+
+        Timber.d("Resuming %d messages to %s", toResume.size(), peer.getAlias());
+        for (DataTransferMessage dataMessage : toResume) sendMessage(dataMessage, peer);
+    }
+
+    // </editor-fold desc="Resumable Transfers">
+
+    // <editor-fold desc="Outbox">
+
+    /**
+     * Store message for delivery to the unavailable recipient once it is next identified
+     */
+    private void storeForLater(SessionMessage message, Peer recipient) {
+        if (!(message instanceof DataTransferMessage)) {
+            Timber.w("Discarding %s message to unavailable peer %s", message.getType(), recipient.getAlias());
+            return;
+        }
+
+        try {
+            mOutbox.add(recipient.getPublicKey(), (DataTransferMessage) message, mOutboxTtlMs);
+            Timber.d("Stored %s for unavailable peer %s", message.getId(), recipient.getAlias());
+        } catch (IOException e) {
+            Timber.e(e, "Failed to store %s for unavailable peer %s", message.getId(), recipient.getAlias());
+            mCallback.messageSentToPeer(message, recipient, e);
+        }
+    }
+
+    /**
+     * Forward messages stored for peer while it was unavailable, {@link #OUTBOX_DRAIN_MESSAGES}
+     * at a time so that their bodies are not all read at once. Each delivery forwards another
+     */
+    private void drainOutbox(Peer peer) {
+        // Were peer unavailable, forwarded messages would be stored again
+        if (getPreferredTransportForPeer(peer) == null) return;
+
+        DataTransferMessage message;
+        while (mOutbox.getSendingCount(peer.getPublicKey()) < OUTBOX_DRAIN_MESSAGES &&
+               (message = mOutbox.takeNext(peer.getPublicKey())) != null) {
+
+            Timber.d("Forwarding stored %s to %s", message.getId(), peer.getAlias());
+            sendMessage(message, peer);
+        }
+    }
+
+    /**
+     * Report the delivery of message to recipient, or its failure if exception is not null,
+     * removing a delivered message from the outbox
+     */
+    private void onMessageSent(SessionMessage message, Peer recipient, @Nullable Exception exception) {
+        mCallback.messageSentToPeer(message, recipient, exception);
+
+        if (exception != null) {
+            mOutbox.release(recipient.getPublicKey(), message.getId());
+        } else if (mOutbox.onSent(recipient.getPublicKey(), message.getId())) {
+            drainOutbox(recipient);
+        }
+    }
+
+    // </editor-fold desc="Outbox">
+
     // </editor-fold desc="Private API">
 
     // <editor-fold desc="TransportCallback">
 
     @Override
-    @DebugLog
     public synchronized void dataReceivedFromIdentifier(Transport transport, byte[] data, String identifier) {
 
         // An asymmetric transport may not receive connection events
         // so we use this opportunity to associate the identifier with its transport
         registerTransportForIdentifier(transport, identifier);
+        mMetrics.onChunkReceived(identifier, transport.getTransportCode(), data.length);
+        SessionTrace.record(SessionTrace.Event.CHUNK_RECEIVED, identifier, data.length);
 
         SessionMessageDeserializer deserializer = mIdentifierReceivers.get(identifier);
 
         if (deserializer == null) {
-            deserializer = new SessionMessageDeserializer(mContext, this);
+            deserializer = new SessionMessageDeserializer(mBodyStorage, this);
+            Peer peer = mIdentifiedPeers.get(identifier);
+            if (peer != null) {
+                deserializer.setResumeStore(mResumeStore, peer.getPublicKey());
+                deserializer.setStripeAssembler(mStripeAssembler, peer.getPublicKey());
+            }
             mIdentifierReceivers.put(identifier, deserializer);
         }
 
@@ -386,9 +890,12 @@ public class SessionManager implements Transport.TransportCallback,
     }
 
     @Override
-    @DebugLog
     public synchronized void dataSentToIdentifier(Transport transport, byte[] data, String identifier, Exception exception) {
 
+        mMetrics.onChunkAcked(identifier, transport.getTransportCode(), exception == null);
+        SessionTrace.record(exception == null ? SessionTrace.Event.CHUNK_ACKED : SessionTrace.Event.CHUNK_FAILED,
+                            identifier, data.length);
+
         if (exception != null) {
             Timber.w("Data failed to send to %s", identifier);
             return;
@@ -402,13 +909,19 @@ public class SessionManager implements Transport.TransportCallback,
         }
 
         Pair<SessionMessage, Float> messagePair = sender.ackChunkDelivery();
+        mStripeScheduler.onBytesAcked(identifier, data.length);
 
         if (messagePair != null) {
 
             SessionMessage message = messagePair.first;
             float progress = messagePair.second;
 
-            if (VERBOSE) Timber.d("%d %s bytes (%.0f pct) sent to %s",
+            if (progress == 1) {
+                mMetrics.onMessageSent(identifier, transport.getTransportCode());
+                SessionTrace.record(SessionTrace.Event.MESSAGE_SENT, identifier, message.getBodyLengthBytes());
+            }
+
+            if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("%d %s bytes (%.0f pct) sent to %s",
                                   data.length,
                                   message.getType(),
                                   progress * 100,
@@ -420,7 +933,10 @@ public class SessionManager implements Transport.TransportCallback,
             }
 
             Peer recipient = mIdentifiedPeers.get(identifier);
-            if (recipient != null) {
+            if (recipient != null && message.getStripeLengthBytes() > 0) {
+                onStripeProgress(message, recipient, progress);
+            }
+            else if (recipient != null) {
                 if (progress == 1) {
 
                     // Process completely sent AirShare messages, pass non-AirShare messages
@@ -439,7 +955,7 @@ public class SessionManager implements Transport.TransportCallback,
                         Timber.d("Sent TranportUpgradeMessage");
                     }
                     else {
-                        mCallback.messageSentToPeer(message, recipient,null);
+                        onMessageSent(message, recipient, null);
                     }
                 }
                 else {
@@ -451,10 +967,7 @@ public class SessionManager implements Transport.TransportCallback,
                         message.getType(), identifier);
             }
 
-            byte[] toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier));
-            if (toSend != null) {
-                transport.sendData(toSend, identifier);
-            }
+            sendNextChunks(sender, transport, identifier);
         }
         else {
             Timber.w("No current message corresponding to dataSentToIdentifier");
@@ -477,7 +990,7 @@ public class SessionManager implements Transport.TransportCallback,
                 if (peerIsHost && shouldIdentifyPeer(identifier)) {
                     Timber.d("Queuing identity to %s", identifier);
                     if (!mIdentifierSenders.containsKey(identifier)) {
-                        mIdentifierSenders.put(identifier, new SessionMessageSerializer(mLocalIdentityMessage));
+                        createSender(identifier).queueMessage(mLocalIdentityMessage);
                     } else
                         Timber.w("Outgoing messages already exist for unidentified peer %s", identifier);
                 }
@@ -491,10 +1004,7 @@ public class SessionManager implements Transport.TransportCallback,
 
                     boolean sendingIdentity = sender.getCurrentMessage() instanceof IdentityMessage;
 
-                    byte[] toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier));
-                    if (toSend == null) return;
-
-                    if (transport.sendData(toSend, identifier)) {
+                    if (sendNextChunks(sender, transport, identifier)) {
                         if (sendingIdentity) {
                             Timber.d("Sent identity to %s", identifier);
                         }
@@ -522,6 +1032,8 @@ public class SessionManager implements Transport.TransportCallback,
                         transports.remove(transport);
                     }
 
+                    suspendTransfers(peer, identifier);
+
                     Set<String> identifiers = mPeerIdentifiers.get(peer);
                     identifiers.remove(identifier);
 
@@ -545,12 +1057,19 @@ public class SessionManager implements Transport.TransportCallback,
                         if (remainingTransport instanceof BLETransport) {
                             mCallback.peerTransportUpdated(peer, remainingTransport.getTransportCode(), null);
                         }
+
+                        // Interrupted transfers continue over a remaining transport.
+                        // Drop the disconnected identifier's sender first so it is not chosen
+                        mIdentifierSenders.remove(identifier);
+                        requestResumption(peer);
                     }
                 }
                 else {
                     Timber.w("Could not report disconnection, peer not identified");
                 }
 
+                mStripeScheduler.removeLink(identifier);
+                mMetrics.onLinkClosed(identifier);
                 mIdentifierTransports.remove(identifier);
                 mIdentifyingPeers.remove(identifier);
                 mIdentifiedPeers.remove(identifier);
@@ -576,7 +1095,7 @@ public class SessionManager implements Transport.TransportCallback,
     public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
 
         String senderIdentifier = mIdentifierReceivers.inverse().get(receiver);
-        if (VERBOSE) Timber.d("Received %s message with progress %f from %s", message.getType(), progress, senderIdentifier);
+        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Received %s message with progress %f from %s", message.getType(), progress, senderIdentifier);
 
         Peer peer = mIdentifiedPeers.get(senderIdentifier);
 
@@ -586,7 +1105,6 @@ public class SessionManager implements Transport.TransportCallback,
     }
 
     @Override
-    @DebugLog
     public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
 
         // Process messages belonging to the AirShare framework and propagate
@@ -597,6 +1115,8 @@ public class SessionManager implements Transport.TransportCallback,
         if (e == null) {
 
             Timber.d("Received complete %s message from %s", message.getType(), senderIdentifier);
+            mMetrics.onMessageReceived(senderIdentifier, getTransportCodeForIdentifier(senderIdentifier));
+            SessionTrace.record(SessionTrace.Event.MESSAGE_RECEIVED, senderIdentifier, message.getBodyLengthBytes());
 
             Peer peer = mIdentifiedPeers.get(senderIdentifier);
 
@@ -611,6 +1131,17 @@ public class SessionManager implements Transport.TransportCallback,
 
                 mIdentifyingPeers.remove(senderIdentifier);
                 mIdentifiedPeers.put(senderIdentifier, peer);
+                mMetrics.onLinkIdentified(senderIdentifier, getTransportCodeForIdentifier(senderIdentifier), peer);
+
+                SessionMessageSerializer sender = mIdentifierSenders.get(senderIdentifier);
+                if (sender != null) {
+                    sender.setHeaderVersion(getHeaderVersionForIdentifier(senderIdentifier));
+                    sender.setPreemptionEnabled(isPreemptionSupportedByIdentifier(senderIdentifier));
+                    sender.setFramingEnabled(isFramingSupportedByIdentifier(senderIdentifier));
+                }
+
+                receiver.setResumeStore(mResumeStore, peer.getPublicKey());
+                receiver.setStripeAssembler(mStripeAssembler, peer.getPublicKey());
 
                 Transport identifierTransport = mIdentifierTransports.get(senderIdentifier);
 
@@ -634,13 +1165,20 @@ public class SessionManager implements Transport.TransportCallback,
                         sendMessage(mLocalIdentityMessage, peer); // Report peer connected after identity send ack'd
                     else if (mPeerIdentifiers.get(peer).size() == 1) // If peer is already connected via another transport, don't re-notify
                         mCallback.peerStatusUpdated(peer, Transport.ConnectionStatus.CONNECTED, mHostIdentifiers.contains(senderIdentifier));
+
+                    // Transfers interrupted by a previous disconnection resume after identification,
+                    // followed by messages sent while the peer was unavailable
+                    requestResumption(peer);
+                    drainOutbox(peer);
                 }
 
                 // We must notify client of new transport *after* sending identity, if necessary. Else they might queue data ahead of it
                 if (newTransport && mPeerIdentifiers.get(peer).size() > 1) {
                     mCallback.peerTransportUpdated(peer, identifierTransport.getTransportCode(), null);
+                }
 
-                    // TESTING : Stop base transport when upgrade successful
+                // TESTING : Stop base transport when upgrade successful, unless it may carry stripes
+                if (newTransport && mPeerIdentifiers.get(peer).size() > 1 && !mStripingEnabled) {
                     Timber.d("Stopping base transport. %d identifiers for peer", mPeerIdentifiers.get(peer).size());
                     mBaseTransportState = new TransportState(true, mBaseTransportState.wasAdvertising, mBaseTransportState.wasScanning);
                     Transport baseTransport = mTransports.first();
@@ -653,6 +1191,9 @@ public class SessionManager implements Transport.TransportCallback,
                 mPeerUpgradeRequests.put(peer, getAvailableTransportByCode(transportCode));
                 upgradeTransport(peer, transportCode);
             }
+            else if (message instanceof ResumeMessage && peer != null) {
+                onResumeMessage((ResumeMessage) message, peer);
+            }
             else if (peer != null) {
                 // This message is not involved in the AirShare framework, so we notify the next layer up
                 mCallback.messageReceivedFromPeer(message, peer);
@@ -0,0 +1,29 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import timber.log.Timber;
+
+/**
+ * Routes the {@link SessionLog} of the session core to Timber
+ */
+class TimberLogger implements SessionLog.Logger {
+
+    @Override
+    public void log(int priority, @Nullable Throwable t, @NonNull String message) {
+        switch (priority) {
+            case SessionLog.DEBUG:
+                if (t == null) Timber.d(message); else Timber.d(t, message);
+                break;
+            case SessionLog.INFO:
+                if (t == null) Timber.i(message); else Timber.i(t, message);
+                break;
+            case SessionLog.WARN:
+                if (t == null) Timber.w(message); else Timber.w(t, message);
+                break;
+            default:
+                if (t == null) Timber.e(message); else Timber.e(t, message);
+        }
+    }
+}
@@ -16,6 +16,8 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -38,6 +40,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import pro.dbro.airshare.DataUtil;
 import pro.dbro.airshare.R;
+import pro.dbro.airshare.session.SessionLog;
+import pro.dbro.airshare.session.SessionTrace;
 import pro.dbro.airshare.transport.ConnectionGovernor;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
@@ -46,9 +50,14 @@ import timber.log.Timber;
  * A basic BLE Central device that discovers peripherals.
  *
  * Upon connection to a Peripheral this device performs a few initialization steps in order:
- * 1. Requests an MTU
- * 2. (On response to the MTU request) discovers services
- * 3. (On response to service discovery) reports connection
+ * 1. Requests the maximum MTU, {@link BLETransport#MAX_MTU_BYTES}
+ * 2. (On response to the MTU request, or immediately if it could not be made) discovers services
+ * 3. (On response to service discovery) subscribes to the bulk characteristic if the peripheral
+ *    offers it, otherwise to characteristics registered via {@link #requestNotifyOnCharacteristic}
+ * 4. (On response to subscription) reports connection
+ *
+ * GATT operations on each peripheral are serialized through a {@link GattOperationQueue},
+ * as Android permits only one outstanding operation per connection.
  *
  * Created by davidbrodsky on 10/2/14.
  */
@@ -58,10 +67,18 @@ import timber.log.Timber;
 public class BLECentral {
     public static final String TAG = "BLECentral";
 
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
+
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private final Set<UUID> mNotifyUuids = new HashSet<>();
 
+    /** Characteristic supporting write-without-response and notification. See {@link #setBulkCharacteristic(UUID)} */
+    private UUID mBulkUuid;
+
+    /** Peripheral MAC Addresses subscribed via the bulk characteristic */
+    private final Set<String> mBulkDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /** Peripheral MAC Address -> Set of characteristics */
     private final HashMap<String, HashSet<BluetoothGattCharacteristic>> mDiscoveredCharacteristics = new HashMap<>();
 
@@ -74,8 +91,14 @@ public class BLECentral {
      */
     private final Set<String> mConnectingDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    /** Peripheral MAC Address -> Maximum Transmission Unit */
-    private HashMap<String, Integer> mMtus = new HashMap<>();
+    /** Peripheral MAC Address -> Negotiated ATT Maximum Transmission Unit */
+    private final ConcurrentHashMap<String, Integer> mMtus = new ConcurrentHashMap<>();
+
+    /** Peripheral MAC Address -> Pending GATT operations */
+    private final ConcurrentHashMap<String, GattOperationQueue> mOperationQueues = new ConcurrentHashMap<>();
+
+    private final GattOperationQueue.TimeoutScheduler mTimeoutScheduler =
+            new GattOperationQueue.HandlerTimeoutScheduler(new Handler(Looper.getMainLooper()));
 
     private Context mContext;
     private UUID mServiceUuid;
@@ -87,6 +110,20 @@ public class BLECentral {
 
     private boolean mIsScanning = false;
 
+    /**
+     * A write of data to a characteristic, which the characteristic's value may no longer hold
+     * once the write completes
+     */
+    private static abstract class CharacteristicWrite extends GattOperationQueue.Operation {
+
+        final byte[] data;
+
+        CharacteristicWrite(byte[] data) {
+            super(GattOperationQueue.OperationType.WRITE_CHARACTERISTIC);
+            this.data = data;
+        }
+    }
+
     // <editor-fold desc="Public API">
 
     public BLECentral(@NonNull Context context,
@@ -109,6 +146,22 @@ public class BLECentral {
         mNotifyUuids.add(characteristic.getUuid());
     }
 
+    /**
+     * Prefer the characteristic with uuid for peripherals that offer it. Data is then written
+     * without response and received via unconfirmed notification, in place of the characteristics
+     * registered via {@link #requestNotifyOnCharacteristic(BluetoothGattCharacteristic)}
+     */
+    public void setBulkCharacteristic(@Nullable UUID uuid) {
+        mBulkUuid = uuid;
+    }
+
+    /**
+     * @return whether the connection to deviceAddress uses the bulk characteristic
+     */
+    public boolean isBulkConnection(String deviceAddress) {
+        return mBulkDevices.contains(deviceAddress);
+    }
+
     public void start() {
         startScanning();
     }
@@ -130,11 +183,20 @@ public class BLECentral {
         return mConnectedDevices.containsKey(deviceAddress);
     }
 
+    /**
+     * @return the ATT MTU negotiated with the peripheral at identifier,
+     * or null if not connected or negotiation is in progress
+     */
     public @Nullable Integer getMtuForIdentifier(String identifier) {
         return mMtus.get(identifier);
     }
 
-    public boolean write(byte[] data, UUID characteristicUuid, String deviceAddress) {
+    /**
+     * Write data to the peripheral at deviceAddress. If the return value of this function
+     * indicates the write was queued, the result will be reported via
+     * {@link pro.dbro.airshare.transport.ble.BLETransportCallback#dataSentToIdentifier(pro.dbro.airshare.transport.ble.BLETransportCallback.DeviceType, byte[], String, Exception)}
+     */
+    public boolean write(final byte[] data, UUID characteristicUuid, final String deviceAddress) {
 
         BluetoothGattCharacteristic discoveredCharacteristic = null;
 
@@ -153,26 +215,108 @@ public class BLECentral {
             return false;
         }
 
-        discoveredCharacteristic.setValue(data);
-
-        if ((discoveredCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) !=
-                                                        BluetoothGattCharacteristic.PROPERTY_WRITE)
-            throw new IllegalArgumentException(String.format("Requested write on Characteristic %s without Notify Property",
+        final int writeType;
+        int properties = discoveredCharacteristic.getProperties();
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) == BluetoothGattCharacteristic.PROPERTY_WRITE) {
+            writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        }
+        else if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) {
+            // No link layer acknowledgement. Delivery is confirmed by CreditFlowController
+            writeType = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+        else
+            throw new IllegalArgumentException(String.format("Requested write on Characteristic %s without Write Property",
                     characteristicUuid.toString()));
 
-        BluetoothGatt recipient = mConnectedDevices.get(deviceAddress);
+        final BluetoothGatt recipient = mConnectedDevices.get(deviceAddress);
+        GattOperationQueue queue = mOperationQueues.get(deviceAddress);
+
+        if (recipient != null && queue != null) {
+            final BluetoothGattCharacteristic characteristic = discoveredCharacteristic;
+
+            return queue.enqueue(new CharacteristicWrite(data) {
+                @Override
+                public boolean start() {
+                    // The characteristic is shared by all writes, so its value is only set once this write is current
+                    characteristic.setValue(data);
+                    characteristic.setWriteType(writeType);
+                    boolean success = recipient.writeCharacteristic(characteristic);
+                    if (success) SessionTrace.record(SessionTrace.Event.PACKET_SENT, deviceAddress, data.length);
+                    // write type should be 2 (Default) or 1 (No response) for the bulk characteristic
+                    if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                        Timber.d("Wrote %d bytes with type %d to %s with success %b", data.length, writeType, deviceAddress, success);
+                    return success;
+                }
 
-        if (recipient != null) {
-            boolean success = recipient.writeCharacteristic(discoveredCharacteristic);
-            // write type should be 2 (Default)
-            Timber.d("Wrote %d bytes with type %d to %s with success %b", data.length, discoveredCharacteristic.getWriteType(), deviceAddress, success);
-            return success;
+                @Override
+                public void onFailure(boolean timedOut) {
+                    if (mTransportCallback != null)
+                        mTransportCallback.dataSentToIdentifier(BLETransportCallback.DeviceType.CENTRAL,
+                                                               data,
+                                                               deviceAddress,
+                                                               new UnknownServiceException(timedOut ? "Write timed out" :
+                                                                                                      "Write rejected"));
+                }
+            });
         }
 
         Timber.w("Unable to write " + deviceAddress);
         return false;
     }
 
+    /**
+     * Request the RSSI of the connection to deviceAddress. The result is logged
+     *
+     * @return whether the request was queued
+     */
+    public boolean readRemoteRssi(String deviceAddress) {
+        final BluetoothGatt peripheral = mConnectedDevices.get(deviceAddress);
+        GattOperationQueue queue = mOperationQueues.get(deviceAddress);
+
+        if (peripheral == null || queue == null) return false;
+
+        return queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OperationType.READ_RSSI) {
+            @Override
+            public boolean start() {
+                return peripheral.readRemoteRssi();
+            }
+        });
+    }
+
+    /**
+     * Request the connection to deviceAddress use the given PHYs. Requires Android 8.0
+     *
+     * @param txPhy bitmask of BluetoothDevice PHY_LE_*_MASK values
+     * @param rxPhy bitmask of BluetoothDevice PHY_LE_*_MASK values
+     * @param phyOptions one of BluetoothDevice PHY_OPTION_* values
+     * @return whether the request was queued
+     */
+    public boolean setPreferredPhy(String deviceAddress, final int txPhy, final int rxPhy, final int phyOptions) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+
+        final BluetoothGatt peripheral = mConnectedDevices.get(deviceAddress);
+        GattOperationQueue queue = mOperationQueues.get(deviceAddress);
+
+        if (peripheral == null || queue == null) return false;
+
+        return queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OperationType.SET_PHY) {
+            @TargetApi(Build.VERSION_CODES.O)
+            @Override
+            public boolean start() {
+                peripheral.setPreferredPhy(txPhy, rxPhy, phyOptions);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * @return the GATT operation queue for deviceAddress, for inspection of its metrics,
+     * or null if not connected
+     */
+    public @Nullable GattOperationQueue getOperationQueue(String deviceAddress) {
+        return mOperationQueues.get(deviceAddress);
+    }
+
     public BiMap<String, BluetoothGatt> getConnectedDeviceAddresses() {
         return mConnectedDevices;
     }
@@ -248,7 +392,7 @@ public class BLECentral {
 
                                     if (characteristicSet != null) {
                                         for (BluetoothGattCharacteristic characteristic : characteristicSet) {
-                                            if (mNotifyUuids.contains(characteristic.getUuid())) {
+                                            if (isSubscribedCharacteristic(gatt, characteristic)) {
                                                 Timber.d("Attempting to unsubscribe on disconneting");
                                                 setIndictaionSubscription(gatt, characteristic, false);
                                             }
@@ -262,6 +406,9 @@ public class BLECentral {
                                 case BluetoothProfile.STATE_DISCONNECTED:
                                     Timber.d("Disconnected from " + gatt.getDevice().getAddress());
                                     mConnectedDevices.remove(gatt.getDevice().getAddress());
+                                    mBulkDevices.remove(gatt.getDevice().getAddress());
+                                    mMtus.remove(gatt.getDevice().getAddress());
+                                    clearOperationQueue(gatt);
                                     mConnectingDevices.remove(gatt.getDevice().getAddress());
                                     if (mTransportCallback != null)
                                         mTransportCallback.identifierUpdated(BLETransportCallback.DeviceType.CENTRAL,
@@ -272,7 +419,7 @@ public class BLECentral {
                                     characteristicSet = mDiscoveredCharacteristics.get(gatt.getDevice().getAddress());
                                     if (characteristicSet != null) { // Have we handled unsubscription on DISCONNECTING?
                                         for (BluetoothGattCharacteristic characteristic : characteristicSet) {
-                                            if (mNotifyUuids.contains(characteristic.getUuid())) {
+                                            if (isSubscribedCharacteristic(gatt, characteristic)) {
                                                 Timber.d("Attempting to unsubscribe before disconnet");
                                                 setIndictaionSubscription(gatt, characteristic, false);
                                             }
@@ -289,10 +436,14 @@ public class BLECentral {
                                     // Though we're connected, we shouldn't actually report
                                     // connection until we've discovered all service characteristics
 
-                                    boolean mtuSuccess = gatt.requestMtu(BLETransport.DEFAULT_MTU_BYTES);
+                                    GattOperationQueue queue = new GattOperationQueue(gatt.getDevice().getAddress(), mTimeoutScheduler);
+                                    GattOperationQueue previousQueue = mOperationQueues.put(gatt.getDevice().getAddress(), queue);
+                                    if (previousQueue != null) previousQueue.clear();
 
-                                    Timber.d("Connected to %s. Requested MTU success %b", gatt.getDevice().getAddress(),
-                                            mtuSuccess);
+                                    requestMtu(queue, gatt);
+
+                                    // TODO: Can we craft characteristics and avoid discovery step?
+                                    discoverServices(queue, gatt);
                                     break;
                             }
 
@@ -307,11 +458,12 @@ public class BLECentral {
                                  gatt.getDevice().getAddress(),
                                  status == BluetoothGatt.GATT_SUCCESS);
 
-                        mMtus.put(gatt.getDevice().getAddress(), mtu);
+                        // On failure the link remains at the default ATT MTU
+                        mMtus.put(gatt.getDevice().getAddress(),
+                                  status == BluetoothGatt.GATT_SUCCESS ? mtu : BLETransport.MIN_MTU_BYTES);
 
-                        // TODO: Can we craft characteristics and avoid discovery step?
-                        boolean discovering = gatt.discoverServices();
-                        Timber.d("Discovering services : " + discovering);
+                        // Service discovery is queued behind this request
+                        completeOperation(gatt, GattOperationQueue.OperationType.REQUEST_MTU);
                     }
 
                     @Override
@@ -333,9 +485,19 @@ public class BLECentral {
                                     HashSet<BluetoothGattCharacteristic> characteristicSet = new HashSet<>(service.getCharacteristics());
                                     mDiscoveredCharacteristics.put(gatt.getDevice().getAddress(), characteristicSet);
 
-                                    for (BluetoothGattCharacteristic characteristic : characteristicSet) {
-                                        if (mNotifyUuids.contains(characteristic.getUuid())) {
-                                            setIndictaionSubscription(gatt, characteristic, true);
+                                    BluetoothGattCharacteristic bulkCharacteristic = mBulkUuid == null ? null :
+                                                                                     service.getCharacteristic(mBulkUuid);
+
+                                    if (bulkCharacteristic != null) {
+                                        Timber.d("Using bulk characteristic with %s", gatt.getDevice().getAddress());
+                                        mBulkDevices.add(gatt.getDevice().getAddress());
+                                        setIndictaionSubscription(gatt, bulkCharacteristic, true);
+                                    }
+                                    else {
+                                        for (BluetoothGattCharacteristic characteristic : characteristicSet) {
+                                            if (mNotifyUuids.contains(characteristic.getUuid())) {
+                                                setIndictaionSubscription(gatt, characteristic, true);
+                                            }
                                         }
                                     }
                                 }
@@ -357,26 +519,53 @@ public class BLECentral {
                             Timber.d("Could not discover chat service!");
                         }
 
+                        // Subscriptions are queued behind discovery
+                        completeOperation(gatt, GattOperationQueue.OperationType.DISCOVER_SERVICES);
+
                         super.onServicesDiscovered(gatt, status);
                     }
 
                     /**
                      * Subscribe or Unsubscribe to/from indication of a peripheral's characteristic.
+                     * The bulk characteristic is subscribed to via notification.
                      *
-                     * After calling this method you must await the result via
-                     * {@link #onDescriptorWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattDescriptor, int)}
-                     * before performing any other peripheral actions.
+                     * The descriptor write is queued, and its result reported via
+                     * {@link #onDescriptorWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattDescriptor, int)}.
+                     * If an unsubscription fails the gatt is closed immediately.
                      */
-                    private void setIndictaionSubscription(BluetoothGatt peripheral,
-                                                           BluetoothGattCharacteristic characteristic,
-                                                           boolean enable) {
-
-                        boolean success = peripheral.setCharacteristicNotification(characteristic, enable);
-                        Timber.d("Request notification %s %s with sucess %b", enable ? "set" : "unset", characteristic.getUuid().toString(), success);
-                        BluetoothGattDescriptor desc = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-                        desc.setValue(enable ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                        boolean desSuccess = peripheral.writeDescriptor(desc);
-                        Timber.d("Wrote descriptor with success %b", desSuccess);
+                    private void setIndictaionSubscription(final BluetoothGatt peripheral,
+                                                           final BluetoothGattCharacteristic characteristic,
+                                                           final boolean enable) {
+
+                        GattOperationQueue queue = mOperationQueues.get(peripheral.getDevice().getAddress());
+
+                        if (queue == null) {
+                            if (!enable) peripheral.close();
+                            return;
+                        }
+
+                        GattOperationQueue.Operation operation = new GattOperationQueue.Operation(GattOperationQueue.OperationType.WRITE_DESCRIPTOR) {
+                            @Override
+                            public boolean start() {
+                                boolean success = peripheral.setCharacteristicNotification(characteristic, enable);
+                                Timber.d("Request notification %s %s with sucess %b", enable ? "set" : "unset", characteristic.getUuid().toString(), success);
+                                BluetoothGattDescriptor desc = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+                                byte[] enableValue = characteristic.getUuid().equals(mBulkUuid) ?
+                                                     BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
+                                                     BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+                                desc.setValue(enable ? enableValue : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                                boolean desSuccess = peripheral.writeDescriptor(desc);
+                                Timber.d("Wrote descriptor with success %b", desSuccess);
+                                return desSuccess;
+                            }
+
+                            @Override
+                            public void onFailure(boolean timedOut) {
+                                if (!enable) peripheral.close();
+                            }
+                        };
+
+                        if (!queue.enqueue(operation)) operation.onFailure(false);
                     }
 
                     @Override
@@ -384,9 +573,12 @@ public class BLECentral {
                                                   int status) {
 
                         Timber.d("onDescriptorWrite");
+                        completeOperation(gatt, GattOperationQueue.OperationType.WRITE_DESCRIPTOR);
+
                         if (status == BluetoothGatt.GATT_SUCCESS && mTransportCallback != null) {
 
-                            if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
+                            if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_INDICATION_VALUE) ||
+                                Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
                                 mTransportCallback.identifierUpdated(BLETransportCallback.DeviceType.CENTRAL,
                                         gatt.getDevice().getAddress(),
                                         Transport.ConnectionStatus.CONNECTED,
@@ -401,8 +593,11 @@ public class BLECentral {
 
                     @Override
                     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                        Timber.d("onCharacteristicChanged %s with %d bytes", characteristic.getUuid().toString().substring(0,5),
-                                                                             characteristic.getValue().length);
+                        SessionTrace.record(SessionTrace.Event.PACKET_RECEIVED, gatt.getDevice().getAddress(),
+                                            characteristic.getValue().length);
+                        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                            Timber.d("onCharacteristicChanged %s with %d bytes", characteristic.getUuid(),
+                                                                                 characteristic.getValue().length);
 
                         if (mTransportCallback != null)
                             mTransportCallback.dataReceivedFromIdentifier(BLETransportCallback.DeviceType.CENTRAL,
@@ -416,7 +611,17 @@ public class BLECentral {
                     public void onCharacteristicWrite(BluetoothGatt gatt,
                                                       BluetoothGattCharacteristic characteristic, int status) {
 
-                        Timber.d("onCharacteristicWrite with %d bytes", characteristic.getValue().length);
+                        SessionTrace.record(SessionTrace.Event.PACKET_SENT_COMPLETE, gatt.getDevice().getAddress(), status);
+                        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                            Timber.d("onCharacteristicWrite with %d bytes", characteristic.getValue().length);
+
+                        // A write that timed out was already reported failed, and the characteristic
+                        // may hold the value of the next queued write, so report only the write completed
+                        GattOperationQueue.Operation write = completeOperation(gatt, GattOperationQueue.OperationType.WRITE_CHARACTERISTIC);
+                        if (!(write instanceof CharacteristicWrite)) return;
+
+                        byte[] value = ((CharacteristicWrite) write).data;
+
                         Exception exception = null;
                         if (status != BluetoothGatt.GATT_SUCCESS) {
                             String msg = "Write was not successful with code " + status;
@@ -426,7 +631,7 @@ public class BLECentral {
 
                         if (mTransportCallback != null)
                             mTransportCallback.dataSentToIdentifier(BLETransportCallback.DeviceType.CENTRAL,
-                                                                   characteristic.getValue(),
+                                                                   value,
                                                                    gatt.getDevice().getAddress(),
                                                                    exception);
                     }
@@ -434,8 +639,16 @@ public class BLECentral {
                     @Override
                     public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
                         Timber.d(String.format(Locale.US, "%s rssi: %d", gatt.getDevice().getAddress(), rssi));
+                        completeOperation(gatt, GattOperationQueue.OperationType.READ_RSSI);
                         super.onReadRemoteRssi(gatt, rssi, status);
                     }
+
+                    @Override
+                    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                        Timber.d("%s phy tx: %d rx: %d status: %d", gatt.getDevice().getAddress(), txPhy, rxPhy, status);
+                        completeOperation(gatt, GattOperationQueue.OperationType.SET_PHY);
+                        super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+                    }
                 });
             }
 
@@ -446,6 +659,59 @@ public class BLECentral {
         };
     }
 
+    private void requestMtu(GattOperationQueue queue, final BluetoothGatt gatt) {
+        GattOperationQueue.Operation operation = new GattOperationQueue.Operation(GattOperationQueue.OperationType.REQUEST_MTU) {
+            @Override
+            public boolean start() {
+                boolean mtuSuccess = gatt.requestMtu(BLETransport.MAX_MTU_BYTES);
+                Timber.d("Connected to %s. Requested MTU success %b", gatt.getDevice().getAddress(), mtuSuccess);
+                return mtuSuccess;
+            }
+
+            @Override
+            public void onFailure(boolean timedOut) {
+                // Proceed with the default ATT MTU
+                mMtus.put(gatt.getDevice().getAddress(), BLETransport.MIN_MTU_BYTES);
+            }
+        };
+
+        if (!queue.enqueue(operation)) operation.onFailure(false);
+    }
+
+    private void discoverServices(GattOperationQueue queue, final BluetoothGatt gatt) {
+        queue.enqueue(new GattOperationQueue.Operation(GattOperationQueue.OperationType.DISCOVER_SERVICES) {
+            @Override
+            public boolean start() {
+                boolean discovering = gatt.discoverServices();
+                Timber.d("Discovering services : " + discovering);
+                return discovering;
+            }
+        });
+    }
+
+    /**
+     * @return the operation completed, or null if the completion did not match the operation in progress
+     */
+    private @Nullable GattOperationQueue.Operation completeOperation(BluetoothGatt gatt, GattOperationQueue.OperationType type) {
+        GattOperationQueue queue = mOperationQueues.get(gatt.getDevice().getAddress());
+        return queue == null ? null : queue.onOperationComplete(type);
+    }
+
+    /**
+     * Abandon queued operations for gatt, keeping the queue for unsubscription
+     */
+    private void clearOperationQueue(BluetoothGatt gatt) {
+        GattOperationQueue queue = mOperationQueues.get(gatt.getDevice().getAddress());
+        if (queue != null) queue.clear();
+    }
+
+    private boolean isSubscribedCharacteristic(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        if (isBulkConnection(gatt.getDevice().getAddress()))
+            return characteristic.getUuid().equals(mBulkUuid);
+
+        return mNotifyUuids.contains(characteristic.getUuid());
+    }
+
     private void startScanning() {
         if ((mBtAdapter != null) && (!mIsScanning)) {
             if (mScanner == null) {
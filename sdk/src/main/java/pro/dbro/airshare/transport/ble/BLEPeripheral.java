@@ -19,16 +19,21 @@ import android.content.Context;
 import android.os.Build;
 import android.os.ParcelUuid;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
 import java.net.UnknownServiceException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import pro.dbro.airshare.session.SessionLog;
+import pro.dbro.airshare.session.SessionTrace;
 import pro.dbro.airshare.transport.ConnectionGovernor;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
@@ -42,9 +47,15 @@ import timber.log.Timber;
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class BLEPeripheral {
 
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
+
     private Set<BluetoothGattCharacteristic> mCharacteristics = new HashSet<>();
     /** Map of connected device addresses to devices */
     private BiMap<String, BluetoothDevice> mConnectedDevices = HashBiMap.create();
+    /** Addresses of connected centrals subscribed via notification, rather than indication */
+    private Set<String> mBulkDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** Central MAC Address -> ATT Maximum Transmission Unit negotiated by the central */
+    private final ConcurrentHashMap<String, Integer> mMtus = new ConcurrentHashMap<>();
 
     @SuppressWarnings("unused")
     public interface BLEPeripheralConnectionGovernor {
@@ -132,6 +143,42 @@ public class BLEPeripheral {
                             UUID characteristicUuid,
                             String deviceAddress) {
 
+        return notifyCharacteristicChanged(data, characteristicUuid, deviceAddress, true);
+    }
+
+    /**
+     * Send data to the central at deviceAddress via unconfirmed notification. The remote central
+     * does not acknowledge receipt, but the same sequencing requirements as
+     * {@link #indicate(byte[], UUID, String)} apply.
+     */
+    public boolean sendNotification(byte[] data,
+                                    UUID characteristicUuid,
+                                    String deviceAddress) {
+
+        return notifyCharacteristicChanged(data, characteristicUuid, deviceAddress, false);
+    }
+
+    /**
+     * @return the ATT MTU negotiated by the central at deviceAddress, or null
+     * if it has not requested an exchange
+     */
+    public @Nullable Integer getMtuForIdentifier(String deviceAddress) {
+        return mMtus.get(deviceAddress);
+    }
+
+    /**
+     * @return whether the central at deviceAddress subscribed via notification, and so
+     * should be sent data via {@link #sendNotification(byte[], UUID, String)}
+     */
+    public boolean isBulkConnection(String deviceAddress) {
+        return mBulkDevices.contains(deviceAddress);
+    }
+
+    private boolean notifyCharacteristicChanged(byte[] data,
+                                                UUID characteristicUuid,
+                                                String deviceAddress,
+                                                boolean confirm) {
+
         BluetoothGattCharacteristic targetCharacteristic = null;
         for (BluetoothGattCharacteristic characteristic : mCharacteristics) {
             if (characteristic.getUuid().equals(characteristicUuid))
@@ -145,19 +192,27 @@ public class BLEPeripheral {
 
         targetCharacteristic.setValue(data);
 
-        if ((targetCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) !=
-                                                    BluetoothGattCharacteristic.PROPERTY_INDICATE)
-            throw new IllegalArgumentException(String.format("Requested indicate on Characteristic %s without Notify Property",
-                                                             targetCharacteristic.getUuid()));
+        int requiredProperty = confirm ? BluetoothGattCharacteristic.PROPERTY_INDICATE :
+                                         BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+
+        if ((targetCharacteristic.getProperties() & requiredProperty) != requiredProperty)
+            throw new IllegalArgumentException(String.format("Requested %s on Characteristic %s without %s Property",
+                                                             confirm ? "indicate" : "notify",
+                                                             targetCharacteristic.getUuid(),
+                                                             confirm ? "Indicate" : "Notify"));
 
         BluetoothDevice recipient = mConnectedDevices.get(deviceAddress);
 
         if (recipient != null && mGattServer != null) {
             boolean success = mGattServer.notifyCharacteristicChanged(recipient,
                                                                      targetCharacteristic,
-                                                                     true);
-            if (success) mLastNotified = data;
-            Timber.d("Notified %d bytes to %s with success %b", data.length, deviceAddress, success);
+                                                                     confirm);
+            if (success) {
+                mLastNotified = data;
+                SessionTrace.record(SessionTrace.Event.PACKET_SENT, deviceAddress, data.length);
+            }
+            if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                Timber.d("Notified %d bytes to %s with success %b", data.length, deviceAddress, success);
             return success;
         }
 
@@ -250,6 +305,8 @@ public class BLEPeripheral {
                     // We've disconnected
                     Timber.d("Disconnected from " + device.getAddress());
                     mConnectedDevices.remove(device.getAddress());
+                    mBulkDevices.remove(device.getAddress());
+                    mMtus.remove(device.getAddress());
                     if (mTransportCallback != null)
                         mTransportCallback.identifierUpdated(BLETransportCallback.DeviceType.PERIPHERAL,
                                                             device.getAddress(),
@@ -267,7 +324,9 @@ public class BLEPeripheral {
 
             @Override
             public void onCharacteristicWriteRequest(BluetoothDevice remoteCentral, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-                Timber.d("onCharacteristicWriteRequest for request %d char %s offset %d length %d responseNeeded %b", requestId, characteristic.getUuid().toString().substring(0,3), offset, value == null ? 0 : value.length, responseNeeded);
+                SessionTrace.record(SessionTrace.Event.PACKET_RECEIVED, remoteCentral.getAddress(), value == null ? 0 : value.length);
+                if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                    Timber.d("onCharacteristicWriteRequest for request %d char %s offset %d length %d responseNeeded %b", requestId, characteristic.getUuid(), offset, value == null ? 0 : value.length, responseNeeded);
 
                 BluetoothGattCharacteristic localCharacteristic = mGattServer.getService(mServiceUuid).getCharacteristic(characteristic.getUuid());
                 if (localCharacteristic != null) {
@@ -275,7 +334,7 @@ public class BLEPeripheral {
                     // Must send response before notifying callback (which might trigger data send before remote central received ack)
                     if (responseNeeded) {
                         boolean success = mGattServer.sendResponse(remoteCentral, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-                        Timber.d("Ack'd write with success " + success);
+                        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Ack'd write with success %b", success);
                     }
 
                     if (mTransportCallback != null)
@@ -311,6 +370,15 @@ public class BLEPeripheral {
                     boolean success = mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
                     Timber.d("Sent Indication sub response with success %b", success);
                 }
+                else if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
+                    // Mark before responding, as the central may send data as soon as it receives the response
+                    mBulkDevices.add(device.getAddress());
+
+                    if (responseNeeded) {
+                        boolean success = mGattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        Timber.d("Sent Notification sub response with success %b", success);
+                    }
+                }
                 super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
             }
 
@@ -320,9 +388,17 @@ public class BLEPeripheral {
                 super.onExecuteWrite(device, requestId, execute);
             }
 
+            @Override
+            public void onMtuChanged(BluetoothDevice device, int mtu) {
+                Timber.d("Got MTU (%d bytes) for device %s", mtu, device.getAddress());
+                mMtus.put(device.getAddress(), mtu);
+                super.onMtuChanged(device, mtu);
+            }
+
             @Override
             public void onNotificationSent(BluetoothDevice device, int status) {
-                Timber.d("onNotificationSent");
+                SessionTrace.record(SessionTrace.Event.PACKET_SENT_COMPLETE, device.getAddress(), status);
+                if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("onNotificationSent");
                 Exception exception = null;
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     String msg = "notify not successful with code " + status;
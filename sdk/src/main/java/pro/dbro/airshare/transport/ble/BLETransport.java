@@ -9,13 +9,17 @@ import androidx.annotation.NonNull;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import pro.dbro.airshare.session.SessionLog;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
 
@@ -29,8 +33,12 @@ import timber.log.Timber;
  * Created by davidbrodsky on 2/21/15.
  *
  *
- * Every Identifier gets a ByteBuffer that all outgoing data gets copied to, and
- * is read from in DEFAULT_MTU_BYTES increments for the actual sendData call.
+ * Every Identifier gets a queue of outgoing chunks, each sized to fit a single
+ * write or indication at the MTU negotiated with that identifier.
+ *
+ * When both devices offer the bulk characteristic, data is sent via write-without-response
+ * and unconfirmed notification, with delivery confirmed by a {@link CreditFlowController}
+ * rather than per-packet by the link layer.
  *
  * *** THOUGHTS ***
  *
@@ -46,16 +54,35 @@ import timber.log.Timber;
  */
 public class BLETransport extends Transport implements BLETransportCallback {
 
+    /** ATT MTU assumed for identifiers without a connection, e.g. when ranking transports */
     public static final int DEFAULT_MTU_BYTES = 155;
 
+    /** Largest ATT MTU permitted by the Bluetooth specification. Requested of each peripheral */
+    public static final int MAX_MTU_BYTES = 517;
+
+    /** ATT MTU in effect until an exchange completes, or if it fails */
+    public static final int MIN_MTU_BYTES = 23;
+
+    /** Bytes of each ATT write or notification taken by the opcode and attribute handle */
+    public static final int ATT_HEADER_BYTES = 3;
+
     public static final int TRANSPORT_CODE = 1;
 
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
+
     private final UUID mServiceUuid;
     private final UUID mDataUuid = UUID.fromString("72A7700C-859D-4317-9E35-D7F5A93005B1");
+    private final UUID mBulkUuid = UUID.fromString("72A7700C-859D-4317-9E35-D7F5A93005B2");
 
     /** Identifier -> Queue of outgoing buffers */
     private HashMap<String, ArrayDeque<byte[]>> mOutBuffers = new HashMap<>();
 
+    /** Identifiers with a write or indication awaiting completion */
+    private Set<String> mAwaitingCompletion = new HashSet<>();
+
+    /** Identifier -> Flow control for connections using the bulk characteristic */
+    private HashMap<String, CreditFlowController> mFlowControllers = new HashMap<>();
+
     private final BluetoothGattCharacteristic mDataCharacteristic
             = new BluetoothGattCharacteristic(mDataUuid,
                                               BluetoothGattCharacteristic.PROPERTY_READ |
@@ -65,6 +92,13 @@ public class BLETransport extends Transport implements BLETransportCallback {
                                               BluetoothGattCharacteristic.PERMISSION_READ |
                                               BluetoothGattCharacteristic.PERMISSION_WRITE);
 
+    private final BluetoothGattCharacteristic mBulkCharacteristic
+            = new BluetoothGattCharacteristic(mBulkUuid,
+                                              BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE |
+                                              BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+
+                                              BluetoothGattCharacteristic.PERMISSION_WRITE);
+
     private BLECentral mCentral;
     private BLEPeripheral mPeripheral;
 
@@ -80,14 +114,20 @@ public class BLETransport extends Transport implements BLETransportCallback {
                                                                      BluetoothGattDescriptor.PERMISSION_WRITE |
                                                                              BluetoothGattDescriptor.PERMISSION_READ));
 
+        mBulkCharacteristic.addDescriptor(new BluetoothGattDescriptor(BLECentral.CLIENT_CHARACTERISTIC_CONFIG,
+                                                                     BluetoothGattDescriptor.PERMISSION_WRITE |
+                                                                             BluetoothGattDescriptor.PERMISSION_READ));
+
         mCentral = new BLECentral(context, mServiceUuid);
         mCentral.setTransportCallback(this);
         mCentral.requestNotifyOnCharacteristic(mDataCharacteristic);
+        mCentral.setBulkCharacteristic(mBulkUuid);
 
         if (isLollipop()) {
             mPeripheral = new BLEPeripheral(context, mServiceUuid);
             mPeripheral.setTransportCallback(this);
             mPeripheral.addCharacteristic(mDataCharacteristic);
+            mPeripheral.addCharacteristic(mBulkCharacteristic);
         }
     }
 
@@ -156,10 +196,34 @@ public class BLETransport extends Transport implements BLETransportCallback {
         return TRANSPORT_CODE;
     }
 
+    /**
+     * @return the largest chunk that fits in a single write or indication to identifier
+     */
     @Override
     public int getMtuForIdentifier(String identifier) {
         Integer mtu = mCentral.getMtuForIdentifier(identifier);
-        return (mtu == null ? DEFAULT_MTU_BYTES : mtu ) - 10;
+
+        if (mtu == null && isLollipop())
+            mtu = mPeripheral.getMtuForIdentifier(identifier);
+
+        if (mtu == null)
+            mtu = isConnectedTo(identifier) ? MIN_MTU_BYTES : DEFAULT_MTU_BYTES;
+
+        int overhead = isBulkConnection(identifier) ? CreditFlowController.PACKET_OVERHEAD_BYTES : 0;
+        return mtu - ATT_HEADER_BYTES - overhead;
+    }
+
+    /**
+     * @return the chunks queued in {@link #mOutBuffers} for identifier, and those handed to its
+     * {@link CreditFlowController} but not yet transmitted
+     */
+    @Override
+    public int getQueuedChunkCount(String identifier) {
+        ArrayDeque<byte[]> buffers = mOutBuffers.get(identifier);
+        CreditFlowController flowController = mFlowControllers.get(identifier);
+
+        return (buffers == null ? 0 : buffers.size()) +
+               (flowController == null ? 0 : flowController.getPendingPacketCount());
     }
 
     // </editor-fold desc="Transport">
@@ -168,13 +232,28 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
     @Override
     public void dataReceivedFromIdentifier(DeviceType deviceType, byte[] data, String identifier) {
+        if (isBulkConnection(identifier)) {
+            bulkPacketReceivedFromIdentifier(data, identifier);
+            return;
+        }
+
         if (mCallback.get() != null)
             mCallback.get().dataReceivedFromIdentifier(this, data, identifier);
     }
 
     @Override
     public void dataSentToIdentifier(DeviceType deviceType, byte[] data, String identifier, Exception exception) {
-        Timber.d("Got receipt for %d sent bytes", data.length);
+        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Got receipt for %d sent bytes", data.length);
+
+        mAwaitingCompletion.remove(identifier);
+
+        if (isBulkConnection(identifier) && exception == null) {
+            // The packet is only buffered for transmission. Delivery is reported on credit from the remote
+            transmitOutgoingDataForConnectedPeer(identifier);
+            return;
+        }
+
+        transmitOutgoingDataForConnectedPeer(identifier);
 
         if (mCallback.get() != null)
             mCallback.get().dataSentToIdentifier(this, data, identifier, exception);
@@ -196,12 +275,45 @@ public class BLETransport extends Transport implements BLETransportCallback {
                                                  extraInfo);
         }
 
+        if (status == ConnectionStatus.DISCONNECTED) {
+            mAwaitingCompletion.remove(identifier);
+            mFlowControllers.remove(identifier);
+        }
+
         if (status == ConnectionStatus.CONNECTED)
             transmitOutgoingDataForConnectedPeer(identifier);
     }
 
     // </editor-fold desc="BLETransportCallback">
 
+    /**
+     * Process a packet received over the bulk characteristic, forwarding any data it carried
+     * and reporting delivery of any chunks it acknowledged
+     */
+    private void bulkPacketReceivedFromIdentifier(byte[] packet, String identifier) {
+        CreditFlowController flowController = getFlowController(identifier);
+        List<byte[]> acked = new ArrayList<>();
+        byte[] data;
+
+        try {
+            data = flowController.onPacketReceived(packet, acked);
+        } catch (IllegalArgumentException e) {
+            Timber.w(e, "Dropping malformed bulk packet from %s", identifier);
+            return;
+        }
+
+        if (mCallback.get() != null) {
+            for (byte[] ackedData : acked)
+                mCallback.get().dataSentToIdentifier(this, ackedData, identifier, null);
+
+            if (data != null)
+                mCallback.get().dataReceivedFromIdentifier(this, data, identifier);
+        }
+
+        // Send any credit now due, or data the new credit permits
+        transmitOutgoingDataForConnectedPeer(identifier);
+    }
+
     /**
      * Queue data for transmission to identifier
      */
@@ -219,55 +331,117 @@ public class BLETransport extends Transport implements BLETransportCallback {
         while (readIdx < data.length) {
 
             if (data.length - readIdx > mtu) {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream(mtu);
-                bos.write(data, readIdx, mtu);
-                Timber.d("Adding %d byte chunk to queue", bos.size());
-                buffers.add(bos.toByteArray());
+                if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Adding %d byte chunk to queue", mtu);
+                buffers.add(Arrays.copyOfRange(data, readIdx, readIdx + mtu));
                 readIdx += mtu;
             } else {
-                Timber.d("Adding %d byte chunk to queue", data.length);
-                buffers.add(data);
+                // Data sized to the MTU, as provided by SessionMessageSerializer, is queued without copying
+                if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Adding %d byte chunk to queue", data.length - readIdx);
+                buffers.add(readIdx == 0 ? data : Arrays.copyOfRange(data, readIdx, data.length));
                 break;
             }
         }
     }
 
-    // TODO: Don't think the boolean return type is meaningful here as partial success can't be handled
+    /**
+     * Transmit the next queued chunk to identifier. GATT permits a single outstanding operation
+     * per connection, so remaining chunks are transmitted as each write or indication completes
+     * rather than awaiting the next {@link #sendData(byte[], String)}.
+     *
+     * @return false if a chunk could not be transmitted
+     */
     private boolean transmitOutgoingDataForConnectedPeer(String identifier) {
+        if (isBulkConnection(identifier))
+            return transmitBulkDataForConnectedPeer(identifier);
+
         ArrayDeque<byte[]> buffer = mOutBuffers.get(identifier);
 
         if (buffer == null) {
             return false;
         }
 
-        byte[] toSend;
-        boolean didSendAll = true;
+        byte[] toSend = buffer.peek();
 
-        while ((toSend = buffer.peek()) != null) {
-            boolean didSend = false;
-            if (mCentral.isConnectedTo(identifier)) {
-                didSend = mCentral.write(toSend, mDataCharacteristic.getUuid(), identifier);
-            }
-            else if (isLollipop() && mPeripheral.isConnectedTo(identifier)) {
-                didSend = mPeripheral.indicate(toSend, mDataCharacteristic.getUuid(), identifier);
-            }
+        if (toSend == null || mAwaitingCompletion.contains(identifier)) return true;
 
-            if (didSend) {
+        boolean didSend = false;
+        if (mCentral.isConnectedTo(identifier)) {
+            didSend = mCentral.write(toSend, mDataCharacteristic.getUuid(), identifier);
+        }
+        else if (isLollipop() && mPeripheral.isConnectedTo(identifier)) {
+            didSend = mPeripheral.indicate(toSend, mDataCharacteristic.getUuid(), identifier);
+        }
+
+        if (didSend) {
+            if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
                 Timber.d("Sent %d byte chunk to %s. %d more chunks in queue", toSend.length, identifier, buffer.size() - 1);
 
-                buffer.poll();
-            }
-            else {
-                Timber.w("Failed to send %d bytes to %s", toSend.length, identifier);
-                didSendAll = false;
+            buffer.poll();
+            mAwaitingCompletion.add(identifier);
+        }
+        else {
+            Timber.w("Failed to send %d bytes to %s", toSend.length, identifier);
+        }
 
-                break;
-            }
+        return didSend;
+    }
+
+    /**
+     * Transmit the next packet permitted by identifier's {@link CreditFlowController}.
+     * Queued chunks are handed to the controller, which frames them and holds them
+     * until the remote acknowledges delivery.
+     *
+     * @return false if a packet could not be transmitted
+     */
+    private boolean transmitBulkDataForConnectedPeer(String identifier) {
+        CreditFlowController flowController = getFlowController(identifier);
 
-            break; // For now, only attempt one data chunk at a time. Wait delivery before proceeding
+        ArrayDeque<byte[]> buffer = mOutBuffers.get(identifier);
+        if (buffer != null) {
+            byte[] chunk;
+            while ((chunk = buffer.poll()) != null) flowController.queue(chunk);
         }
 
-        return didSendAll;
+        if (mAwaitingCompletion.contains(identifier)) return true;
+
+        byte[] packet = flowController.nextPacket();
+
+        if (packet == null) return true;
+
+        boolean didSend = false;
+        if (mCentral.isConnectedTo(identifier)) {
+            didSend = mCentral.write(packet, mBulkUuid, identifier);
+        }
+        else if (isLollipop() && mPeripheral.isConnectedTo(identifier)) {
+            didSend = mPeripheral.sendNotification(packet, mBulkUuid, identifier);
+        }
+
+        if (didSend) {
+            if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG))
+                Timber.d("Sent %d byte bulk packet to %s. %d credits remain", packet.length, identifier, flowController.getCredits());
+
+            flowController.packetSent();
+            mAwaitingCompletion.add(identifier);
+        }
+        else {
+            Timber.w("Failed to send %d byte bulk packet to %s", packet.length, identifier);
+        }
+
+        return didSend;
+    }
+
+    private CreditFlowController getFlowController(String identifier) {
+        CreditFlowController flowController = mFlowControllers.get(identifier);
+
+        if (flowController == null) {
+            flowController = new CreditFlowController();
+            mFlowControllers.put(identifier, flowController);
+        }
+        return flowController;
+    }
+
+    private boolean isBulkConnection(String identifier) {
+        return mCentral.isBulkConnection(identifier) || (isLollipop() && mPeripheral.isBulkConnection(identifier));
     }
 
     private boolean isConnectedTo(String identifier) {
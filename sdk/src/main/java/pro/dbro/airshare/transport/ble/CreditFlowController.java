@@ -0,0 +1,222 @@
+package pro.dbro.airshare.transport.ble;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Credit-based flow control for a bulk BLE connection, where packets are sent via
+ * write-without-response or unconfirmed notification and so are not acknowledged
+ * by the link layer.
+ *
+ * Each packet carries a leading type byte:
+ *
+ * type                        | payload
+ * ----------------------------|------------
+ * {@link #PACKET_DATA}        | data
+ * {@link #PACKET_DATA_ACK_REQ}| data. The receiver should reply with a credit packet immediately
+ * {@link #PACKET_CREDIT}      | int32 LE cumulative data packets received, uint16 LE window in packets
+ *
+ * The sender may have up to window data packets beyond the last cumulative acknowledgement
+ * in flight. The receiver grants credit every half window, or when the sender requests it
+ * because it has run out of credit or data. Credit packets are not themselves flow controlled.
+ *
+ * One instance manages both directions of a single connection.
+ */
+@SuppressWarnings("WeakerAccess")
+public class CreditFlowController {
+
+    public static final byte PACKET_DATA         = 0;
+    public static final byte PACKET_DATA_ACK_REQ = 1;
+    public static final byte PACKET_CREDIT       = 2;
+
+    /** Data packets the receiver will accept beyond those acknowledged */
+    public static final int DEFAULT_WINDOW_PACKETS = 16;
+
+    /** Bytes a packet's type prefix adds to its payload */
+    public static final int PACKET_OVERHEAD_BYTES = 1;
+
+    private static final int CREDIT_PACKET_BYTES = 1 + 4 + 2;
+
+    private final int mReceiveWindow;
+
+    /** Payloads awaiting credit */
+    private final ArrayDeque<byte[]> mPending = new ArrayDeque<>();
+
+    /** Payloads sent awaiting cumulative acknowledgement */
+    private final ArrayDeque<byte[]> mUnacked = new ArrayDeque<>();
+
+    /** Framed packet returned by {@link #nextPacket()} but not yet committed by {@link #packetSent()} */
+    private byte[] mNextPacket;
+    private boolean mNextPacketIsCredit;
+    private boolean mCreditDue;
+
+    private int mSendWindow;
+    private int mPacketsSent;
+    private int mPacketsAcked;
+
+    private int mPacketsReceived;
+    private int mPacketsReceivedAtLastCredit;
+
+    public CreditFlowController() {
+        this(DEFAULT_WINDOW_PACKETS);
+    }
+
+    /**
+     * @param receiveWindow data packets this side will accept beyond those it has acknowledged.
+     *                      Also assumed of the remote until it grants credit.
+     */
+    public CreditFlowController(int receiveWindow) {
+        if (receiveWindow < 2)
+            throw new IllegalArgumentException("Window must allow at least two packets");
+
+        mReceiveWindow = receiveWindow;
+        mSendWindow = receiveWindow;
+    }
+
+    // <editor-fold desc="Sending">
+
+    /**
+     * Queue payload for transmission. payload must fit within a single packet
+     * after {@link #PACKET_OVERHEAD_BYTES} are added.
+     */
+    public synchronized void queue(@NonNull byte[] payload) {
+        mPending.add(payload);
+    }
+
+    /**
+     * @return the next packet to transmit, or null if no credit or data is available.
+     * Until {@link #packetSent()} is called the same packet is returned.
+     */
+    public synchronized @Nullable byte[] nextPacket() {
+        if (mNextPacket != null) return mNextPacket;
+
+        if (mCreditDue) {
+            mNextPacket = createCreditPacket();
+            mNextPacketIsCredit = true;
+            return mNextPacket;
+        }
+
+        if (mPending.isEmpty() || getCredits() == 0) return null;
+
+        byte[] payload = mPending.peek();
+
+        // Request credit if this packet exhausts it or is the last we have to send,
+        // otherwise the remaining unacknowledged packets would not be reported delivered
+        boolean requestAck = getCredits() == 1 || mPending.size() == 1;
+
+        mNextPacket = new byte[payload.length + PACKET_OVERHEAD_BYTES];
+        mNextPacket[0] = requestAck ? PACKET_DATA_ACK_REQ : PACKET_DATA;
+        System.arraycopy(payload, 0, mNextPacket, PACKET_OVERHEAD_BYTES, payload.length);
+        mNextPacketIsCredit = false;
+        return mNextPacket;
+    }
+
+    /**
+     * Commit the packet last returned by {@link #nextPacket()} as transmitted
+     */
+    public synchronized void packetSent() {
+        if (mNextPacket == null)
+            throw new IllegalStateException("packetSent called without a packet from nextPacket");
+
+        if (mNextPacketIsCredit) {
+            mCreditDue = false;
+            mPacketsReceivedAtLastCredit = readInt(mNextPacket, 1);
+        } else {
+            mUnacked.add(mPending.poll());
+            mPacketsSent++;
+        }
+
+        mNextPacket = null;
+    }
+
+    /**
+     * @return whether {@link #nextPacket()} would return a packet
+     */
+    public synchronized boolean hasPacketToSend() {
+        return mNextPacket != null || mCreditDue || (!mPending.isEmpty() && getCredits() > 0);
+    }
+
+    public synchronized int getCredits() {
+        return Math.max(0, mSendWindow - (mPacketsSent - mPacketsAcked));
+    }
+
+    public synchronized int getUnackedPacketCount() {
+        return mUnacked.size();
+    }
+
+    /**
+     * @return the number of queued payloads not yet framed as packets for transmission
+     */
+    public synchronized int getPendingPacketCount() {
+        return mPending.size();
+    }
+
+    // </editor-fold desc="Sending">
+
+    // <editor-fold desc="Receiving">
+
+    /**
+     * Process a packet received from the remote.
+     *
+     * @param acked populated with payloads whose delivery the packet acknowledged, in send order
+     * @return the data payload the packet carried, or null if it was a credit packet
+     * @throws IllegalArgumentException if packet is malformed
+     */
+    public synchronized @Nullable byte[] onPacketReceived(@NonNull byte[] packet, @NonNull List<byte[]> acked) {
+        if (packet.length < PACKET_OVERHEAD_BYTES)
+            throw new IllegalArgumentException("Empty packet");
+
+        switch (packet[0]) {
+            case PACKET_DATA:
+            case PACKET_DATA_ACK_REQ:
+                mPacketsReceived++;
+
+                if (packet[0] == PACKET_DATA_ACK_REQ ||
+                    mPacketsReceived - mPacketsReceivedAtLastCredit >= mReceiveWindow / 2) {
+                    mCreditDue = true;
+                }
+
+                byte[] payload = new byte[packet.length - PACKET_OVERHEAD_BYTES];
+                System.arraycopy(packet, PACKET_OVERHEAD_BYTES, payload, 0, payload.length);
+                return payload;
+
+            case PACKET_CREDIT:
+                if (packet.length != CREDIT_PACKET_BYTES)
+                    throw new IllegalArgumentException("Malformed credit packet of " + packet.length + " bytes");
+
+                int cumulativeAck = readInt(packet, 1);
+                int window = (packet[5] & 0xFF) | (packet[6] & 0xFF) << 8;
+
+                // Acknowledgements may only advance
+                while (mPacketsAcked < cumulativeAck && !mUnacked.isEmpty()) {
+                    acked.add(mUnacked.poll());
+                    mPacketsAcked++;
+                }
+                mSendWindow = window;
+                return null;
+
+            default:
+                throw new IllegalArgumentException("Unknown packet type " + packet[0]);
+        }
+    }
+
+    // </editor-fold desc="Receiving">
+
+    private byte[] createCreditPacket() {
+        return ByteBuffer.allocate(CREDIT_PACKET_BYTES)
+                         .order(ByteOrder.LITTLE_ENDIAN)
+                         .put(PACKET_CREDIT)
+                         .putInt(mPacketsReceived)
+                         .putShort((short) mReceiveWindow)
+                         .array();
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+}
@@ -0,0 +1,345 @@
+package pro.dbro.airshare.transport.ble;
+
+import android.os.Handler;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Serializes GATT operations on a single connection. Android permits one outstanding
+ * operation per {@link android.bluetooth.BluetoothGatt}, and an operation requested while
+ * another is in progress is rejected or silently dropped.
+ *
+ * Each {@link Operation} is started when the previous one completes, as reported
+ * via {@link #onOperationComplete(OperationType)} from the corresponding
+ * {@link android.bluetooth.BluetoothGattCallback} method, or when it times out.
+ *
+ * A timed-out operation may still complete. Were the next operation of its type started, the late
+ * completion would be taken for that operation's, so after a timeout the queue waits up to
+ * another timeout for the late completion, which it discards, before starting the next.
+ *
+ * Methods may be called from any thread. {@link Operation#onFailure(boolean)} is called without
+ * this queue's lock held, so that it may report failure to code that enqueues while holding
+ * its own lock, as {@link BLECentral} does on behalf of the session.
+ */
+@SuppressWarnings("WeakerAccess")
+public class GattOperationQueue {
+
+    public static final long DEFAULT_TIMEOUT_MS = 5 * 1000;
+
+    public enum OperationType {
+        REQUEST_MTU,
+        DISCOVER_SERVICES,
+        WRITE_DESCRIPTOR,
+        WRITE_CHARACTERISTIC,
+        READ_RSSI,
+        SET_PHY
+    }
+
+    public static abstract class Operation {
+
+        private final OperationType mType;
+
+        public Operation(@NonNull OperationType type) {
+            mType = type;
+        }
+
+        public OperationType getType() {
+            return mType;
+        }
+
+        /**
+         * Begin the operation
+         *
+         * @return false if the operation was rejected, in which case no completion will follow
+         */
+        public abstract boolean start();
+
+        /**
+         * Called if the operation could not be started after queueing, or did not complete
+         * within the queue's timeout
+         */
+        public void onFailure(boolean timedOut) {}
+    }
+
+    /**
+     * Schedules operation timeouts. See {@link HandlerTimeoutScheduler}
+     */
+    public interface TimeoutScheduler {
+        void schedule(@NonNull Runnable timeout, long delayMs);
+
+        void cancel(@NonNull Runnable timeout);
+    }
+
+    /**
+     * Runs timeouts on a {@link Handler}'s thread
+     */
+    public static class HandlerTimeoutScheduler implements TimeoutScheduler {
+
+        private final Handler mHandler;
+
+        public HandlerTimeoutScheduler(@NonNull Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void schedule(@NonNull Runnable timeout, long delayMs) {
+            mHandler.postDelayed(timeout, delayMs);
+        }
+
+        @Override
+        public void cancel(@NonNull Runnable timeout) {
+            mHandler.removeCallbacks(timeout);
+        }
+    }
+
+    private final String mIdentifier;
+    private final TimeoutScheduler mScheduler;
+    private final long mTimeoutMs;
+
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private Operation mCurrent;
+    private long mCurrentStartNs;
+
+    /** Type of the timed-out operation whose late completion is awaited, if any */
+    private OperationType mLateType;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    // Metrics
+    private int mMaxQueueDepth;
+    private int mTimeoutCount;
+    private int mStartFailureCount;
+    private final EnumMap<OperationType, Integer> mCompletedCounts = new EnumMap<>(OperationType.class);
+    private final EnumMap<OperationType, Long> mCompletedLatencyNs = new EnumMap<>(OperationType.class);
+    private final EnumMap<OperationType, Long> mMaxLatencyNs = new EnumMap<>(OperationType.class);
+
+    public GattOperationQueue(@NonNull String identifier, @NonNull TimeoutScheduler scheduler) {
+        this(identifier, scheduler, DEFAULT_TIMEOUT_MS);
+    }
+
+    public GattOperationQueue(@NonNull String identifier, @NonNull TimeoutScheduler scheduler, long timeoutMs) {
+        mIdentifier = identifier;
+        mScheduler = scheduler;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Queue operation, starting it immediately if no other operation is in progress.
+     *
+     * @return false if operation was started immediately and rejected. In this case
+     * {@link Operation#onFailure(boolean)} is not called, as the caller is still on the stack.
+     */
+    public boolean enqueue(@NonNull Operation operation) {
+        List<Operation> rejected;
+
+        synchronized (this) {
+            mPending.add(operation);
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, getQueueDepth());
+
+            if (mCurrent != null || mLateType != null) return true;
+
+            mCurrent = mPending.poll();
+            if (startCurrent()) return true;
+
+            // Proceed to any operations queued behind the rejected one
+            rejected = startNext();
+        }
+
+        notifyFailures(null, rejected);
+        return false;
+    }
+
+    /**
+     * Report completion of the current operation. Completions of a type not in progress,
+     * and the late completion of an operation that timed out, are ignored.
+     *
+     * @return the operation completed, or null if the completion did not match the operation
+     * in progress. Only a matched completion reports the outcome of its operation
+     */
+    public @Nullable Operation onOperationComplete(@NonNull OperationType type) {
+        Operation completed;
+        List<Operation> rejected;
+
+        synchronized (this) {
+            if (mLateType != null && mLateType == type) {
+                Timber.w("Discarding late %s completion for %s", type, mIdentifier);
+                mScheduler.cancel(mTimeout);
+                mLateType = null;
+                rejected = startNext();
+                completed = null;
+            } else if (mCurrent == null || mCurrent.getType() != type) {
+                Timber.w("%s completion for %s does not match current operation %s", type, mIdentifier,
+                         mCurrent == null ? "none" : mCurrent.getType());
+                return null;
+            } else {
+                mScheduler.cancel(mTimeout);
+                recordLatency(type, System.nanoTime() - mCurrentStartNs);
+
+                completed = mCurrent;
+                mCurrent = null;
+                rejected = startNext();
+            }
+        }
+
+        notifyFailures(null, rejected);
+        return completed;
+    }
+
+    /**
+     * Abandon the current and all queued operations without notifying them, e.g. on disconnection
+     */
+    public synchronized void clear() {
+        mScheduler.cancel(mTimeout);
+        mCurrent = null;
+        mLateType = null;
+        mPending.clear();
+    }
+
+    // <editor-fold desc="Metrics">
+
+    /**
+     * @return operations queued or in progress
+     */
+    public synchronized int getQueueDepth() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public synchronized @Nullable OperationType getCurrentOperationType() {
+        return mCurrent == null ? null : mCurrent.getType();
+    }
+
+    public synchronized int getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    public synchronized int getStartFailureCount() {
+        return mStartFailureCount;
+    }
+
+    public synchronized int getCompletedCount(@NonNull OperationType type) {
+        Integer count = mCompletedCounts.get(type);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return mean nanoseconds from start to completion of operations of type,
+     * or 0 if none have completed
+     */
+    public synchronized long getMeanLatencyNs(@NonNull OperationType type) {
+        int count = getCompletedCount(type);
+        return count == 0 ? 0 : mCompletedLatencyNs.get(type) / count;
+    }
+
+    public synchronized long getMaxLatencyNs(@NonNull OperationType type) {
+        Long latency = mMaxLatencyNs.get(type);
+        return latency == null ? 0 : latency;
+    }
+
+    // </editor-fold desc="Metrics">
+
+    private void onTimeout() {
+        Operation timedOut;
+        List<Operation> rejected;
+
+        synchronized (this) {
+            if (mLateType != null) {
+                // The late completion never came. Proceed
+                mLateType = null;
+                rejected = startNext();
+                timedOut = null;
+            } else if (mCurrent != null) {
+                timedOut = mCurrent;
+                Timber.w("%s for %s timed out after %d ms", timedOut.getType(), mIdentifier, mTimeoutMs);
+
+                mTimeoutCount++;
+                mCurrent = null;
+
+                // Await its late completion before starting the next operation
+                mLateType = timedOut.getType();
+                mScheduler.schedule(mTimeout, mTimeoutMs);
+                rejected = null;
+            } else {
+                return;
+            }
+        }
+
+        notifyFailures(timedOut, rejected);
+    }
+
+    /**
+     * Start queued operations until one is accepted or the queue is empty
+     *
+     * @return the operations rejected meanwhile, or null if none. Notify them via
+     * {@link #notifyFailures(Operation, List)} once this queue's lock is released
+     */
+    private @Nullable List<Operation> startNext() {
+        List<Operation> rejected = null;
+
+        while (mCurrent == null && !mPending.isEmpty()) {
+            Operation operation = mPending.poll();
+            mCurrent = operation;
+
+            if (!startCurrent()) {
+                if (rejected == null) rejected = new ArrayList<>();
+                rejected.add(operation);
+            }
+        }
+
+        return rejected;
+    }
+
+    /**
+     * Report failed operations. Must not be called while holding this queue's lock
+     */
+    private static void notifyFailures(@Nullable Operation timedOut, @Nullable List<Operation> rejected) {
+        if (timedOut != null) timedOut.onFailure(true);
+        if (rejected != null) for (Operation operation : rejected) operation.onFailure(false);
+    }
+
+    /**
+     * @return whether {@link #mCurrent} was started. If not it is cleared
+     */
+    private boolean startCurrent() {
+        mCurrentStartNs = System.nanoTime();
+
+        // Schedule first, as the operation may complete before start returns
+        mScheduler.schedule(mTimeout, mTimeoutMs);
+
+        Operation operation = mCurrent;
+        if (operation.start()) return true;
+
+        if (mCurrent == operation) {
+            mScheduler.cancel(mTimeout);
+            mCurrent = null;
+        }
+
+        Timber.w("%s for %s rejected", operation.getType(), mIdentifier);
+        mStartFailureCount++;
+        return false;
+    }
+
+    private void recordLatency(OperationType type, long latencyNs) {
+        mCompletedCounts.put(type, getCompletedCount(type) + 1);
+
+        Long total = mCompletedLatencyNs.get(type);
+        mCompletedLatencyNs.put(type, (total == null ? 0 : total) + latencyNs);
+
+        if (latencyNs > getMaxLatencyNs(type)) mMaxLatencyNs.put(type, latencyNs);
+    }
+}
@@ -0,0 +1,544 @@
+package pro.dbro.airshare.transport.wifi;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import timber.log.Timber;
+
+/**
+ * Non-blocking socket engine for {@link WifiTransport}. A single thread waits on a {@link Selector}
+ * for accept, connect, read and write readiness across any number of connections, so queued data
+ * is written immediately and the thread sleeps while the connections are idle.
+ *
+ * Connections are identified by remote host address. Data sent to an identifier before
+ * it is connected is held until the connection is established.
+ *
+ * Queued data is written to the socket in batches of up to {@link #DEFAULT_MAX_GATHER_BUFFERS}
+ * chunks per gathering write, and sockets are given large buffers, as a TCP stream benefits from
+ * few large writes rather than one per chunk.
+ *
+ * {@link Callback} methods are called on the engine's thread.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SocketEngine {
+
+    public static final int READ_BUFFER_BYTES = 256 * 1024;
+
+    /** Socket send and receive buffer size. Large enough to keep a Wi-Fi Direct link busy */
+    public static final int DEFAULT_SOCKET_BUFFER_BYTES = 1024 * 1024;
+
+    /** Queued chunks passed to each gathering write */
+    public static final int DEFAULT_MAX_GATHER_BUFFERS = 64;
+
+    public interface Callback {
+
+        /**
+         * @param accepted whether the connection was accepted from a remote client,
+         *                 rather than initiated locally via {@link #connect(InetSocketAddress)}
+         */
+        void onConnected(SocketEngine engine, String identifier, boolean accepted);
+
+        void onDataReceived(SocketEngine engine, String identifier, byte[] data);
+
+        /**
+         * Called when data passed to {@link #send(String, byte[])} has been written to the socket
+         */
+        void onDataSent(SocketEngine engine, String identifier, byte[] data);
+
+        /**
+         * Also called for a connection replaced by a new one to the same identifier, before the
+         * new connection is reported
+         */
+        void onDisconnected(SocketEngine engine, String identifier, boolean accepted);
+    }
+
+    private static class Connection {
+
+        final String identifier;
+        final SocketChannel channel;
+        final boolean accepted;
+
+        /** Data being written, and the corresponding unwritten remainders */
+        final ArrayDeque<byte[]> writeData = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> writeBuffers = new ArrayDeque<>();
+        final ByteBuffer[] gather;
+
+        Connection(String identifier, SocketChannel channel, boolean accepted, int maxGatherBuffers) {
+            this.identifier = identifier;
+            this.channel = channel;
+            this.accepted = accepted;
+            gather = new ByteBuffer[maxGatherBuffers];
+        }
+    }
+
+    private final Callback mCallback;
+    private final int mSocketBufferBytes;
+    private final int mMaxGatherBuffers;
+    private final Selector mSelector;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    /** Identifier -> Queue of outgoing data. Guards itself and {@link #mPendingWrites} */
+    private final HashMap<String, ArrayDeque<byte[]>> mOutBuffers = new HashMap<>();
+
+    /** Identifiers with data queued since the engine thread last checked */
+    private final Set<String> mPendingWrites = new HashSet<>();
+
+    /** Work to be performed on the engine thread, which alone may register channels */
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    /** Identifier -> Connection. Accessed only on the engine thread */
+    private final HashMap<String, Connection> mConnections = new HashMap<>();
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+    private volatile long mWakeupCount;
+
+    /** Size of {@link #mConnections}, readable from any thread */
+    private volatile int mConnectionCount;
+
+    public SocketEngine(@NonNull Callback callback) throws IOException {
+        this(callback, DEFAULT_SOCKET_BUFFER_BYTES, DEFAULT_MAX_GATHER_BUFFERS);
+    }
+
+    /**
+     * @param socketBufferBytes socket send and receive buffer size, or 0 for the system default
+     * @param maxGatherBuffers queued chunks passed to each write
+     */
+    public SocketEngine(@NonNull Callback callback, int socketBufferBytes, int maxGatherBuffers) throws IOException {
+        if (maxGatherBuffers < 1)
+            throw new IllegalArgumentException("Each write must include at least one buffer");
+
+        mCallback = callback;
+        mSocketBufferBytes = socketBufferBytes;
+        mMaxGatherBuffers = maxGatherBuffers;
+        mSelector = Selector.open();
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "SocketEngine");
+        mThread.start();
+    }
+
+    // <editor-fold desc="Public API">
+
+    /**
+     * Accept connections on port. Any number of clients may connect.
+     *
+     * @param port the port to listen on, or 0 for any available port
+     * @return the port bound
+     */
+    public int listen(int port) throws IOException {
+        return listen(port, 0);
+    }
+
+    /**
+     * Accept connections on port from up to maxClients distinct clients at once. Further
+     * clients are closed as soon as they are accepted, without being reported.
+     *
+     * @param port the port to listen on, or 0 for any available port
+     * @param maxClients the maximum number of accepted connections, or 0 for no limit
+     * @return the port bound
+     */
+    public int listen(int port, final int maxClients) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        // Accepted sockets inherit the receive buffer, which must be set before connection to take effect
+        if (mSocketBufferBytes > 0) server.socket().setReceiveBufferSize(mSocketBufferBytes);
+        server.socket().bind(new InetSocketAddress(port));
+
+        runOnEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.register(mSelector, SelectionKey.OP_ACCEPT, maxClients);
+                    Timber.d("Listening on port %d", server.socket().getLocalPort());
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to listen");
+                    closeQuietly(server);
+                }
+            }
+        });
+
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Connect to address, reporting success via {@link Callback#onConnected(SocketEngine, String, boolean)}
+     */
+    public void connect(@NonNull final InetSocketAddress address) {
+        runOnEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    configureChannel(channel);
+
+                    Connection connection = new Connection(address.getAddress().getHostAddress(), channel, false, mMaxGatherBuffers);
+
+                    if (channel.connect(address))
+                        onConnectionEstablished(connection, channel.register(mSelector, SelectionKey.OP_READ, connection));
+                    else
+                        channel.register(mSelector, SelectionKey.OP_CONNECT, connection);
+
+                    Timber.d("Connecting to %s", address);
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to connect to %s", address);
+                    if (channel != null) closeQuietly(channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue data for transmission to identifier
+     */
+    public void send(@NonNull String identifier, @NonNull byte[] data) {
+        synchronized (mOutBuffers) {
+            ArrayDeque<byte[]> buffers = mOutBuffers.get(identifier);
+
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                mOutBuffers.put(identifier, buffers);
+            }
+
+            buffers.add(data);
+            mPendingWrites.add(identifier);
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Close the connection to identifier, if any
+     */
+    public void disconnect(@NonNull final String identifier) {
+        runOnEngineThread(new Runnable() {
+            @Override
+            public void run() {
+                Connection connection = mConnections.get(identifier);
+                if (connection != null) close(connection);
+            }
+        });
+    }
+
+    /**
+     * Close all connections and stop the engine thread. Each open connection
+     * is reported via {@link Callback#onDisconnected(SocketEngine, String, boolean)}
+     */
+    public void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    public boolean isRunning() {
+        return mThread.isAlive();
+    }
+
+    /**
+     * @return the number of established connections, accepted or initiated
+     */
+    public int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    /**
+     * @return the number of times the engine thread has woken to service readiness events
+     * or newly queued work. Does not increase while connections are idle.
+     */
+    public long getWakeupCount() {
+        return mWakeupCount;
+    }
+
+    // </editor-fold desc="Public API">
+
+    private void runOnEngineThread(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Service every connection until stopped. A RuntimeException, e.g. thrown by the Callback,
+     * closes only the connection being serviced, as the thread is shared by all connections
+     */
+    private void runLoop() {
+        try {
+            while (mRunning) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    Timber.e(e, "Select failed");
+                    break;
+                }
+                mWakeupCount++;
+
+                Runnable task;
+                while ((task = mTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Timber.e(e, "Engine task failed");
+                    }
+                }
+
+                writePending();
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(key);
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable() && connection.channel.finishConnect()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            onConnectionEstablished(connection, key);
+                            continue;
+                        }
+
+                        if (key.isReadable()) read(connection);
+
+                        if (key.isValid() && key.isWritable()) write(connection, key);
+
+                    } catch (IOException e) {
+                        Timber.w("Connection to %s failed: %s", connection.identifier, e.getMessage());
+                        close(connection);
+                    } catch (RuntimeException e) {
+                        Timber.e(e, "Failed to service connection to %s", connection.identifier);
+                        close(connection);
+                    }
+                }
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept(SelectionKey serverKey) {
+        Connection connection = null;
+        try {
+            SocketChannel channel = ((ServerSocketChannel) serverKey.channel()).accept();
+            if (channel == null) return;
+
+            String identifier = channel.socket().getInetAddress().getHostAddress();
+
+            // A client reconnecting replaces its previous connection, so does not count toward the limit
+            int maxClients = (Integer) serverKey.attachment();
+            if (maxClients > 0 && !mConnections.containsKey(identifier) && getAcceptedCount() >= maxClients) {
+                Timber.w("Rejecting %s. Already serving %d clients", identifier, maxClients);
+                closeQuietly(channel);
+                return;
+            }
+
+            configureChannel(channel);
+
+            connection = new Connection(identifier, channel, true, mMaxGatherBuffers);
+            onConnectionEstablished(connection, channel.register(mSelector, SelectionKey.OP_READ, connection));
+        } catch (IOException e) {
+            Timber.e(e, "Failed to accept connection");
+        } catch (RuntimeException e) {
+            Timber.e(e, "Failed to accept connection");
+            if (connection != null) close(connection);
+        }
+    }
+
+    private void onConnectionEstablished(Connection connection, SelectionKey key) {
+        Connection previous = mConnections.get(connection.identifier);
+        if (previous != null) {
+            // Reported disconnected, and its queued data discarded, as the new connection does not continue its stream
+            Timber.w("Replacing existing connection to %s", connection.identifier);
+            close(previous);
+        }
+        mConnections.put(connection.identifier, connection);
+        mConnectionCount = mConnections.size();
+
+        Timber.d("Connected to %s (local is %s)", connection.identifier, connection.accepted ? "server" : "client");
+        mCallback.onConnected(this, connection.identifier, connection.accepted);
+
+        // Transmit any data queued before connection
+        try {
+            write(connection, key);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        mReadBuffer.clear();
+        int read = connection.channel.read(mReadBuffer);
+
+        if (read == -1) {
+            Timber.d("%s closed connection", connection.identifier);
+            close(connection);
+            return;
+        }
+
+        if (read > 0)
+            mCallback.onDataReceived(this, connection.identifier, Arrays.copyOf(mReadBuffer.array(), read));
+    }
+
+    /**
+     * Write queued data to connection until the socket's send buffer is full,
+     * registering for write readiness if data remains
+     */
+    private void write(Connection connection, SelectionKey key) throws IOException {
+        while (true) {
+            // Top up the chunks being written from the queue
+            if (connection.writeBuffers.size() < mMaxGatherBuffers) {
+                synchronized (mOutBuffers) {
+                    ArrayDeque<byte[]> buffers = mOutBuffers.get(connection.identifier);
+                    byte[] data;
+                    while (connection.writeBuffers.size() < mMaxGatherBuffers &&
+                           buffers != null && (data = buffers.poll()) != null) {
+                        connection.writeData.add(data);
+                        connection.writeBuffers.add(ByteBuffer.wrap(data));
+                    }
+                }
+            }
+
+            int count = connection.writeBuffers.size();
+            if (count == 0) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            connection.writeBuffers.toArray(connection.gather);
+            connection.channel.write(connection.gather, 0, count);
+
+            ByteBuffer buffer;
+            while ((buffer = connection.writeBuffers.peek()) != null && !buffer.hasRemaining()) {
+                connection.writeBuffers.poll();
+                mCallback.onDataSent(this, connection.identifier, connection.writeData.poll());
+            }
+
+            if (buffer != null) {
+                // Send buffer is full
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write data queued via {@link #send(String, byte[])} since the last wakeup
+     */
+    private void writePending() {
+        ArrayList<String> identifiers;
+        synchronized (mOutBuffers) {
+            if (mPendingWrites.isEmpty()) return;
+
+            identifiers = new ArrayList<>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+
+        for (String identifier : identifiers) {
+            Connection connection = mConnections.get(identifier);
+            if (connection == null) continue;
+
+            SelectionKey key = connection.channel.keyFor(mSelector);
+            // A write already awaiting readiness will resume with the newly queued data
+            if (key == null || !key.isValid() || (key.interestOps() & SelectionKey.OP_WRITE) != 0) continue;
+
+            try {
+                write(connection, key);
+            } catch (IOException e) {
+                Timber.w("Connection to %s failed: %s", identifier, e.getMessage());
+                close(connection);
+            } catch (RuntimeException e) {
+                Timber.e(e, "Failed to service connection to %s", identifier);
+                close(connection);
+            }
+        }
+    }
+
+    private int getAcceptedCount() {
+        int count = 0;
+        for (Connection connection : mConnections.values()) {
+            if (connection.accepted) count++;
+        }
+        return count;
+    }
+
+    private void configureChannel(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        if (mSocketBufferBytes > 0) {
+            channel.socket().setSendBufferSize(mSocketBufferBytes);
+            channel.socket().setReceiveBufferSize(mSocketBufferBytes);
+        }
+    }
+
+    private void close(Connection connection) {
+        closeChannel(connection);
+
+        if (mConnections.get(connection.identifier) != connection) return;
+
+        mConnections.remove(connection.identifier);
+        mConnectionCount = mConnections.size();
+        synchronized (mOutBuffers) {
+            mOutBuffers.remove(connection.identifier);
+        }
+
+        try {
+            mCallback.onDisconnected(this, connection.identifier, connection.accepted);
+        } catch (RuntimeException e) {
+            Timber.e(e, "Failed to report disconnection from %s", connection.identifier);
+        }
+    }
+
+    private void closeChannel(Connection connection) {
+        SelectionKey key = connection.channel.keyFor(mSelector);
+        if (key != null) key.cancel();
+        closeQuietly(connection.channel);
+    }
+
+    private void closeAll() {
+        for (Connection connection : new ArrayList<>(mConnections.values())) close(connection);
+
+        for (SelectionKey key : mSelector.keys()) closeQuietly(key.channel());
+
+        closeQuietly(mSelector);
+
+        synchronized (mOutBuffers) {
+            mOutBuffers.clear();
+            mPendingWrites.clear();
+        }
+        Timber.d("SocketEngine stopped");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close %s", closeable);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package pro.dbro.airshare.transport.wifi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * End-to-end delivery acknowledgement over a TCP stream. A write to a socket only means
+ * the data reached the local send buffer, which is lost if the connection drops before
+ * the remote reads it.
+ *
+ * The stream carries frames, each with a leading type byte:
+ *
+ * type                  | remainder
+ * ----------------------|------------
+ * {@link #FRAME_DATA}   | int32 LE payload length, payload
+ * {@link #FRAME_ACK}    | int64 LE cumulative data payload bytes received
+ *
+ * The receiver acknowledges after processing each batch of received bytes, see
+ * {@link #createAckFrame()}. The sender may have up to its window of payload bytes
+ * beyond the last acknowledgement in flight, so that throughput is not bound by
+ * round trip time. Payloads beyond the window are held until acknowledgements arrive.
+ *
+ * One instance manages both directions of a single connection.
+ */
+@SuppressWarnings("WeakerAccess")
+public class StreamAckController {
+
+    public static final byte FRAME_DATA = 0;
+    public static final byte FRAME_ACK  = 1;
+
+    public static final int DATA_HEADER_BYTES = 1 + 4;
+    public static final int ACK_FRAME_BYTES   = 1 + 8;
+
+    /** Payload bytes in flight beyond the last acknowledgement */
+    public static final int DEFAULT_WINDOW_BYTES = 4 * 1024 * 1024;
+
+    private final int mWindowBytes;
+
+    /** Payloads awaiting window capacity */
+    private final ArrayDeque<byte[]> mPending = new ArrayDeque<>();
+
+    /** Payloads sent awaiting cumulative acknowledgement */
+    private final ArrayDeque<byte[]> mUnacked = new ArrayDeque<>();
+
+    private long mBytesSent;
+    private long mBytesAcked;
+
+    private long mBytesReceived;
+    private long mBytesReceivedAtLastAck;
+
+    /** Partially received frame header */
+    private final byte[] mHeader = new byte[ACK_FRAME_BYTES];
+    private int mHeaderLength;
+
+    /** Bytes of the current data frame's payload yet to be received */
+    private int mPayloadRemaining;
+
+    public StreamAckController() {
+        this(DEFAULT_WINDOW_BYTES);
+    }
+
+    /**
+     * @param windowBytes payload bytes that may be in flight. A payload larger than the window
+     *                    is sent alone.
+     */
+    public StreamAckController(int windowBytes) {
+        if (windowBytes < 1)
+            throw new IllegalArgumentException("Window must allow at least one byte");
+
+        mWindowBytes = windowBytes;
+    }
+
+    // <editor-fold desc="Sending">
+
+    /**
+     * Queue payload for transmission. Retrieve frames via {@link #nextFrames(List)}
+     */
+    public synchronized void queue(@NonNull byte[] payload) {
+        // The receiver acknowledges bytes, so an empty payload would never be acknowledged
+        if (payload.length == 0)
+            throw new IllegalArgumentException("Payload must not be empty");
+
+        mPending.add(payload);
+    }
+
+    /**
+     * Add frames for queued payloads that fit within the window to frames, in order,
+     * and consider them sent. Each payload yields a header followed by the payload itself,
+     * so that it is not copied.
+     *
+     * @return the number of payloads added
+     */
+    public synchronized int nextFrames(@NonNull List<byte[]> frames) {
+        int count = 0;
+        byte[] payload;
+        while ((payload = mPending.peek()) != null &&
+               (mUnacked.isEmpty() || getBytesInFlight() + payload.length <= mWindowBytes)) {
+
+            mPending.poll();
+            frames.add(ByteBuffer.allocate(DATA_HEADER_BYTES)
+                                 .order(ByteOrder.LITTLE_ENDIAN)
+                                 .put(FRAME_DATA)
+                                 .putInt(payload.length)
+                                 .array());
+            frames.add(payload);
+
+            mUnacked.add(payload);
+            mBytesSent += payload.length;
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return mBytesSent - mBytesAcked;
+    }
+
+    public int getWindowBytes() {
+        return mWindowBytes;
+    }
+
+    public synchronized int getPendingPayloadCount() {
+        return mPending.size();
+    }
+
+    public synchronized int getUnackedPayloadCount() {
+        return mUnacked.size();
+    }
+
+    /**
+     * Remove all payloads sent but unacknowledged, followed by those not yet sent, adding them
+     * to payloads in order. E.g. to report them undelivered once the stream is closed
+     */
+    public synchronized void drainUndelivered(@NonNull List<byte[]> payloads) {
+        payloads.addAll(mUnacked);
+        payloads.addAll(mPending);
+        mUnacked.clear();
+        mPending.clear();
+    }
+
+    // </editor-fold desc="Sending">
+
+    // <editor-fold desc="Receiving">
+
+    /**
+     * Process bytes read from the stream, which may begin or end mid-frame.
+     *
+     * @param received populated with data payload bytes, which may be a portion of a payload
+     * @param acked populated with sent payloads whose delivery was acknowledged, in send order
+     * @throws IllegalArgumentException if the stream is malformed
+     */
+    public synchronized void onBytesReceived(@NonNull byte[] data,
+                                             @NonNull List<byte[]> received,
+                                             @NonNull List<byte[]> acked) {
+        int offset = 0;
+        while (offset < data.length) {
+
+            if (mPayloadRemaining > 0) {
+                int length = Math.min(mPayloadRemaining, data.length - offset);
+                received.add(offset == 0 && length == data.length ? data : copyOfRange(data, offset, length));
+                mPayloadRemaining -= length;
+                mBytesReceived += length;
+                offset += length;
+                continue;
+            }
+
+            byte type = mHeaderLength > 0 ? mHeader[0] : data[offset];
+            if (type != FRAME_DATA && type != FRAME_ACK)
+                throw new IllegalArgumentException("Unknown frame type " + type);
+
+            int headerBytes = type == FRAME_DATA ? DATA_HEADER_BYTES : ACK_FRAME_BYTES;
+
+            int length = Math.min(headerBytes - mHeaderLength, data.length - offset);
+            System.arraycopy(data, offset, mHeader, mHeaderLength, length);
+            mHeaderLength += length;
+            offset += length;
+
+            if (mHeaderLength < headerBytes) break;
+            mHeaderLength = 0;
+
+            ByteBuffer header = ByteBuffer.wrap(mHeader, 1, headerBytes - 1).order(ByteOrder.LITTLE_ENDIAN);
+            if (type == FRAME_DATA) {
+                mPayloadRemaining = header.getInt();
+                if (mPayloadRemaining < 0)
+                    throw new IllegalArgumentException("Negative payload length " + mPayloadRemaining);
+            } else {
+                onAck(header.getLong(), acked);
+            }
+        }
+    }
+
+    /**
+     * @return an acknowledgement of all payload bytes received, or null if none were
+     * received since the last
+     */
+    public synchronized @Nullable byte[] createAckFrame() {
+        if (mBytesReceived == mBytesReceivedAtLastAck) return null;
+
+        mBytesReceivedAtLastAck = mBytesReceived;
+        return ByteBuffer.allocate(ACK_FRAME_BYTES)
+                         .order(ByteOrder.LITTLE_ENDIAN)
+                         .put(FRAME_ACK)
+                         .putLong(mBytesReceived)
+                         .array();
+    }
+
+    // </editor-fold desc="Receiving">
+
+    private void onAck(long cumulativeBytes, List<byte[]> acked) {
+        if (cumulativeBytes > mBytesSent)
+            throw new IllegalArgumentException("Acknowledgement of " + cumulativeBytes + " bytes exceeds " + mBytesSent + " sent");
+
+        // Acknowledgements may only advance. A payload is delivered once its final byte is acknowledged
+        byte[] payload;
+        while ((payload = mUnacked.peek()) != null && mBytesAcked + payload.length <= cumulativeBytes) {
+            acked.add(mUnacked.poll());
+            mBytesAcked += payload.length;
+        }
+    }
+
+    private static byte[] copyOfRange(byte[] data, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return copy;
+    }
+}
@@ -19,73 +19,86 @@ import androidx.annotation.Nullable;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import pro.dbro.airshare.session.SessionLog;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
 
 /**
  * Wifi Direct Transport. Requires Android 4.0.
  *
- * Proof-of-concept. Not yet ready for use. Supports a single WiFi Direct connection at time
+ * Proof-of-concept. Not yet ready for use.
+ *
+ * The group owner accepts up to {@link #MAX_GROUP_CLIENTS} clients at once, each reported
+ * as a distinct identifier (its address within the group). Clients connect only to the group owner.
+ *
+ * Socket I/O is performed by a {@link SocketEngine}, which services all connections
+ * from a single selector thread and keeps a separate send queue per identifier.
  *
- * Development Note : Need to implement true acknowledgement.
  * {@link pro.dbro.airshare.transport.Transport.TransportCallback#dataSentToIdentifier(Transport, byte[], String, Exception)}
- * reports that the data was written to the Socket, but not that it was received on the other end. Bugs have been witnessed
- * where a client that shuts down the connection immediately after that callback result in the remote peer losing connection
- * before receiving said data.
+ * is reported when the remote acknowledges receipt, rather than when data is written to the socket, via a
+ * {@link StreamAckController} per connection. Previously a peer that shut down the connection immediately after
+ * that callback could cause the remote to lose data still in transit.
  *
  * Created by davidbrodsky on 2/21/15.
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class WifiTransport extends Transport implements WifiP2pManager.ConnectionInfoListener, WifiP2pManager.ChannelListener {
 
-    private static final boolean VERBOSE = true;
+    private static final boolean VERBOSE = SessionLog.VERBOSE;
 
     /** Values to id transport useful in bit fields */
     public static final int TRANSPORT_CODE = 2;
 
     public static final int DEFAULT_MTU_BYTES = 1024;
 
+    /**
+     * Chunk size over the TCP stream. Sockets impose no packet size, and larger chunks
+     * amortize per-chunk serialization and callback overhead
+     */
+    public static final int STREAM_MTU_BYTES = 64 * 1024;
+
+    /** Clients a group owner serves at once. Android's Wi-Fi Direct groups support up to 8 */
+    public static final int MAX_GROUP_CLIENTS = 8;
+
     private static final int PORT = 8787;
-    private static final int SOCKET_TIMEOUT_MS = 5000;
 
     private Context mContext;
     private WifiP2pManager mManager;
     private WifiP2pManager.Channel mChannel;
 
-    private Thread mSocketThread;
+    private SocketEngine mSocketEngine;
 
     private boolean mConnectionDesired = true;
     private boolean mDiscoveringPeers = false;
     private boolean mLocalPrefersToHost = false;
     private boolean mRetryChannel = true;
     private boolean mReceiverRegistered = false;
+    private boolean mIsGroupOwner = false;
 
     private BiMap<String, String> mMacToIpAddress = HashBiMap.create();
 
-    private HashSet<String> mConnectingPeers = new HashSet<>();
-    private HashSet<String> mConnectedPeers = new HashSet<>();
+    // Connected peers are updated on the socket engine's thread
+    private Set<String> mConnectingPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private Set<String> mConnectedPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private static int PEER_DISCOVERY_TIMEOUT_MS = 30 * 1000;
     private CountDownTimer mPeerDiscoveryTimer;
 
-    /** Identifier -> Queue of outgoing buffers */
-    private final HashMap<String, ArrayDeque<byte[]>> mOutBuffers = new HashMap<>();
+    /** Identifier -> Framing and acknowledgement of the connection's stream */
+    private final ConcurrentHashMap<String, StreamAckController> mAckControllers = new ConcurrentHashMap<>();
+
+    /** Receives connection events and data from {@link #mSocketEngine} */
+    private final SocketEngineCallback mEngineCallback = new SocketEngineCallback();
 
     public class DeviceConnectionListener implements WifiP2pManager.ActionListener {
 
@@ -135,10 +148,12 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     @Override
     public boolean sendData(@NonNull byte[] data, String identifier) {
 
-        queueOutgoingData(data, identifier);
+        if (mSocketEngine == null) {
+            Timber.w("Cannot send %d bytes to %s. No socket open", data.length, identifier);
+            return false;
+        }
 
-//        if (isConnectedTo(identifier))
-//            return transmitOutgoingDataForConnectedPeer(identifier);
+        queueOutgoingData(data, identifier);
 
         return true;
     }
@@ -163,8 +178,10 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
             mReceiverRegistered = false;
         }
         mConnectionDesired = false;
-        if (mSocketThread != null) {
-            mSocketThread = null;
+        if (mSocketEngine != null) {
+            // Open connections are reported disconnected as the engine closes them
+            mSocketEngine.stop();
+            mSocketEngine = null;
         }
 
         if (mDiscoveringPeers)
@@ -187,10 +204,10 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
 
         mConnectedPeers.clear();
         mConnectingPeers.clear();
-
-        mOutBuffers.clear();
+        mAckControllers.clear();
 
         mDiscoveringPeers = false;
+        mIsGroupOwner = false;
     }
 
     @Override
@@ -200,9 +217,7 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
 
     @Override
     public int getMtuForIdentifier(String identifier) {
-//        Integer mtu = central.getMtuForIdentifier(identifier);
-//        return (mtu == null ? DEFAULT_MTU_BYTES : mtu ) - 10;
-        return DEFAULT_MTU_BYTES;
+        return STREAM_MTU_BYTES;
     }
 
     // </editor-fold desc="Transport">
@@ -244,17 +259,7 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
             public void onSuccess() {
                 Timber.d("Peer discovery initiated");
                 mDiscoveringPeers = true;
-                // Restart P2P stack if discovery fails
-                mPeerDiscoveryTimer = new CountDownTimer(PEER_DISCOVERY_TIMEOUT_MS, PEER_DISCOVERY_TIMEOUT_MS) {
-
-                    public void onTick(long millisUntilFinished) {
-                    }
-
-                    public void onFinish() {
-                        Timber.d("Peer Discovery timed out, restarting P2P stack");
-                        resetP2PStack();
-                    }
-                }.start();
+                startPeerDiscoveryTimer();
             }
 
             @Override
@@ -265,6 +270,41 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
         });
     }
 
+    /**
+     * Renew discovery while the group owner has room for more clients. Android ends discovery
+     * when a group forms, after which further clients could not find the group owner.
+     */
+    private void continueDiscoveryForClients() {
+        if (!mIsGroupOwner || mSocketEngine == null ||
+            mSocketEngine.getConnectionCount() >= MAX_GROUP_CLIENTS) return;
+
+        mManager.discoverPeers(mChannel, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                Timber.d("Peer discovery renewed with %d clients connected", mConnectedPeers.size());
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                Timber.w("Failed to renew peer discovery with reason %s", getDescriptionForActionListenerError(reason));
+            }
+        });
+    }
+
+    private void startPeerDiscoveryTimer() {
+        // Restart P2P stack if discovery fails
+        mPeerDiscoveryTimer = new CountDownTimer(PEER_DISCOVERY_TIMEOUT_MS, PEER_DISCOVERY_TIMEOUT_MS) {
+
+            public void onTick(long millisUntilFinished) {
+            }
+
+            public void onFinish() {
+                Timber.d("Peer Discovery timed out, restarting P2P stack");
+                resetP2PStack();
+            }
+        }.start();
+    }
+
     public void onWifiDirectReady() {
         // It appears that if only one device enters discovery mode,
         // a connection will never be made. Instead, both devices enter discovery mode
@@ -279,37 +319,55 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     }
 
     /**
-     * Queue data for transmission to identifier
+     * Queue data for transmission to identifier. It is passed to the socket engine as
+     * the connection's acknowledgement window permits.
      */
     private void queueOutgoingData(byte[] data, String identifier) {
-        synchronized (mOutBuffers) {
-            ArrayDeque<byte[]> buffers = mOutBuffers.get(identifier);
+        int mtu = getMtuForIdentifier(identifier);
+        StreamAckController ackController = getAckController(identifier);
+
+        int readIdx = 0;
+        while (readIdx < data.length) {
 
-            if (buffers == null) {
-                buffers = new ArrayDeque<>();
-                mOutBuffers.put(identifier, buffers);
+            if (data.length - readIdx > mtu) {
+                ackController.queue(Arrays.copyOfRange(data, readIdx, readIdx + mtu));
+                readIdx += mtu;
+            }
+            else {
+                // Data sized to the MTU, as provided by SessionMessageSerializer, is queued without copying
+                ackController.queue(readIdx == 0 ? data : Arrays.copyOfRange(data, readIdx, data.length));
+                break;
             }
+        }
 
-            int mtu = getMtuForIdentifier(identifier);
+        if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Queued %d outgoing bytes for %s", data.length, identifier);
+        transmitFrames(identifier, ackController);
+    }
 
-            int readIdx = 0;
-            while (readIdx < data.length) {
+    /**
+     * Pass frames permitted by ackController's window to the socket engine
+     */
+    private void transmitFrames(String identifier, StreamAckController ackController) {
+        SocketEngine engine = mSocketEngine;
+        if (engine == null) return;
+
+        ArrayList<byte[]> frames = new ArrayList<>();
+        // Frames must reach the engine in the order the controller produced them
+        synchronized (ackController) {
+            ackController.nextFrames(frames);
+            for (byte[] frame : frames) engine.send(identifier, frame);
+        }
+    }
 
-                if (data.length - readIdx > mtu) {
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream(mtu);
-                    bos.write(data, readIdx, mtu);
-                    buffers.add(bos.toByteArray());
-                    readIdx += mtu;
-                }
-                else {
-                    buffers.add(data);
-                    break;
-                }
-            }
+    private StreamAckController getAckController(String identifier) {
+        StreamAckController ackController = mAckControllers.get(identifier);
 
-            if (VERBOSE) Timber.d("Queued %d outgoing bytes for %s", data.length, identifier);
-            mOutBuffers.notify();
+        if (ackController == null) {
+            ackController = new StreamAckController();
+            StreamAckController existing = mAckControllers.putIfAbsent(identifier, ackController);
+            if (existing != null) ackController = existing;
         }
+        return ackController;
     }
 
     private boolean isConnectedTo(String identifier) {
@@ -359,8 +417,8 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
                         Timber.d("Got %d available peers. %s", numPeers, firstPeerStatus);
                         // Only the client should initiate connection
                         if (!mLocalPrefersToHost && numPeers > 0) {
-                            WifiP2pDevice connectableDevice = deviceList.getDeviceList().iterator().next();
-                            if (connectableDevice.status == WifiP2pDevice.AVAILABLE) {
+                            WifiP2pDevice connectableDevice = selectPeerToJoin(deviceList);
+                            if (connectableDevice != null && connectableDevice.status == WifiP2pDevice.AVAILABLE) {
                                 // If the peer status is available, the prior invitation is void
                                 mConnectingPeers.remove(connectableDevice.deviceAddress);
                                 initiateConnectionToPeer(connectableDevice);
@@ -436,11 +494,24 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
         }
     };
 
+    /**
+     * @return a group owner among devices, so that clients join the hub's existing group
+     * rather than one another. If there is none, the first device
+     */
+    private static @Nullable WifiP2pDevice selectPeerToJoin(WifiP2pDeviceList devices) {
+        WifiP2pDevice first = null;
+        for (WifiP2pDevice device : devices.getDeviceList()) {
+            if (device.isGroupOwner()) return device;
+            if (first == null) first = device;
+        }
+        return first;
+    }
+
     private void initiateConnectionToPeer(WifiP2pDevice device) {
 
         if (!mConnectedPeers.contains(device.deviceAddress) && !mConnectingPeers.contains(device.deviceAddress)) {
 
-            if (mSocketThread != null) {
+            if (mSocketEngine != null) {
                 // TODO : Check, stop socket if different peer
                 Timber.e("Cannot honor request to connect to peer. Socket already open.");
                 return;
@@ -467,19 +538,21 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     public void onConnectionInfoAvailable(WifiP2pInfo info) {
         Timber.d("Got Connection Info");
 
-        if (mSocketThread != null) {
-            Timber.w("SocketThread already set. Will not act on connection info");
+        if (mSocketEngine != null) {
+            // As group owner, each client joining the group is reported here. They connect to the running server
+            Timber.d("SocketEngine already started as %s. Will not act on connection info", mIsGroupOwner ? "group owner" : "client");
             return;
         }
 
         // After a connection we request connection info
         if (info.groupFormed && info.isGroupOwner) {
             Timber.d("This device is the host (group owner)");
+            mIsGroupOwner = true;
             // At this point we want to open a socket and receive data + the client address
             startServerSocket();
 
         } else if (info.groupFormed) {
-            // The other device is the group owner. For now we assume groups of fixed size 2
+            // The other device is the group owner, and the only peer this client connects to
             Timber.d("Connected to %s (local is client)", info.groupOwnerAddress.getHostAddress());
 
             if (mConnectingPeers.size() == 1) {
@@ -506,132 +579,119 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     }
 
     public void startClientSocket(final InetAddress address) {
-        mSocketThread = new Thread(new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    Socket socket = new Socket();
-                    socket.bind(null);
-                    Timber.d("Client opening socket to %s", address.getHostAddress());
-                    socket.connect((new InetSocketAddress(address, PORT)), SOCKET_TIMEOUT_MS);
-
-                    cancelPeerDiscoveryTimer();
+        if (!startSocketEngine()) return;
 
-                    Timber.d("Client connected to %s", address.getHostAddress());
-                    mConnectedPeers.add(address.getHostAddress());
-                    mCallback.get().identifierUpdated(WifiTransport.this, address.getHostAddress(), ConnectionStatus.CONNECTED, true, null);
-
-                    maintainSocket(null, socket, address.getHostAddress());
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        });
-        mSocketThread.start();
+        Timber.d("Client opening socket to %s", address.getHostAddress());
+        mSocketEngine.connect(new InetSocketAddress(address, PORT));
     }
 
     public void startServerSocket() {
-        mSocketThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
+        if (!startSocketEngine()) return;
 
-                    ServerSocket serverSocket = new ServerSocket(PORT);
-
-                    Timber.d("Created Server socket. Waiting for connection");
-                    Socket client = serverSocket.accept();
-
-                    cancelPeerDiscoveryTimer();
-
-                    String clientAddress = client.getInetAddress().getHostAddress();
-                    Timber.d("Connected to %s (local is server)", clientAddress);
-
-                    mConnectedPeers.add(clientAddress);
-                    mCallback.get().identifierUpdated(WifiTransport.this, clientAddress, ConnectionStatus.CONNECTED, false, null);
-
-                    maintainSocket(serverSocket, client, client.getInetAddress().getHostAddress());
-
-                } catch (IOException e) {
-                    Timber.e(e, "Failed to read socket inputstream");
-                    e.printStackTrace();
-                }
-            }
-        });
-        mSocketThread.start();
+        try {
+            mSocketEngine.listen(PORT, MAX_GROUP_CLIENTS);
+            Timber.d("Created Server socket. Waiting for up to %d clients", MAX_GROUP_CLIENTS);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to open server socket");
+        }
     }
 
     /**
-     * Maintains the given socket in a read / write loop until
-     * {@link #mConnectionDesired} is set false.
+     * @return whether {@link #mSocketEngine} was started
      */
-    private void maintainSocket(@Nullable ServerSocket serverSocket, Socket socket, String remoteAddress) {
+    private boolean startSocketEngine() {
         try {
             mConnectionDesired = true;
-            socket.setSoTimeout(50);
+            mSocketEngine = new SocketEngine(mEngineCallback);
+            return true;
+        } catch (IOException e) {
+            Timber.e(e, "Failed to start socket engine");
+            return false;
+        }
+    }
 
-            InputStream inputStream = socket.getInputStream();
-            OutputStream outputStream = socket.getOutputStream();
+    /**
+     * Relays events from {@link #mSocketEngine}, reported on its thread, to {@link #mCallback}
+     */
+    private class SocketEngineCallback implements SocketEngine.Callback {
 
-            byte[] buf = new byte[DEFAULT_MTU_BYTES];
-            int len;
+        @Override
+        public void onConnected(SocketEngine engine, String identifier, boolean accepted) {
+            cancelPeerDiscoveryTimer();
 
-            while (mConnectionDesired) {
+            Timber.d("Connected to %s (local is %s)", identifier, accepted ? "server" : "client");
+            mConnectedPeers.add(identifier);
 
-                // Read incoming data
-                try {
-                    while ((len = inputStream.read(buf)) > 0) {
-                        ByteArrayOutputStream os = new ByteArrayOutputStream(len);
-                        os.write(buf, 0, len);
-                        if (VERBOSE) Timber.d("Got %d bytes from %s", len, remoteAddress);
-                        mCallback.get().dataReceivedFromIdentifier(WifiTransport.this, os.toByteArray(), remoteAddress);
-                    }
-                } catch (SocketTimeoutException e) {
-                    // No incoming data received
-                    //Timber.d("No incoming data found in timeout period");
-                } catch (SocketException e2) {
-                    // Socket was closed
-                    Timber.d("Socket closed");
-                    break;
-                }
+            if (accepted) continueDiscoveryForClients();
+
+            if (mCallback.get() != null)
+                mCallback.get().identifierUpdated(WifiTransport.this, identifier, ConnectionStatus.CONNECTED, !accepted, null);
+        }
+
+        @Override
+        public void onDataReceived(SocketEngine engine, String identifier, byte[] data) {
+            if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Got %d bytes from %s", data.length, identifier);
+
+            StreamAckController ackController = getAckController(identifier);
+            ArrayList<byte[]> received = new ArrayList<>();
+            ArrayList<byte[]> acked = new ArrayList<>();
+
+            try {
+                ackController.onBytesReceived(data, received, acked);
+            } catch (IllegalArgumentException e) {
+                Timber.e(e, "Malformed stream from %s. Disconnecting", identifier);
+                engine.disconnect(identifier);
+                return;
+            }
 
-                ArrayDeque<byte[]> outBuffersForPeer = mOutBuffers.get(remoteAddress);
+            // Acknowledge all data received in this read at once
+            byte[] ack = ackController.createAckFrame();
+            if (ack != null) engine.send(identifier, ack);
 
+            TransportCallback callback = mCallback.get();
+            if (callback != null) {
+                for (byte[] payload : received)
+                    callback.dataReceivedFromIdentifier(WifiTransport.this, payload, identifier);
 
+                for (byte[] payload : acked)
+                    callback.dataSentToIdentifier(WifiTransport.this, payload, identifier, null);
+            }
 
-                // Write outgoing data
-                if (outBuffersForPeer != null && outBuffersForPeer.size() > 0) {
-                    byte[] buffer;
+            // Acknowledgements free window for further data
+            if (!acked.isEmpty()) transmitFrames(identifier, ackController);
+        }
 
-                    while ((buffer = outBuffersForPeer.poll()) != null) {
-                        outputStream.write(buffer);
+        @Override
+        public void onDataSent(SocketEngine engine, String identifier, byte[] data) {
+            // Delivery is reported when the remote acknowledges it
+            if (VERBOSE && SessionLog.isLoggable(SessionLog.DEBUG)) Timber.d("Wrote %d bytes to %s", data.length, identifier);
+        }
 
-                        if (VERBOSE) {
-                            Timber.d("Wrote %d bytes to %s", buffer.length, remoteAddress);
-                        }
+        @Override
+        public void onDisconnected(SocketEngine engine, String identifier, boolean accepted) {
+            Timber.d("%s closed socket with %s", mConnectionDesired ? "remote" : "local", identifier);
+            mConnectedPeers.remove(identifier);
 
-                        mCallback.get().dataSentToIdentifier(WifiTransport.this,
-                                outBuffersForPeer.poll(), remoteAddress, null);
-                    }
-                }
-            }
+            // A reconnection from identifier begins a new stream, so must not inherit this one's controller
+            StreamAckController ackController = mAckControllers.remove(identifier);
+            ArrayList<byte[]> undelivered = new ArrayList<>();
+            if (ackController != null) ackController.drainUndelivered(undelivered);
+
+            if (!undelivered.isEmpty())
+                Timber.w("Disconnected from %s with %d payloads undelivered", identifier, undelivered.size());
 
-            outputStream.close();
-            inputStream.close();
-            socket.close();
-            if (serverSocket != null) serverSocket.close();
+            // Make room for another client
+            if (accepted && mConnectionDesired) continueDiscoveryForClients();
 
-            Timber.d("%s closed socket with %s", mConnectionDesired ? "remote" : "local", remoteAddress);
+            TransportCallback callback = mCallback.get();
+            if (callback != null) {
+                IOException exception = new IOException("Disconnected from " + identifier);
+                for (byte[] payload : undelivered)
+                    callback.dataSentToIdentifier(WifiTransport.this, payload, identifier, exception);
 
-            if (mCallback.get() != null) {
-                mCallback.get().identifierUpdated(this, remoteAddress,
-                        ConnectionStatus.DISCONNECTED, !mLocalPrefersToHost, null);
+                callback.identifierUpdated(WifiTransport.this, identifier, ConnectionStatus.DISCONNECTED, !accepted, null);
             }
         }
-        catch (IOException e) {
-            Timber.e(e, "Maintain socket exception");
-        }
     }
 
     private static String getDescriptionForDeviceStatus(int status) {